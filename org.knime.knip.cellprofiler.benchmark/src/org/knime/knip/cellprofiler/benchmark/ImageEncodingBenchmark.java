@@ -0,0 +1,113 @@
+package org.knime.knip.cellprofiler.benchmark;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.cellprofiler.knimebridge.message.RunReq;
+import org.knime.knip.cellprofiler.bridge.EncodedImages;
+import org.knime.knip.cellprofiler.bridge.ImageEncoding;
+import org.knime.knip.cellprofiler.bridge.ScaledImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Encoding of an image for a run request, including the determination of the
+ * pixel range. Prepared run requests are encoded in the native type or as
+ * floats, depending on the CellProfiler version. Older versions get the run
+ * request of the knime-bridge library, which serializes doubles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ImageEncodingBenchmark {
+
+	/**
+	 * Width and height of the image.
+	 */
+	@Param({ "512", "2048" })
+	public int size;
+
+	private ImgPlus<UnsignedShortType> m_img;
+
+	/**
+	 * Creates the image.
+	 */
+	@Setup
+	public void setUp() {
+		m_img = SyntheticData.uint16Image(size);
+	}
+
+	/**
+	 * The range is determined while the image is encoded. The scaled image
+	 * is created anew for each encoding, as each row of an execution does.
+	 */
+	private Map<String, ScaledImage> images() {
+		return Collections.singletonMap("DNA", ScaledImage.normalized(m_img));
+	}
+
+	/**
+	 * @return Image encoded in its native type
+	 */
+	@Benchmark
+	public EncodedImages encodeNative() {
+		return encode(EnumSet.allOf(ImageEncoding.class));
+	}
+
+	/**
+	 * @return Image encoded as floats
+	 */
+	@Benchmark
+	public EncodedImages encodeFloat32() {
+		return encode(EnumSet.of(ImageEncoding.FLOAT32, ImageEncoding.FLOAT64));
+	}
+
+	/**
+	 * @return Image encoded as doubles
+	 */
+	@Benchmark
+	public EncodedImages encodeFloat64() {
+		return encode(EnumSet.of(ImageEncoding.FLOAT64));
+	}
+
+	private EncodedImages encode(final Set<ImageEncoding> supported) {
+		return EncodedImages.encode(images(), supported);
+	}
+
+	/**
+	 * @return Run request of the knime-bridge library
+	 */
+	@Benchmark
+	public RunReq legacyRunReq() {
+		final ScaledImage image = ScaledImage.normalized(m_img);
+		return new LibraryRunReq(Collections.<String, ImgPlus<?>> singletonMap("DNA", image.toFloatImgPlus()));
+	}
+
+	/**
+	 * Exposes the constructor, which serializes the images.
+	 */
+	private static final class LibraryRunReq extends RunReq {
+
+		private LibraryRunReq(final Map<String, ImgPlus<?>> images) {
+			super("session", "pipeline", images);
+		}
+	}
+
+}
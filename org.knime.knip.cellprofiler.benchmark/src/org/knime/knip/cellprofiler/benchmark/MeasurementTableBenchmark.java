@@ -0,0 +1,101 @@
+package org.knime.knip.cellprofiler.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cellprofiler.knimebridge.KBConstants;
+import org.knime.knip.cellprofiler.data.CellProfilerMeasurementTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Construction of a measurement table from the arrays of a run reply and of
+ * its rows, as added to the output of the Measurements To Table node.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MeasurementTableBenchmark {
+
+	/**
+	 * Number of objects in the table.
+	 */
+	@Param({ "500", "5000" })
+	public int objects;
+
+	/**
+	 * Number of features of the table.
+	 */
+	@Param({ "40", "400" })
+	public int features;
+
+	private double[][] m_doubleFeatures;
+
+	private float[][] m_floatFeatures;
+
+	private CellProfilerMeasurementTable m_table;
+
+	/**
+	 * Creates the features.
+	 */
+	@Setup
+	public void setUp() {
+		m_doubleFeatures = SyntheticData.features(objects, features);
+		m_floatFeatures = new float[features][objects];
+		for (int f = 0; f < features; f++) {
+			for (int i = 0; i < objects; i++) {
+				m_floatFeatures[f][i] = (float) m_doubleFeatures[f][i];
+			}
+		}
+		m_table = SyntheticData.measurementTable(m_doubleFeatures);
+	}
+
+	/**
+	 * @return Table of double features
+	 */
+	@Benchmark
+	public CellProfilerMeasurementTable constructFromDoubles() {
+		return SyntheticData.measurementTable(m_doubleFeatures);
+	}
+
+	/**
+	 * @return Table of float features, which are converted to doubles
+	 */
+	@Benchmark
+	public CellProfilerMeasurementTable constructFromFloats() {
+		final CellProfilerMeasurementTable table = new CellProfilerMeasurementTable("Row0");
+		table.addIntegerFeature(KBConstants.OBJECT_NUMBER, SyntheticData.objectNumbers(objects));
+		for (int f = 0; f < features; f++) {
+			table.addFloatFeature(SyntheticData.featureName(f), m_floatFeatures[f]);
+		}
+		return table;
+	}
+
+	/**
+	 * Creates all rows like
+	 * {@link CellProfilerMeasurementTable#addRows(org.knime.core.node.BufferedDataContainer)},
+	 * which needs an execution context.
+	 * 
+	 * @param blackhole
+	 *            Consumes the rows
+	 */
+	@Benchmark
+	public void rows(final Blackhole blackhole) {
+		for (int r = 0; r < m_table.getNumRows(); r++) {
+			blackhole.consume(m_table.getRow(r));
+		}
+	}
+
+}
@@ -0,0 +1,392 @@
+package org.knime.knip.cellprofiler.benchmark;
+
+import java.io.StringReader;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+
+import org.cellprofiler.knimebridge.KBConstants;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+/**
+ * Stand-in for a CellProfiler worker speaking the knime-bridge protocol, so
+ * that the integration can be load-tested without a Python installation.
+ *
+ * Like a CellProfiler process, a server handles one request after the other.
+ * It accepts any pipeline, reports the configured channels and object tables
+ * and answers every run request after the configured latency with the same
+ * synthetic measurements: each object table has the object numbers and the
+ * given number of double features, the image table has the image number.
+ * Prepared pipelines also accept batch run requests, which take the latency
+ * once per image set, and only return the features selected when the
+ * pipeline was prepared. Run requests can be made to hang, to test how
+ * clients recover from workers that stop answering.
+ * Start one server per {@link org.knime.knip.cellprofiler.CellProfilerInstance}
+ * to simulate a pool of workers.
+ */
+public class MockCellProfilerServer implements AutoCloseable {
+
+	private static final int POLL_INTERVAL = 100;
+
+	private static final String PIPELINE_ID = "mock-pipeline";
+
+	private static final String VERSION = "mock-1";
+
+	private static final String[] TYPES = { Integer.class.getName(), Double.class.getName() };
+
+	private static final int INTEGER_TYPE = 0;
+
+	private static final int DOUBLE_TYPE = 1;
+
+	private final Context m_context = ZMQ.context(1);
+
+	private final String[] m_channels;
+
+	private final String[] m_objectNames;
+
+	private final int m_numFeatures;
+
+	private final long m_latency;
+
+	private final boolean m_preparedPipelineSupported;
+
+	private final double[][] m_features;
+
+	private final ZMsg m_runReply;
+
+	// Only accessed by the serving thread
+	private ZMsg m_preparedRunReply;
+
+	private final AtomicLong m_runRequests = new AtomicLong();
+
+	private final AtomicInteger m_hangingRuns = new AtomicInteger();
+
+	private volatile long m_hangDuration;
+
+	private volatile boolean m_running;
+
+	private Thread m_thread;
+
+	private URI m_address;
+
+	/**
+	 * @param channels
+	 *            Names of the input images of the pipeline
+	 * @param objectNames
+	 *            Names of the object tables of the pipeline
+	 * @param numObjects
+	 *            Number of objects in each object table
+	 * @param numFeatures
+	 *            Number of double features of each object table
+	 * @param latency
+	 *            Time in milliseconds a run request takes
+	 * @param preparedPipelineSupported
+	 *            True to behave like CellProfiler versions supporting prepared
+	 *            pipelines and image encodings, false to behave like older
+	 *            versions only accepting the pipeline and double images with
+	 *            every run request
+	 */
+	public MockCellProfilerServer(final String[] channels, final String[] objectNames, final int numObjects,
+			final int numFeatures, final long latency, final boolean preparedPipelineSupported) {
+		m_channels = channels.clone();
+		m_objectNames = objectNames.clone();
+		m_numFeatures = numFeatures;
+		m_latency = latency;
+		m_preparedPipelineSupported = preparedPipelineSupported;
+		m_features = SyntheticData.features(numObjects, numFeatures);
+		m_runReply = createRunReply(m_objectNames, m_features);
+		m_preparedRunReply = m_runReply;
+	}
+
+	/**
+	 * Binds the server to a free port on the loopback interface and starts
+	 * handling requests.
+	 *
+	 * @return The address to connect to
+	 */
+	public synchronized URI start() {
+		if (m_thread != null) {
+			return m_address;
+		}
+		final Socket socket = m_context.socket(ZMQ.REP);
+		socket.setLinger(0);
+		socket.setReceiveTimeOut(POLL_INTERVAL);
+		final int port = socket.bindToRandomPort("tcp://127.0.0.1");
+		m_address = URI.create("tcp://127.0.0.1:" + port);
+		m_running = true;
+		m_thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					serve(socket);
+				} finally {
+					socket.close();
+				}
+			}
+		}, "Mock CellProfiler server " + port);
+		m_thread.setDaemon(true);
+		m_thread.start();
+		return m_address;
+	}
+
+	/**
+	 * @return Number of run requests answered so far.
+	 */
+	public long getRunRequestCount() {
+		return m_runRequests.get();
+	}
+
+	/**
+	 * Lets the next run requests take the given time instead of the latency,
+	 * like a worker that hangs. They are still answered afterwards, but a
+	 * client that gave up waiting has moved on to a new connection by then.
+	 *
+	 * @param count
+	 *            Number of run requests that hang
+	 * @param duration
+	 *            Time in milliseconds each of them takes
+	 */
+	public void hangNextRuns(final int count, final long duration) {
+		m_hangDuration = duration;
+		m_hangingRuns.set(count);
+	}
+
+	/**
+	 * Stops handling requests and releases the port.
+	 */
+	@Override
+	public synchronized void close() {
+		if (m_thread == null) {
+			return;
+		}
+		m_running = false;
+		try {
+			m_thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		m_thread = null;
+		m_context.term();
+	}
+
+	private void serve(final Socket socket) {
+		while (m_running) {
+			final ZMsg request = ZMsg.recvMsg(socket);
+			if (request == null) {
+				// Timed out, check whether to stop
+				continue;
+			}
+			final ZFrame sessionID = request.unwrap();
+			final ZMsg reply = handle(request.popString(), request);
+			request.destroy();
+			reply.wrap(sessionID);
+			reply.send(socket);
+		}
+	}
+
+	private ZMsg handle(final String msgName, final ZMsg request) {
+		final ZMsg reply = new ZMsg();
+		if ("connect-request-1".equals(msgName)) {
+			reply.add("connect-reply-1");
+		} else if ("pipeline-info-req-1".equals(msgName)) {
+			reply.add("pipeline-info-reply-1");
+			reply.add(createPipelineInfo());
+		} else if ("clean-pipeline-request-1".equals(msgName)) {
+			// Every module is kept
+			reply.add("clean-pipeline-reply-1");
+			reply.add(request.pop());
+		} else if ("prepare-pipeline-request-1".equals(msgName) && m_preparedPipelineSupported) {
+			// Pipeline
+			request.pop();
+			m_preparedRunReply = request.isEmpty() ? m_runReply
+					: createRunReply(m_objectNames, m_features, parseSelectedFeatures(request.popString()));
+			reply.add("prepare-pipeline-reply-1");
+			reply.add(PIPELINE_ID);
+			reply.add(Json.createArrayBuilder().add("float64").add("float32").add("uint8").add("uint16").build()
+					.toString());
+			// Images are always sent in frames
+			reply.add(Json.createArrayBuilder().build().toString());
+			reply.add(Json.createArrayBuilder().add("run-batch").build().toString());
+			reply.add(VERSION);
+		} else if ("run-request-1".equals(msgName) || "run-group-request-1".equals(msgName)
+				|| (m_preparedPipelineSupported && ("run-prepared-request-1".equals(msgName)
+						|| "run-group-prepared-request-1".equals(msgName)))) {
+			simulateLatency(1);
+			m_runRequests.incrementAndGet();
+			final ZMsg runReply = (msgName.contains("prepared") ? m_preparedRunReply : m_runReply).duplicate();
+			runReply.addFirst("run-reply-1");
+			return runReply;
+		} else if ("run-batch-request-1".equals(msgName) && m_preparedPipelineSupported) {
+			// Pipeline ID
+			request.pop();
+			final int count = Integer.parseInt(request.popString());
+			simulateLatency(count);
+			m_runRequests.incrementAndGet();
+			reply.add("run-batch-reply-1");
+			reply.add(Integer.toString(count));
+			for (int i = 0; i < count; i++) {
+				for (final ZFrame frame : m_preparedRunReply) {
+					reply.add(frame.duplicate());
+				}
+			}
+		} else {
+			// What CellProfiler answers to requests it doesn't know
+			reply.add("cellprofiler-exception-1");
+			reply.add("Unsupported request: " + msgName);
+		}
+		return reply;
+	}
+
+	private void simulateLatency(final int numImageSets) {
+		final long latency = takeHangingRun() ? m_hangDuration : m_latency * numImageSets;
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private boolean takeHangingRun() {
+		while (true) {
+			final int hangingRuns = m_hangingRuns.get();
+			if (hangingRuns <= 0) {
+				return false;
+			}
+			if (m_hangingRuns.compareAndSet(hangingRuns, hangingRuns - 1)) {
+				return true;
+			}
+		}
+	}
+
+	private String createPipelineInfo() {
+		final JsonArrayBuilder channels = Json.createArrayBuilder();
+		for (final String channel : m_channels) {
+			channels.add(channel);
+		}
+		final JsonArrayBuilder types = Json.createArrayBuilder();
+		for (final String type : TYPES) {
+			types.add(type);
+		}
+		final JsonObjectBuilder objectFeatures = Json.createObjectBuilder();
+		for (final String objectName : m_objectNames) {
+			final JsonArrayBuilder features = Json.createArrayBuilder()
+					.add(Json.createArrayBuilder().add(KBConstants.OBJECT_NUMBER).add(INTEGER_TYPE));
+			for (int f = 0; f < m_numFeatures; f++) {
+				features.add(Json.createArrayBuilder().add(SyntheticData.featureName(f)).add(DOUBLE_TYPE));
+			}
+			objectFeatures.add(objectName, features);
+		}
+		objectFeatures.add(KBConstants.IMAGE, Json.createArrayBuilder()
+				.add(Json.createArrayBuilder().add(KBConstants.IMAGE_NUMBER).add(INTEGER_TYPE)));
+		return Json.createArrayBuilder().add(channels).add(types).add(objectFeatures).build().toString();
+	}
+
+	private static Map<String, Set<String>> parseSelectedFeatures(final String json) {
+		final Map<String, Set<String>> selected = new HashMap<String, Set<String>>();
+		final JsonObject tables = Json.createReader(new StringReader(json)).readObject();
+		for (final String objectName : tables.keySet()) {
+			final Set<String> names = new HashSet<String>();
+			for (final JsonString name : tables.getJsonArray(objectName).getValuesAs(JsonString.class)) {
+				names.add(name.getString());
+			}
+			selected.put(objectName, names);
+		}
+		return selected;
+	}
+
+	/**
+	 * Creates the body of a run reply as encoded by CellProfiler, i.e. the
+	 * frames following the message name.
+	 *
+	 * @param objectNames
+	 *            Names of the object tables
+	 * @param features
+	 *            The values of each feature, the same for every object table,
+	 *            see {@link SyntheticData#features(int, int)}
+	 * @return The reply
+	 */
+	static ZMsg createRunReply(final String[] objectNames, final double[][] features) {
+		return createRunReply(objectNames, features, Collections.<String, Set<String>> emptyMap());
+	}
+
+	/**
+	 * Creates the body of a run reply only containing the selected double
+	 * features, like a worker told the features used when the pipeline was
+	 * prepared.
+	 *
+	 * @param selected
+	 *            Names of the selected features by object name, tables
+	 *            missing contain all features
+	 */
+	private static ZMsg createRunReply(final String[] objectNames, final double[][] features,
+			final Map<String, Set<String>> selected) {
+		final int numObjects = features.length > 0 ? features[0].length : 0;
+		int numValues = 0;
+		for (final String objectName : objectNames) {
+			for (int f = 0; f < features.length; f++) {
+				if (isSelected(selected, objectName, f)) {
+					numValues += numObjects;
+				}
+			}
+		}
+		final ByteBuffer data = ByteBuffer.allocate(8 * numValues + objectNames.length * 4 * numObjects + 4)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		final JsonArrayBuilder doubleTables = Json.createArrayBuilder();
+		for (final String objectName : objectNames) {
+			final JsonArrayBuilder doubleFeatures = Json.createArrayBuilder();
+			for (int f = 0; f < features.length; f++) {
+				if (!isSelected(selected, objectName, f)) {
+					continue;
+				}
+				doubleFeatures.add(Json.createArrayBuilder().add(SyntheticData.featureName(f)).add(numObjects));
+				for (final double value : features[f]) {
+					data.putDouble(value);
+				}
+			}
+			doubleTables.add(Json.createArrayBuilder().add(objectName).add(doubleFeatures));
+		}
+		final JsonArrayBuilder intTables = Json.createArrayBuilder();
+		for (final String objectName : objectNames) {
+			for (final int objectNumber : SyntheticData.objectNumbers(numObjects)) {
+				data.putInt(objectNumber);
+			}
+			intTables.add(Json.createArrayBuilder().add(objectName).add(Json.createArrayBuilder()
+					.add(Json.createArrayBuilder().add(KBConstants.OBJECT_NUMBER).add(numObjects))));
+		}
+		data.putInt(1);
+		intTables.add(Json.createArrayBuilder().add(KBConstants.IMAGE).add(
+				Json.createArrayBuilder().add(Json.createArrayBuilder().add(KBConstants.IMAGE_NUMBER).add(1))));
+		final String metadata = Json.createArrayBuilder().add(doubleTables).add(Json.createArrayBuilder())
+				.add(intTables).add(Json.createArrayBuilder()).build().toString();
+		final ZMsg reply = new ZMsg();
+		reply.add(metadata);
+		reply.add(data.array());
+		return reply;
+	}
+
+	private static boolean isSelected(final Map<String, Set<String>> selected, final String objectName,
+			final int feature) {
+		final Set<String> names = selected.get(objectName);
+		return names == null || names.contains(SyntheticData.featureName(feature));
+	}
+
+}
@@ -0,0 +1,149 @@
+package org.knime.knip.cellprofiler.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.knime.knip.cellprofiler.bridge.BulkRunReply;
+import org.knime.knip.cellprofiler.bridge.CellProfilerBridge;
+import org.knime.knip.cellprofiler.bridge.EncodedImages;
+import org.knime.knip.cellprofiler.bridge.ScaledImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Image sets per second processed end to end against a
+ * {@link MockCellProfilerServer}: encoding, transfer, waiting for the reply
+ * and decoding it. Each benchmark thread has its own server, so running with
+ * several threads (<code>-t</code>) shows how the throughput scales with the
+ * number of workers. {@link #runBatch()} sends {@value #BATCH_SIZE} image
+ * sets per request and is only meaningful for prepared pipelines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MockPipelineThroughputBenchmark {
+
+	private static final String CHANNEL = "DNA";
+
+	private static final String OBJECTS = "Nuclei";
+
+	private static final int BATCH_SIZE = 16;
+
+	/**
+	 * Time in milliseconds the server takes for an image set.
+	 */
+	@Param({ "0", "20" })
+	public long latency;
+
+	/**
+	 * True for the transfer of CellProfiler versions supporting prepared
+	 * pipelines, false for the one of older versions.
+	 */
+	@Param({ "true", "false" })
+	public boolean prepared;
+
+	/**
+	 * Width and height of the image.
+	 */
+	@Param({ "128", "1024" })
+	public int size;
+
+	/**
+	 * Number of objects in the object table.
+	 */
+	@Param({ "500" })
+	public int objects;
+
+	/**
+	 * Number of double features of the object table.
+	 */
+	@Param({ "40" })
+	public int features;
+
+	private ImgPlus<UnsignedShortType> m_img;
+
+	private MockCellProfilerServer m_server;
+
+	private CellProfilerBridge m_bridge;
+
+	/**
+	 * Starts the server and loads a pipeline.
+	 *
+	 * @throws Exception
+	 *             Not expected
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		m_img = SyntheticData.uint16Image(size);
+		m_server = new MockCellProfilerServer(new String[] { CHANNEL }, new String[] { OBJECTS }, objects,
+				features, latency, prepared);
+		m_bridge = new CellProfilerBridge();
+		m_bridge.connect(m_server.start());
+		m_bridge.loadPipeline("mock pipeline");
+		m_bridge.cleanPipeline();
+		m_bridge.preparePipeline();
+	}
+
+	/**
+	 * Disconnects and stops the server.
+	 */
+	@TearDown
+	public void tearDown() {
+		m_bridge.disconnect();
+		m_server.close();
+	}
+
+	/**
+	 * @return The number of objects of the reply
+	 * @throws Exception
+	 *             Not expected
+	 */
+	@Benchmark
+	public int runImageSet() throws Exception {
+		m_bridge.run(Collections.singletonMap(CHANNEL, ScaledImage.normalized(m_img)), false);
+		return m_bridge.getNumberOfRows(OBJECTS);
+	}
+
+	/**
+	 * @return The total number of objects of the replies
+	 * @throws Exception
+	 *             Not expected
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public int runBatch() throws Exception {
+		if (!m_bridge.isBatchRunSupported()) {
+			throw new IllegalStateException("Batch runs need a prepared pipeline");
+		}
+		final List<EncodedImages> imageSets = new ArrayList<EncodedImages>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			imageSets.add(EncodedImages.encode(Collections.singletonMap(CHANNEL, ScaledImage.normalized(m_img)),
+					m_bridge.getImageEncodings()));
+		}
+		int numObjects = 0;
+		for (final BulkRunReply reply : m_bridge.runBatch(imageSets)) {
+			numObjects += reply.getNumberOfObjects(OBJECTS);
+		}
+		return numObjects;
+	}
+
+}
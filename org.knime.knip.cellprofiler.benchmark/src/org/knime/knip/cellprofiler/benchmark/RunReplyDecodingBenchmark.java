@@ -0,0 +1,103 @@
+package org.knime.knip.cellprofiler.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cellprofiler.knimebridge.CellProfilerException;
+import org.cellprofiler.knimebridge.PipelineException;
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.cellprofiler.knimebridge.message.RunReply;
+import org.knime.knip.cellprofiler.bridge.BulkRunReply;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zeromq.ZMsg;
+
+/**
+ * Decoding of the measurements of a run reply, one object table with double
+ * features plus the object and image numbers. The message is decoded as
+ * received, without the socket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RunReplyDecodingBenchmark {
+
+	/**
+	 * Number of objects in the object table.
+	 */
+	@Param({ "500", "5000" })
+	public int objects;
+
+	/**
+	 * Number of double features of the object table.
+	 */
+	@Param({ "40", "400" })
+	public int features;
+
+	private ZMsg m_reply;
+
+	/**
+	 * Creates the reply.
+	 */
+	@Setup
+	public void setUp() {
+		m_reply = MockCellProfilerServer.createRunReply(new String[] { "Nuclei" },
+				SyntheticData.features(objects, features));
+	}
+
+	/**
+	 * @return The reply decoded by the bundled bridge
+	 * @throws Exception
+	 *             Not expected
+	 */
+	@Benchmark
+	public RunReply decode() throws Exception {
+		final DecodableRunReply reply = new DecodableRunReply();
+		reply.decode(m_reply.duplicate());
+		return reply;
+	}
+
+	/**
+	 * @return The reply decoded by bulk reads of the data frame
+	 * @throws Exception
+	 *             Not expected
+	 */
+	@Benchmark
+	public BulkRunReply decodeBulk() throws Exception {
+		final DecodableBulkRunReply reply = new DecodableBulkRunReply();
+		reply.decode(m_reply.duplicate());
+		return reply;
+	}
+
+	/**
+	 * Exposes the decoding of a received message.
+	 */
+	private static final class DecodableRunReply extends RunReply {
+
+		private void decode(final ZMsg msg) throws CellProfilerException, PipelineException, ProtocolException {
+			parse(msg);
+		}
+	}
+
+	/**
+	 * Exposes the decoding of a received message.
+	 */
+	private static final class DecodableBulkRunReply extends BulkRunReply {
+
+		private void decode(final ZMsg msg) throws CellProfilerException, PipelineException, ProtocolException {
+			parse(msg);
+		}
+	}
+
+}
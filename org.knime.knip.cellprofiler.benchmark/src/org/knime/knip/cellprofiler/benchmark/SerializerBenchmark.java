@@ -0,0 +1,106 @@
+package org.knime.knip.cellprofiler.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.knime.knip.cellprofiler.data.CellProfilerCellSerializer;
+import org.knime.knip.cellprofiler.data.CellProfilerContent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing and reading the content of a cell, as done by the
+ * {@link CellProfilerCellSerializer}, the file stores, the result cache and
+ * the checkpoints.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SerializerBenchmark {
+
+	/**
+	 * Number of objects in the table.
+	 */
+	@Param({ "500", "5000" })
+	public int objects;
+
+	/**
+	 * Number of features of the table.
+	 */
+	@Param({ "40", "400" })
+	public int features;
+
+	private CellProfilerContent m_content;
+
+	private byte[] m_serialized;
+
+	/**
+	 * Creates the content and its serialized form.
+	 * 
+	 * @throws IOException
+	 *             Not expected
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		m_content = new CellProfilerContent("Row0",
+				SyntheticData.measurementTable(SyntheticData.features(objects, features)), false);
+		m_serialized = save();
+	}
+
+	/**
+	 * @return The serialized content
+	 * @throws IOException
+	 *             Not expected
+	 */
+	@Benchmark
+	public byte[] save() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (final DataOutputStream out = new DataOutputStream(bytes)) {
+			m_content.save(out);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return The deserialized content
+	 * @throws Exception
+	 *             Not expected
+	 */
+	@Benchmark
+	public CellProfilerContent load() throws Exception {
+		return load(m_serialized);
+	}
+
+	/**
+	 * @return The serialized and deserialized content
+	 * @throws Exception
+	 *             Not expected
+	 */
+	@Benchmark
+	public CellProfilerContent roundTrip() throws Exception {
+		return load(save());
+	}
+
+	private static CellProfilerContent load(final byte[] serialized) throws Exception {
+		try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized))) {
+			return CellProfilerContent.load(in, CellProfilerCellSerializer.VERSION);
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+package org.knime.knip.cellprofiler.benchmark;
+
+import java.util.Random;
+
+import org.cellprofiler.knimebridge.KBConstants;
+import org.knime.knip.cellprofiler.data.CellProfilerMeasurementTable;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Reproducible input data of realistic size for the benchmarks.
+ */
+final class SyntheticData {
+
+	private static final long SEED = 42;
+
+	private SyntheticData() {
+		// utility class
+	}
+
+	/**
+	 * @param size
+	 *            Width and height
+	 * @return Square image with 12 valid bits of noise, like a camera image
+	 */
+	static ImgPlus<UnsignedShortType> uint16Image(final int size) {
+		final ArrayImg<UnsignedShortType, ShortArray> img = ArrayImgs.unsignedShorts(size, size);
+		final short[] pixels = img.update(null).getCurrentStorageArray();
+		final Random random = new Random(SEED);
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) random.nextInt(1 << 12);
+		}
+		return new ImgPlus<UnsignedShortType>(img);
+	}
+
+	/**
+	 * @param numObjects
+	 *            Number of objects
+	 * @param numFeatures
+	 *            Number of double features
+	 * @return The values of each feature of each object
+	 */
+	static double[][] features(final int numObjects, final int numFeatures) {
+		final Random random = new Random(SEED);
+		final double[][] features = new double[numFeatures][numObjects];
+		for (final double[] feature : features) {
+			for (int i = 0; i < numObjects; i++) {
+				feature[i] = random.nextGaussian() * 100;
+			}
+		}
+		return features;
+	}
+
+	/**
+	 * @param numObjects
+	 *            Number of objects
+	 * @return The object numbers 1..numObjects
+	 */
+	static int[] objectNumbers(final int numObjects) {
+		final int[] objectNumbers = new int[numObjects];
+		for (int i = 0; i < numObjects; i++) {
+			objectNumbers[i] = i + 1;
+		}
+		return objectNumbers;
+	}
+
+	/**
+	 * @param features
+	 *            The values of each feature, see {@link #features(int, int)}
+	 * @return Measurement table of an object table with the given features
+	 */
+	static CellProfilerMeasurementTable measurementTable(final double[][] features) {
+		final CellProfilerMeasurementTable table = new CellProfilerMeasurementTable("Row0");
+		table.addIntegerFeature(KBConstants.OBJECT_NUMBER, objectNumbers(features[0].length));
+		for (int f = 0; f < features.length; f++) {
+			table.addDoubleFeature(featureName(f), features[f]);
+		}
+		return table;
+	}
+
+	static String featureName(final int f) {
+		return "Intensity_Feature_" + f;
+	}
+
+}
@@ -0,0 +1,181 @@
+package org.knime.knip.cellprofiler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.runtime.Platform;
+import org.junit.After;
+import org.junit.Test;
+import org.knime.core.data.IntValue;
+import org.knime.knip.cellprofiler.bridge.ScaledImage;
+import org.knime.knip.cellprofiler.data.CellProfilerContent;
+import org.knime.knip.cellprofiler.data.CellProfilerMeasurementTable;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Writes checkpoints and resumes from them.
+ */
+public class CellProfilerCheckpointTest {
+
+	private static final String PIPELINE = "mock pipeline";
+
+	private final String m_checkpointId = "test-" + System.nanoTime();
+
+	@After
+	public void tearDown() {
+		CellProfilerCheckpoint.delete(m_checkpointId);
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		final String key0;
+		final String key1;
+		try (final CellProfilerCheckpoint checkpoint = CellProfilerCheckpoint.open(m_checkpointId, PIPELINE)) {
+			assertEquals(0, checkpoint.getNumCompletedRows());
+			key0 = checkpoint.createKey("Row0", createImages(1));
+			key1 = checkpoint.createKey("Row1", createImages(2));
+			checkpoint.put(key0, createContents("Row0", 3));
+			checkpoint.put(key1, createContents("Row1", 5));
+			// Already completed
+			checkpoint.put(key1, createContents("Row1", 7));
+		}
+		try (final CellProfilerCheckpoint checkpoint = CellProfilerCheckpoint.open(m_checkpointId, PIPELINE)) {
+			assertEquals(2, checkpoint.getNumCompletedRows());
+			assertEquals(createContents("Row0", 3), checkpoint.get(key0));
+			final List<CellProfilerContent> contents = checkpoint.get(key1);
+			assertEquals(createContents("Row1", 5), contents);
+			assertArrayEquals(new int[] { 1, 2, 3, 4, 5 }, getObjectNumbers(contents.get(0)));
+			assertNull(checkpoint.get(checkpoint.createKey("Row2", createImages(3))));
+		}
+	}
+
+	@Test
+	public void testChangedImages() throws Exception {
+		try (final CellProfilerCheckpoint checkpoint = CellProfilerCheckpoint.open(m_checkpointId, PIPELINE)) {
+			checkpoint.put(checkpoint.createKey("Row0", createImages(1)), createContents("Row0", 3));
+		}
+		try (final CellProfilerCheckpoint checkpoint = CellProfilerCheckpoint.open(m_checkpointId, PIPELINE)) {
+			assertEquals(checkpoint.createKey("Row0", createImages(1)), checkpoint.createKey("Row0",
+					createImages(1)));
+			assertFalse(checkpoint.createKey("Row0", createImages(1)).equals(checkpoint.createKey("Row0",
+					createImages(2))));
+			assertNull(checkpoint.get(checkpoint.createKey("Row0", createImages(2))));
+		}
+	}
+
+	@Test
+	public void testChangedFingerprint() throws Exception {
+		try (final CellProfilerCheckpoint checkpoint = CellProfilerCheckpoint.open(m_checkpointId, PIPELINE)) {
+			checkpoint.put(checkpoint.createKey("Row0", createImages(1)), createContents("Row0", 3));
+		}
+		try (final CellProfilerCheckpoint checkpoint = CellProfilerCheckpoint.open(m_checkpointId,
+				"other pipeline")) {
+			assertEquals(0, checkpoint.getNumCompletedRows());
+		}
+	}
+
+	@Test
+	public void testTruncatedRecord() throws Exception {
+		final String key0;
+		try (final CellProfilerCheckpoint checkpoint = CellProfilerCheckpoint.open(m_checkpointId, PIPELINE)) {
+			key0 = checkpoint.createKey("Row0", createImages(1));
+			checkpoint.put(key0, createContents("Row0", 3));
+			checkpoint.put(checkpoint.createKey("Row1", createImages(2)), createContents("Row1", 5));
+		}
+		// Cut off by a crash while the second row was written
+		try (final RandomAccessFile file = new RandomAccessFile(getFile(), "rw")) {
+			file.setLength(file.length() - 10);
+		}
+		try (final CellProfilerCheckpoint checkpoint = CellProfilerCheckpoint.open(m_checkpointId, PIPELINE)) {
+			assertEquals(1, checkpoint.getNumCompletedRows());
+			assertEquals(createContents("Row0", 3), checkpoint.get(key0));
+			// Appended after the last complete record
+			checkpoint.put(checkpoint.createKey("Row1", createImages(2)), createContents("Row1", 5));
+		}
+		try (final CellProfilerCheckpoint checkpoint = CellProfilerCheckpoint.open(m_checkpointId, PIPELINE)) {
+			assertEquals(2, checkpoint.getNumCompletedRows());
+			assertEquals(createContents("Row1", 5), checkpoint.get(checkpoint.createKey("Row1", createImages(2))));
+		}
+	}
+
+	@Test
+	public void testDelete() throws Exception {
+		try (final CellProfilerCheckpoint checkpoint = CellProfilerCheckpoint.open(m_checkpointId, PIPELINE)) {
+			checkpoint.put(checkpoint.createKey("Row0", createImages(1)), createContents("Row0", 3));
+		}
+		CellProfilerCheckpoint.delete(m_checkpointId);
+		assertFalse(getFile().exists());
+		try (final CellProfilerCheckpoint checkpoint = CellProfilerCheckpoint.open(m_checkpointId, PIPELINE)) {
+			assertEquals(0, checkpoint.getNumCompletedRows());
+		}
+	}
+
+	@Test
+	public void testStaleDeleted() throws Exception {
+		final String staleId = m_checkpointId + "-stale";
+		try (final CellProfilerCheckpoint checkpoint = CellProfilerCheckpoint.open(staleId, PIPELINE)) {
+			checkpoint.put(checkpoint.createKey("Row0", createImages(1)), createContents("Row0", 3));
+		}
+		final File stale = getFile(staleId);
+		assertTrue(stale.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(31)));
+		try (final CellProfilerCheckpoint checkpoint = CellProfilerCheckpoint.open(m_checkpointId, PIPELINE)) {
+			assertFalse(stale.exists());
+		} finally {
+			CellProfilerCheckpoint.delete(staleId);
+		}
+	}
+
+	private File getFile() {
+		return getFile(m_checkpointId);
+	}
+
+	private static File getFile(final String checkpointId) {
+		return new File(new File(Platform.getStateLocation(Platform.getBundle("org.knime.knip.cellprofiler"))
+				.toFile(), "checkpoints"), checkpointId + ".ckpt");
+	}
+
+	private static Map<String, ScaledImage> createImages(final int seed) {
+		final short[] pixels = new short[16 * 16];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) (i * seed);
+		}
+		return Collections.singletonMap("DNA", ScaledImage.normalized(new ImgPlus<UnsignedShortType>(ArrayImgs
+				.unsignedShorts(pixels, 16, 16))));
+	}
+
+	private static List<CellProfilerContent> createContents(final String parentKey, final int numObjects) {
+		final int[] numbers = new int[numObjects];
+		final double[] areas = new double[numObjects];
+		for (int i = 0; i < numObjects; i++) {
+			numbers[i] = i + 1;
+			areas[i] = 10 * i;
+		}
+		final CellProfilerMeasurementTable table = new CellProfilerMeasurementTable(parentKey);
+		table.addIntegerFeature("ObjectNumber", numbers);
+		table.addDoubleFeature("AreaShape_Area", areas);
+		return Collections.singletonList(new CellProfilerContent(parentKey, table, false));
+	}
+
+	private static int[] getObjectNumbers(final CellProfilerContent content) {
+		final CellProfilerMeasurementTable table = content.getMeasurement();
+		final int[] numbers = new int[table.getNumRows()];
+		for (int r = 0; r < numbers.length; r++) {
+			numbers[r] = ((IntValue) table.getCell(0, r)).getIntValue();
+		}
+		return numbers;
+	}
+
+}
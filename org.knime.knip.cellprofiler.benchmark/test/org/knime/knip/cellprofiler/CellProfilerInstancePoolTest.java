@@ -0,0 +1,110 @@
+package org.knime.knip.cellprofiler;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.knime.knip.cellprofiler.benchmark.MockCellProfilerServer;
+
+/**
+ * Gives instances back to the pool and takes them out again. Starting local
+ * processes is left to the benchmarks, so the instances are connected to a
+ * mock server. Such instances have no CellProfiler command, so the pools of
+ * the tests are configured without one.
+ */
+public class CellProfilerInstancePoolTest {
+
+	private static final String[] NO_COMMAND = null;
+
+	private MockCellProfilerServer m_server;
+
+	private CellProfilerInstance m_instance;
+
+	@Before
+	public void setUp() throws Exception {
+		m_server = new MockCellProfilerServer(new String[] { "DNA" }, new String[] { "Nuclei" }, 4, 2, 0, true);
+		m_instance = new CellProfilerInstance(m_server.start());
+	}
+
+	@After
+	public void tearDown() {
+		m_instance.close();
+		m_server.close();
+	}
+
+	@Test
+	public void testReleaseOtherCommand() {
+		assertTrue(m_instance.isAlive());
+		CellProfilerInstancePool.getInstance().release(m_instance);
+		assertFalse(m_instance.isAlive());
+	}
+
+	@Test
+	public void testInvalidate() {
+		CellProfilerInstancePool.getInstance().invalidate(m_instance);
+		assertFalse(m_instance.isAlive());
+		// Closed instances are not kept either
+		CellProfilerInstancePool.getInstance().release(m_instance);
+		assertFalse(m_instance.isAlive());
+	}
+
+	@Test
+	public void testReuse() {
+		final CellProfilerInstancePool pool = new CellProfilerInstancePool();
+		pool.release(m_instance, NO_COMMAND, 1);
+		assertTrue(m_instance.isAlive());
+		assertNull(pool.pollIdleInstance(new String[] { "", "other" }));
+		assertSame(m_instance, pool.pollIdleInstance(NO_COMMAND));
+		assertNull(pool.pollIdleInstance(NO_COMMAND));
+		assertTrue(m_instance.isAlive());
+	}
+
+	@Test
+	public void testPoolSize() throws Exception {
+		final CellProfilerInstancePool pool = new CellProfilerInstancePool();
+		final CellProfilerInstance surplus = new CellProfilerInstance(m_server.start());
+		try {
+			pool.release(m_instance, NO_COMMAND, 1);
+			pool.release(surplus, NO_COMMAND, 1);
+			assertTrue(m_instance.isAlive());
+			assertFalse(surplus.isAlive());
+		} finally {
+			surplus.close();
+		}
+	}
+
+	@Test
+	public void testIdleEviction() throws Exception {
+		final CellProfilerInstancePool pool = new CellProfilerInstancePool();
+		pool.release(m_instance, NO_COMMAND, 1);
+		pool.evictIdleInstances(NO_COMMAND, 60000);
+		assertTrue(m_instance.isAlive());
+		Thread.sleep(20);
+		pool.evictIdleInstances(NO_COMMAND, 10);
+		assertFalse(m_instance.isAlive());
+		assertNull(pool.pollIdleInstance(NO_COMMAND));
+	}
+
+	@Test
+	public void testOutdatedCommandEvicted() {
+		final CellProfilerInstancePool pool = new CellProfilerInstancePool();
+		pool.release(m_instance, NO_COMMAND, 1);
+		pool.evictIdleInstances(new String[] { "", "other" }, 60000);
+		assertFalse(m_instance.isAlive());
+	}
+
+	@Test
+	public void testUnansweredDiscarded() {
+		final CellProfilerInstancePool pool = new CellProfilerInstancePool();
+		pool.release(m_instance, NO_COMMAND, 1);
+		// Running but not answering anymore
+		m_server.close();
+		assertNull(pool.pollIdleInstance(NO_COMMAND));
+		assertFalse(m_instance.isAlive());
+	}
+
+}
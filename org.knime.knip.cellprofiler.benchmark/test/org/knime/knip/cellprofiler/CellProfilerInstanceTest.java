@@ -0,0 +1,188 @@
+package org.knime.knip.cellprofiler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.cellprofiler.knimebridge.KBConstants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.knime.knip.cellprofiler.benchmark.MockCellProfilerServer;
+import org.knime.knip.cellprofiler.bridge.EncodedImages;
+import org.knime.knip.cellprofiler.bridge.ImageEncoding;
+import org.knime.knip.cellprofiler.bridge.ScaledImage;
+import org.knime.knip.cellprofiler.data.CellProfilerContent;
+import org.knime.knip.cellprofiler.data.CellProfilerFeatureSelection;
+import org.knime.knip.cellprofiler.data.CellProfilerMeasurementTable;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Runs instances connected to a {@link MockCellProfilerServer} the way an
+ * execution does.
+ */
+public class CellProfilerInstanceTest {
+
+	private static final String CHANNEL = "DNA";
+
+	private static final String OBJECTS = "Nuclei";
+
+	private static final int NUM_OBJECTS = 8;
+
+	private static final int NUM_FEATURES = 3;
+
+	private MockCellProfilerServer m_server;
+
+	private CellProfilerInstance m_instance;
+
+	private File m_pipelineFile;
+
+	@Before
+	public void setUp() throws Exception {
+		m_server = new MockCellProfilerServer(new String[] { CHANNEL }, new String[] { OBJECTS }, NUM_OBJECTS,
+				NUM_FEATURES, 0, true);
+		final URI address = m_server.start();
+		m_pipelineFile = File.createTempFile("mock", ".cppipe");
+		Files.write(m_pipelineFile.toPath(), "mock pipeline".getBytes(StandardCharsets.UTF_8));
+		m_instance = new CellProfilerInstance(address);
+		m_instance.loadPipeline(m_pipelineFile.getAbsolutePath());
+	}
+
+	@After
+	public void tearDown() {
+		m_instance.close();
+		m_server.close();
+		m_pipelineFile.delete();
+	}
+
+	@Test
+	public void testLoadPipeline() {
+		assertArrayEquals(new String[] { CHANNEL }, m_instance.getInputParameters());
+		assertEquals(Arrays.asList(OBJECTS, KBConstants.IMAGE), m_instance.getObjectNames());
+		assertEquals(NUM_FEATURES + 1, m_instance.getFeatureSchemas().get(OBJECTS).createSpec().getNumColumns());
+	}
+
+	@Test
+	public void testRunBatch() throws Exception {
+		final List<List<CellProfilerContent>> results = m_instance.runBatch(createImageSets(3),
+				Arrays.asList("Row0", "Row1", "Row2"), CellProfilerSupervision.failFast(), null);
+		assertEquals(3, results.size());
+		for (int i = 0; i < results.size(); i++) {
+			final CellProfilerMeasurementTable objects = getObjects(results.get(i));
+			assertEquals("Row" + i, objects.getParentKey());
+			assertEquals(NUM_OBJECTS, objects.getNumRows());
+			assertEquals(NUM_FEATURES + 1, objects.getSpec().getNumColumns());
+		}
+		assertEquals(1, m_server.getRunRequestCount());
+	}
+
+	@Test
+	public void testFeatureSelection() throws Exception {
+		m_instance.setFeatureSelection(new CellProfilerFeatureSelection(OBJECTS + ": Intensity_Feature_1"));
+		final List<List<CellProfilerContent>> results = m_instance.runBatch(createImageSets(1),
+				Collections.singletonList("Row0"), CellProfilerSupervision.failFast(), null);
+		final CellProfilerMeasurementTable objects = getObjects(results.get(0));
+		assertArrayEquals(new String[] { KBConstants.OBJECT_NUMBER, "Intensity_Feature_1" },
+				objects.getSpec().getColumnNames());
+		assertEquals(NUM_OBJECTS, objects.getNumRows());
+	}
+
+	@Test
+	public void testInstallationOfWorkers() throws Exception {
+		// Known once the pipeline is prepared
+		assertEquals(m_server.start().toString(), m_instance.getInstallation());
+		m_instance.runBatch(createImageSets(1), Collections.singletonList("Row0"),
+				CellProfilerSupervision.failFast(), null);
+		final MockCellProfilerServer other = new MockCellProfilerServer(new String[] { CHANNEL },
+				new String[] { OBJECTS }, NUM_OBJECTS, NUM_FEATURES, 0, true);
+		final CellProfilerInstance instance = new CellProfilerInstance(other.start());
+		try {
+			instance.loadPipeline(m_pipelineFile.getAbsolutePath());
+			instance.runBatch(createImageSets(1), Collections.singletonList("Row0"),
+					CellProfilerSupervision.failFast(), null);
+			// Workers of the same version share cached results
+			assertEquals(m_instance.getInstallation(), instance.getInstallation());
+		} finally {
+			instance.close();
+			other.close();
+		}
+	}
+
+	@Test
+	public void testRestart() throws Exception {
+		m_instance.restart();
+		// The pipeline is loaded again
+		assertEquals("mock pipeline", m_instance.getPipeline());
+		final List<List<CellProfilerContent>> results = m_instance.runBatch(createImageSets(1),
+				Collections.singletonList("Row0"), CellProfilerSupervision.failFast(), null);
+		assertEquals(NUM_OBJECTS, getObjects(results.get(0)).getNumRows());
+	}
+
+	@Test
+	public void testRestartAfterTimeout() throws Exception {
+		final CellProfilerSupervision supervision = new CellProfilerSupervision(100, 2, false);
+		configure(supervision);
+		m_server.hangNextRuns(1, 500);
+		// The batch times out, the instance restarts and runs the rows one
+		// by one
+		final List<List<CellProfilerContent>> results = m_instance.runBatch(createImageSets(2),
+				Arrays.asList("Row0", "Row1"), supervision, null);
+		assertEquals(2, results.size());
+		for (final List<CellProfilerContent> result : results) {
+			assertNotNull(result);
+			assertEquals(NUM_OBJECTS, getObjects(result).getNumRows());
+		}
+	}
+
+	@Test
+	public void testSkipFailedRows() throws Exception {
+		final CellProfilerSupervision supervision = new CellProfilerSupervision(100, 1, true);
+		configure(supervision);
+		// The batch and the first row hang, the second row succeeds
+		m_server.hangNextRuns(2, 300);
+		final List<List<CellProfilerContent>> results = m_instance.runBatch(createImageSets(2),
+				Arrays.asList("Row0", "Row1"), supervision, null);
+		assertNull(results.get(0));
+		assertEquals(NUM_OBJECTS, getObjects(results.get(1)).getNumRows());
+	}
+
+	private void configure(final CellProfilerSupervision supervision) {
+		final CellProfilerExecutionSettings settings = new CellProfilerExecutionSettings();
+		settings.setSupervision(supervision);
+		m_instance.configure(settings);
+	}
+
+	private static List<EncodedImages> createImageSets(final int count) {
+		final List<EncodedImages> imageSets = new ArrayList<EncodedImages>(count);
+		for (int i = 0; i < count; i++) {
+			final ImgPlus<UnsignedShortType> img = new ImgPlus<UnsignedShortType>(ArrayImgs.unsignedShorts(16, 16));
+			imageSets.add(EncodedImages.encode(Collections.singletonMap(CHANNEL, ScaledImage.normalized(img)),
+					EnumSet.allOf(ImageEncoding.class)));
+		}
+		return imageSets;
+	}
+
+	private static CellProfilerMeasurementTable getObjects(final List<CellProfilerContent> contents) {
+		for (final CellProfilerContent content : contents) {
+			if (!content.isImageMeasurement()) {
+				return content.getMeasurement();
+			}
+		}
+		throw new AssertionError("No object measurements");
+	}
+
+}
@@ -0,0 +1,92 @@
+package org.knime.knip.cellprofiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.knime.knip.cellprofiler.CellProfilerResultCache.PipelineResults;
+import org.knime.knip.cellprofiler.bridge.ScaledImage;
+import org.knime.knip.cellprofiler.data.CellProfilerContent;
+import org.knime.knip.cellprofiler.data.CellProfilerMeasurementTable;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Caches results in the state location of the plugin.
+ */
+public class CellProfilerResultCacheTest {
+
+	private static final String INSTALLATION = "cellprofiler 3.0";
+
+	// Not shared with other runs of the test
+	private final String m_pipeline = "mock pipeline " + System.nanoTime();
+
+	@Test
+	public void testCreateKey() {
+		final PipelineResults results = CellProfilerResultCache.getInstance().forPipeline(INSTALLATION, m_pipeline);
+		final Map<String, ScaledImage> images = new LinkedHashMap<String, ScaledImage>();
+		images.put("DNA", createImage(1));
+		images.put("Actin", createImage(2));
+		final Map<String, ScaledImage> reordered = new LinkedHashMap<String, ScaledImage>();
+		reordered.put("Actin", createImage(2));
+		reordered.put("DNA", createImage(1));
+		assertEquals(results.createKey(images), results.createKey(reordered));
+
+		// Other pixels, channels or scaling
+		final Map<String, ScaledImage> swapped = new HashMap<String, ScaledImage>();
+		swapped.put("DNA", createImage(2));
+		swapped.put("Actin", createImage(1));
+		assertFalse(results.createKey(images).equals(results.createKey(swapped)));
+		final Map<String, ScaledImage> rescaled = new HashMap<String, ScaledImage>(images);
+		rescaled.put("DNA", new ScaledImage(createImage(1).getImg(), 0, 1));
+		assertFalse(results.createKey(images).equals(results.createKey(rescaled)));
+
+		// Other pipeline or installation
+		assertFalse(results.createKey(images).equals(CellProfilerResultCache.getInstance()
+				.forPipeline(INSTALLATION, m_pipeline + " changed").createKey(images)));
+		assertFalse(results.createKey(images).equals(CellProfilerResultCache.getInstance()
+				.forPipeline("cellprofiler 3.1", m_pipeline).createKey(images)));
+	}
+
+	@Test
+	public void testPutGet() {
+		final PipelineResults results = CellProfilerResultCache.getInstance().forPipeline(INSTALLATION, m_pipeline);
+		final String key = results.createKey(Collections.singletonMap("DNA", createImage(3)));
+		assertNull(results.get(key, "Row0"));
+		results.put(key, createContents("Row0", 4));
+		// Returned for the row asking for them
+		assertEquals(createContents("Row7", 4), results.get(key, "Row7"));
+		assertEquals(createContents("Row0", 4), results.get(key, "Row0"));
+	}
+
+	private static ScaledImage createImage(final int seed) {
+		final short[] pixels = new short[16 * 16];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) (i * seed);
+		}
+		return ScaledImage.normalized(new ImgPlus<UnsignedShortType>(ArrayImgs.unsignedShorts(pixels, 16, 16)));
+	}
+
+	private static List<CellProfilerContent> createContents(final String parentKey, final int numObjects) {
+		final int[] numbers = new int[numObjects];
+		final double[] areas = new double[numObjects];
+		for (int i = 0; i < numObjects; i++) {
+			numbers[i] = i + 1;
+			areas[i] = 10 * i;
+		}
+		final CellProfilerMeasurementTable table = new CellProfilerMeasurementTable(parentKey);
+		table.addIntegerFeature("ObjectNumber", numbers);
+		table.addDoubleFeature("AreaShape_Area", areas);
+		return Collections.singletonList(new CellProfilerContent(parentKey, table, false));
+	}
+
+}
@@ -0,0 +1,144 @@
+package org.knime.knip.cellprofiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.knime.knip.cellprofiler.benchmark.MockCellProfilerServer;
+import org.knime.knip.cellprofiler.bridge.EncodedImages;
+import org.knime.knip.cellprofiler.bridge.ImageEncoding;
+import org.knime.knip.cellprofiler.bridge.ScaledImage;
+import org.knime.knip.cellprofiler.bridge.WorkerFailedException;
+import org.knime.knip.cellprofiler.data.CellProfilerContent;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Runs rows through a batcher whose single instance is connected to a
+ * {@link MockCellProfilerServer}.
+ */
+public class CellProfilerRunBatcherTest {
+
+	private static final String CHANNEL = "DNA";
+
+	private static final int NUM_OBJECTS = 4;
+
+	private static final int NUM_ROWS = 3;
+
+	private MockCellProfilerServer m_server;
+
+	private CellProfilerInstance m_instance;
+
+	private File m_pipelineFile;
+
+	private BlockingQueue<CellProfilerInstance> m_idleInstances;
+
+	private ExecutorService m_executor;
+
+	@Before
+	public void setUp() throws Exception {
+		m_server = new MockCellProfilerServer(new String[] { CHANNEL }, new String[] { "Nuclei" }, NUM_OBJECTS, 2,
+				0, true);
+		m_pipelineFile = File.createTempFile("mock", ".cppipe");
+		Files.write(m_pipelineFile.toPath(), "mock pipeline".getBytes(StandardCharsets.UTF_8));
+		m_instance = new CellProfilerInstance(m_server.start());
+		m_instance.loadPipeline(m_pipelineFile.getAbsolutePath());
+		m_idleInstances = new ArrayBlockingQueue<CellProfilerInstance>(1);
+		m_idleInstances.add(m_instance);
+		m_executor = Executors.newFixedThreadPool(NUM_ROWS);
+	}
+
+	@After
+	public void tearDown() {
+		m_executor.shutdownNow();
+		m_instance.close();
+		m_server.close();
+		m_pipelineFile.delete();
+	}
+
+	@Test
+	public void testRun() throws Exception {
+		final CellProfilerRunBatcher batcher = new CellProfilerRunBatcher(m_idleInstances, NUM_ROWS, 1000,
+				CellProfilerSupervision.failFast(), null);
+		final List<Future<List<CellProfilerContent>>> results = runRows(batcher);
+		for (int i = 0; i < NUM_ROWS; i++) {
+			final List<CellProfilerContent> contents = results.get(i).get(10, TimeUnit.SECONDS);
+			assertEquals("Row" + i, contents.get(0).getParentKey());
+			assertEquals(NUM_OBJECTS, contents.get(0).getMeasurement().getNumRows());
+		}
+		assertSame(m_instance, m_idleInstances.peek());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		final CellProfilerSupervision supervision = new CellProfilerSupervision(100, 1, false);
+		final CellProfilerExecutionSettings settings = new CellProfilerExecutionSettings();
+		settings.setSupervision(supervision);
+		m_instance.configure(settings);
+		// Every run times out, the batch as well as the rows one by one, whose
+		// timeout is given per image set
+		m_server.hangNextRuns(Integer.MAX_VALUE, 1000);
+		final CellProfilerRunBatcher batcher = new CellProfilerRunBatcher(m_idleInstances, NUM_ROWS, 1000,
+				supervision, null);
+		final List<Future<List<CellProfilerContent>>> results = runRows(batcher);
+		for (final Future<List<CellProfilerContent>> result : results) {
+			try {
+				result.get(10, TimeUnit.SECONDS);
+				fail("The row should have failed");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof WorkerFailedException);
+			}
+		}
+		// The instance is handed back also if the batch fails
+		assertSame(m_instance, m_idleInstances.poll(1, TimeUnit.SECONDS));
+	}
+
+	private List<Future<List<CellProfilerContent>>> runRows(final CellProfilerRunBatcher batcher) {
+		final List<Future<List<CellProfilerContent>>> results = new ArrayList<Future<List<CellProfilerContent>>>();
+		for (int i = 0; i < NUM_ROWS; i++) {
+			final EncodedImages images = createImages(i);
+			final String parentKey = "Row" + i;
+			results.add(m_executor.submit(new Callable<List<CellProfilerContent>>() {
+				@Override
+				public List<CellProfilerContent> call() throws Exception {
+					return batcher.run(images, parentKey);
+				}
+			}));
+		}
+		return results;
+	}
+
+	private static EncodedImages createImages(final int seed) {
+		final short[] pixels = new short[16 * 16];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) (i + seed);
+		}
+		final ImgPlus<UnsignedShortType> img = new ImgPlus<UnsignedShortType>(ArrayImgs.unsignedShorts(pixels, 16,
+				16));
+		return EncodedImages.encode(Collections.singletonMap(CHANNEL, ScaledImage.normalized(img)),
+				EnumSet.allOf(ImageEncoding.class));
+	}
+
+}
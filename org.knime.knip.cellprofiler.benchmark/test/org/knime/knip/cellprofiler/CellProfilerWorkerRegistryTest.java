@@ -0,0 +1,105 @@
+package org.knime.knip.cellprofiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.knime.knip.cellprofiler.benchmark.MockCellProfilerServer;
+
+/**
+ * Leases two workers, each a {@link MockCellProfilerServer}.
+ */
+public class CellProfilerWorkerRegistryTest {
+
+	private MockCellProfilerServer m_server1;
+
+	private MockCellProfilerServer m_server2;
+
+	private URI m_address1;
+
+	private URI m_address2;
+
+	private CellProfilerWorkerRegistry m_registry;
+
+	@Before
+	public void setUp() {
+		m_server1 = createServer();
+		m_server2 = createServer();
+		m_address1 = m_server1.start();
+		m_address2 = m_server2.start();
+		m_registry = new CellProfilerWorkerRegistry(Arrays.asList(m_address1, m_address2));
+	}
+
+	@After
+	public void tearDown() {
+		m_registry.close();
+		m_server1.close();
+		m_server2.close();
+	}
+
+	@Test
+	public void testLease() throws Exception {
+		assertTrue(m_registry.isEnabled());
+		final List<CellProfilerInstance> instances = m_registry.lease(3);
+		// Only two workers
+		assertEquals(2, instances.size());
+		try {
+			m_registry.lease(1);
+			fail("No worker should be idle");
+		} catch (IOException e) {
+			// Expected
+		}
+		final CellProfilerInstance instance = instances.get(0);
+		m_registry.release(instance);
+		assertFalse(instance.isAlive());
+		final List<CellProfilerInstance> released = m_registry.lease(1);
+		assertEquals(instance.getAddress(), released.get(0).getAddress());
+		m_registry.release(released.get(0));
+		m_registry.release(instances.get(1));
+	}
+
+	@Test
+	public void testFailover() throws Exception {
+		final CellProfilerInstance instance = m_registry.lease(1).get(0);
+		final URI failed = instance.getAddress();
+		final URI other = failed.equals(m_address1) ? m_address2 : m_address1;
+		assertEquals(other, m_registry.failover(failed, new IOException("Test failure")));
+		assertEquals(Arrays.asList(other), m_registry.getHealthyWorkers());
+		// Neither the failed nor the leased worker is handed out
+		assertNull(m_registry.failover(other, new IOException("Test failure")));
+		assertTrue(m_registry.getHealthyWorkers().isEmpty());
+
+		// Both answer again
+		m_registry.heartbeat();
+		assertEquals(Arrays.asList(m_address1, m_address2), m_registry.getHealthyWorkers());
+		instance.close();
+	}
+
+	@Test
+	public void testFastestFirst() throws Exception {
+		final List<CellProfilerInstance> instances = m_registry.lease(2);
+		m_registry.recordRun(m_address1, 10, 10000000000L);
+		m_registry.recordRun(m_address2, 10, 1000000000L);
+		for (final CellProfilerInstance instance : instances) {
+			m_registry.release(instance);
+		}
+		final CellProfilerInstance instance = m_registry.lease(1).get(0);
+		assertEquals(m_address2, instance.getAddress());
+		m_registry.release(instance);
+	}
+
+	private static MockCellProfilerServer createServer() {
+		return new MockCellProfilerServer(new String[] { "DNA" }, new String[] { "Nuclei" }, 4, 2, 0, true);
+	}
+
+}
@@ -0,0 +1,100 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import org.cellprofiler.knimebridge.KBConstants;
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.junit.Test;
+import org.zeromq.ZMsg;
+
+/**
+ * Parses run replies.
+ */
+public class BulkRunReplyTest {
+
+	private static final String METADATA = "[" //
+			+ "[[\"Nuclei\", [[\"Area\", 3]]]]," //
+			+ "[[\"Nuclei\", [[\"Intensity\", 3]]]]," //
+			+ "[[\"Nuclei\", [[\"ObjectNumber\", 3]]], [\"Image\", [[\"ImageNumber\", 1]]]]," //
+			+ "[[\"Image\", [[\"FileName\", 5], [\"Empty\", 0]]]]" //
+			+ "]";
+
+	@Test
+	public void testParse() throws Exception {
+		final ByteBuffer data = createData();
+		final BulkRunReply reply = parse(METADATA, data.array());
+		assertEquals(3, reply.getNumberOfObjects("Nuclei"));
+		assertEquals(1, reply.getNumberOfObjects(KBConstants.IMAGE));
+		assertEquals(0, reply.getNumberOfObjects("Cells"));
+		assertArrayEquals(new double[] { 1.5, 2.5, -3 }, reply.getDoubleMeasurements("Nuclei", "Area"), 0);
+		assertArrayEquals(new float[] { 0.25f, 0.5f, 0.75f }, reply.getFloatMeasurements("Nuclei", "Intensity"), 0);
+		assertArrayEquals(new int[] { 1, 2, 3 }, reply.getIntMeasurements("Nuclei", "ObjectNumber"));
+		// The image table is also addressed by null
+		assertArrayEquals(new int[] { 1 }, reply.getIntMeasurements(null, KBConstants.IMAGE_NUMBER));
+		assertEquals("a.tif", reply.getStringMeasurement(null, "FileName"));
+		assertEquals("", reply.getStringMeasurement(KBConstants.IMAGE, "Empty"));
+		assertNull(reply.getDoubleMeasurements("Nuclei", "Perimeter"));
+		assertNull(reply.getIntMeasurements("Cells", "ObjectNumber"));
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testBufferOverrun() throws Exception {
+		final ByteBuffer data = createData();
+		final byte[] truncated = new byte[data.capacity() - 1];
+		System.arraycopy(data.array(), 0, truncated, 0, truncated.length);
+		parse(METADATA, truncated);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testWrongNumberOfSections() throws Exception {
+		parse("[[], [], []]", new byte[0]);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testNegativeLength() throws Exception {
+		parse("[[[\"Nuclei\", [[\"Area\", -1]]]], [], [], []]", new byte[0]);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testInvalidMetadata() throws Exception {
+		parse("[[[\"Nuclei\"]], [], [], []]", new byte[0]);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testMissingDataFrame() throws Exception {
+		final ZMsg msg = new ZMsg();
+		msg.add(METADATA);
+		new BulkRunReply().parse(msg);
+	}
+
+	/**
+	 * @return The little-endian values of {@link #METADATA}.
+	 */
+	private static ByteBuffer createData() {
+		final byte[] fileName = "a.tif".getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer data = ByteBuffer.allocate(3 * 8 + 3 * 4 + 4 * 4 + fileName.length)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		data.putDouble(1.5).putDouble(2.5).putDouble(-3);
+		data.putFloat(0.25f).putFloat(0.5f).putFloat(0.75f);
+		data.putInt(1).putInt(2).putInt(3);
+		data.putInt(1);
+		data.put(fileName);
+		return data;
+	}
+
+	private static BulkRunReply parse(final String metadata, final byte[] data) throws Exception {
+		final ZMsg msg = new ZMsg();
+		msg.add(metadata);
+		msg.add(data);
+		final BulkRunReply reply = new BulkRunReply();
+		reply.parse(msg);
+		return reply;
+	}
+
+}
@@ -0,0 +1,190 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.cellprofiler.knimebridge.KBConstants;
+import org.junit.After;
+import org.junit.Test;
+import org.knime.knip.cellprofiler.benchmark.MockCellProfilerServer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Runs the bridge against a {@link MockCellProfilerServer}.
+ */
+public class CellProfilerBridgeTest {
+
+	private static final String CHANNEL = "DNA";
+
+	private static final String OBJECTS = "Nuclei";
+
+	private static final int NUM_OBJECTS = 12;
+
+	private static final int NUM_FEATURES = 3;
+
+	private static final String FEATURE = "Intensity_Feature_1";
+
+	private MockCellProfilerServer m_server;
+
+	private CellProfilerBridge m_bridge;
+
+	private URI m_address;
+
+	@After
+	public void tearDown() {
+		if (m_bridge != null) {
+			m_bridge.disconnect();
+		}
+		if (m_server != null) {
+			m_server.close();
+		}
+	}
+
+	@Test
+	public void testPreparePipeline() throws Exception {
+		start(true);
+		assertNull(m_bridge.isPreparedPipelineSupported());
+		m_bridge.preparePipeline();
+		assertEquals(Boolean.TRUE, m_bridge.isPreparedPipelineSupported());
+		assertTrue(m_bridge.isPipelinePrepared());
+		assertTrue(m_bridge.getImageEncodings().contains(ImageEncoding.UINT16));
+		assertTrue(m_bridge.isBatchRunSupported());
+		assertNotNull(m_bridge.getWorkerVersion());
+	}
+
+	@Test
+	public void testPrepareUnsupported() throws Exception {
+		start(false);
+		m_bridge.preparePipeline();
+		assertEquals(Boolean.FALSE, m_bridge.isPreparedPipelineSupported());
+		// Answered with an exception
+		assertFalse(m_bridge.isPrepareTimedOut());
+		assertNull(m_bridge.getWorkerVersion());
+		assertFalse(m_bridge.isPipelinePrepared());
+		assertFalse(m_bridge.isBatchRunSupported());
+		assertEquals(Collections.singleton(ImageEncoding.FLOAT64), m_bridge.getImageEncodings());
+	}
+
+	@Test
+	public void testRunPrepared() throws Exception {
+		start(true);
+		// Prepares the pipeline on the first run
+		m_bridge.run(createImages(), false);
+		assertTrue(m_bridge.isPipelinePrepared());
+		assertEquals(NUM_OBJECTS, m_bridge.getNumberOfRows(OBJECTS));
+		final BulkRunReply reply = m_bridge.getRunReply();
+		assertEquals(NUM_OBJECTS, reply.getNumberOfObjects(OBJECTS));
+		assertEquals(1, reply.getNumberOfObjects(KBConstants.IMAGE));
+		assertArrayEquals(objectNumbers(), reply.getIntMeasurements(OBJECTS, KBConstants.OBJECT_NUMBER));
+		assertEquals(NUM_OBJECTS, reply.getDoubleMeasurements(OBJECTS, FEATURE).length);
+
+		m_bridge.run(createImages(), false);
+		assertEquals(2, m_server.getRunRequestCount());
+	}
+
+	@Test
+	public void testRunBatch() throws Exception {
+		start(true);
+		m_bridge.preparePipeline();
+		final List<EncodedImages> imageSets = new ArrayList<EncodedImages>();
+		for (int i = 0; i < 3; i++) {
+			imageSets.add(EncodedImages.encode(createImages(), m_bridge.getImageEncodings()));
+		}
+		final List<BulkRunReply> replies = m_bridge.runBatch(imageSets);
+		assertEquals(3, replies.size());
+		for (final BulkRunReply reply : replies) {
+			assertArrayEquals(objectNumbers(), reply.getIntMeasurements(OBJECTS, KBConstants.OBJECT_NUMBER));
+			assertEquals(NUM_OBJECTS, reply.getDoubleMeasurements(OBJECTS, FEATURE).length);
+		}
+		// All image sets in one request
+		assertEquals(1, m_server.getRunRequestCount());
+	}
+
+	@Test
+	public void testRunBatchEncodesAgain() throws Exception {
+		start(true);
+		m_bridge.preparePipeline();
+		// Encoded before the encodings of the worker were known
+		final List<EncodedImages> imageSets = Collections.singletonList(EncodedImages.encode(createImages(),
+				Collections.singleton(ImageEncoding.FLOAT64)));
+		assertEquals(1, m_bridge.runBatch(imageSets).size());
+	}
+
+	@Test
+	public void testFeatureSelection() throws Exception {
+		start(true);
+		m_bridge.setSelectedFeatures(Collections.singletonMap(OBJECTS,
+				Arrays.asList(KBConstants.OBJECT_NUMBER, FEATURE)));
+		m_bridge.run(createImages(), false);
+		final BulkRunReply reply = m_bridge.getRunReply();
+		assertNotNull(reply.getDoubleMeasurements(OBJECTS, FEATURE));
+		assertNull(reply.getDoubleMeasurements(OBJECTS, "Intensity_Feature_0"));
+		assertNull(reply.getDoubleMeasurements(OBJECTS, "Intensity_Feature_2"));
+		assertArrayEquals(objectNumbers(), reply.getIntMeasurements(OBJECTS, KBConstants.OBJECT_NUMBER));
+	}
+
+	@Test
+	public void testRequestTimeout() throws Exception {
+		start(true);
+		m_bridge.preparePipeline();
+		m_bridge.setRequestTimeout(100);
+		m_server.hangNextRuns(1, 500);
+		try {
+			m_bridge.run(createImages(), false);
+			fail("The run should have timed out");
+		} catch (WorkerFailedException e) {
+			assertTrue(e.isTimedOut());
+		}
+		// A new connection serves the next run once the worker recovered
+		m_bridge.disconnect();
+		m_bridge.connect(m_address);
+		m_bridge.loadPipeline(m_bridge.getPipeline());
+		m_bridge.run(createImages(), false);
+		assertEquals(NUM_OBJECTS, m_bridge.getNumberOfRows(OBJECTS));
+	}
+
+	private void start(final boolean prepared) throws Exception {
+		m_server = new MockCellProfilerServer(new String[] { CHANNEL }, new String[] { OBJECTS }, NUM_OBJECTS,
+				NUM_FEATURES, 0, prepared);
+		m_address = m_server.start();
+		m_bridge = new CellProfilerBridge();
+		m_bridge.connect(m_address);
+		m_bridge.loadPipeline("mock pipeline");
+		m_bridge.cleanPipeline();
+	}
+
+	private static Map<String, ScaledImage> createImages() {
+		final ArrayImg<UnsignedShortType, ShortArray> img = ArrayImgs.unsignedShorts(32, 16);
+		final short[] pixels = img.update(null).getCurrentStorageArray();
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) (i * 7);
+		}
+		return Collections.singletonMap(CHANNEL, ScaledImage.normalized(new ImgPlus<UnsignedShortType>(img)));
+	}
+
+	private static int[] objectNumbers() {
+		final int[] objectNumbers = new int[NUM_OBJECTS];
+		for (int i = 0; i < NUM_OBJECTS; i++) {
+			objectNumbers[i] = i + 1;
+		}
+		return objectNumbers;
+	}
+
+}
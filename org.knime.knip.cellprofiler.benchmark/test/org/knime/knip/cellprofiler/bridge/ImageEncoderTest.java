@@ -0,0 +1,139 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+
+import org.junit.Test;
+import org.zeromq.ZMsg;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Encodes the images of prepared run requests.
+ */
+public class ImageEncoderTest {
+
+	private static final String CHANNEL = "DNA";
+
+	// 3x2 image, the first axis varying fastest
+	private static final short[] PIXELS = { 0, 1, 2, 100, 200, (short) 65535 };
+
+	@Test
+	public void testStrides() {
+		assertArrayEquals(new long[] { 1, 4, 12 },
+				ImageEncoder.createStrides(new ImgPlus<UnsignedShortType>(ArrayImgs.unsignedShorts(4, 3, 2))));
+		assertArrayEquals(new long[] { 1 },
+				ImageEncoder.createStrides(new ImgPlus<UnsignedShortType>(ArrayImgs.unsignedShorts(5))));
+	}
+
+	@Test
+	public void testSelect() {
+		final Set<ImageEncoding> all = EnumSet.allOf(ImageEncoding.class);
+		final ImgPlus<UnsignedByteType> bytes = new ImgPlus<UnsignedByteType>(ArrayImgs.unsignedBytes(2, 2));
+		final ImgPlus<UnsignedShortType> shorts = new ImgPlus<UnsignedShortType>(ArrayImgs.unsignedShorts(2, 2));
+		final ImgPlus<FloatType> floats = new ImgPlus<FloatType>(ArrayImgs.floats(2, 2));
+		assertEquals(ImageEncoding.UINT8, ImageEncoding.select(bytes, all));
+		assertEquals(ImageEncoding.UINT16, ImageEncoding.select(shorts, all));
+		assertEquals(ImageEncoding.FLOAT32, ImageEncoding.select(floats, all));
+		assertEquals(ImageEncoding.FLOAT32, ImageEncoding.select(shorts,
+				EnumSet.of(ImageEncoding.FLOAT32, ImageEncoding.FLOAT64)));
+		assertEquals(ImageEncoding.FLOAT64, ImageEncoding.select(bytes, EnumSet.of(ImageEncoding.FLOAT64)));
+	}
+
+	@Test
+	public void testEncodeUInt16() throws Exception {
+		final EncodedImages encoded = EncodedImages.encode(createImages(), EnumSet.allOf(ImageEncoding.class));
+		assertEquals(EnumSet.of(ImageEncoding.UINT16), encoded.getEncodings());
+		assertEquals(PIXELS.length * 2, encoded.getNumBytes());
+
+		final ZMsg msg = new ZMsg();
+		encoded.addTo(msg);
+		assertEquals(2, msg.size());
+		final JsonArray channel = Json.createReader(new StringReader(msg.popString())).readArray().getJsonArray(0);
+		assertEquals(CHANNEL, channel.getString(0));
+		assertEquals(Json.createReader(new StringReader("[[\"X\", 3, 1], [\"Y\", 2, 3]]")).readArray(),
+				channel.getJsonArray(1));
+		assertEquals("uint16", channel.getString(2));
+		// Sent unscaled, the worker applies offset and scale
+		assertEquals(0, channel.getJsonNumber(3).doubleValue(), 0);
+		assertEquals(1 / 65535.0, channel.getJsonNumber(4).doubleValue(), 1e-15);
+
+		final short[] pixels = new short[PIXELS.length];
+		frame(msg).asShortBuffer().get(pixels);
+		assertArrayEquals(PIXELS, pixels);
+	}
+
+	@Test
+	public void testRangeKeptWithEncoding() throws Exception {
+		final Map<String, ScaledImage> images = createImages();
+		// Determined while the pixels are written, in every encoding
+		for (final ImageEncoding encoding : ImageEncoding.values()) {
+			final ZMsg msg = new ZMsg();
+			EncodedImages.encode(images, EnumSet.of(encoding)).addTo(msg);
+			final JsonArray channel = Json.createReader(new StringReader(msg.popString())).readArray()
+					.getJsonArray(0);
+			assertEquals(0, channel.getJsonNumber(3).doubleValue(), 0);
+			assertEquals(1 / 65535.0, channel.getJsonNumber(4).doubleValue(), 1e-15);
+		}
+		// The shared source image isn't changed
+		assertTrue(images.get(CHANNEL).isRangeDeferred());
+		// Images scaled up front keep their scaling
+		final ZMsg msg = new ZMsg();
+		EncodedImages.encode(Collections.singletonMap(CHANNEL, new ScaledImage(images.get(CHANNEL).getImg(), 2, 3)),
+				EnumSet.allOf(ImageEncoding.class)).addTo(msg);
+		final JsonArray channel = Json.createReader(new StringReader(msg.popString())).readArray().getJsonArray(0);
+		assertEquals(2, channel.getJsonNumber(3).doubleValue(), 0);
+		assertEquals(3, channel.getJsonNumber(4).doubleValue(), 0);
+	}
+
+	@Test
+	public void testEncodeFloat32() throws Exception {
+		final EncodedImages encoded = EncodedImages.encode(createImages(),
+				EnumSet.of(ImageEncoding.FLOAT32, ImageEncoding.FLOAT64));
+		assertEquals(EnumSet.of(ImageEncoding.FLOAT32), encoded.getEncodings());
+		final ZMsg msg = new ZMsg();
+		encoded.addTo(msg);
+		msg.pop();
+		final float[] pixels = new float[PIXELS.length];
+		frame(msg).asFloatBuffer().get(pixels);
+		assertArrayEquals(new float[] { 0, 1, 2, 100, 200, 65535 }, pixels, 0);
+	}
+
+	@Test
+	public void testEncodeFloat64() throws Exception {
+		final EncodedImages encoded = EncodedImages.encode(createImages(), EnumSet.of(ImageEncoding.FLOAT64));
+		assertEquals(PIXELS.length * 8, encoded.getNumBytes());
+		final ZMsg msg = new ZMsg();
+		encoded.addTo(msg);
+		msg.pop();
+		final double[] pixels = new double[PIXELS.length];
+		frame(msg).asDoubleBuffer().get(pixels);
+		assertArrayEquals(new double[] { 0, 1, 2, 100, 200, 65535 }, pixels, 0);
+	}
+
+	private static Map<String, ScaledImage> createImages() {
+		return Collections.singletonMap(CHANNEL, ScaledImage.normalized(new ImgPlus<UnsignedShortType>(ArrayImgs
+				.unsignedShorts(PIXELS.clone(), 3, 2))));
+	}
+
+	private static ByteBuffer frame(final ZMsg msg) {
+		return ByteBuffer.wrap(msg.pop().getData()).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+}
@@ -0,0 +1,131 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Reads the pixels of array backed images.
+ */
+public class ImageNormalizerTest {
+
+	@Test
+	public void testMinMax() {
+		// Pixel values are unsigned
+		assertArrayEquals(new double[] { 3, 200 }, ImageNormalizer.minMax(bytes((byte) 200, (byte) 3, (byte) 50)),
+				0);
+		assertArrayEquals(new double[] { 7, 60000 }, ImageNormalizer.minMax(shorts((short) 60000, (short) 7)), 0);
+		assertArrayEquals(new double[] { -1.5, 2.5 }, ImageNormalizer.minMax(floats(2.5f, -1.5f, 0)), 0);
+	}
+
+	@Test
+	public void testNormalized() {
+		final ScaledImage deferred = ScaledImage.normalized(bytes((byte) 200, (byte) 3, (byte) 50));
+		assertTrue(deferred.isRangeDeferred());
+		try {
+			deferred.getOffset();
+			fail("The range should not be known yet");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		final ScaledImage image = deferred.withRange();
+		assertFalse(image.isRangeDeferred());
+		assertSame(image, image.withRange());
+		assertEquals(3, image.getOffset(), 0);
+		assertEquals(1 / 197.0, image.getScale(), 1e-15);
+		// A single pixel value is mapped to 0
+		final ScaledImage constant = ScaledImage.normalized(shorts((short) 5, (short) 5)).withRange();
+		assertEquals(5, constant.getOffset(), 0);
+		assertEquals(1, constant.getScale(), 0);
+	}
+
+	@Test
+	public void testWriteScaled() {
+		final short[] pixels = { 10, 30, (short) 40010 };
+		final ByteBuffer buffer = ByteBuffer.allocate(pixels.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+		final double[] minMax = new double[2];
+		ImageNormalizer.write(shorts(pixels), ImageEncoding.FLOAT64, 10, 0.5, buffer, minMax);
+		assertEquals(buffer.capacity(), buffer.position());
+		buffer.flip();
+		final double[] values = new double[pixels.length];
+		buffer.asDoubleBuffer().get(values);
+		assertArrayEquals(new double[] { 0, 10, 20000 }, values, 0);
+		// The range of the unscaled values
+		assertArrayEquals(new double[] { 10, 40010 }, minMax, 0);
+	}
+
+	@Test
+	public void testWriteFloats() {
+		final float[] pixels = { 2.5f, -1.5f, 0 };
+		final ByteBuffer copied = ByteBuffer.allocate(pixels.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+		ImageNormalizer.write(floats(pixels), ImageEncoding.FLOAT32, 0, 1, copied, null);
+		assertEquals(copied.capacity(), copied.position());
+		copied.flip();
+		final float[] values = new float[pixels.length];
+		copied.asFloatBuffer().get(values);
+		assertArrayEquals(pixels, values, 0);
+
+		final ByteBuffer scaled = ByteBuffer.allocate(pixels.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+		final double[] minMax = new double[2];
+		ImageNormalizer.write(floats(pixels), ImageEncoding.FLOAT64, -1.5, 0.25, scaled, minMax);
+		scaled.flip();
+		final double[] scaledValues = new double[pixels.length];
+		scaled.asDoubleBuffer().get(scaledValues);
+		assertArrayEquals(new double[] { 1, 0, 0.375 }, scaledValues, 0);
+		assertArrayEquals(new double[] { -1.5, 2.5 }, minMax, 0);
+	}
+
+	@Test
+	public void testWriteBytesScaled() {
+		final ByteBuffer buffer = ByteBuffer.allocate(3 * 4).order(ByteOrder.LITTLE_ENDIAN);
+		ImageNormalizer.write(bytes((byte) 0, (byte) 128, (byte) 255), ImageEncoding.FLOAT32, 0, 1 / 255.0, buffer,
+				null);
+		buffer.flip();
+		final float[] values = new float[3];
+		buffer.asFloatBuffer().get(values);
+		assertArrayEquals(new float[] { 0, 128 / 255f, 1 }, values, 1e-7f);
+	}
+
+	@Test
+	public void testDigest() throws Exception {
+		assertArrayEquals(digest(shorts((short) 1, (short) 2)), digest(shorts((short) 1, (short) 2)));
+		assertFalse(Arrays.equals(digest(shorts((short) 1, (short) 2)), digest(shorts((short) 2, (short) 1))));
+		assertFalse(Arrays.equals(digest(floats(1, 2)), digest(floats(1, 3))));
+	}
+
+	private static byte[] digest(final ImgPlus<? extends RealType<?>> img) throws Exception {
+		final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		ImageNormalizer.digest(img, digest);
+		return digest.digest();
+	}
+
+	private static ImgPlus<UnsignedByteType> bytes(final byte... pixels) {
+		return new ImgPlus<UnsignedByteType>(ArrayImgs.unsignedBytes(pixels, pixels.length));
+	}
+
+	private static ImgPlus<UnsignedShortType> shorts(final short... pixels) {
+		return new ImgPlus<UnsignedShortType>(ArrayImgs.unsignedShorts(pixels, pixels.length));
+	}
+
+	private static ImgPlus<FloatType> floats(final float... pixels) {
+		return new ImgPlus<FloatType>(ArrayImgs.floats(pixels, pixels.length));
+	}
+
+}
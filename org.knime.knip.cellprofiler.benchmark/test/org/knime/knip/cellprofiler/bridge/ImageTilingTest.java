@@ -0,0 +1,103 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+/**
+ * Splits images into tiles.
+ */
+public class ImageTilingTest {
+
+	@Test
+	public void testNone() {
+		final ImageTiling tiling = ImageTiling.none();
+		assertFalse(tiling.isEnabled());
+		assertFalse(tiling.needsTiling(createImages(5000, 5000)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOverlapTooLarge() {
+		new ImageTiling(100, 100);
+	}
+
+	@Test
+	public void testNeedsTiling() {
+		final ImageTiling tiling = new ImageTiling(256, 32);
+		assertTrue(tiling.isEnabled());
+		assertFalse(tiling.needsTiling(createImages(256, 256)));
+		assertTrue(tiling.needsTiling(createImages(257, 100)));
+		assertTrue(tiling.needsTiling(createImages(100, 257)));
+		assertFalse(tiling.needsTiling(Collections.<String, ScaledImage> emptyMap()));
+	}
+
+	@Test
+	public void testSingleTile() {
+		final List<ImageTile> tiles = new ImageTiling(256, 32).createTiles(200, 100);
+		assertEquals(1, tiles.size());
+		final ImageTile tile = tiles.get(0);
+		assertEquals(0, tile.getMinX());
+		assertEquals(0, tile.getMinY());
+		assertEquals(200 * 100, tile.getCoreArea());
+		assertTrue(tile.isInCore(199, 99));
+		assertFalse(tile.isInCore(200, 99));
+	}
+
+	@Test
+	public void testTiles() {
+		final List<ImageTile> tiles = new ImageTiling(100, 20).createTiles(250, 130);
+		// Three columns and two rows, the last ones moved back to end with
+		// the image
+		assertEquals(6, tiles.size());
+		final long[] minX = { 0, 80, 150 };
+		final long[] minY = { 0, 30 };
+		for (int i = 0; i < tiles.size(); i++) {
+			assertEquals(i, tiles.get(i).getIndex());
+			assertEquals(minX[i % 3], tiles.get(i).getMinX());
+			assertEquals(minY[i / 3], tiles.get(i).getMinY());
+		}
+	}
+
+	@Test
+	public void testCoresPartitionImage() {
+		final long width = 250;
+		final long height = 130;
+		final int tileSize = 100;
+		final List<ImageTile> tiles = new ImageTiling(tileSize, 20).createTiles(width, height);
+		long area = 0;
+		for (final ImageTile tile : tiles) {
+			area += tile.getCoreArea();
+		}
+		assertEquals(width * height, area);
+		for (long y = 0; y < height; y++) {
+			for (long x = 0; x < width; x++) {
+				int cores = 0;
+				for (final ImageTile tile : tiles) {
+					final long tileX = x - tile.getMinX();
+					final long tileY = y - tile.getMinY();
+					if (tileX >= 0 && tileX < tileSize && tileY >= 0 && tileY < tileSize
+							&& tile.isInCore(tileX, tileY)) {
+						cores++;
+					}
+				}
+				assertEquals("Pixel " + x + ", " + y, 1, cores);
+			}
+		}
+	}
+
+	private static Map<String, ScaledImage> createImages(final long width, final long height) {
+		return Collections.singletonMap("DNA", new ScaledImage(new ImgPlus<UnsignedByteType>(ArrayImgs
+				.unsignedBytes(width, height)), 0, 1));
+	}
+
+}
@@ -0,0 +1,82 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Records durations and reads their percentiles.
+ */
+public class StageHistogramTest {
+
+	private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void testEmpty() {
+		final StageHistogram histogram = new StageHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMeanMillis(), 0);
+		assertEquals(0, histogram.getMedianMillis(), 0);
+		assertEquals(0, histogram.getMaxMillis(), 0);
+	}
+
+	@Test
+	public void testSmallValuesExact() {
+		final StageHistogram histogram = new StageHistogram();
+		for (long nanos = 1; nanos <= 7; nanos++) {
+			histogram.record(nanos);
+		}
+		assertEquals(7, histogram.getCount());
+		assertEquals(28, histogram.getTotalNanos());
+		assertEquals(4 / NANOS_PER_MILLI, histogram.getMedianMillis(), 0);
+		assertEquals(7 / NANOS_PER_MILLI, histogram.getMaxMillis(), 0);
+		assertEquals(1 / NANOS_PER_MILLI, histogram.getPercentileMillis(0), 0);
+	}
+
+	@Test
+	public void testPercentileWithin25Percent() {
+		for (long nanos = 8; nanos < Long.MAX_VALUE / 3; nanos = nanos * 3 + 1) {
+			final StageHistogram histogram = new StageHistogram();
+			histogram.record(nanos);
+			final double millis = nanos / NANOS_PER_MILLI;
+			final double percentile = histogram.getPercentileMillis(50);
+			assertTrue(nanos + "ns: " + percentile, percentile <= millis && percentile >= 0.75 * millis);
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		final StageHistogram histogram = new StageHistogram();
+		// 1ms to 100ms
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+		}
+		assertEquals(50.5, histogram.getMeanMillis(), 1e-9);
+		assertEquals(100, histogram.getMaxMillis(), 0);
+		assertEquals(50, histogram.getMedianMillis(), 50 * 0.25);
+		assertEquals(95, histogram.getP95Millis(), 95 * 0.25);
+		assertEquals(99, histogram.getP99Millis(), 99 * 0.25);
+		assertEquals(100, histogram.getPercentileMillis(100), 100 * 0.25);
+		assertTrue(histogram.getMedianMillis() <= histogram.getP95Millis());
+		assertTrue(histogram.getP95Millis() <= histogram.getP99Millis());
+	}
+
+	@Test
+	public void testNegativeAndReset() {
+		final StageHistogram histogram = new StageHistogram();
+		// Clock going backwards
+		histogram.record(-5);
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getTotalNanos());
+		histogram.record(TimeUnit.SECONDS.toNanos(1));
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getTotalMillis(), 0);
+		assertEquals(0, histogram.getMaxMillis(), 0);
+		assertEquals(0, histogram.getP99Millis(), 0);
+	}
+
+}
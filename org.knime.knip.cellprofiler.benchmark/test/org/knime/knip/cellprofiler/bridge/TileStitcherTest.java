@@ -0,0 +1,171 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cellprofiler.knimebridge.KBConstants;
+import org.junit.Test;
+
+/**
+ * Stitches the measurements of the tiles of a 250x100 image, split into three
+ * 100px tiles with 20px overlap. The cores of the tiles are [0..90),
+ * [90..165) and [165..250).
+ */
+public class TileStitcherTest {
+
+	private static final String NUCLEI = "Nuclei";
+
+	private static final String CELLS = "Cells";
+
+	private static final String SPECKLES = "Speckles";
+
+	private final List<ImageTile> m_tiles = new ImageTiling(100, 20).createTiles(250, 100);
+
+	@Test
+	public void testStitch() {
+		final TileStitcher stitcher = new TileStitcher();
+
+		final BulkRunReply tile0 = new BulkRunReply();
+		// The second nucleus lies in the core of the next tile
+		putInts(tile0, NUCLEI, KBConstants.OBJECT_NUMBER, 1, 2);
+		putDoubles(tile0, NUCLEI, "Location_Center_X", 40, 95);
+		putDoubles(tile0, NUCLEI, "Location_Center_Y", 50, 50);
+		putDoubles(tile0, NUCLEI, "AreaShape_Area", 10, 20);
+		putFloats(tile0, NUCLEI, "AreaShape_BoundingBoxMinimum_X", 30, 90);
+		putImage(tile0, 2, 1, 1, "a.tif");
+		stitcher.add(m_tiles.get(0), tile0);
+
+		final BulkRunReply tile1 = new BulkRunReply();
+		// The second nucleus lies in the core of the previous tile
+		putInts(tile1, NUCLEI, KBConstants.OBJECT_NUMBER, 1, 2);
+		putDoubles(tile1, NUCLEI, "Location_Center_X", 15, 5);
+		putDoubles(tile1, NUCLEI, "Location_Center_Y", 50, 60);
+		putDoubles(tile1, NUCLEI, "AreaShape_Area", 21, 19);
+		putFloats(tile1, NUCLEI, "AreaShape_BoundingBoxMinimum_X", 5, 0);
+		putImage(tile1, 2, 1, 2, "b.tif");
+		stitcher.add(m_tiles.get(1), tile1);
+
+		final BulkRunReply tile2 = new BulkRunReply();
+		putInts(tile2, NUCLEI, KBConstants.OBJECT_NUMBER);
+		putDoubles(tile2, NUCLEI, "Location_Center_X");
+		putDoubles(tile2, NUCLEI, "Location_Center_Y");
+		putDoubles(tile2, NUCLEI, "AreaShape_Area");
+		putFloats(tile2, NUCLEI, "AreaShape_BoundingBoxMinimum_X");
+		putImage(tile2, 0, 0, 4, "c.tif");
+		stitcher.add(m_tiles.get(2), tile2);
+
+		final BulkRunReply reply = stitcher.stitch();
+		assertArrayEquals(new int[] { 1, 2 }, reply.getIntMeasurements(NUCLEI, KBConstants.OBJECT_NUMBER));
+		// Moved to image coordinates
+		assertArrayEquals(new double[] { 40, 95 }, reply.getDoubleMeasurements(NUCLEI, "Location_Center_X"), 0);
+		assertArrayEquals(new double[] { 50, 50 }, reply.getDoubleMeasurements(NUCLEI, "Location_Center_Y"), 0);
+		assertArrayEquals(new double[] { 10, 21 }, reply.getDoubleMeasurements(NUCLEI, "AreaShape_Area"), 0);
+		assertArrayEquals(new float[] { 30, 85 },
+				reply.getFloatMeasurements(NUCLEI, "AreaShape_BoundingBoxMinimum_X"), 0);
+
+		assertArrayEquals(new int[] { 1 }, reply.getIntMeasurements(null, KBConstants.IMAGE_NUMBER));
+		// Kept objects of all tiles
+		assertArrayEquals(new int[] { 2 }, reply.getIntMeasurements(null, "Count_" + NUCLEI));
+		// Weighted by the core areas 90, 75 and 85
+		assertArrayEquals(new double[] { (90 * 1 + 75 * 2 + 85 * 4) / 250.0 },
+				reply.getDoubleMeasurements(null, "Intensity_MeanIntensity_DNA"), 1e-9);
+		assertEquals("a.tif", reply.getStringMeasurement(null, "FileName_DNA"));
+	}
+
+	@Test
+	public void testParents() {
+		final TileStitcher stitcher = new TileStitcher();
+
+		final BulkRunReply tile0 = new BulkRunReply();
+		putInts(tile0, NUCLEI, KBConstants.OBJECT_NUMBER, 1, 2);
+		putDoubles(tile0, NUCLEI, "Location_Center_X", 40, 95);
+		putDoubles(tile0, NUCLEI, "Location_Center_Y", 50, 50);
+		// The cell is kept, its nucleus is measured by the next tile
+		putInts(tile0, CELLS, KBConstants.OBJECT_NUMBER, 1);
+		putInts(tile0, CELLS, "Parent_" + NUCLEI, 2);
+		putDoubles(tile0, CELLS, "Location_Center_X", 88);
+		putDoubles(tile0, CELLS, "Location_Center_Y", 50);
+		stitcher.add(m_tiles.get(0), tile0);
+
+		final BulkRunReply tile1 = new BulkRunReply();
+		putInts(tile1, NUCLEI, KBConstants.OBJECT_NUMBER, 1, 2);
+		putDoubles(tile1, NUCLEI, "Location_Center_X", 15, 50);
+		putDoubles(tile1, NUCLEI, "Location_Center_Y", 50, 20);
+		putInts(tile1, CELLS, KBConstants.OBJECT_NUMBER, 1, 2);
+		putInts(tile1, CELLS, "Parent_" + NUCLEI, 1, 2);
+		putDoubles(tile1, CELLS, "Location_Center_X", 5, 50);
+		putDoubles(tile1, CELLS, "Location_Center_Y", 50, 25);
+		stitcher.add(m_tiles.get(1), tile1);
+
+		final BulkRunReply reply = stitcher.stitch();
+		// Nucleus 1 of tile 0 and both nuclei of tile 1
+		assertArrayEquals(new int[] { 1, 2, 3 }, reply.getIntMeasurements(NUCLEI, KBConstants.OBJECT_NUMBER));
+		assertArrayEquals(new double[] { 40, 95, 130 }, reply.getDoubleMeasurements(NUCLEI, "Location_Center_X"),
+				0);
+		// The first cell of tile 1 lies in the core of tile 0
+		assertArrayEquals(new int[] { 1, 2 }, reply.getIntMeasurements(CELLS, KBConstants.OBJECT_NUMBER));
+		// The cell of tile 0 refers to the nucleus kept from tile 1
+		assertArrayEquals(new int[] { 2, 3 }, reply.getIntMeasurements(CELLS, "Parent_" + NUCLEI));
+	}
+
+	@Test
+	public void testWithoutCenters() {
+		final TileStitcher stitcher = new TileStitcher();
+		final BulkRunReply tile0 = new BulkRunReply();
+		putInts(tile0, SPECKLES, KBConstants.OBJECT_NUMBER, 1);
+		putDoubles(tile0, SPECKLES, "Intensity", 0.5);
+		stitcher.add(m_tiles.get(0), tile0);
+		final BulkRunReply tile1 = new BulkRunReply();
+		putInts(tile1, SPECKLES, KBConstants.OBJECT_NUMBER, 1, 2);
+		putDoubles(tile1, SPECKLES, "Intensity", 0.25, 0.75);
+		stitcher.add(m_tiles.get(1), tile1);
+
+		// All objects are kept and numbered consecutively
+		final BulkRunReply reply = stitcher.stitch();
+		assertArrayEquals(new int[] { 1, 2, 3 }, reply.getIntMeasurements(SPECKLES, KBConstants.OBJECT_NUMBER));
+		assertArrayEquals(new double[] { 0.5, 0.25, 0.75 }, reply.getDoubleMeasurements(SPECKLES, "Intensity"), 0);
+	}
+
+	private static void putImage(final BulkRunReply reply, final int count, final int imageNumber,
+			final double intensity, final String fileName) {
+		putInts(reply, KBConstants.IMAGE, KBConstants.IMAGE_NUMBER, imageNumber);
+		putInts(reply, KBConstants.IMAGE, "Count_" + NUCLEI, count);
+		putDoubles(reply, KBConstants.IMAGE, "Intensity_MeanIntensity_DNA", intensity);
+		Map<String, String> features = reply.getStringFeatures().get(KBConstants.IMAGE);
+		if (features == null) {
+			features = new HashMap<String, String>();
+			reply.getStringFeatures().put(KBConstants.IMAGE, features);
+		}
+		features.put("FileName_DNA", fileName);
+	}
+
+	private static void putInts(final BulkRunReply reply, final String objectName, final String name,
+			final int... values) {
+		put(reply.getIntFeatures(), objectName, name, values);
+	}
+
+	private static void putDoubles(final BulkRunReply reply, final String objectName, final String name,
+			final double... values) {
+		put(reply.getDoubleFeatures(), objectName, name, values);
+	}
+
+	private static void putFloats(final BulkRunReply reply, final String objectName, final String name,
+			final float... values) {
+		put(reply.getFloatFeatures(), objectName, name, values);
+	}
+
+	private static <T> void put(final Map<String, Map<String, T>> features, final String objectName,
+			final String name, final T values) {
+		Map<String, T> table = features.get(objectName);
+		if (table == null) {
+			table = new HashMap<String, T>();
+			features.put(objectName, table);
+		}
+		table.put(name, values);
+	}
+
+}
@@ -0,0 +1,296 @@
+package org.knime.knip.cellprofiler.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import org.junit.Test;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataCellDataInput;
+import org.knime.core.data.DataCellDataOutput;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.data.IntValue;
+import org.knime.core.data.StringValue;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.StringCell;
+import org.knime.knip.cellprofiler.data.CellProfilerMeasurementTable.InternalFormat;
+
+/**
+ * Saves and loads cells in the current format and reads cells written in the
+ * format of the baseline, version 0.
+ */
+public class CellProfilerCellSerializerTest {
+
+	private static final String ROW = "Row0";
+
+	private final CellProfilerCellSerializer m_serializer = new CellProfilerCellSerializer();
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		final CellProfilerMeasurementTable table = new CellProfilerMeasurementTable(ROW);
+		table.addIntegerFeature("ObjectNumber", new int[] { 1, 2, 3 });
+		table.addDoubleFeature("Area", new double[] { 1.5, Double.NaN, -7 });
+		table.addFloatFeature("Intensity", new float[] { 0.25f, 0.5f, 1 });
+		final CellProfilerCell cell = new CellProfilerCell(new CellProfilerContent(ROW, table, false));
+
+		final CellProfilerCell loaded = load(save(cell));
+		assertEquals(cell.getCellProfilerContent(), loaded.getCellProfilerContent());
+		final CellProfilerContent content = loaded.getCellProfilerContent();
+		assertEquals(ROW, content.getParentKey());
+		assertFalse(content.isImageMeasurement());
+		final CellProfilerMeasurementTable measurement = content.getMeasurement();
+		assertArrayEquals(new int[] { 1, 2, 3 }, getInts(measurement, 0));
+		assertArrayEquals(new double[] { 1.5, Double.NaN, -7 }, getDoubles(measurement, 1), 0);
+		assertArrayEquals(new double[] { 0.25, 0.5, 1 }, getDoubles(measurement, 2), 0);
+	}
+
+	@Test
+	public void testImageMeasurement() throws Exception {
+		final CellProfilerMeasurementTable table = new CellProfilerMeasurementTable(ROW);
+		table.addIntegerFeature("ImageNumber", new int[] { 1 });
+		table.addStringFeature("FileName", "nuclei.tif");
+		final CellProfilerContent content = load(save(new CellProfilerCell(new CellProfilerContent(ROW, table,
+				true)))).getCellProfilerContent();
+		assertTrue(content.isImageMeasurement());
+		assertEquals("nuclei.tif", getString(content.getMeasurement(), 1));
+	}
+
+	@Test
+	public void testMissingString() throws Exception {
+		final CellProfilerMeasurementTable table = new CellProfilerMeasurementTable(ROW);
+		table.addStringFeature("Metadata", null);
+		final CellProfilerCell loaded = load(save(new CellProfilerCell(new CellProfilerContent(ROW, table, true))));
+		assertTrue(loaded.getCellProfilerContent().getMeasurement().getCell(0, 0).isMissing());
+	}
+
+	@Test
+	public void testLongString() throws Exception {
+		// Longer than DataOutput.writeUTF allows
+		final StringBuilder value = new StringBuilder();
+		while (value.length() < 70000) {
+			value.append("Gr\u00f6\u00dfe ");
+		}
+		final CellProfilerMeasurementTable table = new CellProfilerMeasurementTable(ROW);
+		table.addStringFeature("Metadata", value.toString());
+		final CellProfilerCell loaded = load(save(new CellProfilerCell(new CellProfilerContent(ROW, table, true))));
+		assertEquals(value.toString(), getString(loaded.getCellProfilerContent().getMeasurement(), 0));
+	}
+
+	@Test
+	public void testDeflatedColumn() throws Exception {
+		final int[] numbers = new int[10000];
+		final double[] values = new double[numbers.length];
+		for (int i = 0; i < numbers.length; i++) {
+			numbers[i] = i + 1;
+			values[i] = i % 4;
+		}
+		final CellProfilerMeasurementTable table = new CellProfilerMeasurementTable(ROW);
+		table.addIntegerFeature("ObjectNumber", numbers);
+		table.addDoubleFeature("Children_Count", values);
+		final byte[] bytes = save(new CellProfilerCell(new CellProfilerContent(ROW, table, false)));
+		assertTrue("Columns were not deflated", bytes.length < numbers.length * (4 + 8) / 2);
+
+		final CellProfilerMeasurementTable loaded = load(bytes).getCellProfilerContent().getMeasurement();
+		assertArrayEquals(numbers, getInts(loaded, 0));
+		assertArrayEquals(values, getDoubles(loaded, 1), 0);
+	}
+
+	@Test
+	public void testRawColumn() throws Exception {
+		// Random values don't deflate
+		final Random random = new Random(42);
+		final double[] values = new double[1000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextDouble();
+		}
+		final CellProfilerMeasurementTable table = new CellProfilerMeasurementTable(ROW);
+		table.addDoubleFeature("Texture", values);
+		final byte[] bytes = save(new CellProfilerCell(new CellProfilerContent(ROW, table, false)));
+		assertTrue(bytes.length > values.length * 8);
+		assertArrayEquals(values, getDoubles(load(bytes).getCellProfilerContent().getMeasurement(), 0), 0);
+	}
+
+	@Test
+	public void testSaveLoaded() throws Exception {
+		final int[] numbers = new int[2000];
+		for (int i = 0; i < numbers.length; i++) {
+			numbers[i] = i + 1;
+		}
+		final CellProfilerMeasurementTable table = new CellProfilerMeasurementTable(ROW);
+		table.addIntegerFeature("ObjectNumber", numbers);
+		final byte[] bytes = save(new CellProfilerCell(new CellProfilerContent(ROW, table, false)));
+
+		// Saved as read, without decoding the column
+		final CellProfilerCell loaded = load(bytes);
+		assertArrayEquals(bytes, save(loaded));
+		// Saved from the decoded values
+		assertArrayEquals(numbers, getInts(loaded.getCellProfilerContent().getMeasurement(), 0));
+		assertArrayEquals(bytes, save(loaded));
+	}
+
+	@Test
+	public void testVersion1Layout() throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(1);
+		out.writeUTF(ROW);
+		out.writeUTF(ROW);
+		// Columns and rows
+		out.writeInt(2);
+		out.writeInt(1);
+		out.writeUTF("ImageNumber");
+		out.writeInt(InternalFormat.INT.ordinal());
+		out.writeUTF("FileName");
+		out.writeInt(InternalFormat.STRING.ordinal());
+		// Raw block
+		out.writeByte(0);
+		out.writeInt(1);
+		out.writeBoolean(true);
+		// Strings as their length and UTF-8 bytes
+		out.writeInt(10);
+		out.write("nuclei.tif".getBytes(StandardCharsets.UTF_8));
+		// Image measurement
+		out.writeBoolean(true);
+		out.flush();
+
+		final CellProfilerCell cell = load(bytes.toByteArray());
+		assertArrayEquals(bytes.toByteArray(), save(cell));
+		final CellProfilerContent content = cell.getCellProfilerContent();
+		assertTrue(content.isImageMeasurement());
+		assertEquals(1, content.getMeasurement().getNumRows());
+		assertArrayEquals(new int[] { 1 }, getInts(content.getMeasurement(), 0));
+		assertEquals("nuclei.tif", getString(content.getMeasurement(), 1));
+	}
+
+	@Test
+	public void testVersion0() throws Exception {
+		final CellOutput out = new CellOutput();
+		out.writeInt(0);
+		out.writeUTF(ROW);
+		out.writeUTF(ROW);
+		out.writeInt(3);
+		out.writeInt(2);
+		out.writeUTF("ObjectNumber");
+		out.writeInt(InternalFormat.INT.ordinal());
+		out.writeUTF("Area");
+		out.writeInt(InternalFormat.DOUBLE.ordinal());
+		out.writeUTF("Name");
+		out.writeInt(InternalFormat.STRING.ordinal());
+		// One cell per value, column by column
+		out.writeDataCell(new IntCell(1));
+		out.writeDataCell(new IntCell(2));
+		out.writeDataCell(new DoubleCell(10.5));
+		out.writeDataCell(new DoubleCell(20.25));
+		out.writeDataCell(new StringCell("a"));
+		out.writeDataCell(new StringCell("b"));
+		out.writeBoolean(false);
+
+		final CellProfilerCell loaded = m_serializer.deserialize(out.toInput());
+		final CellProfilerMeasurementTable table = loaded.getCellProfilerContent().getMeasurement();
+		assertEquals(2, table.getNumRows());
+		assertArrayEquals(new int[] { 1, 2 }, getInts(table, 0));
+		assertArrayEquals(new double[] { 10.5, 20.25 }, getDoubles(table, 1), 0);
+		assertEquals("b", ((StringValue) table.getCell(2, 1)).getStringValue());
+
+		// Saved again in the current format
+		assertEquals(loaded.getCellProfilerContent(), load(save(loaded)).getCellProfilerContent());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNewerVersion() throws Exception {
+		final CellOutput out = new CellOutput();
+		out.writeInt(CellProfilerCellSerializer.VERSION + 1);
+		m_serializer.deserialize(out.toInput());
+	}
+
+	private byte[] save(final CellProfilerCell cell) throws IOException {
+		final CellOutput out = new CellOutput();
+		m_serializer.serialize(cell, out);
+		out.flush();
+		return out.m_bytes.toByteArray();
+	}
+
+	private CellProfilerCell load(final byte[] bytes) throws IOException {
+		return m_serializer.deserialize(new CellInput(bytes, new ArrayDeque<DataCell>()));
+	}
+
+	private static int[] getInts(final CellProfilerMeasurementTable table, final int column) {
+		final int[] values = new int[table.getNumRows()];
+		for (int r = 0; r < values.length; r++) {
+			values[r] = ((IntValue) table.getCell(column, r)).getIntValue();
+		}
+		return values;
+	}
+
+	private static double[] getDoubles(final CellProfilerMeasurementTable table, final int column) {
+		final double[] values = new double[table.getNumRows()];
+		for (int r = 0; r < values.length; r++) {
+			values[r] = ((DoubleValue) table.getCell(column, r)).getDoubleValue();
+		}
+		return values;
+	}
+
+	private static String getString(final CellProfilerMeasurementTable table, final int column) {
+		return ((StringValue) table.getCell(column, 0)).getStringValue();
+	}
+
+	/**
+	 * Output keeping the data cells aside, in the order they were written.
+	 */
+	private static final class CellOutput extends DataOutputStream implements DataCellDataOutput {
+
+		private final ByteArrayOutputStream m_bytes;
+
+		private final Deque<DataCell> m_cells = new ArrayDeque<DataCell>();
+
+		CellOutput() {
+			this(new ByteArrayOutputStream());
+		}
+
+		private CellOutput(final ByteArrayOutputStream bytes) {
+			super(bytes);
+			m_bytes = bytes;
+		}
+
+		@Override
+		public void writeDataCell(final DataCell cell) {
+			m_cells.add(cell);
+		}
+
+		CellInput toInput() throws IOException {
+			flush();
+			return new CellInput(m_bytes.toByteArray(), m_cells);
+		}
+	}
+
+	private static final class CellInput extends DataInputStream implements DataCellDataInput {
+
+		private final Deque<DataCell> m_cells;
+
+		CellInput(final byte[] bytes, final Deque<DataCell> cells) {
+			super(new ByteArrayInputStream(bytes));
+			m_cells = cells;
+		}
+
+		@Override
+		public DataCell readDataCell() throws IOException {
+			if (m_cells.isEmpty()) {
+				throw new IOException("No more cells");
+			}
+			return m_cells.poll();
+		}
+	}
+
+}
@@ -0,0 +1,302 @@
+package org.knime.knip.cellprofiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.runtime.Platform;
+import org.knime.core.node.NodeLogger;
+import org.knime.knip.cellprofiler.bridge.ScaledImage;
+import org.knime.knip.cellprofiler.data.CellProfilerCellSerializer;
+import org.knime.knip.cellprofiler.data.CellProfilerContent;
+
+/**
+ * Persists the results of completed rows while a pipeline is executed, so
+ * that an execution that was canceled or crashed can be resumed with the rows
+ * that are not completed yet.
+ *
+ * The checkpoint is a log of records (key, results of each object table)
+ * appended as rows complete. A record is keyed by the row key and a digest of
+ * the row's images, so that rows whose images changed since are processed
+ * again. It belongs to one node, identified by an ID derived from the
+ * workflow location and the node ID, and is only valid for the fingerprint of
+ * the configuration it was written with. A record cut off by a crash is
+ * dropped. Checkpoints that weren't written for {@link #MAX_AGE} are deleted
+ * when another one is opened.
+ */
+public class CellProfilerCheckpoint implements AutoCloseable {
+
+	private static final NodeLogger LOGGER = NodeLogger.getLogger(CellProfilerCheckpoint.class);
+
+	private static final int MAGIC = 0x43504b50;
+
+	// Version of the file layout
+	private static final int FORMAT = 1;
+
+	private static final String FILE_SUFFIX = ".ckpt";
+
+	// Checkpoints not written for this long belong to removed nodes or
+	// executions nobody resumed
+	private static final long MAX_AGE = TimeUnit.DAYS.toMillis(30);
+
+	private final RandomAccessFile m_file;
+
+	// Offset of the serialized results of each completed row by record key
+	private final Map<String, Long> m_offsets = new HashMap<String, Long>();
+
+	private CellProfilerCheckpoint(final RandomAccessFile file) {
+		m_file = file;
+	}
+
+	/**
+	 * Opens the checkpoint of a node. The completed rows are read if the
+	 * checkpoint was written with the same fingerprint, otherwise it is
+	 * started over.
+	 *
+	 * @param checkpointId
+	 *            ID of the node's checkpoint
+	 * @param fingerprint
+	 *            Everything the results of a row depend on besides its images,
+	 *            e.g. pipeline and columns
+	 * @return The checkpoint
+	 * @throws IOException
+	 *             If the checkpoint can't be written
+	 */
+	public static CellProfilerCheckpoint open(final String checkpointId, final String... fingerprint)
+			throws IOException {
+		final String digest = digest(fingerprint);
+		final File checkpointFile = getFile(checkpointId);
+		deleteStale(checkpointFile);
+		final RandomAccessFile file = new RandomAccessFile(checkpointFile, "rw");
+		try {
+			if (file.length() > 0) {
+				final CellProfilerCheckpoint checkpoint = read(file, digest);
+				if (checkpoint != null) {
+					return checkpoint;
+				}
+				LOGGER.debug("Configuration changed, discarding checkpoint " + checkpointId);
+			}
+			file.setLength(0);
+			file.writeInt(MAGIC);
+			file.writeInt(FORMAT);
+			file.writeInt(CellProfilerCellSerializer.VERSION);
+			file.writeUTF(digest);
+			return new CellProfilerCheckpoint(file);
+		} catch (IOException | RuntimeException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Deletes the checkpoint of a node.
+	 *
+	 * @param checkpointId
+	 *            ID of the node's checkpoint
+	 */
+	public static void delete(final String checkpointId) {
+		final File file = getFile(checkpointId);
+		if (file.exists() && !file.delete()) {
+			LOGGER.warn("Could not delete checkpoint " + file);
+		}
+	}
+
+	/**
+	 * @return The checkpoint or null if it was written with another
+	 *         fingerprint
+	 */
+	private static CellProfilerCheckpoint read(final RandomAccessFile file, final String digest)
+			throws IOException {
+		try {
+			// Results of other versions are computed again
+			if (file.readInt() != MAGIC || file.readInt() != FORMAT
+					|| file.readInt() != CellProfilerCellSerializer.VERSION || !file.readUTF().equals(digest)) {
+				return null;
+			}
+		} catch (EOFException e) {
+			return null;
+		}
+		final CellProfilerCheckpoint checkpoint = new CellProfilerCheckpoint(file);
+		long end = file.getFilePointer();
+		try {
+			while (end < file.length()) {
+				final String key = file.readUTF();
+				final int length = file.readInt();
+				final long offset = file.getFilePointer();
+				if (offset + length > file.length()) {
+					break;
+				}
+				file.seek(offset + length);
+				checkpoint.m_offsets.put(key, offset);
+				end = file.getFilePointer();
+			}
+		} catch (EOFException e) {
+			// Record cut off by a crash
+		}
+		file.setLength(end);
+		file.seek(end);
+		return checkpoint;
+	}
+
+	/**
+	 * @return Number of rows completed in previous executions
+	 */
+	public synchronized int getNumCompletedRows() {
+		return m_offsets.size();
+	}
+
+	/**
+	 * Creates the key of the results of a row. Reads all pixels of the images.
+	 *
+	 * @param rowKey
+	 *            Key of the row
+	 * @param images
+	 *            Map of channel name to image
+	 * @return The key
+	 */
+	public String createKey(final String rowKey, final Map<String, ScaledImage> images) {
+		final MessageDigest digest = createDigest();
+		// The order of the channels must not matter
+		for (final Map.Entry<String, ScaledImage> entry : new TreeMap<String, ScaledImage>(images).entrySet()) {
+			digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+			entry.getValue().digest(digest);
+		}
+		return rowKey + "#" + toHex(digest.digest());
+	}
+
+	/**
+	 * @param key
+	 *            Key of the row, see {@link #createKey(String, Map)}
+	 * @return The results of each object table or null if the row isn't
+	 *         completed yet or its images changed
+	 * @throws IOException
+	 *             If the checkpoint can't be read
+	 */
+	public synchronized List<CellProfilerContent> get(final String key) throws IOException {
+		final Long offset = m_offsets.get(key);
+		if (offset == null) {
+			return null;
+		}
+		final long end = m_file.getFilePointer();
+		try {
+			m_file.seek(offset - 4);
+			final byte[] bytes = new byte[m_file.readInt()];
+			m_file.readFully(bytes);
+			final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			final int count = in.readInt();
+			final List<CellProfilerContent> contents = new ArrayList<CellProfilerContent>(count);
+			for (int i = 0; i < count; i++) {
+				contents.add(CellProfilerContent.load(in, CellProfilerCellSerializer.VERSION));
+			}
+			return contents;
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e.getMessage(), e);
+		} finally {
+			m_file.seek(end);
+		}
+	}
+
+	/**
+	 * Appends the results of a completed row.
+	 *
+	 * @param key
+	 *            Key of the row, see {@link #createKey(String, Map)}
+	 * @param contents
+	 *            The results of each object table
+	 * @throws IOException
+	 *             If the checkpoint can't be written
+	 */
+	public void put(final String key, final List<CellProfilerContent> contents) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(contents.size());
+		for (final CellProfilerContent content : contents) {
+			content.save(out);
+		}
+		out.flush();
+		synchronized (this) {
+			if (m_offsets.containsKey(key)) {
+				return;
+			}
+			m_file.writeUTF(key);
+			m_file.writeInt(bytes.size());
+			final long offset = m_file.getFilePointer();
+			m_file.write(bytes.toByteArray());
+			m_offsets.put(key, offset);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		m_file.close();
+	}
+
+	private static File getFile(final String checkpointId) {
+		final File directory = new File(
+				Platform.getStateLocation(Platform.getBundle("org.knime.knip.cellprofiler")).toFile(),
+				"checkpoints");
+		directory.mkdirs();
+		return new File(directory, checkpointId + FILE_SUFFIX);
+	}
+
+	private static void deleteStale(final File checkpointFile) {
+		final File[] files = checkpointFile.getParentFile().listFiles();
+		if (files == null) {
+			return;
+		}
+		final long oldest = System.currentTimeMillis() - MAX_AGE;
+		for (final File file : files) {
+			if (file.getName().endsWith(FILE_SUFFIX) && file.lastModified() < oldest
+					&& !file.equals(checkpointFile)) {
+				LOGGER.debug("Deleting stale checkpoint " + file);
+				if (!file.delete()) {
+					LOGGER.warn("Could not delete checkpoint " + file);
+				}
+			}
+		}
+	}
+
+	private static String digest(final String... fingerprint) {
+		final MessageDigest digest = createDigest();
+		for (final String part : fingerprint) {
+			digest.update(part.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+		}
+		return toHex(digest.digest());
+	}
+
+	private static String toHex(final byte[] bytes) {
+		final StringBuilder hex = new StringBuilder();
+		for (final byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
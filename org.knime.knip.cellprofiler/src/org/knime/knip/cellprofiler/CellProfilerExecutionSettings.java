@@ -0,0 +1,204 @@
+package org.knime.knip.cellprofiler;
+
+import org.knime.knip.cellprofiler.bridge.ImageScaling;
+import org.knime.knip.cellprofiler.bridge.ImageTiling;
+import org.knime.knip.cellprofiler.bridge.StageStatistics;
+
+/**
+ * Options of a pipeline execution, see
+ * {@link CellProfilerInstance#execute(org.knime.core.node.ExecutionContext, org.knime.core.node.BufferedDataTable, org.knime.core.util.Pair[], java.util.List, java.util.List, CellProfilerExecutionSettings)}.
+ * New settings run each row on its own, without caches, checkpoint or
+ * timeout, like a single instance of the bundled bridge.
+ */
+public final class CellProfilerExecutionSettings {
+
+	private int m_prepareAhead = 0;
+
+	private int m_batchSize = 1;
+
+	private long m_batchLatency = 1000;
+
+	private boolean m_fileStore = false;
+
+	private ImageScaling m_scaling = ImageScaling.minMax();
+
+	private ImageTiling m_tiling = ImageTiling.none();
+
+	private boolean m_resultCache = false;
+
+	private CellProfilerCheckpoint m_checkpoint = null;
+
+	private CellProfilerSupervision m_supervision = CellProfilerSupervision.failFast();
+
+	private StageStatistics m_statistics = null;
+
+	/**
+	 * @return Number of rows whose images are encoded while all instances are
+	 *         busy. If 0, images are encoded while the instance is waiting.
+	 */
+	public int getPrepareAhead() {
+		return m_prepareAhead;
+	}
+
+	/**
+	 * @param prepareAhead
+	 *            Number of rows whose images are encoded while all instances
+	 *            are busy. If 0, images are encoded while the instance is
+	 *            waiting.
+	 */
+	public void setPrepareAhead(final int prepareAhead) {
+		m_prepareAhead = prepareAhead;
+	}
+
+	/**
+	 * @return Number of image sets sent to an instance in one request at
+	 *         most, 1 to send each image set on its own.
+	 */
+	public int getBatchSize() {
+		return m_batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            Number of image sets sent to an instance in one request at
+	 *            most, 1 to send each image set on its own.
+	 */
+	public void setBatchSize(final int batchSize) {
+		m_batchSize = batchSize;
+	}
+
+	/**
+	 * @return Time in milliseconds a batch of image sets should take, the
+	 *         number of image sets per batch adapts to it.
+	 */
+	public long getBatchLatency() {
+		return m_batchLatency;
+	}
+
+	/**
+	 * @param batchLatency
+	 *            Time in milliseconds a batch of image sets should take, the
+	 *            number of image sets per batch adapts to it.
+	 */
+	public void setBatchLatency(final long batchLatency) {
+		m_batchLatency = batchLatency;
+	}
+
+	/**
+	 * @return True if the measurements are written to file stores and only
+	 *         read when accessed.
+	 */
+	public boolean isFileStore() {
+		return m_fileStore;
+	}
+
+	/**
+	 * @param fileStore
+	 *            True if the measurements are written to file stores and only
+	 *            read when accessed.
+	 */
+	public void setFileStore(final boolean fileStore) {
+		m_fileStore = fileStore;
+	}
+
+	/**
+	 * @return Scaling of the pixel values of the input images.
+	 */
+	public ImageScaling getScaling() {
+		return m_scaling;
+	}
+
+	/**
+	 * @param scaling
+	 *            Scaling of the pixel values of the input images.
+	 */
+	public void setScaling(final ImageScaling scaling) {
+		m_scaling = scaling;
+	}
+
+	/**
+	 * @return Tiling of images too large to be sent as a whole.
+	 */
+	public ImageTiling getTiling() {
+		return m_tiling;
+	}
+
+	/**
+	 * @param tiling
+	 *            Tiling of images too large to be sent as a whole.
+	 */
+	public void setTiling(final ImageTiling tiling) {
+		m_tiling = tiling;
+	}
+
+	/**
+	 * @return True if results of image sets processed before with the same
+	 *         pipeline are taken from the {@link CellProfilerResultCache} and
+	 *         new results are added to it.
+	 */
+	public boolean isResultCache() {
+		return m_resultCache;
+	}
+
+	/**
+	 * @param resultCache
+	 *            True if results of image sets processed before with the same
+	 *            pipeline are taken from the {@link CellProfilerResultCache}
+	 *            and new results are added to it.
+	 */
+	public void setResultCache(final boolean resultCache) {
+		m_resultCache = resultCache;
+	}
+
+	/**
+	 * @return Checkpoint the results of completed rows are added to and rows
+	 *         completed before are taken from, null if none.
+	 */
+	public CellProfilerCheckpoint getCheckpoint() {
+		return m_checkpoint;
+	}
+
+	/**
+	 * @param checkpoint
+	 *            Checkpoint the results of completed rows are added to and
+	 *            rows completed before are taken from, may be null.
+	 */
+	public void setCheckpoint(final CellProfilerCheckpoint checkpoint) {
+		m_checkpoint = checkpoint;
+	}
+
+	/**
+	 * @return Timeout and restarts of instances that fail while processing a
+	 *         row.
+	 */
+	public CellProfilerSupervision getSupervision() {
+		return m_supervision;
+	}
+
+	/**
+	 * @param supervision
+	 *            Timeout and restarts of instances that fail while processing
+	 *            a row.
+	 */
+	public void setSupervision(final CellProfilerSupervision supervision) {
+		m_supervision = supervision;
+	}
+
+	/**
+	 * @return Statistics the durations of the stages of each row are added to,
+	 *         null if none.
+	 */
+	public StageStatistics getStatistics() {
+		return m_statistics;
+	}
+
+	/**
+	 * @param statistics
+	 *            Statistics the durations of the stages of each row are added
+	 *            to, may be null.
+	 */
+	public void setStatistics(final StageStatistics statistics) {
+		m_statistics = statistics;
+	}
+
+}
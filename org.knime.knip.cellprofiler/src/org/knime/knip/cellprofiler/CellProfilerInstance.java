@@ -8,17 +8,34 @@ import java.io.InputStreamReader;
 import java.net.ServerSocket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 import org.cellprofiler.knimebridge.CellProfilerException;
 import org.cellprofiler.knimebridge.IFeatureDescription;
 import org.cellprofiler.knimebridge.IKnimeBridge;
 import org.cellprofiler.knimebridge.KBConstants;
-import org.cellprofiler.knimebridge.KnimeBridgeFactory;
 import org.cellprofiler.knimebridge.PipelineException;
 import org.cellprofiler.knimebridge.ProtocolException;
 import org.knime.core.data.DataCell;
@@ -27,16 +44,34 @@ import org.knime.core.data.DataColumnSpecCreator;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.DataType;
+import org.knime.core.data.append.AppendedColumnRow;
 import org.knime.core.data.container.AbstractCellFactory;
-import org.knime.core.data.container.CellFactory;
 import org.knime.core.data.container.ColumnRearranger;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
 import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
 import org.knime.core.util.Pair;
 import org.knime.knip.base.data.img.ImgPlusValue;
+import org.knime.knip.cellprofiler.CellProfilerResultCache.PipelineResults;
+import org.knime.knip.cellprofiler.bridge.BulkRunReply;
+import org.knime.knip.cellprofiler.bridge.CellProfilerBridge;
+import org.knime.knip.cellprofiler.bridge.EncodedImages;
+import org.knime.knip.cellprofiler.bridge.ImageEncoding;
+import org.knime.knip.cellprofiler.bridge.ImageScaling;
+import org.knime.knip.cellprofiler.bridge.ImageTile;
+import org.knime.knip.cellprofiler.bridge.ImageTiling;
+import org.knime.knip.cellprofiler.bridge.ScaledImage;
+import org.knime.knip.cellprofiler.bridge.StageStatistics;
+import org.knime.knip.cellprofiler.bridge.TileStitcher;
+import org.knime.knip.cellprofiler.bridge.WorkerFailedException;
 import org.knime.knip.cellprofiler.data.CellProfilerCell;
 import org.knime.knip.cellprofiler.data.CellProfilerContent;
+import org.knime.knip.cellprofiler.data.CellProfilerFeatureSchema;
+import org.knime.knip.cellprofiler.data.CellProfilerFeatureSelection;
+import org.knime.knip.cellprofiler.data.CellProfilerFileStoreCell;
+import org.knime.knip.cellprofiler.data.CellProfilerFileStoreWriter;
 import org.knime.knip.cellprofiler.data.CellProfilerMeasurementTable;
 import org.knime.knip.core.KNIPGateway;
 import org.zeromq.ZMQException;
@@ -44,14 +79,7 @@ import org.zeromq.ZMQException;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imglib2.Interval;
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.converter.Converter;
-import net.imglib2.converter.Converters;
-import net.imglib2.exception.IncompatibleTypeException;
-import net.imglib2.img.Img;
-import net.imglib2.img.ImgView;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 
 /**
@@ -63,14 +91,45 @@ import net.imglib2.util.Intervals;
 @SuppressWarnings("deprecation")
 public class CellProfilerInstance {
 
+	/**
+	 * Runs the work an execution spreads over its instances, e.g. preparing
+	 * the pipeline or running tiles. Each task occupies an instance, so there
+	 * are never more tasks than instances.
+	 */
+	private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			final Thread thread = new Thread(r, "CellProfiler instance task");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Commands of CellProfiler installations that replied they don't register
+	 * pipelines, so that new instances don't wait for the probe again. A probe
+	 * that timed out only falls back for its instance, the process may just
+	 * have been busy.
+	 */
+	private static final Set<List<String>> PREPARE_UNSUPPORTED = Collections
+			.newSetFromMap(new ConcurrentHashMap<List<String>, Boolean>());
+
 	private Process m_cellProfilerProcess;
 
 	private boolean closed = false;
 
-	private IKnimeBridge m_knimeBridge = new KnimeBridgeFactory().newKnimeBridge();
+	private CellProfilerBridge m_knimeBridge = new CellProfilerBridge();
 
 	private int m_port;
 
+	private final String[] m_cellProfilerCommand;
+
+	private URI m_address;
+
+	private final CellProfilerWorkerRegistry m_registry;
+
+	private CellProfilerFeatureSelection m_featureSelection = CellProfilerFeatureSelection.all();
+
 	/**
 	 * Creates a CellProfiler instance in a separate Python process and connects
 	 * to it via TCP.
@@ -86,29 +145,204 @@ public class CellProfilerInstance {
 			throws IOException, ZMQException, ProtocolException, URISyntaxException, PipelineException {
 		// Do some error checks on the configured module path
 		final String[] cellProfilerCommand = CellProfilerPreferencePage.getCellProfilerCommand();
+		m_cellProfilerCommand = cellProfilerCommand;
+		m_address = null;
+		m_registry = null;
+		if (PREPARE_UNSUPPORTED.contains(Arrays.asList(cellProfilerCommand))) {
+			m_knimeBridge.setPreparedPipelineSupported(false);
+		}
+		start();
+	}
+
+	/**
+	 * Connects to a CellProfiler worker that is already running, e.g. a
+	 * stand-in server for tests. The worker is not shut down by this instance.
+	 * 
+	 * @param address
+	 *            The knime-bridge address of the worker
+	 * @throws IOException
+	 * @throws ZMQException
+	 * @throws ProtocolException
+	 *             If the worker does not answer the connect request
+	 */
+	public CellProfilerInstance(final URI address) throws IOException, ZMQException, ProtocolException {
+		this(address, null);
+	}
+
+	/**
+	 * Connects to a worker leased from a registry. If the worker fails, the
+	 * instance moves on to another worker of the registry.
+	 */
+	CellProfilerInstance(final URI address, final CellProfilerWorkerRegistry registry)
+			throws IOException, ZMQException, ProtocolException {
+		m_cellProfilerCommand = null;
+		m_address = address;
+		m_registry = registry;
+		if (registry != null) {
+			m_knimeBridge.setConnectTimeout(CellProfilerWorkerRegistry.CONNECT_TIMEOUT);
+		}
+		try {
+			start();
+		} catch (URISyntaxException e) {
+			// Only thrown for started processes
+			throw new IOException(e.getMessage(), e);
+		}
+	}
 
+	private void start() throws IOException, ZMQException, ProtocolException, URISyntaxException {
+		if (m_address != null) {
+			m_knimeBridge.connect(m_address);
+			return;
+		}
 		// Get a free port for communication with CellProfiler
 		m_port = getFreePort();
 		// Start CellProfiler
 
 		final String param = "--knime-bridge-address=tcp://127.0.0.1:" + m_port;
-		final ProcessBuilder processBuilder = cellProfilerCommand[0].isEmpty()
-				? new ProcessBuilder(cellProfilerCommand[1], param)
-				: new ProcessBuilder(cellProfilerCommand[0], cellProfilerCommand[1], param);
+		final ProcessBuilder processBuilder = m_cellProfilerCommand[0].isEmpty()
+				? new ProcessBuilder(m_cellProfilerCommand[1], param)
+				: new ProcessBuilder(m_cellProfilerCommand[0], m_cellProfilerCommand[1], param);
 
 		m_cellProfilerProcess = processBuilder.start();
 
 		startStreamListener(m_cellProfilerProcess.getInputStream(), false);
 		startStreamListener(m_cellProfilerProcess.getErrorStream(), true);
 
+		// Requests fail instead of blocking forever if the process dies
+		m_knimeBridge.setWorkerProcess(m_cellProfilerProcess);
 		// Connect to CellProfiler via the given port
 		m_knimeBridge.connect(new URI("tcp://127.0.0.1:" + m_port));
 	}
 
+	/**
+	 * Replaces the CellProfiler process by a new one and loads the current
+	 * pipeline again. Used if the process crashed or hangs. Instances
+	 * connected to a running worker only reconnect, instances leased from a
+	 * {@link CellProfilerWorkerRegistry} connect to another worker if their
+	 * worker doesn't answer anymore.
+	 * 
+	 * @throws IOException
+	 *             If the new process could not be started
+	 * @throws ProtocolException
+	 * @throws PipelineException
+	 */
+	public void restart() throws IOException, ProtocolException, PipelineException {
+		final String pipeline = m_knimeBridge.getPipeline();
+		m_knimeBridge.disconnect();
+		if (m_cellProfilerProcess != null) {
+			m_cellProfilerProcess.destroyForcibly();
+		}
+		try {
+			start();
+		} catch (ProtocolException | ZMQException e) {
+			if (m_registry == null) {
+				throw e;
+			}
+			failover(e);
+		} catch (URISyntaxException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		if (pipeline != null) {
+			// Already cleaned
+			m_knimeBridge.loadPipeline(pipeline);
+		}
+	}
+
+	/**
+	 * Connects to the next idle worker of the registry until one answers.
+	 */
+	private void failover(final Exception cause) throws IOException {
+		Exception failure = cause;
+		URI replacement;
+		while ((replacement = m_registry.failover(m_address, failure)) != null) {
+			m_address = replacement;
+			try {
+				m_knimeBridge.connect(m_address);
+				KNIPGateway.log().info("Continuing on CellProfiler worker " + m_address);
+				return;
+			} catch (ProtocolException | ZMQException e) {
+				failure = e;
+			}
+		}
+		throw new IOException("No other CellProfiler worker is available, " + m_address + " failed: "
+				+ cause.getMessage(), cause);
+	}
+
+	/**
+	 * Loads and cleans a pipeline. If CellProfiler reported on the same
+	 * pipeline before, the info is taken from the
+	 * {@link CellProfilerPipelineInfoCache} without asking CellProfiler. All
+	 * features of the pipeline are selected.
+	 * 
+	 * @param pipelineFile
+	 *            Path of the pipeline file
+	 * @throws ZMQException
+	 * @throws PipelineException
+	 *             If the pipeline could not be parsed
+	 * @throws ProtocolException
+	 * @throws IOException
+	 *             If the pipeline file could not be read
+	 */
 	public void loadPipeline(final String pipelineFile)
 			throws ZMQException, PipelineException, ProtocolException, IOException {
-		m_knimeBridge.loadPipeline(FileUtils.readFileToString(new File(pipelineFile)));
+		final String pipeline = FileUtils.readFileToString(new File(pipelineFile));
+		m_featureSelection = CellProfilerFeatureSelection.all();
+		m_knimeBridge.setSelectedFeatures(null);
+		// Workers connected by address may be anything, their infos aren't kept
+		final CellProfilerPipelineInfoCache cache = m_cellProfilerCommand != null
+				? CellProfilerPipelineInfoCache.getInstance() : null;
+		final CellProfilerPipelineInfo cached = cache != null ? cache.get(m_cellProfilerCommand, pipeline) : null;
+		if (cached != null) {
+			m_knimeBridge.loadPipeline(cached.getPipeline(), cached.getChannels(), cached.getFeatures());
+			return;
+		}
+		m_knimeBridge.loadPipeline(pipeline);
 		m_knimeBridge.cleanPipeline();
+		if (cache != null) {
+			cache.put(m_cellProfilerCommand, pipeline, getPipelineInfo());
+		}
+	}
+
+	/**
+	 * Selects the features of the loaded pipeline to request from
+	 * CellProfiler and to store in the measurement cells. CellProfiler is
+	 * told the selected features when the pipeline is prepared, so that it
+	 * can skip measurements nobody needs and leave them out of its replies.
+	 * 
+	 * @param selection
+	 *            The features to keep
+	 */
+	public void setFeatureSelection(final CellProfilerFeatureSelection selection) {
+		m_featureSelection = selection;
+		m_knimeBridge.setSelectedFeatures(
+				selection.isEnabled() ? selection.selectNames(getPipelineInfo().getFeatures()) : null);
+	}
+
+	/**
+	 * @return What CellProfiler reported about the loaded pipeline.
+	 */
+	public CellProfilerPipelineInfo getPipelineInfo() {
+		final Map<String, List<IFeatureDescription>> features = new LinkedHashMap<String, List<IFeatureDescription>>();
+		for (final String measurementName : m_knimeBridge.getResultTableNames()) {
+			features.put(measurementName, m_knimeBridge.getFeatures(measurementName));
+		}
+		return new CellProfilerPipelineInfo(m_knimeBridge.getPipeline(), m_knimeBridge.getInputChannels(), features);
+	}
+
+	/**
+	 * @return The cleaned pipeline loaded by this instance.
+	 */
+	public String getPipeline() {
+		return m_knimeBridge.getPipeline();
+	}
+
+	/**
+	 * @param enabled
+	 *            True to transfer the images via shared memory if CellProfiler
+	 *            supports it. Takes effect when the next pipeline is loaded.
+	 */
+	public void setSharedMemoryEnabled(final boolean enabled) {
+		m_knimeBridge.setSharedMemoryEnabled(enabled);
 	}
 
 	/**
@@ -120,13 +354,29 @@ public class CellProfilerInstance {
 	}
 
 	/**
+	 * @return Feature schema of each measurement table produced by the
+	 *         pipeline, by object name.
+	 */
+	public Map<String, CellProfilerFeatureSchema> getFeatureSchemas() {
+		return getPipelineInfo().getFeatureSchemas();
+	}
+
+	/**
+	 * @param featureSchemas
+	 *            Feature schema of each measurement table by object name,
+	 *            stored in the column properties. May be null or incomplete.
 	 * @return Spec of the output produced by the pipeline.
 	 */
 	public static DataTableSpec getOutputSpec(final DataTableSpec inSpec, final Pair<String, String>[] imageColumns,
-			final List<String> objectNames) {
-		// Passing null to createColumnRearranger will cause an NPE if we use it
-		// for more than the spec
-		return createColumnRearranger(inSpec, imageColumns, null, objectNames).createSpec();
+			final List<String> objectNames, final Map<String, CellProfilerFeatureSchema> featureSchemas,
+			final boolean fileStore) {
+		final CellProfilerExecutionSettings settings = new CellProfilerExecutionSettings();
+		settings.setFileStore(fileStore);
+		// Passing null to createCellFactory will cause an NPE if we use it for
+		// more than the spec
+		final ColumnRearranger rearranger = new ColumnRearranger(inSpec);
+		rearranger.append(createCellFactory(inSpec, imageColumns, objectNames, featureSchemas, settings, null));
+		return rearranger.createSpec();
 	}
 
 	/**
@@ -150,40 +400,524 @@ public class CellProfilerInstance {
 	public BufferedDataTable execute(ExecutionContext exec, BufferedDataTable inputTable,
 			Pair<String, String>[] imageColumns, List<String> objectNames) throws IOException, ZMQException,
 					CellProfilerException, PipelineException, ProtocolException, CanceledExecutionException {
-		ColumnRearranger colRearranger = createColumnRearranger(inputTable.getDataTableSpec(), imageColumns,
-				m_knimeBridge, objectNames);
-		return exec.createColumnRearrangeTable(inputTable, colRearranger, exec);
+		return execute(exec, inputTable, imageColumns, objectNames, Collections.singletonList(this),
+				new CellProfilerExecutionSettings());
+	}
+
+	/**
+	 * Executes the pipeline on several CellProfiler instances in parallel.
+	 * Each row is processed by the next idle instance, the results are
+	 * returned in the order of the input rows.
+	 * 
+	 * @param exec
+	 *            Execution context needed to create a new table.
+	 * @param inputTable
+	 *            The input table.
+	 * @param imageColumns
+	 *            The image columns used by the pipeline.
+	 * @param objectNames
+	 *            The object names produced by the pipeline.
+	 * @param instances
+	 *            The instances to use, all of them must have the pipeline
+	 *            loaded.
+	 * @param settings
+	 *            Options of the execution, e.g. batching, caching and
+	 *            supervision.
+	 * @return Table containing the metrics calculated by the pipeline.
+	 * @throws CanceledExecutionException
+	 * @throws ProtocolException
+	 * @throws PipelineException
+	 * @throws IOException
+	 */
+	public static BufferedDataTable execute(ExecutionContext exec, BufferedDataTable inputTable,
+			Pair<String, String>[] imageColumns, List<String> objectNames, List<CellProfilerInstance> instances,
+			CellProfilerExecutionSettings settings)
+			throws CanceledExecutionException, PipelineException, ProtocolException, IOException {
+		try (final CellProfilerFileStoreWriter fileStoreWriter = settings.isFileStore()
+				? new CellProfilerFileStoreWriter(exec) : null) {
+			final ColumnRearranger colRearranger = new ColumnRearranger(inputTable.getDataTableSpec());
+			colRearranger.append(
+					createCellFactory(inputTable.getDataTableSpec(), imageColumns, objectNames, instances, settings,
+							fileStoreWriter));
+			return exec.createColumnRearrangeTable(inputTable, colRearranger, exec);
+		}
+	}
+
+	/**
+	 * Executes the pipeline on the rows of a stream. Like
+	 * {@link #execute(ExecutionContext, BufferedDataTable, Pair[], List, List, CellProfilerExecutionSettings)}
+	 * the rows are processed by several instances in parallel, at most one row
+	 * per instance plus the rows prepared ahead are held in memory. Each
+	 * result is pushed as soon as the results of all previous rows are pushed.
+	 * 
+	 * @param exec
+	 *            Execution context.
+	 * @param input
+	 *            The input rows, closed when all rows are processed.
+	 * @param output
+	 *            The output rows, closed when all rows are processed.
+	 * @param imageColumns
+	 *            The image columns used by the pipeline.
+	 * @param objectNames
+	 *            The object names produced by the pipeline.
+	 * @param instances
+	 *            The instances to use, all of them must have the pipeline
+	 *            loaded.
+	 * @param settings
+	 *            Options of the execution. The checkpoint is not used, rows
+	 *            of a stream can't be resumed.
+	 * @throws Exception
+	 *             If processing a row failed or the execution was canceled.
+	 */
+	public static void execute(final ExecutionContext exec, final RowInput input, final RowOutput output,
+			final Pair<String, String>[] imageColumns, final List<String> objectNames,
+			final List<CellProfilerInstance> instances, final CellProfilerExecutionSettings settings)
+			throws Exception {
+		final int numThreads = instances.size() * settings.getBatchSize() + settings.getPrepareAhead();
+		final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try (final CellProfilerFileStoreWriter fileStoreWriter = settings.isFileStore()
+				? new CellProfilerFileStoreWriter(exec) : null) {
+			final AbstractCellFactory factory = createCellFactory(input.getDataTableSpec(), imageColumns,
+					objectNames, instances, settings, fileStoreWriter);
+			final Deque<Future<DataRow>> pending = new ArrayDeque<Future<DataRow>>();
+			long rowCount = 0;
+			DataRow row;
+			while ((row = input.poll()) != null) {
+				final DataRow inputRow = row;
+				pending.add(executor.submit(new Callable<DataRow>() {
+					@Override
+					public DataRow call() throws Exception {
+						return new AppendedColumnRow(inputRow, factory.getCells(inputRow));
+					}
+				}));
+				if (pending.size() >= numThreads) {
+					output.push(getResult(pending.poll()));
+				}
+				exec.checkCanceled();
+				exec.setMessage("Processed " + (++rowCount - pending.size()) + " rows");
+			}
+			while (!pending.isEmpty()) {
+				output.push(getResult(pending.poll()));
+				exec.checkCanceled();
+			}
+			input.close();
+			output.close();
+		} finally {
+			executor.shutdownNow();
+		}
 	}
 
-	private static CellProfilerCell[] createCellProfilerContentCell(final String parentKey,
-			final IKnimeBridge knimeBridge) {
+	private static DataRow getResult(final Future<DataRow> result) throws Exception {
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates the cell factory processing rows with the given instances.
+	 */
+	private static AbstractCellFactory createCellFactory(final DataTableSpec inSpec,
+			final Pair<String, String>[] imageColumns, final List<String> objectNames,
+			final List<CellProfilerInstance> instances, final CellProfilerExecutionSettings settings,
+			final CellProfilerFileStoreWriter fileStoreWriter) throws PipelineException, ProtocolException {
+		final int batchSize = settings.getBatchSize();
+		final BlockingQueue<CellProfilerInstance> idleInstances = new ArrayBlockingQueue<CellProfilerInstance>(
+				instances.size());
+		// Images can only be encoded before an instance is taken if all
+		// instances agree on the encodings
+		Set<ImageEncoding> imageEncodings = settings.getPrepareAhead() > 0 || batchSize > 1
+				? EnumSet.allOf(ImageEncoding.class) : null;
+		boolean batchRunSupported = batchSize > 1;
+		preparePipelines(instances);
+		for (final CellProfilerInstance instance : instances) {
+			idleInstances.add(instance);
+			instance.configure(settings);
+			if (imageEncodings != null) {
+				if (instance.m_knimeBridge.isPipelinePrepared()) {
+					imageEncodings.retainAll(instance.m_knimeBridge.getImageEncodings());
+				} else {
+					imageEncodings = null;
+				}
+			}
+			batchRunSupported &= instance.m_knimeBridge.isBatchRunSupported();
+		}
+		if (batchSize > 1 && !batchRunSupported) {
+			KNIPGateway.log().warn("CellProfiler doesn't support batch runs, the image sets are sent one by one.");
+		}
+		final CellProfilerRunBatcher batcher = batchRunSupported && imageEncodings != null
+				? new CellProfilerRunBatcher(idleInstances, batchSize, settings.getBatchLatency(),
+						settings.getSupervision(), settings.getStatistics())
+				: null;
+		// The pipeline and feature selection of all instances are the same,
+		// the results of tiled images also depend on the tiling
+		final CellProfilerFeatureSelection featureSelection = instances.get(0).m_featureSelection;
+		String pipeline = instances.get(0).m_knimeBridge.getPipeline();
+		if (settings.getTiling().isEnabled()) {
+			pipeline += "\n# " + settings.getTiling();
+		}
+		if (featureSelection.isEnabled()) {
+			pipeline += "\n# Selected features\n" + featureSelection;
+		}
+		// Other CellProfiler versions may measure differently. Workers of the
+		// same version share their results, whichever of them are leased.
+		final Set<String> installations = new TreeSet<String>();
+		for (final CellProfilerInstance instance : instances) {
+			installations.add(instance.getInstallation());
+		}
+		final PipelineResults pipelineResults = settings.isResultCache()
+				? CellProfilerResultCache.getInstance().forPipeline(installations.toString(), pipeline) : null;
+		final Execution execution = new Execution(idleInstances, instances.size(), imageEncodings, batcher,
+				pipelineResults, fileStoreWriter);
+		return createCellFactory(inSpec, imageColumns, objectNames,
+				featureSelection.select(instances.get(0).getFeatureSchemas()), settings, execution);
+	}
+
+	/**
+	 * Prepares the pipeline on all instances at once, so that workers which
+	 * don't answer the probe only delay the execution once.
+	 */
+	private static void preparePipelines(final List<CellProfilerInstance> instances)
+			throws PipelineException, ProtocolException {
+		final List<Future<Void>> results = new ArrayList<Future<Void>>(instances.size() - 1);
+		for (final CellProfilerInstance instance : instances.subList(1, instances.size())) {
+			results.add(EXECUTOR.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					instance.preparePipeline();
+					return null;
+				}
+			}));
+		}
+		instances.get(0).preparePipeline();
+		for (final Future<Void> result : results) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ProtocolException("Interrupted while preparing the pipeline");
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof PipelineException) {
+					throw (PipelineException) cause;
+				} else if (cause instanceof ProtocolException) {
+					throw (ProtocolException) cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new ProtocolException(cause.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Applies the request timeout and statistics of an execution to the
+	 * requests of this instance.
+	 */
+	void configure(final CellProfilerExecutionSettings settings) {
+		m_knimeBridge.setRequestTimeout(settings.getSupervision().getRequestTimeout());
+		m_knimeBridge.setStatistics(settings.getStatistics());
+	}
+
+	/**
+	 * Registers the pipeline with the worker unless done before, and
+	 * remembers if the CellProfiler installation replied it doesn't support it.
+	 */
+	private void preparePipeline() throws PipelineException, ProtocolException {
+		m_knimeBridge.preparePipeline();
+		if (m_cellProfilerCommand != null && Boolean.FALSE.equals(m_knimeBridge.isPreparedPipelineSupported())
+				&& !m_knimeBridge.isPrepareTimedOut()) {
+			PREPARE_UNSUPPORTED.add(Arrays.asList(m_cellProfilerCommand));
+		}
+	}
+
+	/**
+	 * Runs the pipeline on an image set. If CellProfiler doesn't answer in
+	 * time or its process exits, the process is restarted and the image set
+	 * is sent again.
+	 * 
+	 * @return The results of each object table or null if the image set
+	 *         failed and failed rows are skipped
+	 */
+	private List<CellProfilerContent> run(final Map<String, ScaledImage> images, final EncodedImages encoded,
+			final boolean group, final String parentKey, final CellProfilerSupervision supervision,
+			final StageStatistics statistics)
+					throws CellProfilerException, PipelineException, ProtocolException, IOException {
+		final BulkRunReply reply = runReply(images, encoded, group, parentKey, supervision);
+		if (reply == null) {
+			return null;
+		}
+		final long start = System.nanoTime();
+		final List<CellProfilerContent> contents = createCellProfilerContents(parentKey, m_knimeBridge, m_featureSelection,
+				reply);
+		if (statistics != null) {
+			statistics.record(StageStatistics.Stage.TABLES, start);
+		}
+		return contents;
+	}
+
+	/**
+	 * Runs the pipeline on an image set, restarting the process like
+	 * {@link #run(Map, EncodedImages, boolean, String, CellProfilerSupervision, StageStatistics)}.
+	 * 
+	 * @return The measurements or null if the image set failed and failed
+	 *         rows are skipped
+	 */
+	private BulkRunReply runReply(final Map<String, ScaledImage> images, final EncodedImages encoded,
+			final boolean group, final String parentKey, final CellProfilerSupervision supervision)
+					throws CellProfilerException, PipelineException, ProtocolException, IOException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				final long start = System.nanoTime();
+				if (encoded != null) {
+					m_knimeBridge.run(encoded, group);
+				} else {
+					m_knimeBridge.run(images, group);
+				}
+				recordRun(1, start);
+				return m_knimeBridge.getRunReply();
+			} catch (WorkerFailedException e) {
+				final boolean retry = attempt < supervision.getMaxAttempts();
+				if (!retry && !supervision.isSkipFailedRows()) {
+					throw e;
+				}
+				KNIPGateway.log().warn("Row " + parentKey + ", attempt " + attempt + " of "
+						+ supervision.getMaxAttempts() + ": " + e.getMessage() + ". Restarting CellProfiler.");
+				// The connection is waiting for a reply that won't come
+				restart();
+				if (!retry) {
+					KNIPGateway.log().warn("Giving up row " + parentKey + ", creating missing cells.");
+					return null;
+				}
+			} catch (CellProfilerException e) {
+				// Would fail the same way on every attempt
+				if (!supervision.isSkipFailedRows()) {
+					throw e;
+				}
+				KNIPGateway.log().warn("CellProfiler failed on row " + parentKey + ", creating missing cells: "
+						+ e.getMessage());
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Runs the pipeline on the tiles of an image set too large to be sent as
+	 * a whole and stitches their measurements. The tiles are processed by an
+	 * instance taken for the row and by any further idle instance.
+	 * 
+	 * @return The results of each object table or null if a tile failed and
+	 *         failed rows are skipped
+	 */
+	private static List<CellProfilerContent> runTiled(final Map<String, ScaledImage> images, final String parentKey,
+			final ImageTiling tiling, final BlockingQueue<CellProfilerInstance> idleInstances,
+			final CellProfilerSupervision supervision, final StageStatistics statistics)
+					throws CellProfilerException, PipelineException, ProtocolException, IOException,
+					InterruptedException {
+		final ImgPlus<?> img = images.values().iterator().next().getImg();
+		final List<ImageTile> tiles = tiling.createTiles(img.dimension(0), img.dimension(1));
+		// The crops are only views, scaled like the whole images, whose range
+		// is determined once for all tiles
+		final Map<String, ScaledImage> ranged = new HashMap<String, ScaledImage>();
+		for (final Map.Entry<String, ScaledImage> entry : images.entrySet()) {
+			ranged.put(entry.getKey(), entry.getValue().withRange());
+		}
+		final List<Map<String, ScaledImage>> crops = new ArrayList<Map<String, ScaledImage>>(tiles.size());
+		for (final ImageTile tile : tiles) {
+			crops.add(tile.crop(ranged));
+		}
+		final BulkRunReply[] replies = new BulkRunReply[tiles.size()];
+		final AtomicInteger nextTile = new AtomicInteger();
+		final CellProfilerInstance instance = idleInstances.take();
+		try {
+			// Instances idle right now help with the tiles, each puts itself
+			// back when there are no tiles left
+			final List<Future<Boolean>> helpers = new ArrayList<Future<Boolean>>();
+			CellProfilerInstance helper;
+			while (helpers.size() < tiles.size() - 1 && (helper = idleInstances.poll()) != null) {
+				final CellProfilerInstance helperInstance = helper;
+				helpers.add(EXECUTOR.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						try {
+							return helperInstance.runTiles(crops, replies, nextTile, parentKey, supervision);
+						} finally {
+							// Never blocks, the queue has room for all instances
+							idleInstances.offer(helperInstance);
+						}
+					}
+				}));
+			}
+			boolean complete = instance.runTiles(crops, replies, nextTile, parentKey, supervision);
+			for (final Future<Boolean> result : helpers) {
+				complete &= getTileResult(result);
+			}
+			if (!complete) {
+				return null;
+			}
+			final long start = System.nanoTime();
+			final TileStitcher stitcher = new TileStitcher();
+			for (int i = 0; i < tiles.size(); i++) {
+				stitcher.add(tiles.get(i), replies[i]);
+			}
+			final List<CellProfilerContent> contents = createCellProfilerContents(parentKey, instance.m_knimeBridge,
+					instance.m_featureSelection, stitcher.stitch());
+			if (statistics != null) {
+				statistics.record(StageStatistics.Stage.TABLES, start);
+			}
+			return contents;
+		} finally {
+			// Stops the helpers after their current tile if a tile failed
+			nextTile.set(tiles.size());
+			idleInstances.offer(instance);
+		}
+	}
+
+	/**
+	 * Runs the pipeline on tiles until there are none left.
+	 * 
+	 * @return False if a tile failed and failed rows are skipped
+	 */
+	private boolean runTiles(final List<Map<String, ScaledImage>> crops, final BulkRunReply[] replies,
+			final AtomicInteger nextTile, final String parentKey, final CellProfilerSupervision supervision)
+					throws CellProfilerException, PipelineException, ProtocolException, IOException {
+		for (int t = nextTile.getAndIncrement(); t < crops.size(); t = nextTile.getAndIncrement()) {
+			final BulkRunReply reply = runReply(crops.get(t), null, false, parentKey + " tile " + (t + 1),
+					supervision);
+			if (reply == null) {
+				// The row gets missing cells anyway
+				nextTile.set(crops.size());
+				return false;
+			}
+			replies[t] = reply;
+		}
+		return true;
+	}
+
+	private static boolean getTileResult(final Future<Boolean> result) throws CellProfilerException,
+			PipelineException, ProtocolException, IOException, InterruptedException {
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof CellProfilerException) {
+				throw (CellProfilerException) cause;
+			} else if (cause instanceof PipelineException) {
+				throw (PipelineException) cause;
+			} else if (cause instanceof ProtocolException) {
+				throw (ProtocolException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Runs the pipeline on several image sets in one request. If the request
+	 * fails, the image sets are run one by one, so that an image set failing
+	 * CellProfiler only affects its own row.
+	 * 
+	 * @return The results of each image set, null for image sets that failed
+	 *         if failed rows are skipped
+	 */
+	List<List<CellProfilerContent>> runBatch(final List<EncodedImages> imageSets, final List<String> parentKeys,
+			final CellProfilerSupervision supervision, final StageStatistics statistics)
+					throws CellProfilerException, PipelineException, ProtocolException, IOException {
+		try {
+			final long runStart = System.nanoTime();
+			final List<BulkRunReply> replies = m_knimeBridge.runBatch(imageSets);
+			recordRun(imageSets.size(), runStart);
+			final long start = System.nanoTime();
+			final List<List<CellProfilerContent>> results = new ArrayList<List<CellProfilerContent>>(replies.size());
+			for (int i = 0; i < replies.size(); i++) {
+				results.add(createCellProfilerContents(parentKeys.get(i), m_knimeBridge, m_featureSelection,
+						replies.get(i)));
+			}
+			if (statistics != null) {
+				statistics.record(StageStatistics.Stage.TABLES, start);
+			}
+			return results;
+		} catch (WorkerFailedException e) {
+			KNIPGateway.log().warn("Batch of rows " + parentKeys.get(0) + " to " + parentKeys.get(parentKeys.size() - 1)
+					+ " failed: " + e.getMessage() + ". Restarting CellProfiler and running the rows one by one.");
+			restart();
+		} catch (CellProfilerException e) {
+			KNIPGateway.log().debug("Batch of rows " + parentKeys.get(0) + " to "
+					+ parentKeys.get(parentKeys.size() - 1) + " failed, running them one by one: " + e.getMessage());
+		}
+		final List<List<CellProfilerContent>> results = new ArrayList<List<CellProfilerContent>>(imageSets.size());
+		for (int i = 0; i < imageSets.size(); i++) {
+			results.add(run(imageSets.get(i).getImages(), imageSets.get(i), false, parentKeys.get(i), supervision,
+					statistics));
+		}
+		return results;
+	}
+
+	private void recordRun(final int numImageSets, final long start) {
+		if (m_registry != null) {
+			m_registry.recordRun(m_address, numImageSets, System.nanoTime() - start);
+		}
+	}
+
+	private static DataCell[] createMissingCells(final int count) {
+		final DataCell[] missingCells = new DataCell[count];
+		Arrays.fill(missingCells, DataType.getMissingCell());
+		return missingCells;
+	}
+
+	private static List<CellProfilerContent> createCellProfilerContents(final String parentKey,
+			final IKnimeBridge knimeBridge, final CellProfilerFeatureSelection featureSelection,
+			final BulkRunReply reply) {
 
 		final List<String> measurementNames = knimeBridge.getResultTableNames();
-		final CellProfilerCell[] cells = new CellProfilerCell[measurementNames.size()];
+		final List<CellProfilerContent> contents = new ArrayList<CellProfilerContent>(measurementNames.size());
 
-		int i = 0;
 		for (String measurementName : measurementNames) {
 			CellProfilerMeasurementTable measurement = new CellProfilerMeasurementTable(parentKey);
 			for (IFeatureDescription featureDescription : knimeBridge.getFeatures(measurementName)) {
+				if (!featureSelection.isSelected(measurementName, featureDescription.getName())) {
+					continue;
+				}
 				if (featureDescription.getType().equals(Double.class)) {
-					double[] values = knimeBridge.getDoubleMeasurements((IFeatureDescription) featureDescription);
+					double[] values = reply.getDoubleMeasurements(featureDescription.getObjectName(),
+							featureDescription.getName());
 					measurement.addDoubleFeature(featureDescription.getName(), values);
 				} else if (featureDescription.getType().equals(Float.class)) {
-					float[] values = knimeBridge.getFloatMeasurements((IFeatureDescription) featureDescription);
+					float[] values = reply.getFloatMeasurements(featureDescription.getObjectName(),
+							featureDescription.getName());
 					measurement.addFloatFeature(featureDescription.getName(), values);
 				} else if (featureDescription.getType().equals(Integer.class)) {
-					int[] values = knimeBridge.getIntMeasurements((IFeatureDescription) featureDescription);
+					int[] values = reply.getIntMeasurements(featureDescription.getObjectName(),
+							featureDescription.getName());
 					measurement.addIntegerFeature(featureDescription.getName(), values);
 				} else if (featureDescription.getType().equals(String.class)) {
-					String value = knimeBridge.getStringMeasurement((IFeatureDescription) featureDescription);
+					String value = reply.getStringMeasurement(featureDescription.getObjectName(),
+							featureDescription.getName());
 					measurement.addStringFeature(featureDescription.getName(), value);
 				}
 			}
 
-			cells[i++] = new CellProfilerCell(
-					new CellProfilerContent(parentKey, measurement, measurementName.equals(KBConstants.IMAGE)));
+			contents.add(new CellProfilerContent(parentKey, measurement, measurementName.equals(KBConstants.IMAGE)));
 		}
 
+		return contents;
+	}
+
+	private static DataCell[] createCellProfilerContentCells(final List<CellProfilerContent> contents,
+			final CellProfilerFileStoreWriter fileStoreWriter) throws IOException {
+		final DataCell[] cells = new DataCell[contents.size()];
+		int i = 0;
+		for (final CellProfilerContent content : contents) {
+			cells[i++] = fileStoreWriter != null ? fileStoreWriter.createCell(content)
+					: new CellProfilerCell(content);
+		}
 		return cells;
 	}
 
@@ -210,6 +944,68 @@ public class CellProfilerInstance {
 
 	}
 
+	/**
+	 * @return The command this instance was started with, null if it is
+	 *         connected to a running worker.
+	 */
+	public String[] getCellProfilerCommand() {
+		return m_cellProfilerCommand;
+	}
+
+	/**
+	 * @return Identity of the CellProfiler installation processing the rows:
+	 *         the command and the modification time of the CellProfiler
+	 *         script it runs, or the version the worker reported when the
+	 *         pipeline was prepared. Only the address identifies workers that
+	 *         don't report their version.
+	 */
+	String getInstallation() {
+		if (m_cellProfilerCommand == null) {
+			final String version = m_knimeBridge.getWorkerVersion();
+			return version != null ? "CellProfiler " + version : m_address.toString();
+		}
+		// Changes if CellProfiler is updated in place
+		final long modified = new File(m_cellProfilerCommand[1]).lastModified();
+		return Arrays.toString(m_cellProfilerCommand) + "@" + modified;
+	}
+
+	/**
+	 * @return The address of the worker this instance is connected to, null
+	 *         if it started its own process.
+	 */
+	public URI getAddress() {
+		return m_address;
+	}
+
+	/**
+	 * @return True if the instance has not been closed and its CellProfiler
+	 *         process is still running.
+	 */
+	public boolean isAlive() {
+		return !closed && (m_cellProfilerProcess == null || m_cellProfilerProcess.isAlive());
+	}
+
+	/**
+	 * Checks if CellProfiler still answers, e.g. before an idle instance is
+	 * reused. A process that hangs is still alive but doesn't answer.
+	 * 
+	 * @param timeout
+	 *            Time in milliseconds to wait for the reply
+	 * @return True if the instance is alive and answered in time.
+	 */
+	boolean ping(final int timeout) {
+		if (!isAlive()) {
+			return false;
+		}
+		final CellProfilerBridge.PingConnection ping = new CellProfilerBridge.PingConnection(
+				m_address != null ? m_address : URI.create("tcp://127.0.0.1:" + m_port), timeout);
+		try {
+			return ping.ping();
+		} finally {
+			ping.close();
+		}
+	}
+
 	/**
 	 * Shuts down the CellProfiler instance.
 	 */
@@ -217,7 +1013,9 @@ public class CellProfilerInstance {
 		if (!closed) {
 			closed = true;
 			m_knimeBridge.disconnect();
-			m_cellProfilerProcess.destroy();
+			if (m_cellProfilerProcess != null) {
+				m_cellProfilerProcess.destroy();
+			}
 		}
 	}
 
@@ -257,41 +1055,82 @@ public class CellProfilerInstance {
 		return m_knimeBridge.getResultTableNames();
 	}
 
-	private static ColumnRearranger createColumnRearranger(final DataTableSpec inSpec,
-			final Pair<String, String>[] imageColumns, final IKnimeBridge knimeBridge, final List<String> objectNames) {
+	/**
+	 * Creates the cell factory of an execution.
+	 * 
+	 * @param featureSchemas
+	 *            Feature schema of each measurement table by object name,
+	 *            stored in the column properties. May be null or incomplete.
+	 * @param execution
+	 *            The instances and shared state of the execution, null if the
+	 *            factory is only used for the spec
+	 */
+	private static AbstractCellFactory createCellFactory(final DataTableSpec inSpec,
+			final Pair<String, String>[] imageColumns, final List<String> objectNames,
+			final Map<String, CellProfilerFeatureSchema> featureSchemas, final CellProfilerExecutionSettings settings,
+			final Execution execution) {
+		final boolean fileStore = settings.isFileStore();
+		final ImageScaling scaling = settings.getScaling();
+		final ImageTiling tiling = settings.getTiling();
+		final CellProfilerCheckpoint checkpoint = settings.getCheckpoint();
+		final CellProfilerSupervision supervision = settings.getSupervision();
+		final StageStatistics statistics = settings.getStatistics();
 
-		final ColumnRearranger rearranger = new ColumnRearranger(inSpec);
 		final DataColumnSpec[] colSpecs = new DataColumnSpec[objectNames.size()];
 		int k = 0;
 		for (final String colName : objectNames) {
 			final String columnName = DataTableSpec.getUniqueColumnName(inSpec,
 					"CellProfiler Measurement: [" + colName + "]");
-			colSpecs[k++] = new DataColumnSpecCreator(columnName, CellProfilerCell.TYPE).createSpec();
+			final DataColumnSpecCreator colSpecCreator = new DataColumnSpecCreator(columnName,
+					fileStore ? CellProfilerFileStoreCell.TYPE : CellProfilerCell.TYPE);
+			// Lets Measurements To Table create its spec during configure
+			if (featureSchemas != null && featureSchemas.containsKey(colName)) {
+				colSpecCreator.setProperties(featureSchemas.get(colName).toProperties());
+			}
+			colSpecs[k++] = colSpecCreator.createSpec();
 		}
 
 		final int[] colIndexes = new int[imageColumns.length];
 		for (int i = 0; i < imageColumns.length; i++) {
 			colIndexes[i] = inSpec.findColumnIndex(imageColumns[i].getSecond());
 		}
-		CellFactory factory = new AbstractCellFactory(colSpecs) {
+		final AbstractCellFactory factory = new AbstractCellFactory(colSpecs) {
 
-			private Interval[] m_reference;
+			// Guarded by the factory
+			private final Interval[] m_reference = new Interval[colIndexes.length];
 
 			@Override
 			public DataCell[] getCells(final DataRow row) {
 				try {
-					return createCells(row, inSpec, imageColumns, colIndexes, knimeBridge);
-				} catch (ZMQException | ProtocolException | CellProfilerException | PipelineException e) {
+					return createCells(row, inSpec, imageColumns, colIndexes, execution.m_idleInstances);
+				} catch (ZMQException | ProtocolException | CellProfilerException | PipelineException
+						| IOException e) {
 					throw new RuntimeException(e.getMessage(), e);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while waiting for a CellProfiler instance", e);
+				}
+			}
+
+			private synchronized void checkDimensionality(final int i, final Interval img) {
+				if (m_reference[i] == null) {
+					m_reference[i] = img;
+				} else if (!Intervals.equalDimensions(m_reference[i], img)) {
+					throw new IllegalStateException("All images in one column must have the same dimensionality!");
 				}
 			}
 
-			@SuppressWarnings({ "rawtypes", "unchecked" })
+			@SuppressWarnings("unchecked")
 			private <T extends RealType<T>> DataCell[] createCells(final DataRow row, final DataTableSpec inSpec,
-					final Pair<String, String>[] imageColumns, final int[] colIndexes, final IKnimeBridge knimeBridge)
-							throws ProtocolException, ZMQException, CellProfilerException, PipelineException {
+					final Pair<String, String>[] imageColumns, final int[] colIndexes,
+					final BlockingQueue<CellProfilerInstance> idleInstances) throws ProtocolException, ZMQException,
+							CellProfilerException, PipelineException, InterruptedException, IOException {
+				final String parentKey = row.getKey().getString();
+				final PipelineResults resultCache = execution.m_resultCache;
+				final CellProfilerFileStoreWriter fileStoreWriter = execution.m_fileStoreWriter;
 				boolean group = false;
-				Map<String, ImgPlus<?>> images = new HashMap<String, ImgPlus<?>>();
+				final long readStart = System.nanoTime();
+				Map<String, ScaledImage> images = new HashMap<String, ScaledImage>();
 				for (int i = 0; i < colIndexes.length; i++) {
 					final DataCell cell = row.getCell(colIndexes[i]);
 
@@ -301,90 +1140,132 @@ public class CellProfilerInstance {
 					}
 
 					final ImgPlusValue<T> value = (ImgPlusValue<T>) cell;
+					final ImgPlus<T> imgPlus = value.getImgPlus();
 
-					if (m_reference == null || m_reference[i] == null) {
-						m_reference = new Interval[colIndexes.length];
-						m_reference[i] = value.getImgPlus();
-					} else if (!Intervals.equalDimensions(m_reference[i], value.getImgPlus())) {
-						throw new IllegalStateException("All images in one column must have the same dimensionality!");
-					}
-
-					// convert to floats
-					final RandomAccessibleInterval<FloatType> converted = Converters.convert(
-							(RandomAccessibleInterval<T>) value.getImgPlus(), new FloatConverter<T>(value.getImgPlus()),
-							new FloatType());
+					checkDimensionality(i, imgPlus);
 
-					if (converted.numDimensions() == 2 || (converted.numDimensions() == 3
-							&& value.getImgPlus().axis(2).type().equals(Axes.CHANNEL))) {
-						try {
-							images.put(imageColumns[i].getFirst(),
-									new ImgPlus(
-											new ImgView<FloatType>(converted,
-													value.getImgPlus().factory().imgFactory(new FloatType())),
-											value.getImgPlus()));
-						} catch (IncompatibleTypeException e) {
-							throw new RuntimeException(e);
-						}
-					} else {
-						try {
-							images.put(imageColumns[i].getFirst(),
-									new ImgPlus(
-											new ImgView<FloatType>(converted,
-													value.getImgPlus().factory().imgFactory(new FloatType())),
-											value.getImgPlus()));
-						} catch (IncompatibleTypeException e) {
-							throw new RuntimeException(e);
-						}
+					// scaled into [0..1] while the image is encoded
+					images.put(imageColumns[i].getFirst(), scaling.scale(imgPlus));
+					if (!(imgPlus.numDimensions() == 2
+							|| (imgPlus.numDimensions() == 3 && imgPlus.axis(2).type().equals(Axes.CHANNEL)))) {
 						group = true;
 					}
 				}
 
 				if (images != null) {
-					if (group) {
-						knimeBridge.runGroup(images);
-					} else {
-						knimeBridge.run(images);
+					// Rows whose images changed since the checkpoint was
+					// written are processed again
+					final String checkpointKey = checkpoint != null ? checkpoint.createKey(parentKey, images) : null;
+					if (checkpointKey != null) {
+						final List<CellProfilerContent> completed = checkpoint.get(checkpointKey);
+						if (completed != null) {
+							return createCellProfilerContentCells(completed, fileStoreWriter);
+						}
+					}
+					final String cacheKey = resultCache != null ? resultCache.createKey(images) : null;
+					// Rows resumed from the checkpoint are not run and not timed
+					if (statistics != null) {
+						statistics.record(StageStatistics.Stage.READ, readStart);
+					}
+					if (cacheKey != null) {
+						final List<CellProfilerContent> cached = resultCache.get(cacheKey, parentKey);
+						if (cached != null) {
+							return createCellProfilerContentCells(cached, fileStoreWriter);
+						}
 					}
 
-					return createCellProfilerContentCell(row.getKey().getString(), knimeBridge);
+					// If rows are prepared ahead, the images are encoded right
+					// away, so that it doesn't happen while the CellProfiler
+					// instance is waiting for them
+					// Images split into tiles are never encoded as a whole
+					final boolean tiled = !group && tiling.needsTiling(images);
+					final long start = System.nanoTime();
+					final EncodedImages encoded = execution.m_imageEncodings != null && !tiled
+							? EncodedImages.encode(images, execution.m_imageEncodings) : null;
+					if (encoded != null && statistics != null) {
+						statistics.record(StageStatistics.Stage.ENCODE, start);
+					}
+					final List<CellProfilerContent> contents;
+					if (tiled) {
+						contents = runTiled(images, parentKey, tiling, idleInstances, supervision, statistics);
+					} else if (execution.m_batcher != null && !group) {
+						contents = execution.m_batcher.run(encoded, parentKey);
+					} else {
+						// Wait for an idle instance, the results must be read
+						// before the instance can process the next row
+						final CellProfilerInstance instance = idleInstances.take();
+						try {
+							contents = instance.run(images, encoded, group, parentKey, supervision, statistics);
+						} finally {
+							// Never blocks, unlike put if interrupted
+							idleInstances.offer(instance);
+						}
+					}
+					if (contents == null) {
+						return createMissingCells(objectNames.size());
+					}
+					if (cacheKey != null) {
+						resultCache.put(cacheKey, contents);
+					}
+					if (checkpointKey != null) {
+						checkpoint.put(checkpointKey, contents);
+					}
+					final long cellsStart = System.nanoTime();
+					final DataCell[] cells = createCellProfilerContentCells(contents, fileStoreWriter);
+					if (statistics != null) {
+						statistics.record(StageStatistics.Stage.CELLS, cellsStart);
+					}
+					return cells;
 				}
 				KNIPGateway.log().warn("Detected missing cell in Row " + row.getKey()
 						+ "! Therefore, we create a datarow with missing cells, too.");
-				final DataCell[] missingCells = new DataCell[objectNames.size()];
-				Arrays.fill(missingCells, DataType.getMissingCell());
-				return missingCells;
+				return createMissingCells(objectNames.size());
 			}
+		};
+		if (execution != null) {
+			// Image sets are only run in batches if all instances support it
+			final int batchSize = execution.m_batcher != null ? settings.getBatchSize() : 1;
+			final int prepareAhead = settings.getPrepareAhead();
+			if (execution.m_numWorkers > 1 || prepareAhead > 0 || batchSize > 1) {
+				// One thread per image set of each instance plus the threads
+				// preparing rows ahead, which block until an instance gets
+				// idle. Rows are returned in input order.
+				final int numThreads = execution.m_numWorkers * batchSize + prepareAhead;
+				factory.setParallelProcessing(true, numThreads, 4 * numThreads);
+			}
+		}
+		return factory;
+	}
 
-			/**
-			 * Helper to convert pixels of images to floats in range [0..1]
-			 * 
-			 * @author Christian Dietz, University of Konstanz
-			 *
-			 * @param <T>
-			 */
-			class FloatConverter<T extends RealType<T>> implements Converter<T, FloatType> {
+	/**
+	 * The instances of an execution and the state shared by its rows.
+	 */
+	private static final class Execution {
 
-				private final double max;
-				private final double min;
+		private final BlockingQueue<CellProfilerInstance> m_idleInstances;
 
-				public FloatConverter(final Img<T> input) {
+		private final int m_numWorkers;
 
-					net.imglib2.util.Pair<T, T> res = KNIPGateway.ops().stats().minMax(input);
+		// Encodings supported by all instances, null if images are encoded
+		// once an instance is taken
+		private final Set<ImageEncoding> m_imageEncodings;
 
-					this.min = res.getA().getRealDouble();
-					this.max = res.getB().getRealDouble();
-				}
+		private final CellProfilerRunBatcher m_batcher;
 
-				@Override
-				public void convert(final T arg0, final FloatType arg1) {
-					arg1.setReal((arg0.getRealFloat() - min) / (max - min));
-				}
+		private final PipelineResults m_resultCache;
 
-			}
-		};
-		// Append columns from the factory
-		rearranger.append(factory);
-		return rearranger;
+		private final CellProfilerFileStoreWriter m_fileStoreWriter;
+
+		Execution(final BlockingQueue<CellProfilerInstance> idleInstances, final int numWorkers,
+				final Set<ImageEncoding> imageEncodings, final CellProfilerRunBatcher batcher,
+				final PipelineResults resultCache, final CellProfilerFileStoreWriter fileStoreWriter) {
+			m_idleInstances = idleInstances;
+			m_numWorkers = numWorkers;
+			m_imageEncodings = imageEncodings;
+			m_batcher = batcher;
+			m_resultCache = resultCache;
+			m_fileStoreWriter = fileStoreWriter;
+		}
 	}
 
 }
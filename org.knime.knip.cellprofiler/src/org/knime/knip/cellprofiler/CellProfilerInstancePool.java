@@ -0,0 +1,357 @@
+package org.knime.knip.cellprofiler;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.cellprofiler.knimebridge.PipelineException;
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.knime.core.node.NodeLogger;
+import org.zeromq.ZMQException;
+
+/**
+ * Keeps started {@link CellProfilerInstance}s alive between node executions,
+ * so that consecutive executions don't have to wait for the CellProfiler
+ * process to start up. Instances are pooled per configured CellProfiler
+ * command and shut down after they have been idle for the configured time.
+ * Before an idle instance is handed out, it has to answer a connect request,
+ * so that instances whose process is running but hangs are not reused.
+ */
+public class CellProfilerInstancePool {
+
+	private static final NodeLogger LOGGER = NodeLogger
+			.getLogger(CellProfilerInstancePool.class);
+
+	private static final long EVICTION_INTERVAL = 30;
+
+	// Time in milliseconds an idle instance has to answer before it is reused
+	private static final int PING_TIMEOUT = 1000;
+
+	private static final CellProfilerInstancePool INSTANCE = createShared();
+
+	private final Map<String, Deque<IdleInstance>> m_idleInstances = new HashMap<String, Deque<IdleInstance>>();
+
+	/**
+	 * Creates a pool whose idle instances are only evicted by
+	 * {@link #evictIdleInstances(String[], long)}.
+	 */
+	CellProfilerInstancePool() {
+	}
+
+	private static CellProfilerInstancePool createShared() {
+		final CellProfilerInstancePool pool = new CellProfilerInstancePool();
+		final ScheduledExecutorService evictor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r,
+								"CellProfiler instance pool evictor");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				pool.evictIdleInstances(CellProfilerPreferencePage.getCellProfilerCommand(),
+						TimeUnit.SECONDS.toMillis(CellProfilerPreferencePage.getPoolIdleTimeout()));
+			}
+		}, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.SECONDS);
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				pool.closeAll();
+			}
+		});
+		return pool;
+	}
+
+	/**
+	 * @return The pool shared by all nodes.
+	 */
+	public static CellProfilerInstancePool getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Hands out a running CellProfiler instance for the currently configured
+	 * CellProfiler command. An idle instance is reused if available, otherwise
+	 * a new one is started. The instance has to be given back via
+	 * {@link #release(CellProfilerInstance)} or
+	 * {@link #invalidate(CellProfilerInstance)}.
+	 * 
+	 * @return A running CellProfiler instance
+	 * @throws IOException
+	 *             If a new instance could not be started
+	 * @throws URISyntaxException
+	 * @throws ProtocolException
+	 * @throws ZMQException
+	 * @throws PipelineException
+	 */
+	public CellProfilerInstance borrow()
+			throws IOException, ZMQException, ProtocolException, URISyntaxException, PipelineException {
+		final CellProfilerInstance instance = pollIdleInstance(CellProfilerPreferencePage.getCellProfilerCommand());
+		return instance != null ? instance : new CellProfilerInstance();
+	}
+
+	/**
+	 * Hands out several running CellProfiler instances at once. Idle instances
+	 * are reused, missing instances are started concurrently. Each instance
+	 * has to be given back via {@link #release(CellProfilerInstance)} or
+	 * {@link #invalidate(CellProfilerInstance)}.
+	 * 
+	 * @param count
+	 *            Number of instances
+	 * @return The running CellProfiler instances
+	 * @throws IOException
+	 *             If a new instance could not be started
+	 * @throws URISyntaxException
+	 * @throws ProtocolException
+	 * @throws ZMQException
+	 * @throws PipelineException
+	 */
+	public List<CellProfilerInstance> borrow(final int count)
+			throws IOException, ZMQException, ProtocolException, URISyntaxException, PipelineException {
+		final List<CellProfilerInstance> instances = new ArrayList<CellProfilerInstance>(count);
+		final String[] command = CellProfilerPreferencePage.getCellProfilerCommand();
+		CellProfilerInstance instance;
+		while (instances.size() < count && (instance = pollIdleInstance(command)) != null) {
+			instances.add(instance);
+		}
+		if (instances.size() == count - 1) {
+			instances.add(new CellProfilerInstance());
+		} else if (instances.size() < count) {
+			startInstances(count - instances.size(), instances);
+		}
+		return instances;
+	}
+
+	private void startInstances(final int count, final List<CellProfilerInstance> instances)
+			throws IOException, ZMQException, ProtocolException, URISyntaxException, PipelineException {
+		final ExecutorService executor = Executors.newFixedThreadPool(count);
+		try {
+			final List<Future<CellProfilerInstance>> futures = new ArrayList<Future<CellProfilerInstance>>(count);
+			for (int i = 0; i < count; i++) {
+				futures.add(executor.submit(new Callable<CellProfilerInstance>() {
+					@Override
+					public CellProfilerInstance call() throws Exception {
+						return new CellProfilerInstance();
+					}
+				}));
+			}
+			Throwable failure = null;
+			for (final Future<CellProfilerInstance> future : futures) {
+				try {
+					instances.add(future.get());
+				} catch (ExecutionException e) {
+					failure = e.getCause();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					failure = e;
+				}
+			}
+			if (failure != null) {
+				for (final CellProfilerInstance instance : instances) {
+					instance.close();
+				}
+				rethrow(failure);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void rethrow(final Throwable t)
+			throws IOException, ZMQException, ProtocolException, URISyntaxException, PipelineException {
+		if (t instanceof IOException) {
+			throw (IOException) t;
+		} else if (t instanceof ZMQException) {
+			throw (ZMQException) t;
+		} else if (t instanceof ProtocolException) {
+			throw (ProtocolException) t;
+		} else if (t instanceof URISyntaxException) {
+			throw (URISyntaxException) t;
+		} else if (t instanceof PipelineException) {
+			throw (PipelineException) t;
+		}
+		throw new IOException("Could not start CellProfiler: " + t.getMessage(), t);
+	}
+
+	/**
+	 * @param command
+	 *            The configured CellProfiler command
+	 * @return An idle instance for the command that answered in time or null
+	 *         if there is none. Instances that don't answer are shut down.
+	 */
+	CellProfilerInstance pollIdleInstance(final String[] command) {
+		CellProfilerInstance instance;
+		while ((instance = pollRunningInstance(command)) != null) {
+			// Not synchronized, the instance is not in the pool anymore
+			if (instance.ping(PING_TIMEOUT)) {
+				return instance;
+			}
+			LOGGER.debug("Discarding CellProfiler instance that does not answer anymore.");
+			instance.close();
+		}
+		return null;
+	}
+
+	/**
+	 * @return An idle instance for the command whose process is still running
+	 *         or null if there is none.
+	 */
+	private synchronized CellProfilerInstance pollRunningInstance(final String[] command) {
+		final Deque<IdleInstance> idle = m_idleInstances.get(createKey(command));
+		while (idle != null && !idle.isEmpty()) {
+			final CellProfilerInstance instance = idle.pollFirst().getInstance();
+			if (instance.isAlive()) {
+				return instance;
+			}
+			LOGGER.debug("Discarding CellProfiler instance whose process is no longer running.");
+			instance.close();
+		}
+		return null;
+	}
+
+	/**
+	 * Gives an instance back to the pool. The instance is kept alive if it is
+	 * still healthy, matches the currently configured CellProfiler command and
+	 * the configured number of idle instances is not exceeded. Otherwise it is
+	 * shut down.
+	 * 
+	 * @param instance
+	 *            An instance obtained from {@link #borrow()}
+	 */
+	public void release(final CellProfilerInstance instance) {
+		release(instance, CellProfilerPreferencePage.getCellProfilerCommand(),
+				CellProfilerPreferencePage.getPoolSize());
+	}
+
+	/**
+	 * Gives an instance back to the pool, see
+	 * {@link #release(CellProfilerInstance)}.
+	 * 
+	 * @param instance
+	 *            An instance obtained from the pool
+	 * @param command
+	 *            The configured CellProfiler command
+	 * @param poolSize
+	 *            The configured number of idle instances
+	 */
+	void release(final CellProfilerInstance instance, final String[] command, final int poolSize) {
+		final String key = createKey(instance.getCellProfilerCommand());
+		if (instance.isAlive() && key.equals(createKey(command))) {
+			synchronized (this) {
+				Deque<IdleInstance> idle = m_idleInstances.get(key);
+				if (idle == null) {
+					idle = new ArrayDeque<IdleInstance>();
+					m_idleInstances.put(key, idle);
+				}
+				if (idle.size() < poolSize) {
+					// Most recently used instances are handed out first, so
+					// surplus instances become idle long enough to be evicted
+					idle.addFirst(new IdleInstance(instance));
+					return;
+				}
+			}
+		}
+		instance.close();
+	}
+
+	/**
+	 * Shuts down an instance that must not be reused, e.g. because an error
+	 * occurred while communicating with it.
+	 * 
+	 * @param instance
+	 *            An instance obtained from {@link #borrow()}
+	 */
+	public void invalidate(final CellProfilerInstance instance) {
+		instance.close();
+	}
+
+	/**
+	 * Shuts down all idle instances.
+	 */
+	public synchronized void closeAll() {
+		for (final Deque<IdleInstance> idle : m_idleInstances.values()) {
+			for (final IdleInstance instance : idle) {
+				instance.getInstance().close();
+			}
+		}
+		m_idleInstances.clear();
+	}
+
+	/**
+	 * Shuts down instances that have been idle for longer than the configured
+	 * timeout, that have died or that belong to an outdated CellProfiler
+	 * command.
+	 * 
+	 * @param command
+	 *            The configured CellProfiler command
+	 * @param timeout
+	 *            Time in milliseconds instances may be idle
+	 */
+	synchronized void evictIdleInstances(final String[] command, final long timeout) {
+		final String currentKey = createKey(command);
+		final long now = System.currentTimeMillis();
+		final Iterator<Map.Entry<String, Deque<IdleInstance>>> entries = m_idleInstances.entrySet().iterator();
+		while (entries.hasNext()) {
+			final Map.Entry<String, Deque<IdleInstance>> entry = entries.next();
+			final boolean outdated = !entry.getKey().equals(currentKey);
+			final Iterator<IdleInstance> it = entry.getValue().iterator();
+			while (it.hasNext()) {
+				final IdleInstance idle = it.next();
+				if (outdated || now - idle.getIdleSince() > timeout || !idle.getInstance().isAlive()) {
+					it.remove();
+					idle.getInstance().close();
+				}
+			}
+			if (entry.getValue().isEmpty()) {
+				entries.remove();
+			}
+		}
+	}
+
+	private static String createKey(final String[] cellProfilerCommand) {
+		return Arrays.toString(cellProfilerCommand);
+	}
+
+	/**
+	 * Idle instance together with the time it was given back to the pool.
+	 */
+	private static class IdleInstance {
+
+		private final CellProfilerInstance m_instance;
+
+		private final long m_idleSince = System.currentTimeMillis();
+
+		IdleInstance(final CellProfilerInstance instance) {
+			m_instance = instance;
+		}
+
+		CellProfilerInstance getInstance() {
+			return m_instance;
+		}
+
+		long getIdleSince() {
+			return m_idleSince;
+		}
+	}
+
+}
@@ -0,0 +1,164 @@
+package org.knime.knip.cellprofiler;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cellprofiler.knimebridge.FeatureDescriptionImpl;
+import org.cellprofiler.knimebridge.IFeatureDescription;
+import org.knime.knip.cellprofiler.data.CellProfilerFeatureSchema;
+
+/**
+ * What CellProfiler reports about a pipeline: the cleaned pipeline, the input
+ * channels and the features of each measurement table.
+ */
+public final class CellProfilerPipelineInfo {
+
+	private static final int VERSION = 1;
+
+	private final String m_pipeline;
+
+	private final List<String> m_channels;
+
+	private final Map<String, List<IFeatureDescription>> m_features;
+
+	/**
+	 * @param pipeline
+	 *            The cleaned pipeline
+	 * @param channels
+	 *            Names of the input images
+	 * @param features
+	 *            Features of each measurement table by object name, in the
+	 *            order of the tables
+	 */
+	public CellProfilerPipelineInfo(final String pipeline, final List<String> channels,
+			final Map<String, List<IFeatureDescription>> features) {
+		m_pipeline = pipeline;
+		m_channels = Collections.unmodifiableList(new ArrayList<String>(channels));
+		final Map<String, List<IFeatureDescription>> copy = new LinkedHashMap<String, List<IFeatureDescription>>();
+		for (final Map.Entry<String, List<IFeatureDescription>> entry : features.entrySet()) {
+			copy.put(entry.getKey(),
+					Collections.unmodifiableList(new ArrayList<IFeatureDescription>(entry.getValue())));
+		}
+		m_features = Collections.unmodifiableMap(copy);
+	}
+
+	/**
+	 * @return The cleaned pipeline.
+	 */
+	public String getPipeline() {
+		return m_pipeline;
+	}
+
+	/**
+	 * @return Names of the input images.
+	 */
+	public List<String> getChannels() {
+		return m_channels;
+	}
+
+	/**
+	 * @return Names of the input images.
+	 */
+	public String[] getInputParameters() {
+		return m_channels.toArray(new String[m_channels.size()]);
+	}
+
+	/**
+	 * @return Names of the measurement tables, including the image table.
+	 */
+	public List<String> getObjectNames() {
+		return new ArrayList<String>(m_features.keySet());
+	}
+
+	/**
+	 * @return Features of each measurement table by object name.
+	 */
+	public Map<String, List<IFeatureDescription>> getFeatures() {
+		return m_features;
+	}
+
+	/**
+	 * @return Feature schema of each measurement table by object name.
+	 */
+	public Map<String, CellProfilerFeatureSchema> getFeatureSchemas() {
+		final Map<String, CellProfilerFeatureSchema> schemas = new LinkedHashMap<String, CellProfilerFeatureSchema>();
+		for (final Map.Entry<String, List<IFeatureDescription>> entry : m_features.entrySet()) {
+			final CellProfilerFeatureSchema schema = new CellProfilerFeatureSchema();
+			for (final IFeatureDescription featureDescription : entry.getValue()) {
+				schema.addFeature(featureDescription.getName(), featureDescription.getType());
+			}
+			schemas.put(entry.getKey(), schema);
+		}
+		return schemas;
+	}
+
+	/**
+	 * @param output
+	 *            Output to write the info to
+	 * @throws IOException
+	 *             If writing fails
+	 */
+	public void save(final DataOutput output) throws IOException {
+		output.writeInt(VERSION);
+		final byte[] pipeline = m_pipeline.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(pipeline.length);
+		output.write(pipeline);
+		output.writeInt(m_channels.size());
+		for (final String channel : m_channels) {
+			output.writeUTF(channel);
+		}
+		output.writeInt(m_features.size());
+		for (final Map.Entry<String, List<IFeatureDescription>> entry : m_features.entrySet()) {
+			output.writeUTF(entry.getKey());
+			output.writeInt(entry.getValue().size());
+			for (final IFeatureDescription feature : entry.getValue()) {
+				output.writeUTF(feature.getName());
+				output.writeUTF(feature.getType().getName());
+			}
+		}
+	}
+
+	/**
+	 * @param input
+	 *            Input written by {@link #save(DataOutput)}
+	 * @return The info
+	 * @throws IOException
+	 *             If reading fails or the info was written by a newer version
+	 * @throws ClassNotFoundException
+	 *             If the type of a feature is unknown
+	 */
+	public static CellProfilerPipelineInfo load(final DataInput input) throws IOException, ClassNotFoundException {
+		final int version = input.readInt();
+		if (version > VERSION) {
+			throw new IOException("Unsupported pipeline info version " + version);
+		}
+		final byte[] pipeline = new byte[input.readInt()];
+		input.readFully(pipeline);
+		final int numChannels = input.readInt();
+		final List<String> channels = new ArrayList<String>(numChannels);
+		for (int i = 0; i < numChannels; i++) {
+			channels.add(input.readUTF());
+		}
+		final int numTables = input.readInt();
+		final Map<String, List<IFeatureDescription>> features = new LinkedHashMap<String, List<IFeatureDescription>>();
+		for (int t = 0; t < numTables; t++) {
+			final String objectName = input.readUTF();
+			final int numFeatures = input.readInt();
+			final List<IFeatureDescription> tableFeatures = new ArrayList<IFeatureDescription>(numFeatures);
+			for (int f = 0; f < numFeatures; f++) {
+				final String name = input.readUTF();
+				tableFeatures.add(new FeatureDescriptionImpl(objectName, name, Class.forName(input.readUTF())));
+			}
+			features.put(objectName, tableFeatures);
+		}
+		return new CellProfilerPipelineInfo(new String(pipeline, StandardCharsets.UTF_8), channels, features);
+	}
+
+}
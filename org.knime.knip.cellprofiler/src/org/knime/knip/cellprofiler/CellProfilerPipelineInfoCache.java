@@ -0,0 +1,170 @@
+package org.knime.knip.cellprofiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.core.runtime.Platform;
+import org.knime.core.node.NodeLogger;
+
+/**
+ * Keeps the {@link CellProfilerPipelineInfo} of each pipeline on disk, so that
+ * neither the dialog nor the execution has to ask CellProfiler about a
+ * pipeline it has seen before. The infos are addressed by a digest of the
+ * pipeline file and the CellProfiler command, so editing the pipeline or
+ * switching to another CellProfiler installation leads to a new entry.
+ */
+public class CellProfilerPipelineInfoCache {
+
+	private static final NodeLogger LOGGER = NodeLogger.getLogger(CellProfilerPipelineInfoCache.class);
+
+	private static final String FILE_SUFFIX = ".cpi";
+
+	private static final CellProfilerPipelineInfoCache INSTANCE = new CellProfilerPipelineInfoCache();
+
+	private final Map<String, CellProfilerPipelineInfo> m_infos = new HashMap<String, CellProfilerPipelineInfo>();
+
+	private File m_directory;
+
+	private CellProfilerPipelineInfoCache() {
+		// singleton
+	}
+
+	/**
+	 * @return The cache shared by all nodes.
+	 */
+	public static CellProfilerPipelineInfoCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Looks up a pipeline file for the currently configured CellProfiler
+	 * command.
+	 *
+	 * @param pipelineFile
+	 *            Path of the pipeline file
+	 * @return The info of the pipeline or null if it isn't cached
+	 * @throws IOException
+	 *             If the pipeline file could not be read
+	 */
+	public CellProfilerPipelineInfo get(final String pipelineFile) throws IOException {
+		return get(CellProfilerPreferencePage.getCellProfilerCommand(),
+				FileUtils.readFileToString(new File(pipelineFile)));
+	}
+
+	/**
+	 * @param cellProfilerCommand
+	 *            The command CellProfiler is started with
+	 * @param pipeline
+	 *            Content of the pipeline file
+	 * @return The info of the pipeline or null if it isn't cached
+	 */
+	public synchronized CellProfilerPipelineInfo get(final String[] cellProfilerCommand, final String pipeline) {
+		final String key = createKey(cellProfilerCommand, pipeline);
+		CellProfilerPipelineInfo info = m_infos.get(key);
+		if (info == null && init()) {
+			final File file = getFile(key);
+			if (file.exists()) {
+				info = read(file);
+				if (info != null) {
+					m_infos.put(key, info);
+				}
+			}
+		}
+		return info;
+	}
+
+	/**
+	 * @param cellProfilerCommand
+	 *            The command CellProfiler is started with
+	 * @param pipeline
+	 *            Content of the pipeline file
+	 * @param info
+	 *            The info CellProfiler reported for the pipeline
+	 */
+	public synchronized void put(final String[] cellProfilerCommand, final String pipeline,
+			final CellProfilerPipelineInfo info) {
+		final String key = createKey(cellProfilerCommand, pipeline);
+		m_infos.put(key, info);
+		if (!init()) {
+			return;
+		}
+		final File file = getFile(key);
+		try {
+			final File tmpFile = File.createTempFile(key, ".tmp", m_directory);
+			try (final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+				info.save(out);
+			}
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.warn("Could not cache CellProfiler pipeline info: " + e.getMessage(), e);
+		}
+	}
+
+	private static CellProfilerPipelineInfo read(final File file) {
+		try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			return CellProfilerPipelineInfo.load(in);
+		} catch (IOException | ClassNotFoundException e) {
+			LOGGER.debug("Could not read cached CellProfiler pipeline info " + file + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Creates the cache directory the first time the cache is used.
+	 *
+	 * @return False if the directory is not available, infos are only kept
+	 *         in memory then
+	 */
+	private boolean init() {
+		if (m_directory == null) {
+			final File directory = new File(
+					Platform.getStateLocation(Platform.getBundle("org.knime.knip.cellprofiler")).toFile(),
+					"pipeline-info");
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				return false;
+			}
+			m_directory = directory;
+		}
+		return true;
+	}
+
+	private File getFile(final String key) {
+		return new File(m_directory, key + FILE_SUFFIX);
+	}
+
+	private static String createKey(final String[] cellProfilerCommand, final String pipeline) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+		digest.update(Arrays.toString(cellProfilerCommand).getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(pipeline.getBytes(StandardCharsets.UTF_8));
+		final StringBuilder key = new StringBuilder();
+		for (final byte b : digest.digest()) {
+			key.append(String.format("%02x", b));
+		}
+		return key.toString();
+	}
+
+}
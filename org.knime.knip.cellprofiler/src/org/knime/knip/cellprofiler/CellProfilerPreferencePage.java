@@ -48,12 +48,18 @@
 package org.knime.knip.cellprofiler;
 
 import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.preferences.IEclipsePreferences;
 import org.eclipse.core.runtime.preferences.InstanceScope;
 import org.eclipse.jface.preference.DirectoryFieldEditor;
+import org.eclipse.jface.preference.IntegerFieldEditor;
 import org.eclipse.jface.preference.PreferencePage;
+import org.eclipse.jface.preference.StringFieldEditor;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.ScrolledComposite;
 import org.eclipse.swt.layout.GridData;
@@ -76,6 +82,12 @@ public class CellProfilerPreferencePage extends PreferencePage implements
 
 	private static final String DEFAULT_PATH = doAutoGuessCellProfilerPath();
 
+	private static final int DEFAULT_POOL_SIZE = 2;
+
+	private static final int DEFAULT_POOL_IDLE_TIMEOUT = 600;
+
+	private static final int DEFAULT_RESULT_CACHE_SIZE = 1024;
+
 	private static final NodeLogger LOGGER = NodeLogger
 			.getLogger(CellProfilerPreferencePage.class);
 
@@ -85,6 +97,14 @@ public class CellProfilerPreferencePage extends PreferencePage implements
 
 	private DirectoryFieldEditor m_pathEditor;
 
+	private IntegerFieldEditor m_poolSizeEditor;
+
+	private IntegerFieldEditor m_poolIdleTimeoutEditor;
+
+	private IntegerFieldEditor m_resultCacheSizeEditor;
+
+	private StringFieldEditor m_workersEditor;
+
 	/**
 	 * Gets the currently configured path.
 	 * 
@@ -120,6 +140,73 @@ public class CellProfilerPreferencePage extends PreferencePage implements
 		return command;
 	}
 
+	/**
+	 * Gets the number of idle CellProfiler instances that are kept alive
+	 * between node executions.
+	 * 
+	 * @return Maximum number of idle instances, 0 disables pooling
+	 */
+	public static int getPoolSize() {
+		return Platform.getPreferencesService().getInt(
+				"org.knime.knip.cellprofiler", "poolSize", DEFAULT_POOL_SIZE,
+				null);
+	}
+
+	/**
+	 * Gets the time after which an idle CellProfiler instance is shut down.
+	 * 
+	 * @return Idle timeout in seconds
+	 */
+	public static int getPoolIdleTimeout() {
+		return Platform.getPreferencesService().getInt(
+				"org.knime.knip.cellprofiler", "poolIdleTimeout",
+				DEFAULT_POOL_IDLE_TIMEOUT, null);
+	}
+
+	/**
+	 * Gets the size of the disk cache for results of pipeline runs.
+	 * 
+	 * @return Maximum size in megabytes, 0 disables the cache
+	 */
+	public static int getResultCacheSize() {
+		return Platform.getPreferencesService().getInt(
+				"org.knime.knip.cellprofiler", "resultCacheSize",
+				DEFAULT_RESULT_CACHE_SIZE, null);
+	}
+
+	/**
+	 * Gets the addresses of CellProfiler workers started outside of KNIME,
+	 * which are used instead of local CellProfiler processes.
+	 * 
+	 * @return The knime-bridge addresses, empty to start local processes
+	 */
+	public static List<URI> getWorkerAddresses() {
+		final String workers = Platform.getPreferencesService().getString(
+				"org.knime.knip.cellprofiler", "workers", "", null);
+		try {
+			return parseWorkerAddresses(workers);
+		} catch (URISyntaxException e) {
+			LOGGER.warn("Invalid CellProfiler worker address, starting local processes instead: "
+					+ e.getMessage(), e);
+			return new ArrayList<URI>();
+		}
+	}
+
+	/**
+	 * @param workers
+	 *            Addresses separated by whitespace or commas
+	 */
+	private static List<URI> parseWorkerAddresses(final String workers)
+			throws URISyntaxException {
+		final List<URI> addresses = new ArrayList<URI>();
+		for (final String worker : workers.trim().split("[\\s,]+")) {
+			if (!worker.isEmpty()) {
+				addresses.add(new URI(worker));
+			}
+		}
+		return addresses;
+	}
+
 	private static String getOS() {
 		return System.getProperty("os.name", "generic").toLowerCase();
 	}
@@ -159,12 +246,21 @@ public class CellProfilerPreferencePage extends PreferencePage implements
 	 */
 	@Override
 	protected void performApply() {
-		if (!new File(m_pathEditor.getStringValue()).exists()) {
+		final String workers = m_workersEditor.getStringValue().trim();
+		try {
+			parseWorkerAddresses(workers);
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException(
+					"Invalid CellProfiler worker address: " + e.getMessage(), e);
+		}
+
+		// A local installation is optional if workers are used
+		if (workers.isEmpty() && !new File(m_pathEditor.getStringValue()).exists()) {
 			throw new IllegalArgumentException(
 					"Path to CellProfiler does not exist! Please select the installation directory of CellProfiler.");
 		}
 
-		if (!new File(m_pathEditor.getStringValue()).isDirectory()) {
+		if (workers.isEmpty() && !new File(m_pathEditor.getStringValue()).isDirectory()) {
 			throw new IllegalArgumentException(
 					"Path to CellProfiler is not a directory! Please select the installation directory of CellProfiler.");
 		}
@@ -188,7 +284,26 @@ public class CellProfilerPreferencePage extends PreferencePage implements
 			path += "/";
 		}
 
+		if (!m_poolSizeEditor.isValid()) {
+			throw new IllegalArgumentException(
+					"Number of idle CellProfiler instances must be a non-negative number.");
+		}
+
+		if (!m_poolIdleTimeoutEditor.isValid()) {
+			throw new IllegalArgumentException(
+					"Idle timeout of CellProfiler instances must be a positive number.");
+		}
+
+		if (!m_resultCacheSizeEditor.isValid()) {
+			throw new IllegalArgumentException(
+					"Size of the result cache must be a non-negative number.");
+		}
+
 		setPath(path);
+		setPoolSettings(m_poolSizeEditor.getIntValue(),
+				m_poolIdleTimeoutEditor.getIntValue());
+		setResultCacheSize(m_resultCacheSizeEditor.getIntValue());
+		setWorkers(workers);
 	}
 
 	/**
@@ -197,6 +312,12 @@ public class CellProfilerPreferencePage extends PreferencePage implements
 	@Override
 	protected void performDefaults() {
 		m_pathEditor.setStringValue(DEFAULT_PATH);
+		m_poolSizeEditor.setStringValue(Integer.toString(DEFAULT_POOL_SIZE));
+		m_poolIdleTimeoutEditor.setStringValue(Integer
+				.toString(DEFAULT_POOL_IDLE_TIMEOUT));
+		m_resultCacheSizeEditor.setStringValue(Integer
+				.toString(DEFAULT_RESULT_CACHE_SIZE));
+		m_workersEditor.setStringValue("");
 	}
 
 	/**
@@ -211,6 +332,26 @@ public class CellProfilerPreferencePage extends PreferencePage implements
 				"Path to CellProfiler Installation", m_container);
 		m_pathEditor.setStringValue(Platform.getPreferencesService().getString(
 				"org.knime.knip.cellprofiler", "path", DEFAULT_PATH, null));
+		m_poolSizeEditor = new IntegerFieldEditor("poolSize",
+				"Number of idle CellProfiler instances kept alive", m_container);
+		m_poolSizeEditor.setValidRange(0, Integer.MAX_VALUE);
+		m_poolSizeEditor.setStringValue(Integer.toString(getPoolSize()));
+		m_poolIdleTimeoutEditor = new IntegerFieldEditor("poolIdleTimeout",
+				"Shut down idle CellProfiler instances after (seconds)",
+				m_container);
+		m_poolIdleTimeoutEditor.setValidRange(1, Integer.MAX_VALUE);
+		m_poolIdleTimeoutEditor.setStringValue(Integer
+				.toString(getPoolIdleTimeout()));
+		m_resultCacheSizeEditor = new IntegerFieldEditor("resultCacheSize",
+				"Size of the result cache (MB)", m_container);
+		m_resultCacheSizeEditor.setValidRange(0, Integer.MAX_VALUE);
+		m_resultCacheSizeEditor.setStringValue(Integer
+				.toString(getResultCacheSize()));
+		m_workersEditor = new StringFieldEditor("workers",
+				"CellProfiler workers (knime-bridge addresses, empty to start CellProfiler locally)",
+				m_container);
+		m_workersEditor.setStringValue(Platform.getPreferencesService()
+				.getString("org.knime.knip.cellprofiler", "workers", "", null));
 		GridData gridData = new GridData();
 		gridData.horizontalSpan = 3;
 		gridData = new GridData();
@@ -239,4 +380,58 @@ public class CellProfilerPreferencePage extends PreferencePage implements
 		}
 	}
 
+	/**
+	 * Saves the settings of the CellProfiler instance pool.
+	 * 
+	 * @param poolSize
+	 *            Maximum number of idle instances
+	 * @param idleTimeout
+	 *            Idle timeout in seconds
+	 */
+	private void setPoolSettings(final int poolSize, final int idleTimeout) {
+		IEclipsePreferences prefs = InstanceScope.INSTANCE
+				.getNode("org.knime.knip.cellprofiler");
+		prefs.putInt("poolSize", poolSize);
+		prefs.putInt("poolIdleTimeout", idleTimeout);
+		try {
+			prefs.flush();
+		} catch (BackingStoreException e) {
+			LOGGER.error("Could not save preferences: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Saves the size of the result cache.
+	 * 
+	 * @param size
+	 *            Maximum size in megabytes
+	 */
+	private void setResultCacheSize(final int size) {
+		IEclipsePreferences prefs = InstanceScope.INSTANCE
+				.getNode("org.knime.knip.cellprofiler");
+		prefs.putInt("resultCacheSize", size);
+		try {
+			prefs.flush();
+		} catch (BackingStoreException e) {
+			LOGGER.error("Could not save preferences: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Saves the addresses of the CellProfiler workers.
+	 * 
+	 * @param workers
+	 *            Addresses separated by whitespace or commas
+	 */
+	private void setWorkers(final String workers) {
+		IEclipsePreferences prefs = InstanceScope.INSTANCE
+				.getNode("org.knime.knip.cellprofiler");
+		prefs.put("workers", workers);
+		try {
+			prefs.flush();
+		} catch (BackingStoreException e) {
+			LOGGER.error("Could not save preferences: " + e.getMessage(), e);
+		}
+	}
+
 }
@@ -0,0 +1,269 @@
+package org.knime.knip.cellprofiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.core.runtime.Platform;
+import org.knime.core.node.NodeLogger;
+import org.knime.knip.cellprofiler.bridge.ScaledImage;
+import org.knime.knip.cellprofiler.data.CellProfilerCellSerializer;
+import org.knime.knip.cellprofiler.data.CellProfilerContent;
+
+/**
+ * Keeps the results of pipeline runs on disk, so that images which were
+ * already processed with the same pipeline don't have to be sent to
+ * CellProfiler again. The results are addressed by a digest of the
+ * CellProfiler installation, the cleaned pipeline and the pixels, metadata and
+ * scaling of each input image. The
+ * least recently used results are deleted once the configured size is
+ * exceeded.
+ */
+public class CellProfilerResultCache {
+
+	private static final NodeLogger LOGGER = NodeLogger.getLogger(CellProfilerResultCache.class);
+
+	private static final String FILE_SUFFIX = ".cpr";
+
+	private static final CellProfilerResultCache INSTANCE = new CellProfilerResultCache();
+
+	// Size in bytes of each cached result, least recently used first
+	private final LinkedHashMap<String, Long> m_entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	private File m_directory;
+
+	private long m_size;
+
+	private CellProfilerResultCache() {
+		// singleton
+	}
+
+	/**
+	 * @return The cache shared by all nodes.
+	 */
+	public static CellProfilerResultCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param installation
+	 *            Identity of the CellProfiler installation or workers running
+	 *            the pipeline, e.g. command and version
+	 * @param pipeline
+	 *            The cleaned pipeline
+	 * @return Access to the results of the given pipeline
+	 */
+	public PipelineResults forPipeline(final String installation, final String pipeline) {
+		final MessageDigest digest = createDigest();
+		digest.update(installation.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		return new PipelineResults(digest.digest(pipeline.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Results of one pipeline.
+	 */
+	public final class PipelineResults {
+
+		private final byte[] m_pipelineDigest;
+
+		private PipelineResults(final byte[] pipelineDigest) {
+			m_pipelineDigest = pipelineDigest;
+		}
+
+		/**
+		 * Creates the key of the results of an image set. Reads all pixels of
+		 * the images.
+		 *
+		 * @param images
+		 *            Map of channel name to image
+		 * @return The key
+		 */
+		public String createKey(final Map<String, ScaledImage> images) {
+			final MessageDigest digest = createDigest();
+			digest.update(m_pipelineDigest);
+			// The order of the channels must not matter
+			for (final Map.Entry<String, ScaledImage> entry : new TreeMap<String, ScaledImage>(images).entrySet()) {
+				digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+				entry.getValue().digest(digest);
+			}
+			final StringBuilder key = new StringBuilder();
+			for (final byte b : digest.digest()) {
+				key.append(String.format("%02x", b));
+			}
+			return key.toString();
+		}
+
+		/**
+		 * @param key
+		 *            The key of the image set
+		 * @param parentKey
+		 *            Key of the row the results are returned for
+		 * @return The results of each object table or null if the image set
+		 *         isn't cached
+		 */
+		public List<CellProfilerContent> get(final String key, final String parentKey) {
+			return CellProfilerResultCache.this.get(key, parentKey);
+		}
+
+		/**
+		 * @param key
+		 *            The key of the image set
+		 * @param contents
+		 *            The results of each object table
+		 */
+		public void put(final String key, final List<CellProfilerContent> contents) {
+			CellProfilerResultCache.this.put(key, contents);
+		}
+	}
+
+	private List<CellProfilerContent> get(final String key, final String parentKey) {
+		final File file;
+		synchronized (this) {
+			if (!init() || m_entries.get(key) == null) {
+				return null;
+			}
+			file = getFile(key);
+		}
+		try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			final int version = in.readInt();
+			if (version > CellProfilerCellSerializer.VERSION) {
+				return null;
+			}
+			final int count = in.readInt();
+			final List<CellProfilerContent> contents = new ArrayList<CellProfilerContent>(count);
+			for (int i = 0; i < count; i++) {
+				contents.add(CellProfilerContent.load(in, version).withParentKey(parentKey));
+			}
+			// Keeps the order of use across sessions
+			file.setLastModified(System.currentTimeMillis());
+			return contents;
+		} catch (IOException | ClassNotFoundException e) {
+			// Evicted in the meantime or unreadable
+			LOGGER.debug("Could not read cached CellProfiler result " + key + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void put(final String key, final List<CellProfilerContent> contents) {
+		final File file;
+		synchronized (this) {
+			if (!init() || m_entries.containsKey(key)) {
+				return;
+			}
+			file = getFile(key);
+		}
+		try {
+			final File tmpFile = File.createTempFile(key, ".tmp", file.getParentFile());
+			try (final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+				out.writeInt(CellProfilerCellSerializer.VERSION);
+				out.writeInt(contents.size());
+				for (final CellProfilerContent content : contents) {
+					content.save(out);
+				}
+			}
+			synchronized (this) {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				final Long previous = m_entries.put(key, file.length());
+				m_size += file.length() - (previous != null ? previous : 0);
+				evict();
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Could not cache CellProfiler result: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Deletes the least recently used results until the cache fits into the
+	 * configured size.
+	 */
+	private void evict() {
+		final long maxSize = CellProfilerPreferencePage.getResultCacheSize() * 1024L * 1024L;
+		final Iterator<Map.Entry<String, Long>> iterator = m_entries.entrySet().iterator();
+		while (m_size > maxSize && iterator.hasNext()) {
+			final Map.Entry<String, Long> eldest = iterator.next();
+			if (getFile(eldest.getKey()).delete() || !getFile(eldest.getKey()).exists()) {
+				m_size -= eldest.getValue();
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Reads the cached results from disk the first time the cache is used.
+	 *
+	 * @return False if the cache is disabled or not available
+	 */
+	private boolean init() {
+		if (CellProfilerPreferencePage.getResultCacheSize() <= 0) {
+			return false;
+		}
+		if (m_directory == null) {
+			final File directory = new File(
+					Platform.getStateLocation(Platform.getBundle("org.knime.knip.cellprofiler")).toFile(),
+					"result-cache");
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				LOGGER.warn("Could not create the CellProfiler result cache in " + directory);
+				return false;
+			}
+			final File[] files = directory.listFiles();
+			if (files == null) {
+				LOGGER.warn("Could not read the CellProfiler result cache in " + directory);
+				return false;
+			}
+			Arrays.sort(files, new Comparator<File>() {
+				@Override
+				public int compare(final File f1, final File f2) {
+					return Long.compare(f1.lastModified(), f2.lastModified());
+				}
+			});
+			for (final File file : files) {
+				final String name = file.getName();
+				if (name.endsWith(FILE_SUFFIX)) {
+					m_entries.put(name.substring(0, name.length() - FILE_SUFFIX.length()), file.length());
+					m_size += file.length();
+				} else {
+					// Left behind by an interrupted write
+					file.delete();
+				}
+			}
+			m_directory = directory;
+			evict();
+		}
+		return true;
+	}
+
+	private File getFile(final String key) {
+		return new File(m_directory, key + FILE_SUFFIX);
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
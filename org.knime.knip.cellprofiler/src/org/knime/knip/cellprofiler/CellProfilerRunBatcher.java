@@ -0,0 +1,256 @@
+package org.knime.knip.cellprofiler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.cellprofiler.knimebridge.CellProfilerException;
+import org.cellprofiler.knimebridge.PipelineException;
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.knime.knip.cellprofiler.bridge.EncodedImages;
+import org.knime.knip.cellprofiler.bridge.StageStatistics;
+import org.knime.knip.cellprofiler.data.CellProfilerContent;
+
+/**
+ * Collects the image sets of rows processed concurrently and sends them to
+ * CellProfiler in one batch run request, so that small image sets don't pay a
+ * round trip each.
+ *
+ * The thread whose image set fills a batch, or whose image set waited longest
+ * once the linger time has passed, takes an idle instance and runs the batch
+ * for all rows in it. The batch size adapts to the time CellProfiler takes per
+ * image set, so that a batch takes about the target latency, and is limited
+ * by the configured maximum and by the size of the images.
+ */
+final class CellProfilerRunBatcher {
+
+	/**
+	 * Bytes of pixels sent in one batch at most.
+	 */
+	private static final long MAX_BATCH_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Time in milliseconds an image set waits for further image sets at most.
+	 */
+	private static final long LINGER = 20;
+
+	/**
+	 * Weight of the last batch in the average time per image set.
+	 */
+	private static final double SMOOTHING = 0.2;
+
+	private final BlockingQueue<CellProfilerInstance> m_idleInstances;
+
+	private final int m_maxBatchSize;
+
+	private final long m_targetLatencyNanos;
+
+	private final CellProfilerSupervision m_supervision;
+
+	private final StageStatistics m_statistics;
+
+	private List<Entry> m_pending = new ArrayList<Entry>();
+
+	private long m_pendingSince;
+
+	private double m_nanosPerImageSet;
+
+	/**
+	 * @param idleInstances
+	 *            The idle instances, all supporting batch runs
+	 * @param maxBatchSize
+	 *            Number of image sets in one batch at most
+	 * @param targetLatency
+	 *            Time in milliseconds a batch should take
+	 * @param supervision
+	 *            Timeout and restarts of instances that fail
+	 * @param statistics
+	 *            Statistics the durations of the stages are added to, may be
+	 *            null
+	 */
+	CellProfilerRunBatcher(final BlockingQueue<CellProfilerInstance> idleInstances, final int maxBatchSize,
+			final long targetLatency, final CellProfilerSupervision supervision, final StageStatistics statistics) {
+		m_idleInstances = idleInstances;
+		m_maxBatchSize = maxBatchSize;
+		m_targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatency);
+		m_supervision = supervision;
+		m_statistics = statistics;
+	}
+
+	/**
+	 * Runs the pipeline on an image set as part of a batch. Blocks until the
+	 * batch is processed.
+	 *
+	 * @param images
+	 *            The encoded image set
+	 * @param parentKey
+	 *            Key of the row
+	 * @return The results of each object table or null if the image set
+	 *         failed and failed rows are skipped
+	 */
+	List<CellProfilerContent> run(final EncodedImages images, final String parentKey)
+			throws CellProfilerException, PipelineException, ProtocolException, IOException, InterruptedException {
+		final Entry entry = new Entry(images, parentKey);
+		List<Entry> batch = null;
+		synchronized (this) {
+			if (m_pending.isEmpty()) {
+				m_pendingSince = System.nanoTime();
+			}
+			m_pending.add(entry);
+			if (m_pending.size() >= getBatchSize(images.getNumBytes())) {
+				batch = takePending();
+			}
+			while (batch == null && !entry.m_taken) {
+				final long remaining = LINGER - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - m_pendingSince);
+				if (remaining <= 0) {
+					batch = takePending();
+				} else {
+					wait(remaining);
+				}
+			}
+		}
+		if (batch != null) {
+			runBatch(batch);
+		}
+		return entry.get();
+	}
+
+	/**
+	 * @return Number of image sets of the given size to put into one batch.
+	 */
+	private int getBatchSize(final long numBytes) {
+		int batchSize = (int) Math.min(m_maxBatchSize, MAX_BATCH_BYTES / Math.max(1, numBytes));
+		if (m_nanosPerImageSet > 0) {
+			batchSize = (int) Math.min(batchSize, m_targetLatencyNanos / m_nanosPerImageSet);
+		}
+		return Math.max(1, batchSize);
+	}
+
+	private List<Entry> takePending() {
+		final List<Entry> batch = m_pending;
+		m_pending = new ArrayList<Entry>();
+		for (final Entry entry : batch) {
+			entry.m_taken = true;
+		}
+		// Let the others wait for their results
+		notifyAll();
+		return batch;
+	}
+
+	/**
+	 * Runs a batch and completes all of its entries, also if the run fails or
+	 * the thread is interrupted, so that no row waits forever. If the thread
+	 * was interrupted, its interrupt flag is set again.
+	 */
+	private void runBatch(final List<Entry> batch) {
+		final List<EncodedImages> imageSets = new ArrayList<EncodedImages>(batch.size());
+		final List<String> parentKeys = new ArrayList<String>(batch.size());
+		for (final Entry entry : batch) {
+			imageSets.add(entry.m_images);
+			parentKeys.add(entry.m_parentKey);
+		}
+		CellProfilerInstance instance = null;
+		try {
+			// Wait for an idle instance, the results must be read before the
+			// instance can process the next batch
+			instance = m_idleInstances.take();
+			final long start = System.nanoTime();
+			final List<List<CellProfilerContent>> results = instance.runBatch(imageSets, parentKeys, m_supervision,
+					m_statistics);
+			recordDuration(batch.size(), System.nanoTime() - start);
+			for (int i = 0; i < batch.size(); i++) {
+				batch.get(i).complete(results.get(i), null);
+			}
+		} catch (InterruptedException e) {
+			// Only this thread was interrupted, the others fail with an error
+			fail(batch, new IOException("Batch run of rows " + parentKeys.get(0) + " to "
+					+ parentKeys.get(parentKeys.size() - 1) + " was interrupted", e));
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			fail(batch, e);
+		} catch (Error e) {
+			fail(batch, new IOException("Batch run of rows " + parentKeys.get(0) + " to "
+					+ parentKeys.get(parentKeys.size() - 1) + " failed: " + e.getMessage(), e));
+			throw e;
+		} finally {
+			if (instance != null) {
+				// Never blocks, the queue has room for all instances
+				m_idleInstances.offer(instance);
+			}
+		}
+	}
+
+	/**
+	 * Completes the entries of a batch that are not completed yet with a
+	 * failure.
+	 */
+	private static void fail(final List<Entry> batch, final Exception failure) {
+		for (final Entry entry : batch) {
+			entry.complete(null, failure);
+		}
+	}
+
+	private synchronized void recordDuration(final int batchSize, final long nanos) {
+		final double nanosPerImageSet = nanos / (double) batchSize;
+		m_nanosPerImageSet = m_nanosPerImageSet == 0 ? nanosPerImageSet
+				: (1 - SMOOTHING) * m_nanosPerImageSet + SMOOTHING * nanosPerImageSet;
+	}
+
+	/**
+	 * Image set of a row waiting for its results.
+	 */
+	private static final class Entry {
+
+		private final EncodedImages m_images;
+
+		private final String m_parentKey;
+
+		private final CountDownLatch m_done = new CountDownLatch(1);
+
+		// Guarded by the batcher
+		private boolean m_taken;
+
+		private List<CellProfilerContent> m_results;
+
+		private Exception m_failure;
+
+		Entry(final EncodedImages images, final String parentKey) {
+			m_images = images;
+			m_parentKey = parentKey;
+		}
+
+		/**
+		 * Sets the results of the entry unless it is completed already. Only
+		 * called by the thread running the batch.
+		 */
+		void complete(final List<CellProfilerContent> results, final Exception failure) {
+			if (m_done.getCount() == 0) {
+				return;
+			}
+			m_results = results;
+			m_failure = failure;
+			m_done.countDown();
+		}
+
+		List<CellProfilerContent> get() throws CellProfilerException, PipelineException, ProtocolException,
+				IOException, InterruptedException {
+			m_done.await();
+			if (m_failure == null) {
+				return m_results;
+			} else if (m_failure instanceof CellProfilerException) {
+				throw (CellProfilerException) m_failure;
+			} else if (m_failure instanceof PipelineException) {
+				throw (PipelineException) m_failure;
+			} else if (m_failure instanceof ProtocolException) {
+				throw (ProtocolException) m_failure;
+			} else if (m_failure instanceof IOException) {
+				throw (IOException) m_failure;
+			}
+			throw new IOException("Batch run failed: " + m_failure.getMessage(), m_failure);
+		}
+	}
+
+}
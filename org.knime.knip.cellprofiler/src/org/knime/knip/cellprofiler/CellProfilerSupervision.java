@@ -0,0 +1,66 @@
+package org.knime.knip.cellprofiler;
+
+/**
+ * Determines how rows are handled whose CellProfiler instance doesn't answer
+ * in time or whose process exits while the row is processed. The instance is
+ * restarted with the same pipeline and the row is sent again, until the
+ * maximum number of attempts is reached. A row failing every attempt (a
+ * "poison" image set) either fails the execution or gets missing cells.
+ */
+public final class CellProfilerSupervision {
+
+	private final long m_requestTimeout;
+
+	private final int m_maxAttempts;
+
+	private final boolean m_skipFailedRows;
+
+	/**
+	 * @param requestTimeout
+	 *            Time in milliseconds CellProfiler may take for one image set,
+	 *            0 for no limit
+	 * @param maxAttempts
+	 *            Number of times an image set is sent before it is given up
+	 * @param skipFailedRows
+	 *            True to give rows failing every attempt or failing in
+	 *            CellProfiler missing cells, false to fail the execution
+	 */
+	public CellProfilerSupervision(final long requestTimeout, final int maxAttempts,
+			final boolean skipFailedRows) {
+		m_requestTimeout = requestTimeout;
+		m_maxAttempts = Math.max(1, maxAttempts);
+		m_skipFailedRows = skipFailedRows;
+	}
+
+	/**
+	 * @return Supervision without timeout that fails the execution on the
+	 *         first failure.
+	 */
+	public static CellProfilerSupervision failFast() {
+		return new CellProfilerSupervision(0, 1, false);
+	}
+
+	/**
+	 * @return Time in milliseconds CellProfiler may take for one image set, 0
+	 *         for no limit.
+	 */
+	public long getRequestTimeout() {
+		return m_requestTimeout;
+	}
+
+	/**
+	 * @return Number of times an image set is sent before it is given up.
+	 */
+	public int getMaxAttempts() {
+		return m_maxAttempts;
+	}
+
+	/**
+	 * @return True if rows failing every attempt get missing cells, false if
+	 *         they fail the execution.
+	 */
+	public boolean isSkipFailedRows() {
+		return m_skipFailedRows;
+	}
+
+}
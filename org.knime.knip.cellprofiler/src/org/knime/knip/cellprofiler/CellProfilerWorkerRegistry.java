@@ -0,0 +1,364 @@
+package org.knime.knip.cellprofiler;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.knime.core.node.NodeLogger;
+import org.knime.knip.cellprofiler.bridge.CellProfilerBridge;
+import org.zeromq.ZMQException;
+
+/**
+ * Keeps track of CellProfiler workers started outside of KNIME, e.g. on other
+ * machines, and hands them out to node executions instead of starting local
+ * processes.
+ *
+ * Each worker serves one execution at a time. Idle workers are checked by a
+ * heartbeat, which runs once workers are configured and keeps a connection
+ * to each of them. Workers that don't answer are skipped until they answer
+ * again.
+ * Executions get the healthy workers with the lowest time per image set
+ * first, and an instance whose worker fails during an execution moves on to
+ * another idle worker, see {@link CellProfilerInstance#restart()}. Within an
+ * execution the rows are taken by whichever instance is idle, so faster
+ * workers process more rows.
+ */
+public class CellProfilerWorkerRegistry {
+
+	private static final NodeLogger LOGGER = NodeLogger.getLogger(CellProfilerWorkerRegistry.class);
+
+	/**
+	 * Time in milliseconds a worker has to accept a connection.
+	 */
+	static final int CONNECT_TIMEOUT = 5000;
+
+	/**
+	 * Interval in seconds in which idle workers are checked.
+	 */
+	private static final long HEARTBEAT_INTERVAL = 15;
+
+	/**
+	 * Weight of the last run in the average time per image set of a worker.
+	 */
+	private static final double SMOOTHING = 0.2;
+
+	private static final CellProfilerWorkerRegistry INSTANCE = new CellProfilerWorkerRegistry(null);
+
+	private final List<URI> m_addresses;
+
+	private final Map<URI, Worker> m_workers = new LinkedHashMap<URI, Worker>();
+
+	// Guarded by this, null while no workers are configured
+	private ScheduledExecutorService m_heartbeat;
+
+	/**
+	 * Creates a registry for a fixed set of workers, e.g. several local stand-in
+	 * servers for tests. Call {@link #close()} when done.
+	 *
+	 * @param addresses
+	 *            The knime-bridge addresses of the workers, null to use the
+	 *            workers configured in the preferences
+	 */
+	public CellProfilerWorkerRegistry(final Collection<URI> addresses) {
+		m_addresses = addresses != null ? new ArrayList<URI>(addresses) : null;
+	}
+
+	/**
+	 * @return The registry of the workers configured in the preferences.
+	 */
+	public static CellProfilerWorkerRegistry getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return True if workers are configured, so that executions use them
+	 *         instead of starting local processes.
+	 */
+	public synchronized boolean isEnabled() {
+		update();
+		return !m_workers.isEmpty();
+	}
+
+	private List<URI> getAddresses() {
+		return m_addresses != null ? m_addresses : CellProfilerPreferencePage.getWorkerAddresses();
+	}
+
+	/**
+	 * Adds newly configured workers and drops workers that are neither
+	 * configured nor leased anymore. Starts the heartbeat once there are
+	 * workers and stops it once there are none.
+	 */
+	private synchronized void update() {
+		final List<URI> addresses = getAddresses();
+		for (final URI address : addresses) {
+			if (!m_workers.containsKey(address)) {
+				m_workers.put(address, new Worker(address));
+			}
+		}
+		for (final Iterator<Worker> iter = m_workers.values().iterator(); iter.hasNext();) {
+			final Worker worker = iter.next();
+			if (!worker.m_leased && !addresses.contains(worker.m_address)) {
+				iter.remove();
+				worker.closePing();
+			}
+		}
+		if (m_workers.isEmpty()) {
+			stopHeartbeat();
+		} else if (m_heartbeat == null) {
+			startHeartbeat();
+		}
+	}
+
+	private void startHeartbeat() {
+		m_heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "CellProfiler worker heartbeat");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		m_heartbeat.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					heartbeat();
+				} catch (RuntimeException e) {
+					// Don't stop the heartbeat
+					LOGGER.debug("CellProfiler worker heartbeat failed: " + e.getMessage(), e);
+				}
+			}
+		}, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	private void stopHeartbeat() {
+		if (m_heartbeat != null) {
+			m_heartbeat.shutdownNow();
+			m_heartbeat = null;
+		}
+	}
+
+	/**
+	 * Connects to idle workers, the fastest healthy workers first. Each
+	 * instance has to be given back via {@link #release(CellProfilerInstance)}.
+	 *
+	 * @param count
+	 *            Number of instances wanted
+	 * @return Between one and count instances, fewer if not enough workers are
+	 *         idle
+	 * @throws IOException
+	 *             If no worker is idle and reachable
+	 */
+	public List<CellProfilerInstance> lease(final int count) throws IOException {
+		update();
+		final List<CellProfilerInstance> instances = new ArrayList<CellProfilerInstance>(count);
+		URI address;
+		while (instances.size() < count && (address = pollIdleWorker()) != null) {
+			try {
+				instances.add(new CellProfilerInstance(address, this));
+			} catch (ProtocolException | ZMQException | IOException e) {
+				markFailed(address, e);
+			}
+		}
+		if (instances.isEmpty()) {
+			throw new IOException("None of the CellProfiler workers " + getAddresses() + " is idle and reachable");
+		}
+		if (instances.size() < count) {
+			LOGGER.info("Only " + instances.size() + " of " + count + " CellProfiler workers are available");
+		}
+		return instances;
+	}
+
+	/**
+	 * Disconnects an instance and hands its worker to the next execution.
+	 *
+	 * @param instance
+	 *            An instance returned by {@link #lease(int)}
+	 */
+	public void release(final CellProfilerInstance instance) {
+		final URI address = instance.getAddress();
+		instance.close();
+		synchronized (this) {
+			final Worker worker = m_workers.get(address);
+			if (worker != null) {
+				worker.m_leased = false;
+			}
+		}
+	}
+
+	/**
+	 * Takes the healthy idle worker with the lowest time per image set,
+	 * workers that haven't run anything yet first.
+	 *
+	 * @return The address of the worker or null if no worker is idle.
+	 */
+	private synchronized URI pollIdleWorker() {
+		final List<Worker> idle = new ArrayList<Worker>();
+		for (final Worker worker : m_workers.values()) {
+			if (worker.m_healthy && !worker.m_leased) {
+				idle.add(worker);
+			}
+		}
+		if (idle.isEmpty()) {
+			return null;
+		}
+		final Worker worker = Collections.min(idle, new Comparator<Worker>() {
+			@Override
+			public int compare(final Worker w1, final Worker w2) {
+				return Double.compare(w1.m_nanosPerImageSet, w2.m_nanosPerImageSet);
+			}
+		});
+		worker.m_leased = true;
+		return worker.m_address;
+	}
+
+	/**
+	 * Marks a worker that stopped answering as failed and leases another idle
+	 * worker in its place.
+	 *
+	 * @param failed
+	 *            Address of the failed worker
+	 * @param cause
+	 *            Why the worker failed
+	 * @return The address of the replacement or null if no worker is idle.
+	 */
+	URI failover(final URI failed, final Exception cause) {
+		markFailed(failed, cause);
+		return pollIdleWorker();
+	}
+
+	private synchronized void markFailed(final URI address, final Exception cause) {
+		final Worker worker = m_workers.get(address);
+		if (worker != null) {
+			worker.m_leased = false;
+			worker.m_healthy = false;
+		}
+		LOGGER.warn("CellProfiler worker " + address + " is not reachable, skipping it until it answers again: "
+				+ cause.getMessage());
+	}
+
+	/**
+	 * @param address
+	 *            Address of the worker
+	 * @param numImageSets
+	 *            Number of image sets in the run
+	 * @param nanos
+	 *            Time the run took
+	 */
+	synchronized void recordRun(final URI address, final int numImageSets, final long nanos) {
+		final Worker worker = m_workers.get(address);
+		if (worker != null) {
+			final double nanosPerImageSet = nanos / (double) numImageSets;
+			worker.m_nanosPerImageSet = worker.m_nanosPerImageSet == 0 ? nanosPerImageSet
+					: (1 - SMOOTHING) * worker.m_nanosPerImageSet + SMOOTHING * nanosPerImageSet;
+		}
+	}
+
+	/**
+	 * Checks if the idle workers answer. Leased workers are busy with runs and
+	 * wouldn't answer in time, their failures are noticed by the execution.
+	 * Called periodically, but may also be called directly.
+	 */
+	public void heartbeat() {
+		update();
+		final List<Worker> idle = new ArrayList<Worker>();
+		synchronized (this) {
+			for (final Worker worker : m_workers.values()) {
+				if (!worker.m_leased) {
+					idle.add(worker);
+				}
+			}
+		}
+		for (final Worker idleWorker : idle) {
+			final boolean healthy = idleWorker.ping();
+			final URI address = idleWorker.m_address;
+			synchronized (this) {
+				final Worker worker = m_workers.get(address);
+				if (worker == null || worker.m_leased || worker.m_healthy == healthy) {
+					continue;
+				}
+				worker.m_healthy = healthy;
+				if (healthy) {
+					LOGGER.info("CellProfiler worker " + address + " is reachable again");
+				} else {
+					LOGGER.warn("CellProfiler worker " + address + " does not answer, skipping it until it does");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The addresses of the workers that answered the last heartbeat,
+	 *         leased or not.
+	 */
+	public synchronized List<URI> getHealthyWorkers() {
+		final List<URI> healthy = new ArrayList<URI>();
+		for (final Worker worker : m_workers.values()) {
+			if (worker.m_healthy) {
+				healthy.add(worker.m_address);
+			}
+		}
+		return healthy;
+	}
+
+	/**
+	 * Stops the heartbeat and closes its connections. The workers keep
+	 * running.
+	 */
+	public synchronized void close() {
+		stopHeartbeat();
+		for (final Worker worker : m_workers.values()) {
+			worker.closePing();
+		}
+	}
+
+	/**
+	 * State of a worker, guarded by the registry.
+	 */
+	private static final class Worker {
+
+		private final URI m_address;
+
+		private boolean m_healthy = true;
+
+		private boolean m_leased;
+
+		private double m_nanosPerImageSet;
+
+		// Guarded by itself, kept open between heartbeats
+		private final CellProfilerBridge.PingConnection m_ping;
+
+		Worker(final URI address) {
+			m_address = address;
+			m_ping = new CellProfilerBridge.PingConnection(address, CONNECT_TIMEOUT);
+		}
+
+		/**
+		 * @return True if the worker answered in time.
+		 */
+		boolean ping() {
+			synchronized (m_ping) {
+				return m_ping.ping();
+			}
+		}
+
+		void closePing() {
+			synchronized (m_ping) {
+				m_ping.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,77 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.cellprofiler.knimebridge.CellProfilerException;
+import org.cellprofiler.knimebridge.PipelineException;
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMsg;
+
+/**
+ * Reply to a {@link BatchRunReq}, containing the measurements of each image
+ * set. If CellProfiler fails on any image set, the server answers with an
+ * exception for the whole batch instead.
+ * 
+ * The format is:
+ * <ul>
+ * <li>frame containing the message name</li>
+ * <li>frame containing the number of image sets</li>
+ * <li>per image set, the metadata and data frame as in a
+ * {@link BulkRunReply}</li>
+ * </ul>
+ */
+public class BatchRunReply extends AbstractReply {
+
+	private static final String MSG_NAME = "run-batch-reply-1";
+
+	private List<BulkRunReply> m_replies;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected String getMsgName() {
+		return MSG_NAME;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void parse(final ZMsg msg) throws CellProfilerException, PipelineException, ProtocolException {
+		final int count;
+		try {
+			count = Integer.parseInt(popString(msg));
+		} catch (NumberFormatException e) {
+			throw new ProtocolException("Invalid number of image sets: " + e.getMessage());
+		}
+		final List<BulkRunReply> replies = new ArrayList<BulkRunReply>(count);
+		for (int i = 0; i < count; i++) {
+			final ZFrame metadata = msg.pop();
+			final ZFrame data = msg.pop();
+			if (data == null) {
+				throw new ProtocolException("Batch run reply is missing the measurements of image set " + i);
+			}
+			final ZMsg imageSet = new ZMsg();
+			imageSet.add(metadata);
+			imageSet.add(data);
+			final BulkRunReply reply = new BulkRunReply();
+			reply.parse(imageSet);
+			replies.add(reply);
+		}
+		m_replies = Collections.unmodifiableList(replies);
+	}
+
+	/**
+	 * @return The measurements of each image set, in the order of the
+	 *         request.
+	 */
+	public List<BulkRunReply> getReplies() {
+		return m_replies;
+	}
+
+}
@@ -0,0 +1,74 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.util.List;
+
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+/**
+ * Request to run a registered pipeline on several image sets at once, so that
+ * small image sets don't pay a round trip each. Only sent to servers
+ * announcing {@link PreparePipelineReply#BATCH_RUN}. The server runs the
+ * pipeline on each image set separately and answers with a
+ * {@link BatchRunReply}.
+ * 
+ * The format is:
+ * <ul>
+ * <li>frame containing the message name</li>
+ * <li>frame containing the pipeline ID</li>
+ * <li>frame containing the number of image sets</li>
+ * <li>per image set, the image frames as written by {@link ImageEncoder}.
+ * The pixels are always sent in frames.</li>
+ * </ul>
+ */
+public class BatchRunReq extends ZMsg {
+
+	/**
+	 * The worker reads the pixels by the strides of each axis and applies the
+	 * offset and scale of every channel, see {@link ImageEncoder}.
+	 */
+	private static final String MSG_NAME = "run-batch-request-1";
+
+	/**
+	 * @param sessionID
+	 *            The session ID from connect
+	 * @param pipelineID
+	 *            The ID of the registered pipeline
+	 * @param imageSets
+	 *            The encoded image sets
+	 */
+	protected BatchRunReq(final String sessionID, final String pipelineID, final List<EncodedImages> imageSets) {
+		add(MSG_NAME);
+		add(pipelineID);
+		add(Integer.toString(imageSets.size()));
+		for (final EncodedImages images : imageSets) {
+			images.addTo(this);
+		}
+		wrap(new ZFrame(sessionID));
+	}
+
+	/**
+	 * Sends the request without waiting for the reply, which has to be
+	 * received as {@link BatchRunReply} afterwards.
+	 * 
+	 * @param socket
+	 *            Communicate over this socket
+	 * @param sessionID
+	 *            The session ID from connect
+	 * @param pipelineID
+	 *            The ID of the registered pipeline
+	 * @param imageSets
+	 *            The encoded image sets
+	 * @throws ProtocolException
+	 *             If the request could not be sent
+	 */
+	public static void send(final Socket socket, final String sessionID, final String pipelineID,
+			final List<EncodedImages> imageSets) throws ProtocolException {
+		if (!new BatchRunReq(sessionID, pipelineID, imageSets).send(socket)) {
+			throw new ProtocolException("Failed to send batch run request");
+		}
+	}
+
+}
@@ -0,0 +1,276 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonValue;
+
+import org.cellprofiler.knimebridge.CellProfilerException;
+import org.cellprofiler.knimebridge.KBConstants;
+import org.cellprofiler.knimebridge.PipelineException;
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMsg;
+
+/**
+ * Reply to a run request, replacing the {@link org.cellprofiler.knimebridge.message.RunReply}
+ * of the bundled bridge. The format is the same:
+ * <ul>
+ * <li>frame containing the message name</li>
+ * <li>frame containing a JSON array of four sections for the double, float,
+ * integer and string features. Each section is an array of 2-tuples of object
+ * name and an array of 2-tuples of feature name and number of values.</li>
+ * <li>frame containing the little-endian values of all features in the order
+ * of the metadata, strings as UTF-8 bytes</li>
+ * </ul>
+ *
+ * The data frame is wrapped in a {@link ByteBuffer} and each feature is
+ * bulk-read through a typed view of it, instead of assembling every value
+ * from its bytes. The arrays are handed out as they are, so the measurement
+ * tables adopt them without copying.
+ */
+public class BulkRunReply extends AbstractReply {
+
+	private static final String MSG_NAME = "run-reply-1";
+
+	private static final int NUM_SECTIONS = 4;
+
+	private final Map<String, Map<String, double[]>> m_doubleFeatures = new HashMap<String, Map<String, double[]>>();
+
+	private final Map<String, Map<String, float[]>> m_floatFeatures = new HashMap<String, Map<String, float[]>>();
+
+	private final Map<String, Map<String, int[]>> m_intFeatures = new HashMap<String, Map<String, int[]>>();
+
+	private final Map<String, Map<String, String>> m_stringFeatures = new HashMap<String, Map<String, String>>();
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected String getMsgName() {
+		return MSG_NAME;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void parse(final ZMsg msg) throws CellProfilerException, PipelineException, ProtocolException {
+		final String metadata = popString(msg);
+		final ZFrame frame = msg.pop();
+		if (frame == null) {
+			throw new ProtocolException("Missing data value frame");
+		}
+		final JsonArray sections;
+		try {
+			sections = Json.createReader(new StringReader(metadata)).readArray();
+		} catch (JsonException e) {
+			throw new ProtocolException("Invalid measurement metadata: " + e.getMessage());
+		}
+		if (sections.size() != NUM_SECTIONS) {
+			throw new ProtocolException(String.format("Wrong # of metadata sections: expected %d, got %d",
+					NUM_SECTIONS, sections.size()));
+		}
+		final ByteBuffer data = ByteBuffer.wrap(frame.getData()).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			parseDoubles(sections.getJsonArray(0), data);
+			parseFloats(sections.getJsonArray(1), data);
+			parseInts(sections.getJsonArray(2), data);
+			parseStrings(sections.getJsonArray(3), data);
+		} catch (ClassCastException | IndexOutOfBoundsException e) {
+			throw new ProtocolException("Invalid measurement metadata: " + e.getMessage());
+		}
+	}
+
+	private void parseDoubles(final JsonArray section, final ByteBuffer data) throws ProtocolException {
+		for (final JsonValue table : section) {
+			final Map<String, double[]> features = new HashMap<String, double[]>();
+			m_doubleFeatures.put(getTableName(table), features);
+			for (final JsonValue feature : getFeatures(table)) {
+				final double[] values = new double[getLength(feature)];
+				view(data, values.length, Double.BYTES).asDoubleBuffer().get(values);
+				features.put(getFeatureName(feature), values);
+			}
+		}
+	}
+
+	private void parseFloats(final JsonArray section, final ByteBuffer data) throws ProtocolException {
+		for (final JsonValue table : section) {
+			final Map<String, float[]> features = new HashMap<String, float[]>();
+			m_floatFeatures.put(getTableName(table), features);
+			for (final JsonValue feature : getFeatures(table)) {
+				final float[] values = new float[getLength(feature)];
+				view(data, values.length, Float.BYTES).asFloatBuffer().get(values);
+				features.put(getFeatureName(feature), values);
+			}
+		}
+	}
+
+	private void parseInts(final JsonArray section, final ByteBuffer data) throws ProtocolException {
+		for (final JsonValue table : section) {
+			final Map<String, int[]> features = new HashMap<String, int[]>();
+			m_intFeatures.put(getTableName(table), features);
+			for (final JsonValue feature : getFeatures(table)) {
+				final int[] values = new int[getLength(feature)];
+				view(data, values.length, Integer.BYTES).asIntBuffer().get(values);
+				features.put(getFeatureName(feature), values);
+			}
+		}
+	}
+
+	private void parseStrings(final JsonArray section, final ByteBuffer data) throws ProtocolException {
+		for (final JsonValue table : section) {
+			final Map<String, String> features = new HashMap<String, String>();
+			m_stringFeatures.put(getTableName(table), features);
+			for (final JsonValue feature : getFeatures(table)) {
+				final int length = getLength(feature);
+				final ByteBuffer bytes = view(data, length, 1);
+				features.put(getFeatureName(feature), new String(bytes.array(),
+						bytes.arrayOffset() + bytes.position(), length, StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	/**
+	 * @return Little-endian view of the next values of the data, whose
+	 *         position is moved behind them
+	 */
+	private static ByteBuffer view(final ByteBuffer data, final int length, final int bytesPerValue)
+			throws ProtocolException {
+		final long numBytes = (long) length * bytesPerValue;
+		if (numBytes > data.remaining()) {
+			throw new ProtocolException("Buffer overrun when deserializing measurements");
+		}
+		final ByteBuffer view = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+		view.limit((int) numBytes);
+		data.position(data.position() + (int) numBytes);
+		return view;
+	}
+
+	private static String getTableName(final JsonValue table) throws ProtocolException {
+		return getTuple(table).getString(0);
+	}
+
+	private static JsonArray getFeatures(final JsonValue table) throws ProtocolException {
+		return getTuple(table).getJsonArray(1);
+	}
+
+	private static String getFeatureName(final JsonValue feature) throws ProtocolException {
+		return getTuple(feature).getString(0);
+	}
+
+	private static int getLength(final JsonValue feature) throws ProtocolException {
+		final int length = getTuple(feature).getInt(1);
+		if (length < 0) {
+			throw new ProtocolException("Negative number of measurements: " + length);
+		}
+		return length;
+	}
+
+	private static JsonArray getTuple(final JsonValue value) throws ProtocolException {
+		if (!(value instanceof JsonArray) || ((JsonArray) value).size() != 2) {
+			throw new ProtocolException("Measurement metadata element was not an array of length 2");
+		}
+		return (JsonArray) value;
+	}
+
+	/**
+	 * @param resultTableName
+	 *            The name of the object table or {@link KBConstants#IMAGE}
+	 * @return Number of rows of the table, for groups the total of all image
+	 *         sets
+	 */
+	public int getNumberOfObjects(final String resultTableName) {
+		final String numberFeature = KBConstants.IMAGE.equals(resultTableName) ? KBConstants.IMAGE_NUMBER
+				: KBConstants.OBJECT_NUMBER;
+		final int[] numbers = getIntMeasurements(resultTableName, numberFeature);
+		return numbers != null ? numbers.length : 0;
+	}
+
+	/**
+	 * @param objectName
+	 *            The name of the object table, null for the image table
+	 * @param name
+	 *            The name of the feature
+	 * @return The values of the feature, null if there is no such feature
+	 */
+	public double[] getDoubleMeasurements(final String objectName, final String name) {
+		return get(m_doubleFeatures, objectName, name);
+	}
+
+	/**
+	 * @param objectName
+	 *            The name of the object table, null for the image table
+	 * @param name
+	 *            The name of the feature
+	 * @return The values of the feature, null if there is no such feature
+	 */
+	public float[] getFloatMeasurements(final String objectName, final String name) {
+		return get(m_floatFeatures, objectName, name);
+	}
+
+	/**
+	 * @param objectName
+	 *            The name of the object table, null for the image table
+	 * @param name
+	 *            The name of the feature
+	 * @return The values of the feature, null if there is no such feature
+	 */
+	public int[] getIntMeasurements(final String objectName, final String name) {
+		return get(m_intFeatures, objectName, name);
+	}
+
+	/**
+	 * @param objectName
+	 *            The name of the object table, null for the image table
+	 * @param name
+	 *            The name of the feature
+	 * @return The value of the feature, null if there is no such feature
+	 */
+	public String getStringMeasurement(final String objectName, final String name) {
+		return get(m_stringFeatures, objectName, name);
+	}
+
+	/**
+	 * @return Values of the double features by object name and feature name.
+	 */
+	Map<String, Map<String, double[]>> getDoubleFeatures() {
+		return m_doubleFeatures;
+	}
+
+	/**
+	 * @return Values of the float features by object name and feature name.
+	 */
+	Map<String, Map<String, float[]>> getFloatFeatures() {
+		return m_floatFeatures;
+	}
+
+	/**
+	 * @return Values of the integer features by object name and feature name.
+	 */
+	Map<String, Map<String, int[]>> getIntFeatures() {
+		return m_intFeatures;
+	}
+
+	/**
+	 * @return Values of the string features by object name and feature name.
+	 */
+	Map<String, Map<String, String>> getStringFeatures() {
+		return m_stringFeatures;
+	}
+
+	private static <T> T get(final Map<String, Map<String, T>> features, final String objectName,
+			final String name) {
+		final Map<String, T> table = features.get(objectName != null ? objectName : KBConstants.IMAGE);
+		return table != null ? table.get(name) : null;
+	}
+
+}
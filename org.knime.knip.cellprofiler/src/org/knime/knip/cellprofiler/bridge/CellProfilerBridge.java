@@ -0,0 +1,898 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.cellprofiler.knimebridge.CellProfilerException;
+import org.cellprofiler.knimebridge.IFeatureDescription;
+import org.cellprofiler.knimebridge.IKnimeBridge;
+import org.cellprofiler.knimebridge.KBConstants;
+import org.cellprofiler.knimebridge.PipelineException;
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.cellprofiler.knimebridge.message.CleanPipelineReq;
+import org.cellprofiler.knimebridge.message.ConnectReq;
+import org.cellprofiler.knimebridge.message.PipelineInfoReply;
+import org.cellprofiler.knimebridge.message.PipelineInfoReq;
+import org.cellprofiler.knimebridge.message.RunGroupReq;
+import org.cellprofiler.knimebridge.message.RunReq;
+import org.knime.knip.core.KNIPGateway;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMQException;
+import org.zeromq.ZMsg;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Connection to a CellProfiler worker speaking the knime-bridge protocol.
+ * 
+ * In contrast to the bridge bundled with the knime-bridge library, the
+ * pipeline is registered once per session (see {@link PreparePipelineReq}) and
+ * run requests only reference it by its ID. CellProfiler versions that don't
+ * support this are detected on the first run and are sent the pipeline with
+ * every run request as before.
+ * 
+ * When the pipeline is registered, the worker also announces the
+ * {@link ImageEncoding}s it understands, so images can be sent as floats or in
+ * their native integer type instead of doubles. Workers on the same machine
+ * can also read the images from shared memory instead of the socket, see
+ * {@link #setSharedMemoryEnabled(boolean)}.
+ * 
+ * Run requests fail with a {@link WorkerFailedException} if the worker doesn't
+ * answer within the request timeout or its process exits, see
+ * {@link #setRequestTimeout(long)} and {@link #setWorkerProcess(Process)}.
+ */
+@SuppressWarnings("deprecation")
+public class CellProfilerBridge implements IKnimeBridge {
+
+	private static final Context CONTEXT = ZMQ.context(1);
+
+	/**
+	 * Time in milliseconds to wait for older CellProfiler versions, which
+	 * don't answer requests they don't know. Workers supporting prepared
+	 * pipelines answer right away, they only parse the pipeline.
+	 */
+	private static final int PROBE_TIMEOUT = 2000;
+
+	/**
+	 * Interval in milliseconds in which the worker process is checked while
+	 * waiting for a reply.
+	 */
+	private static final long POLL_INTERVAL = 500;
+
+	private static final String CONNECT_REQUEST = "connect-request-1";
+
+	private static final String CONNECT_REPLY = "connect-reply-1";
+
+	private URI m_uri;
+
+	private Socket m_socket;
+
+	private String m_sessionID;
+
+	private String m_pipeline;
+
+	private PipelineInfoReply m_pipelineInfo;
+
+	private BulkRunReply m_runReply;
+
+	private Boolean m_preparedPipelineSupported;
+
+	private boolean m_prepareTimedOut;
+
+	private String m_pipelineID;
+
+	private Set<ImageEncoding> m_imageEncodings = Collections.singleton(ImageEncoding.FLOAT64);
+
+	private boolean m_batchRunSupported;
+
+	private String m_workerVersion;
+
+	private Map<String, List<String>> m_selectedFeatures;
+
+	private boolean m_sharedMemoryEnabled;
+
+	private SharedMemory m_sharedMemory;
+
+	private long m_requestTimeout;
+
+	// Polls m_socket, replaced with it
+	private ZMQ.Poller m_poller;
+
+	private int m_connectTimeout = -1;
+
+	private Process m_workerProcess;
+
+	private StageStatistics m_statistics;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void connect(final URI uri) throws ZMQException, ProtocolException {
+		m_uri = uri;
+		openSocket();
+	}
+
+	private void openSocket() throws ProtocolException {
+		m_socket = openSocket(m_uri, m_connectTimeout);
+		m_poller = new ZMQ.Poller(1);
+		m_poller.register(m_socket, ZMQ.Poller.POLLIN);
+		if (m_connectTimeout < 0) {
+			m_sessionID = ConnectReq.connect(m_socket);
+			return;
+		}
+		try {
+			m_sessionID = connect(m_socket, m_connectTimeout);
+		} catch (ProtocolException | ZMQException e) {
+			disconnect();
+			throw e;
+		}
+		m_socket.setReceiveTimeOut(-1);
+	}
+
+	/**
+	 * Sends a connect request like {@link ConnectReq#connect(Socket)}, which
+	 * can't handle a receive timeout.
+	 * 
+	 * @return The session ID
+	 * @throws ProtocolException
+	 *             If the worker didn't answer within the receive timeout of
+	 *             the socket or the reply could not be understood
+	 */
+	private static String connect(final Socket socket, final int timeout) throws ProtocolException {
+		final String sessionID = UUID.randomUUID().toString();
+		final ZMsg request = new ZMsg();
+		request.add(CONNECT_REQUEST);
+		request.wrap(new ZFrame(sessionID));
+		if (!request.send(socket)) {
+			throw new ProtocolException("Failed to send connect request");
+		}
+		final ZMsg reply = ZMsg.recvMsg(socket);
+		if (reply == null) {
+			throw new ProtocolException("The CellProfiler worker did not answer within " + timeout + " ms");
+		}
+		reply.unwrap();
+		if (!CONNECT_REPLY.equals(reply.popString())) {
+			throw new ProtocolException("Unexpected reply to connect request");
+		}
+		return sessionID;
+	}
+
+	private static Socket openSocket(final URI uri, final int receiveTimeout) {
+		final Socket socket = CONTEXT.socket(ZMQ.REQ);
+		// Don't block on close if the worker went away
+		socket.setLinger(0);
+		socket.setReceiveTimeOut(receiveTimeout);
+		socket.connect(uri.toString());
+		return socket;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void disconnect() {
+		if (m_socket != null) {
+			// The poller of this jeromq version only holds the registration
+			m_poller.unregister(m_socket);
+			m_poller = null;
+			m_socket.close();
+			m_socket = null;
+		}
+		closeSharedMemory();
+	}
+
+	/**
+	 * Lets the images be transferred via shared memory if the worker runs on
+	 * the same machine and supports it. Takes effect when the pipeline is
+	 * prepared next. Image sets encoded in advance are still sent via the
+	 * socket, see {@link EncodedImages}.
+	 * 
+	 * @param enabled
+	 *            True to use shared memory if possible
+	 */
+	public void setSharedMemoryEnabled(final boolean enabled) {
+		m_sharedMemoryEnabled = enabled;
+		if (!enabled) {
+			closeSharedMemory();
+		}
+	}
+
+	/**
+	 * @return True if the images are currently transferred via shared memory.
+	 */
+	public boolean isSharedMemoryUsed() {
+		return m_sharedMemory != null;
+	}
+
+	private void closeSharedMemory() {
+		if (m_sharedMemory != null) {
+			m_sharedMemory.close();
+			m_sharedMemory = null;
+		}
+	}
+
+	/**
+	 * @param timeout
+	 *            Time in milliseconds to wait for the reply to a run request,
+	 *            0 to wait without limit
+	 */
+	public void setRequestTimeout(final long timeout) {
+		m_requestTimeout = timeout;
+	}
+
+	/**
+	 * Tells the worker which features are used when the pipeline is prepared
+	 * next, so that it can skip the others. Workers not supporting this still
+	 * measure and return all features.
+	 * 
+	 * @param selectedFeatures
+	 *            The names of the used features of each measurement table by
+	 *            object name, null if all are used
+	 */
+	public void setSelectedFeatures(final Map<String, List<String>> selectedFeatures) {
+		if (selectedFeatures == null ? m_selectedFeatures != null : !selectedFeatures.equals(m_selectedFeatures)) {
+			m_selectedFeatures = selectedFeatures;
+			// Registered again with the new selection on the next run
+			m_pipelineID = null;
+		}
+	}
+
+	/**
+	 * @param timeout
+	 *            Time in milliseconds to wait for a worker to accept the
+	 *            connection, -1 to wait without limit. Applies to the next
+	 *            connect.
+	 */
+	public void setConnectTimeout(final int timeout) {
+		m_connectTimeout = timeout;
+	}
+
+	/**
+	 * @param process
+	 *            The local process of the worker, which is watched while
+	 *            waiting for replies, or null if unknown
+	 */
+	public void setWorkerProcess(final Process process) {
+		m_workerProcess = process;
+	}
+
+	/**
+	 * @param statistics
+	 *            Statistics the durations of the stages of each run are added
+	 *            to, null to not record them
+	 */
+	public void setStatistics(final StageStatistics statistics) {
+		m_statistics = statistics;
+	}
+
+	private long record(final StageStatistics.Stage stage, final long startNanos) {
+		return m_statistics != null ? m_statistics.record(stage, startNanos) : System.nanoTime();
+	}
+
+	private boolean isLocal() {
+		try {
+			return InetAddress.getByName(m_uri.getHost()).isLoopbackAddress();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void loadPipeline(final String pipeline) throws PipelineException, ZMQException, ProtocolException {
+		m_pipelineInfo = PipelineInfoReq.send(m_socket, m_sessionID, pipeline);
+		setPipeline(pipeline);
+	}
+
+	/**
+	 * Loads a pipeline whose channels and features are already known, without
+	 * asking the worker. The pipeline is sent to the worker with the first
+	 * run.
+	 * 
+	 * @param pipeline
+	 *            The pipeline, usually already cleaned
+	 * @param channels
+	 *            Names of the input images
+	 * @param features
+	 *            Features of each measurement table by object name, including
+	 *            the image table
+	 */
+	public void loadPipeline(final String pipeline, final List<String> channels,
+			final Map<String, List<IFeatureDescription>> features) {
+		m_pipelineInfo = new KnownPipelineInfo(channels, features);
+		setPipeline(pipeline);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void loadPipeline(final File pipeline) throws PipelineException, IOException, ProtocolException {
+		loadPipeline(FileUtils.readFileToString(pipeline));
+	}
+
+	private void setPipeline(final String pipeline) {
+		m_pipeline = pipeline;
+		// Registered again on the next run
+		m_pipelineID = null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void cleanPipeline() throws PipelineException, IOException, ProtocolException {
+		setPipeline(cleanPipeline(m_pipeline));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void cleanPipeline(final int flags) throws PipelineException, IOException, ProtocolException {
+		setPipeline(cleanPipeline(m_pipeline, flags));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void cleanPipeline(final Collection<String> moduleNames)
+			throws PipelineException, IOException, ProtocolException {
+		setPipeline(cleanPipeline(m_pipeline, moduleNames));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String cleanPipeline(final String pipeline, final Collection<String> moduleNames)
+			throws PipelineException, IOException, ProtocolException {
+		return CleanPipelineReq.send(m_socket, m_sessionID, pipeline, moduleNames).getPipeline();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String cleanPipeline(final String pipeline, final int flags)
+			throws PipelineException, IOException, ProtocolException {
+		final List<String> moduleNames = new ArrayList<String>();
+		if ((flags & KBConstants.REMOVE_EXPORT_TO_DATABASE) != 0) {
+			moduleNames.add(KBConstants.EXPORT_TO_DATABASE);
+		}
+		if ((flags & KBConstants.REMOVE_EXPORT_TO_SPREADSHEET) != 0) {
+			moduleNames.add(KBConstants.EXPORT_TO_SPREADSHEET);
+		}
+		if ((flags & KBConstants.REMOVE_SAVE_IMAGES) != 0) {
+			moduleNames.add(KBConstants.SAVE_IMAGES);
+		}
+		return cleanPipeline(pipeline, moduleNames);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String cleanPipeline(final String pipeline) throws PipelineException, IOException, ProtocolException {
+		return cleanPipeline(pipeline, KBConstants.REMOVE_ALL);
+	}
+
+	/**
+	 * @return The current (cleaned) pipeline text.
+	 */
+	public String getPipeline() {
+		return m_pipeline;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<String> getInputChannels() throws ZMQException {
+		return m_pipelineInfo.getChannels();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<String> getResultTableNames() throws ZMQException {
+		final List<String> names = new ArrayList<String>(m_pipelineInfo.getObjects());
+		names.add(KBConstants.IMAGE);
+		return names;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<IFeatureDescription> getFeatures(final String resultTableName) throws ZMQException {
+		if (resultTableName == null) {
+			return m_pipelineInfo.getImageFeatureDescriptions();
+		}
+		return m_pipelineInfo.getFeatureDescriptions(resultTableName);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void run(final Map<String, ImgPlus<?>> images)
+			throws ZMQException, CellProfilerException, PipelineException, ProtocolException {
+		run(scale(images), false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void runGroup(final Map<String, ImgPlus<?>> images)
+			throws ZMQException, CellProfilerException, PipelineException, ProtocolException {
+		run(scale(images), true);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, ScaledImage> scale(final Map<String, ImgPlus<?>> images) {
+		final Map<String, ScaledImage> scaled = new LinkedHashMap<String, ScaledImage>();
+		for (final Map.Entry<String, ImgPlus<?>> entry : images.entrySet()) {
+			scaled.put(entry.getKey(), ScaledImage.of((ImgPlus<? extends RealType<?>>) entry.getValue()));
+		}
+		return scaled;
+	}
+
+	/**
+	 * Runs the pipeline on an image set, encoding the images in the most
+	 * compact way the worker supports.
+	 * 
+	 * @param images
+	 *            Map of channel name to image
+	 * @param group
+	 *            True if the images contain a group of image sets
+	 * @throws CellProfilerException
+	 *             If CellProfiler failed to run the pipeline
+	 * @throws PipelineException
+	 *             If the pipeline could not be run
+	 * @throws ProtocolException
+	 *             If the reply could not be understood
+	 */
+	public void run(final Map<String, ScaledImage> images, final boolean group)
+			throws CellProfilerException, PipelineException, ProtocolException {
+		preparePipeline();
+		if (m_pipelineID == null) {
+			m_runReply = sendLegacy(images, group);
+		} else if (m_sharedMemory != null) {
+			// Written straight into the shared memory
+			final long start = System.nanoTime();
+			final EncodedImages encoded;
+			try {
+				encoded = ImageEncoder.encode(images, m_imageEncodings, m_sharedMemory);
+			} catch (IOException e) {
+				sharedMemoryFailed(e);
+				run(images, group);
+				return;
+			}
+			record(StageStatistics.Stage.ENCODE, start);
+			sendPrepared(encoded, group);
+		} else {
+			final long start = System.nanoTime();
+			final EncodedImages encoded = EncodedImages.encode(images, m_imageEncodings);
+			record(StageStatistics.Stage.ENCODE, start);
+			sendPrepared(encoded, group);
+		}
+	}
+
+	/**
+	 * Runs the pipeline on an image set encoded in advance. The images are
+	 * encoded again if the worker doesn't support the encodings used, and
+	 * sent via the socket otherwise.
+	 * 
+	 * @param images
+	 *            The encoded image set
+	 * @param group
+	 *            True if the images contain a group of image sets
+	 * @throws CellProfilerException
+	 *             If CellProfiler failed to run the pipeline
+	 * @throws PipelineException
+	 *             If the pipeline could not be run
+	 * @throws ProtocolException
+	 *             If the reply could not be understood
+	 */
+	public void run(final EncodedImages images, final boolean group)
+			throws CellProfilerException, PipelineException, ProtocolException {
+		preparePipeline();
+		if (m_pipelineID == null || !m_imageEncodings.containsAll(images.getEncodings())) {
+			run(images.getImages(), group);
+		} else {
+			sendPrepared(images, group);
+		}
+	}
+
+	private void sendPrepared(final EncodedImages images, final boolean group)
+			throws CellProfilerException, PipelineException, ProtocolException {
+		final long start = System.nanoTime();
+		PreparedRunReq.send(m_socket, m_sessionID, m_pipelineID, images, group);
+		record(StageStatistics.Stage.SEND, start);
+		m_runReply = receiveRunReply();
+	}
+
+	private void sharedMemoryFailed(final IOException e) {
+		KNIPGateway.log().warn("Could not write images to shared memory, sending them via the socket: " + e.getMessage());
+		m_sharedMemoryEnabled = false;
+		closeSharedMemory();
+	}
+
+	private BulkRunReply sendLegacy(final Map<String, ScaledImage> images, final boolean group)
+			throws CellProfilerException, PipelineException, ProtocolException {
+		long start = System.nanoTime();
+		final Map<String, ImgPlus<?>> floatImages = new LinkedHashMap<String, ImgPlus<?>>();
+		for (final Map.Entry<String, ScaledImage> entry : images.entrySet()) {
+			floatImages.put(entry.getKey(), entry.getValue().toFloatImgPlus());
+		}
+		final ZMsg request = group ? new LegacyRunGroupReq(m_sessionID, m_pipeline, floatImages)
+				: new LegacyRunReq(m_sessionID, m_pipeline, floatImages);
+		start = record(StageStatistics.Stage.ENCODE, start);
+		if (!request.send(m_socket)) {
+			throw new ProtocolException("Failed to send run request");
+		}
+		record(StageStatistics.Stage.SEND, start);
+		return receiveRunReply();
+	}
+
+	private BulkRunReply receiveRunReply() throws CellProfilerException, PipelineException, ProtocolException {
+		return receive(new BulkRunReply(), m_requestTimeout);
+	}
+
+	private <R extends AbstractReply> R receive(final R reply, final long timeout)
+			throws CellProfilerException, PipelineException, ProtocolException {
+		final long start = System.nanoTime();
+		awaitReply(timeout);
+		final long received = record(StageStatistics.Stage.COMPUTE, start);
+		reply.recv(m_socket);
+		record(StageStatistics.Stage.DECODE, received);
+		return reply;
+	}
+
+	/**
+	 * Runs the pipeline on several image sets in one request. Only possible
+	 * if {@link #isBatchRunSupported()}. The request timeout applies to each
+	 * image set.
+	 * 
+	 * @param imageSets
+	 *            The encoded image sets, encoded again if the worker doesn't
+	 *            support the encodings used
+	 * @return The measurements of each image set
+	 * @throws CellProfilerException
+	 *             If CellProfiler failed to run the pipeline on any image set
+	 * @throws PipelineException
+	 *             If the pipeline could not be run
+	 * @throws ProtocolException
+	 *             If the reply could not be understood
+	 */
+	public List<BulkRunReply> runBatch(final List<EncodedImages> imageSets)
+			throws CellProfilerException, PipelineException, ProtocolException {
+		preparePipeline();
+		if (!isBatchRunSupported()) {
+			throw new IllegalStateException("CellProfiler does not support batch runs");
+		}
+		long start = System.nanoTime();
+		final List<EncodedImages> encoded = new ArrayList<EncodedImages>(imageSets.size());
+		for (final EncodedImages images : imageSets) {
+			encoded.add(m_imageEncodings.containsAll(images.getEncodings()) ? images
+					: EncodedImages.encode(images.getImages(), m_imageEncodings));
+		}
+		start = record(StageStatistics.Stage.ENCODE, start);
+		BatchRunReq.send(m_socket, m_sessionID, m_pipelineID, encoded);
+		record(StageStatistics.Stage.SEND, start);
+		final BatchRunReply reply = receive(new BatchRunReply(), m_requestTimeout * imageSets.size());
+		if (reply.getReplies().size() != imageSets.size()) {
+			throw new ProtocolException("Expected the measurements of " + imageSets.size() + " image sets, got "
+					+ reply.getReplies().size());
+		}
+		m_runReply = null;
+		return reply.getReplies();
+	}
+
+	/**
+	 * @return The version of CellProfiler the worker reported when the
+	 *         pipeline was prepared, null if it didn't.
+	 */
+	public String getWorkerVersion() {
+		return m_workerVersion;
+	}
+
+	/**
+	 * @return True if the pipeline is prepared and the worker accepts several
+	 *         image sets in one request.
+	 */
+	public boolean isBatchRunSupported() {
+		return m_pipelineID != null && m_batchRunSupported;
+	}
+
+	/**
+	 * Waits until the reply to a request can be received.
+	 * 
+	 * @param timeout
+	 *            Time in milliseconds to wait at most, 0 to wait without limit
+	 * @throws WorkerFailedException
+	 *             If the request timed out or the worker process exited
+	 */
+	private void awaitReply(final long timeout) throws WorkerFailedException {
+		if (timeout <= 0 && m_workerProcess == null && m_statistics == null) {
+			return;
+		}
+		final long deadline = System.currentTimeMillis() + timeout;
+		while (true) {
+			long wait = POLL_INTERVAL;
+			if (timeout > 0) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw new WorkerFailedException(
+							"CellProfiler did not answer within " + timeout / 1000.0 + " seconds", true);
+				}
+				wait = Math.min(wait, remaining);
+			}
+			if (m_poller.poll(wait) > 0 && m_poller.pollin(0)) {
+				return;
+			}
+			if (m_workerProcess != null && !m_workerProcess.isAlive()) {
+				throw new WorkerFailedException(
+						"The CellProfiler process exited with code " + m_workerProcess.exitValue(), false);
+			}
+		}
+	}
+
+	/**
+	 * Connection checking repeatedly if a worker answers connect requests.
+	 * The socket is kept open between checks and only opened again after a
+	 * check failed.
+	 */
+	public static final class PingConnection implements Closeable {
+
+		private final URI m_uri;
+
+		private final int m_timeout;
+
+		private Socket m_socket;
+
+		/**
+		 * @param uri
+		 *            Address of the worker
+		 * @param timeout
+		 *            Time in milliseconds to wait for each reply
+		 */
+		public PingConnection(final URI uri, final int timeout) {
+			m_uri = uri;
+			m_timeout = timeout;
+		}
+
+		/**
+		 * @return True if the worker answered in time.
+		 */
+		public boolean ping() {
+			if (m_socket == null) {
+				m_socket = openSocket(m_uri, m_timeout);
+			}
+			try {
+				connect(m_socket, m_timeout);
+				return true;
+			} catch (ProtocolException | ZMQException e) {
+				// A REQ socket waiting for a reply can't send anymore
+				close();
+				return false;
+			}
+		}
+
+		/**
+		 * Closes the socket, the next check opens a new one.
+		 */
+		@Override
+		public void close() {
+			if (m_socket != null) {
+				m_socket.close();
+				m_socket = null;
+			}
+		}
+	}
+
+	/**
+	 * Run request of the bundled bridge, which only offers to send it and wait
+	 * for the reply at once.
+	 */
+	private static final class LegacyRunReq extends RunReq {
+
+		private LegacyRunReq(final String sessionID, final String pipeline, final Map<String, ImgPlus<?>> images) {
+			super(sessionID, pipeline, images);
+		}
+	}
+
+	/**
+	 * Pipeline info that was not received from the worker.
+	 */
+	private static final class KnownPipelineInfo extends PipelineInfoReply {
+
+		private KnownPipelineInfo(final List<String> channels,
+				final Map<String, List<IFeatureDescription>> features) {
+			setInfo(new ArrayList<String>(channels), new HashMap<String, List<IFeatureDescription>>(features));
+		}
+	}
+
+	/**
+	 * Run group request of the bundled bridge, see {@link LegacyRunReq}.
+	 */
+	private static final class LegacyRunGroupReq extends RunGroupReq {
+
+		private LegacyRunGroupReq(final String sessionID, final String pipeline,
+				final Map<String, ImgPlus<?>> images) {
+			super(sessionID, pipeline, images);
+		}
+	}
+
+	/**
+	 * Registers the current pipeline with the session and negotiates the image
+	 * encodings. If the worker doesn't support this, the bridge falls back to
+	 * sending the pipeline and double images with every run request.
+	 * 
+	 * This happens on the first run if not called before, and does nothing if
+	 * the pipeline is already prepared or known to be unsupported.
+	 * 
+	 * @throws PipelineException
+	 *             If the pipeline could not be parsed
+	 * @throws ProtocolException
+	 *             If the reply could not be understood
+	 */
+	public void preparePipeline() throws PipelineException, ProtocolException {
+		if (m_pipelineID != null || Boolean.FALSE.equals(m_preparedPipelineSupported)) {
+			return;
+		}
+		m_socket.setReceiveTimeOut(PROBE_TIMEOUT);
+		final PreparePipelineReply reply;
+		try {
+			reply = PreparePipelineReq.send(m_socket, m_sessionID, m_pipeline, m_selectedFeatures);
+		} finally {
+			m_socket.setReceiveTimeOut(-1);
+		}
+		m_preparedPipelineSupported = reply.isSupported();
+		m_prepareTimedOut = reply.isTimedOut();
+		m_imageEncodings = reply.getImageEncodings();
+		m_batchRunSupported = reply.getCapabilities().contains(PreparePipelineReply.BATCH_RUN);
+		m_workerVersion = reply.getVersion();
+		if (reply.isSupported()) {
+			m_pipelineID = reply.getPipelineID();
+			if (m_sharedMemoryEnabled && m_sharedMemory == null
+					&& reply.getTransports().contains(PreparePipelineReply.SHARED_MEMORY) && isLocal()) {
+				try {
+					m_sharedMemory = new SharedMemory();
+				} catch (IOException e) {
+					sharedMemoryFailed(e);
+				}
+			}
+			return;
+		}
+		KNIPGateway.log().debug("CellProfiler does not support prepared pipelines, sending the pipeline with every run.");
+		if (reply.isTimedOut()) {
+			// A REQ socket waiting for a reply can't send anymore. The
+			// pipeline info is kept, run requests carry the pipeline.
+			disconnect();
+			openSocket();
+		}
+	}
+
+	/**
+	 * @return True if the worker registers pipelines, false if it doesn't
+	 *         and null if it was not asked yet.
+	 */
+	public Boolean isPreparedPipelineSupported() {
+		return m_preparedPipelineSupported;
+	}
+
+	/**
+	 * @return True if prepared pipelines are not used because the worker
+	 *         didn't answer in time, which older CellProfiler versions and busy
+	 *         workers have in common. False if the worker answered or was not
+	 *         asked yet.
+	 */
+	public boolean isPrepareTimedOut() {
+		return m_prepareTimedOut;
+	}
+
+	/**
+	 * Lets the bridge skip asking the worker to register the pipeline, if it
+	 * is known not to support it, e.g. from another connection to the same
+	 * CellProfiler installation.
+	 * 
+	 * @param supported
+	 *            False to send the pipeline with every run request right away,
+	 *            null to ask the worker on the next run
+	 */
+	public void setPreparedPipelineSupported(final Boolean supported) {
+		m_preparedPipelineSupported = supported;
+		m_prepareTimedOut = false;
+	}
+
+	/**
+	 * @return True if the pipeline is registered with the session, false if
+	 *         it is sent with every run request.
+	 */
+	public boolean isPipelinePrepared() {
+		return m_pipelineID != null;
+	}
+
+	/**
+	 * @return The image encodings supported by the worker. Only
+	 *         {@link ImageEncoding#FLOAT64} before the pipeline is prepared.
+	 */
+	public Set<ImageEncoding> getImageEncodings() {
+		return m_imageEncodings;
+	}
+
+	/**
+	 * @return The measurements of the last run, null after a batch run.
+	 */
+	public BulkRunReply getRunReply() {
+		return m_runReply;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getNumberOfRows(final String resultTableName) {
+		return m_runReply.getNumberOfObjects(resultTableName);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int[] getIntMeasurements(final IFeatureDescription feature) {
+		return m_runReply.getIntMeasurements(feature.getObjectName(), feature.getName());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public double[] getDoubleMeasurements(final IFeatureDescription feature) {
+		return m_runReply.getDoubleMeasurements(feature.getObjectName(), feature.getName());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public float[] getFloatMeasurements(final IFeatureDescription feature) {
+		return m_runReply.getFloatMeasurements(feature.getObjectName(), feature.getName());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getStringMeasurement(final IFeatureDescription feature) {
+		return m_runReply.getStringMeasurement(feature.getObjectName(), feature.getName());
+	}
+
+}
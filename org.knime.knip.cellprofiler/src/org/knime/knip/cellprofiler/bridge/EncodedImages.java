@@ -0,0 +1,136 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonValue;
+
+import org.zeromq.ZMsg;
+
+/**
+ * Image set serialized for a prepared run request. Encoding doesn't depend on
+ * the connection, so it can happen before a worker is available. The source
+ * images are kept for workers which don't support the encodings used.
+ * 
+ * Only the bridge of a worker encodes into its shared memory, when it runs an
+ * image set that wasn't encoded in advance. Image sets encoded in advance are
+ * sent in frames, also to workers reading shared memory: encoding them into
+ * the shared memory of a worker would have to wait until the worker is taken,
+ * which is what encoding in advance avoids, and copying them over would cost
+ * another pass over all pixels while the worker waits. The price is that the
+ * worker receives their pixels via the socket.
+ */
+public final class EncodedImages {
+
+	private final Map<String, ScaledImage> m_images;
+
+	private final Set<ImageEncoding> m_encodings;
+
+	private final JsonArray[] m_channels;
+
+	private final ByteBuffer[] m_frames;
+
+	private final SharedMemory m_memory;
+
+	private final long[] m_offsets;
+
+	EncodedImages(final Map<String, ScaledImage> images, final Set<ImageEncoding> encodings,
+			final JsonArray[] channels, final ByteBuffer[] frames, final SharedMemory memory, final long[] offsets) {
+		m_images = images;
+		m_encodings = encodings;
+		m_channels = channels;
+		m_frames = frames;
+		m_memory = memory;
+		m_offsets = offsets;
+	}
+
+	/**
+	 * Encodes an image set.
+	 * 
+	 * @param images
+	 *            Map of channel name to image
+	 * @param supported
+	 *            The encodings supported by the workers, see
+	 *            {@link CellProfilerBridge#getImageEncodings()}
+	 * @return The encoded images
+	 */
+	public static EncodedImages encode(final Map<String, ScaledImage> images, final Set<ImageEncoding> supported) {
+		try {
+			return ImageEncoder.encode(images, supported, null);
+		} catch (IOException e) {
+			// Only thrown when writing to shared memory
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return Map of channel name to source image.
+	 */
+	public Map<String, ScaledImage> getImages() {
+		return m_images;
+	}
+
+	/**
+	 * @return The encodings used by the image frames.
+	 */
+	public Set<ImageEncoding> getEncodings() {
+		return m_encodings;
+	}
+
+	/**
+	 * @return Number of bytes of the pixels of all images.
+	 */
+	public long getNumBytes() {
+		long numBytes = 0;
+		for (final ByteBuffer frame : m_frames) {
+			numBytes += frame.remaining();
+		}
+		return numBytes;
+	}
+
+	/**
+	 * Adds the metadata frame and, unless the pixels were encoded into shared
+	 * memory, the image frames to the message.
+	 * 
+	 * @param msg
+	 *            The message
+	 */
+	void addTo(final ZMsg msg) {
+		final JsonArrayBuilder builder = Json.createArrayBuilder();
+		for (int i = 0; i < m_channels.length; i++) {
+			final JsonArrayBuilder channel = Json.createArrayBuilder();
+			for (final JsonValue value : m_channels[i]) {
+				channel.add(value);
+			}
+			if (m_memory != null) {
+				channel.add(Json.createArrayBuilder().add(m_memory.getPath()).add(m_offsets[i])
+						.add(m_frames[i].remaining()));
+			}
+			builder.add(channel);
+		}
+		final StringWriter sw = new StringWriter();
+		Json.createWriter(sw).writeArray(builder.build());
+		msg.add(sw.toString());
+		if (m_memory == null) {
+			for (final ByteBuffer frame : m_frames) {
+				msg.add(toArray(frame));
+			}
+		}
+	}
+
+	private static byte[] toArray(final ByteBuffer frame) {
+		if (frame.hasArray() && frame.arrayOffset() == 0 && frame.remaining() == frame.array().length) {
+			return frame.array();
+		}
+		final byte[] bytes = new byte[frame.remaining()];
+		frame.duplicate().get(bytes);
+		return bytes;
+	}
+
+}
@@ -0,0 +1,139 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Serializes the images of a prepared run request:
+ * <ul>
+ * <li>frame containing a JSON array where each slot is a 5-tuple of channel
+ * name, an array of 3-tuples of axis name, dimension and stride, the
+ * {@link ImageEncoding} name, offset and scale. If the image was written to
+ * shared memory, a 3-tuple of file path, offset and length is appended.</li>
+ * <li>one frame per image not written to shared memory, containing its pixels
+ * in the given encoding, organized by the strides</li>
+ * </ul>
+ * 
+ * The pixels are laid out with the first axis varying fastest (Fortran
+ * order), which is the flat iteration order of the image, so they are written
+ * in a single sequential pass into the frame buffer. This differs from the run
+ * request of the bundled bridge, whose last axis varies fastest. Workers must
+ * read the pixels by the strides given per axis, in pixels, rather than
+ * assume an order. The pixels are sent unscaled in all encodings, the worker
+ * applies the offset and scale. The range of images normalized to their pixel values is
+ * determined while the pixels are written, so they are read only once.
+ */
+final class ImageEncoder {
+
+	private ImageEncoder() {
+		// utility class
+	}
+
+	/**
+	 * Encodes all images of an image set.
+	 * 
+	 * @param images
+	 *            Map of channel name to image
+	 * @param supported
+	 *            The encodings supported by the worker
+	 * @param memory
+	 *            Shared memory to write the pixels to, null to write them to
+	 *            frames
+	 * @return The encoded images
+	 * @throws IOException
+	 *             If the shared memory could not be mapped
+	 */
+	static EncodedImages encode(final Map<String, ScaledImage> images, final Set<ImageEncoding> supported,
+			final SharedMemory memory) throws IOException {
+		final Set<ImageEncoding> used = EnumSet.noneOf(ImageEncoding.class);
+		final JsonArray[] channels = new JsonArray[images.size()];
+		final ByteBuffer[] frames = new ByteBuffer[images.size()];
+		final long[] offsets = memory != null ? new long[images.size()] : null;
+		final ImageEncoding[] encodings = new ImageEncoding[images.size()];
+		final int[] sizes = new int[images.size()];
+		long totalSize = 0;
+		int i = 0;
+		for (final Map.Entry<String, ScaledImage> entry : images.entrySet()) {
+			encodings[i] = ImageEncoding.select(entry.getValue().getImg(), supported);
+			sizes[i] = getFrameSize(entry.getKey(), entry.getValue().getImg(), encodings[i]);
+			totalSize += sizes[i];
+			i++;
+		}
+		if (memory != null) {
+			memory.reset(totalSize);
+		}
+		i = 0;
+		for (final Map.Entry<String, ScaledImage> entry : images.entrySet()) {
+			if (memory != null) {
+				offsets[i] = memory.getPosition();
+				frames[i] = memory.allocate(sizes[i]);
+			} else {
+				frames[i] = ByteBuffer.allocate(sizes[i]).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			channels[i] = encode(entry.getKey(), entry.getValue(), encodings[i], frames[i]);
+			used.add(encodings[i]);
+			i++;
+		}
+		return new EncodedImages(images, used, channels, frames, memory, offsets);
+	}
+
+	private static int getFrameSize(final String channel, final ImgPlus<?> imgPlus, final ImageEncoding encoding) {
+		long numElements = 1;
+		for (int d = 0; d < imgPlus.numDimensions(); d++) {
+			numElements *= imgPlus.dimension(d);
+		}
+		if (numElements > Integer.MAX_VALUE / encoding.getBytesPerPixel()) {
+			throw new IllegalArgumentException("Image of channel " + channel + " is too large to be transferred");
+		}
+		return (int) numElements * encoding.getBytesPerPixel();
+	}
+
+	private static JsonArray encode(final String channel, final ScaledImage image, final ImageEncoding encoding,
+			final ByteBuffer buffer) {
+		final ImgPlus<? extends RealType<?>> imgPlus = image.getImg();
+		final int numDimensions = imgPlus.numDimensions();
+		final long[] strides = createStrides(imgPlus);
+		final JsonArrayBuilder axes = Json.createArrayBuilder();
+		for (int d = 0; d < numDimensions; d++) {
+			axes.add(Json.createArrayBuilder().add(imgPlus.axis(d).type().toString()).add(imgPlus.dimension(d))
+					.add(strides[d]));
+		}
+		// Also float encodings are scaled by the worker, which saves a
+		// multiplication per pixel here and lets float images be copied. The
+		// range is kept with the encoded image rather than set on the shared
+		// source image.
+		final double[] minMax = image.isRangeDeferred() ? new double[2] : null;
+		ImageNormalizer.write(imgPlus, encoding, 0, 1, buffer, minMax);
+		buffer.flip();
+		final double offset = minMax != null ? ScaledImage.offset(minMax[0], minMax[1]) : image.getOffset();
+		final double scale = minMax != null ? ScaledImage.scale(minMax[0], minMax[1]) : image.getScale();
+		return Json.createArrayBuilder().add(channel).add(axes).add(encoding.getName()).add(offset).add(scale)
+				.build();
+	}
+
+	/**
+	 * @return The stride of each axis in pixels, the first axis varying
+	 *         fastest.
+	 */
+	static long[] createStrides(final ImgPlus<?> imgPlus) {
+		final int numDimensions = imgPlus.numDimensions();
+		final long[] strides = new long[numDimensions];
+		strides[0] = 1;
+		for (int d = 1; d < numDimensions; d++) {
+			strides[d] = strides[d - 1] * imgPlus.dimension(d - 1);
+		}
+		return strides;
+	}
+
+}
@@ -0,0 +1,100 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.util.Set;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Pixel encodings of image frames sent with prepared run requests. Workers
+ * announce the encodings they understand when a pipeline is prepared,
+ * {@link #FLOAT64} is always supported.
+ * 
+ * All encodings carry the raw pixel values together with the offset and scale
+ * CellProfiler has to apply, laid out as described by {@link ImageEncoder}.
+ */
+public enum ImageEncoding {
+
+	/** Little-endian doubles. */
+	FLOAT64("float64", 8),
+
+	/** Little-endian floats. */
+	FLOAT32("float32", 4),
+
+	/** Unsigned bytes. */
+	UINT8("uint8", 1),
+
+	/** Little-endian unsigned shorts. */
+	UINT16("uint16", 2);
+
+	private final String m_name;
+
+	private final int m_bytesPerPixel;
+
+	private ImageEncoding(final String name, final int bytesPerPixel) {
+		m_name = name;
+		m_bytesPerPixel = bytesPerPixel;
+	}
+
+	/**
+	 * @return The name used in the protocol.
+	 */
+	public String getName() {
+		return m_name;
+	}
+
+	/**
+	 * @return The number of bytes per encoded pixel.
+	 */
+	public int getBytesPerPixel() {
+		return m_bytesPerPixel;
+	}
+
+	/**
+	 * @return True if the pixel values are sent in the integer type of the
+	 *         image.
+	 */
+	public boolean isNative() {
+		return this == UINT8 || this == UINT16;
+	}
+
+	/**
+	 * @param name
+	 *            The name used in the protocol
+	 * @return The encoding or null if unknown
+	 */
+	public static ImageEncoding fromName(final String name) {
+		for (final ImageEncoding encoding : values()) {
+			if (encoding.m_name.equals(name)) {
+				return encoding;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Selects the most compact encoding for an image which doesn't lose
+	 * precision compared to the float images CellProfiler works on.
+	 * 
+	 * @param img
+	 *            The image
+	 * @param supported
+	 *            The encodings supported by the worker
+	 * @return The encoding to use
+	 */
+	public static ImageEncoding select(final ImgPlus<?> img, final Set<ImageEncoding> supported) {
+		final Object type = img.firstElement();
+		if (type instanceof UnsignedByteType && supported.contains(UINT8)) {
+			return UINT8;
+		}
+		if (type instanceof UnsignedShortType && supported.contains(UINT16)) {
+			return UINT16;
+		}
+		if (supported.contains(FLOAT32)) {
+			return FLOAT32;
+		}
+		return FLOAT64;
+	}
+
+}
@@ -0,0 +1,387 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Reads the pixels of an image in a single pass, optionally determining the
+ * range of the pixel values while they are written to a frame buffer.
+ *
+ * Array backed {@link UnsignedByteType}, {@link UnsignedShortType} and
+ * {@link FloatType} images are read from their storage arrays, whose order is
+ * the flat iteration order. All other images are read with a cursor.
+ */
+final class ImageNormalizer {
+
+	private static final int DIGEST_CHUNK_SIZE = 1 << 16;
+
+	private ImageNormalizer() {
+		// utility class
+	}
+
+	/**
+	 * @param imgPlus
+	 *            The image
+	 * @return Minimum and maximum pixel value of the image
+	 */
+	static double[] minMax(final ImgPlus<? extends RealType<?>> imgPlus) {
+		final double[] minMax = { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		final Object storage = getStorageArray(imgPlus);
+		if (storage instanceof byte[]) {
+			minMax((byte[]) storage, minMax);
+		} else if (storage instanceof short[]) {
+			minMax((short[]) storage, minMax);
+		} else if (storage instanceof float[]) {
+			write((float[]) storage, ImageEncoding.FLOAT32, 0, 1, null, minMax);
+		} else {
+			write(imgPlus, ImageEncoding.FLOAT64, 0, 1, null, minMax);
+		}
+		return minMax;
+	}
+
+	/**
+	 * Writes the pixels of an image in flat iteration order. Values written
+	 * with a float encoding are scaled, native encodings are written as is.
+	 *
+	 * @param imgPlus
+	 *            The image
+	 * @param encoding
+	 *            Encoding of the written pixels
+	 * @param offset
+	 *            Value subtracted from each pixel written with a float encoding
+	 * @param scale
+	 *            Factor applied after subtracting the offset
+	 * @param buffer
+	 *            The buffer to write to
+	 * @param minMax
+	 *            Array the minimum and maximum unscaled pixel value is written
+	 *            to, null if the range isn't needed
+	 */
+	static void write(final ImgPlus<? extends RealType<?>> imgPlus, final ImageEncoding encoding,
+			final double offset, final double scale, final ByteBuffer buffer, final double[] minMax) {
+		if (minMax != null) {
+			minMax[0] = Double.POSITIVE_INFINITY;
+			minMax[1] = Double.NEGATIVE_INFINITY;
+		}
+		final Object storage = getStorageArray(imgPlus);
+		if (storage instanceof byte[]) {
+			write((byte[]) storage, encoding, offset, scale, buffer, minMax);
+		} else if (storage instanceof short[]) {
+			write((short[]) storage, encoding, offset, scale, buffer, minMax);
+		} else if (storage instanceof float[]) {
+			write((float[]) storage, encoding, offset, scale, buffer, minMax);
+		} else {
+			write(Views.flatIterable(imgPlus).cursor(), encoding, offset, scale, buffer, minMax);
+		}
+	}
+
+	/**
+	 * Adds the pixels of an image in flat iteration order to a digest.
+	 *
+	 * @param imgPlus
+	 *            The image
+	 * @param digest
+	 *            The digest to update
+	 */
+	static void digest(final ImgPlus<? extends RealType<?>> imgPlus, final MessageDigest digest) {
+		final Object storage = getStorageArray(imgPlus);
+		if (storage instanceof byte[]) {
+			digest.update((byte[]) storage);
+			return;
+		}
+		final ByteBuffer chunk = ByteBuffer.allocate(DIGEST_CHUNK_SIZE);
+		if (storage instanceof short[]) {
+			for (final short v : (short[]) storage) {
+				if (chunk.remaining() < 2) {
+					update(digest, chunk);
+				}
+				chunk.putShort(v);
+			}
+		} else if (storage instanceof float[]) {
+			for (final float v : (float[]) storage) {
+				if (chunk.remaining() < 4) {
+					update(digest, chunk);
+				}
+				chunk.putFloat(v);
+			}
+		} else {
+			final Cursor<? extends RealType<?>> cursor = Views.flatIterable(imgPlus).cursor();
+			while (cursor.hasNext()) {
+				if (chunk.remaining() < 8) {
+					update(digest, chunk);
+				}
+				chunk.putDouble(cursor.next().getRealDouble());
+			}
+		}
+		update(digest, chunk);
+	}
+
+	private static void update(final MessageDigest digest, final ByteBuffer chunk) {
+		digest.update(chunk.array(), 0, chunk.position());
+		chunk.clear();
+	}
+
+	/**
+	 * @return The storage array of array backed images of the specialized
+	 *         types, null for all other images
+	 */
+	private static Object getStorageArray(final ImgPlus<? extends RealType<?>> imgPlus) {
+		Img<?> img = imgPlus.getImg();
+		while (img instanceof ImgPlus) {
+			img = ((ImgPlus<?>) img).getImg();
+		}
+		if (!(img instanceof ArrayImg)) {
+			return null;
+		}
+		final Object type = imgPlus.firstElement();
+		final Object access = ((ArrayImg<?, ?>) img).update(null);
+		if (type instanceof UnsignedByteType && access instanceof ByteArray) {
+			return ((ByteArray) access).getCurrentStorageArray();
+		} else if (type instanceof UnsignedShortType && access instanceof ShortArray) {
+			return ((ShortArray) access).getCurrentStorageArray();
+		} else if (type instanceof FloatType && access instanceof FloatArray) {
+			return ((FloatArray) access).getCurrentStorageArray();
+		}
+		return null;
+	}
+
+	private static void minMax(final byte[] pixels, final double[] minMax) {
+		int min = 0xff;
+		int max = 0;
+		for (int i = 0; i < pixels.length; i++) {
+			final int v = pixels[i] & 0xff;
+			if (v < min) {
+				min = v;
+			}
+			if (v > max) {
+				max = v;
+			}
+		}
+		setRange(minMax, min, max, pixels.length);
+	}
+
+	private static void minMax(final short[] pixels, final double[] minMax) {
+		int min = 0xffff;
+		int max = 0;
+		for (int i = 0; i < pixels.length; i++) {
+			final int v = pixels[i] & 0xffff;
+			if (v < min) {
+				min = v;
+			}
+			if (v > max) {
+				max = v;
+			}
+		}
+		setRange(minMax, min, max, pixels.length);
+	}
+
+	private static void setRange(final double[] minMax, final double min, final double max, final int numPixels) {
+		if (numPixels > 0) {
+			minMax[0] = min;
+			minMax[1] = max;
+		}
+	}
+
+	private static void write(final byte[] pixels, final ImageEncoding encoding, final double offset,
+			final double scale, final ByteBuffer buffer, final double[] minMax) {
+		switch (encoding) {
+		case UINT8:
+			buffer.put(pixels);
+			if (minMax != null) {
+				minMax(pixels, minMax);
+			}
+			return;
+		default:
+			// As there are only 256 values, they are scaled once
+			final double[] scaled = new double[256];
+			for (int v = 0; v < scaled.length; v++) {
+				scaled[v] = (v - offset) * scale;
+			}
+			if (minMax != null) {
+				minMax(pixels, minMax);
+			}
+			if (encoding == ImageEncoding.FLOAT32) {
+				for (int i = 0; i < pixels.length; i++) {
+					buffer.putFloat((float) scaled[pixels[i] & 0xff]);
+				}
+			} else {
+				for (int i = 0; i < pixels.length; i++) {
+					buffer.putDouble(scaled[pixels[i] & 0xff]);
+				}
+			}
+		}
+	}
+
+	private static void write(final short[] pixels, final ImageEncoding encoding, final double offset,
+			final double scale, final ByteBuffer buffer, final double[] minMax) {
+		if (minMax == null) {
+			// The loops are duplicated, so that encoding alone doesn't pay for
+			// the range
+			switch (encoding) {
+			case UINT16:
+				buffer.asShortBuffer().put(pixels);
+				buffer.position(buffer.position() + 2 * pixels.length);
+				break;
+			case FLOAT32:
+				for (int i = 0; i < pixels.length; i++) {
+					buffer.putFloat((float) (((pixels[i] & 0xffff) - offset) * scale));
+				}
+				break;
+			default:
+				for (int i = 0; i < pixels.length; i++) {
+					buffer.putDouble(((pixels[i] & 0xffff) - offset) * scale);
+				}
+			}
+			return;
+		}
+		int min = 0xffff;
+		int max = 0;
+		switch (encoding) {
+		case UINT16:
+			for (int i = 0; i < pixels.length; i++) {
+				final short v = pixels[i];
+				buffer.putShort(v);
+				final int u = v & 0xffff;
+				if (u < min) {
+					min = u;
+				}
+				if (u > max) {
+					max = u;
+				}
+			}
+			break;
+		case FLOAT32:
+			for (int i = 0; i < pixels.length; i++) {
+				final int u = pixels[i] & 0xffff;
+				buffer.putFloat((float) ((u - offset) * scale));
+				if (u < min) {
+					min = u;
+				}
+				if (u > max) {
+					max = u;
+				}
+			}
+			break;
+		default:
+			for (int i = 0; i < pixels.length; i++) {
+				final int u = pixels[i] & 0xffff;
+				buffer.putDouble((u - offset) * scale);
+				if (u < min) {
+					min = u;
+				}
+				if (u > max) {
+					max = u;
+				}
+			}
+		}
+		setRange(minMax, min, max, pixels.length);
+	}
+
+	private static void write(final float[] pixels, final ImageEncoding encoding, final double offset,
+			final double scale, final ByteBuffer buffer, final double[] minMax) {
+		if (minMax == null) {
+			if (encoding == ImageEncoding.FLOAT32 && offset == 0 && scale == 1) {
+				// Unscaled floats are copied as they are
+				buffer.asFloatBuffer().put(pixels);
+				buffer.position(buffer.position() + 4 * pixels.length);
+			} else if (encoding == ImageEncoding.FLOAT32) {
+				for (int i = 0; i < pixels.length; i++) {
+					buffer.putFloat((float) ((pixels[i] - offset) * scale));
+				}
+			} else {
+				for (int i = 0; i < pixels.length; i++) {
+					buffer.putDouble((pixels[i] - offset) * scale);
+				}
+			}
+			return;
+		}
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		if (buffer == null) {
+			// Only the range is needed
+			for (int i = 0; i < pixels.length; i++) {
+				final float v = pixels[i];
+				if (v < min) {
+					min = v;
+				}
+				if (v > max) {
+					max = v;
+				}
+			}
+		} else if (encoding == ImageEncoding.FLOAT32) {
+			for (int i = 0; i < pixels.length; i++) {
+				final float v = pixels[i];
+				buffer.putFloat((float) ((v - offset) * scale));
+				if (v < min) {
+					min = v;
+				}
+				if (v > max) {
+					max = v;
+				}
+			}
+		} else {
+			for (int i = 0; i < pixels.length; i++) {
+				final float v = pixels[i];
+				buffer.putDouble((v - offset) * scale);
+				if (v < min) {
+					min = v;
+				}
+				if (v > max) {
+					max = v;
+				}
+			}
+		}
+		setRange(minMax, min, max, pixels.length);
+	}
+
+	private static void write(final Cursor<? extends RealType<?>> cursor, final ImageEncoding encoding,
+			final double offset, final double scale, final ByteBuffer buffer, final double[] minMax) {
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		int numPixels = 0;
+		while (cursor.hasNext()) {
+			final RealType<?> pixel = cursor.next();
+			final double v = pixel.getRealDouble();
+			if (buffer != null) {
+				switch (encoding) {
+				case UINT8:
+					buffer.put((byte) ((IntegerType<?>) pixel).getInteger());
+					break;
+				case UINT16:
+					buffer.putShort((short) ((IntegerType<?>) pixel).getInteger());
+					break;
+				case FLOAT32:
+					buffer.putFloat((float) ((v - offset) * scale));
+					break;
+				default:
+					buffer.putDouble((v - offset) * scale);
+				}
+			}
+			if (v < min) {
+				min = v;
+			}
+			if (v > max) {
+				max = v;
+			}
+			numPixels++;
+		}
+		if (minMax != null) {
+			setRange(minMax, min, max, numPixels);
+		}
+	}
+
+}
@@ -0,0 +1,104 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Determines how the pixel values of the input images are mapped to the
+ * intensities in [0..1] CellProfiler works on.
+ */
+public final class ImageScaling {
+
+	/**
+	 * The available scaling methods.
+	 */
+	public enum Method {
+		/**
+		 * Scales the range of the pixel values of each image, determined while
+		 * the image is encoded. Tiled images and the run requests of older
+		 * CellProfiler versions read the pixels once more for the range.
+		 */
+		MIN_MAX("Pixel value range of each image"),
+		/**
+		 * Scales integer images by their valid bits or, if not set, by the range
+		 * of their type. Other images are sent as is.
+		 */
+		VALID_BITS("Valid bits or range of the pixel type"),
+		/**
+		 * Scales a fixed range shared by all images.
+		 */
+		FIXED_RANGE("Fixed range");
+
+		private final String m_label;
+
+		private Method(final String label) {
+			m_label = label;
+		}
+
+		@Override
+		public String toString() {
+			return m_label;
+		}
+	}
+
+	private final Method m_method;
+
+	private final double m_min;
+
+	private final double m_max;
+
+	/**
+	 * @param method
+	 *            The scaling method
+	 * @param min
+	 *            Lower bound of the fixed range
+	 * @param max
+	 *            Upper bound of the fixed range
+	 */
+	public ImageScaling(final Method method, final double min, final double max) {
+		m_method = method;
+		m_min = min;
+		m_max = max;
+	}
+
+	/**
+	 * @return Scaling of the range of the pixel values of each image.
+	 */
+	public static ImageScaling minMax() {
+		return new ImageScaling(Method.MIN_MAX, 0, 1);
+	}
+
+	/**
+	 * @return The scaling method
+	 */
+	public Method getMethod() {
+		return m_method;
+	}
+
+	/**
+	 * @param img
+	 *            The image
+	 * @return The image with its scaling. No method reads the pixels here, the
+	 *         range of the {@link Method#MIN_MAX} method is determined while
+	 *         the image is encoded.
+	 */
+	public ScaledImage scale(final ImgPlus<? extends RealType<?>> img) {
+		switch (m_method) {
+		case VALID_BITS:
+			final RealType<?> type = img.firstElement();
+			if (type instanceof IntegerType) {
+				if (img.getValidBits() != 0) {
+					return ScaledImage.of(img);
+				}
+				return ScaledImage.normalized(img, type.getMinValue(), type.getMaxValue());
+			}
+			return new ScaledImage(img, 0, 1);
+		case FIXED_RANGE:
+			return ScaledImage.normalized(img, m_min, m_max);
+		default:
+			return ScaledImage.normalized(img);
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Region of an image run through the pipeline on its own, created by
+ * {@link ImageTiling#createTiles(long, long)}. Bounds are pixel coordinates
+ * of the whole image, the upper bounds are exclusive.
+ */
+public final class ImageTile {
+
+	private final int m_index;
+
+	private final long m_minX;
+
+	private final long m_minY;
+
+	private final long m_endX;
+
+	private final long m_endY;
+
+	private final long m_coreMinX;
+
+	private final long m_coreMinY;
+
+	private final long m_coreEndX;
+
+	private final long m_coreEndY;
+
+	ImageTile(final int index, final long minX, final long minY, final long endX, final long endY,
+			final long coreMinX, final long coreMinY, final long coreEndX, final long coreEndY) {
+		m_index = index;
+		m_minX = minX;
+		m_minY = minY;
+		m_endX = endX;
+		m_endY = endY;
+		m_coreMinX = coreMinX;
+		m_coreMinY = coreMinY;
+		m_coreEndX = coreEndX;
+		m_coreEndY = coreEndY;
+	}
+
+	/**
+	 * @return Position of the tile in the tiling, row by row.
+	 */
+	public int getIndex() {
+		return m_index;
+	}
+
+	/**
+	 * @return First column of the tile.
+	 */
+	public long getMinX() {
+		return m_minX;
+	}
+
+	/**
+	 * @return First row of the tile.
+	 */
+	public long getMinY() {
+		return m_minY;
+	}
+
+	/**
+	 * @return Number of pixels in the core of the tile.
+	 */
+	long getCoreArea() {
+		return (m_coreEndX - m_coreMinX) * (m_coreEndY - m_coreMinY);
+	}
+
+	/**
+	 * @param x
+	 *            Column relative to the tile
+	 * @param y
+	 *            Row relative to the tile
+	 * @return True if the position belongs to the core of the tile, so an
+	 *         object centered there is kept from this tile.
+	 */
+	public boolean isInCore(final double x, final double y) {
+		final double imageX = x + m_minX;
+		final double imageY = y + m_minY;
+		return imageX >= m_coreMinX && imageX < m_coreEndX && imageY >= m_coreMinY && imageY < m_coreEndY;
+	}
+
+	/**
+	 * @param images
+	 *            The whole images of the image set
+	 * @return Views of the tile region of each image, scaled like the whole
+	 *         images.
+	 */
+	public Map<String, ScaledImage> crop(final Map<String, ScaledImage> images) {
+		final Map<String, ScaledImage> crops = new HashMap<String, ScaledImage>();
+		for (final Map.Entry<String, ScaledImage> entry : images.entrySet()) {
+			crops.put(entry.getKey(), entry.getValue().crop(m_minX, m_minY, m_endX - 1, m_endY - 1));
+		}
+		return crops;
+	}
+
+	@Override
+	public String toString() {
+		return "tile " + (m_index + 1) + " [" + m_minX + ".." + m_endX + ") x [" + m_minY + ".." + m_endY + ")";
+	}
+
+}
@@ -0,0 +1,144 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.imagej.ImgPlus;
+
+/**
+ * Determines how images too large to be sent as a whole are split into
+ * overlapping tiles. Each tile is run through the pipeline on its own and the
+ * measurements of the tiles are merged by a {@link TileStitcher}.
+ *
+ * Objects in the overlap of two tiles are measured twice, only the tile whose
+ * core contains the center of the object keeps it. The cores of the tiles
+ * partition the image, the border between two cores runs through the middle
+ * of their overlap. An object is measured completely if it extends less than
+ * half the overlap beyond the core of its tile, so the overlap should be at
+ * least the diameter of the largest object.
+ */
+public final class ImageTiling {
+
+	private final int m_tileSize;
+
+	private final int m_overlap;
+
+	/**
+	 * @param tileSize
+	 *            Width and height of the tiles in pixels, 0 to send all images
+	 *            as a whole
+	 * @param overlap
+	 *            Number of pixels neighboring tiles share
+	 */
+	public ImageTiling(final int tileSize, final int overlap) {
+		if (tileSize > 0 && overlap >= tileSize) {
+			throw new IllegalArgumentException("The overlap must be smaller than the tiles");
+		}
+		m_tileSize = tileSize;
+		m_overlap = overlap;
+	}
+
+	/**
+	 * @return Tiling sending all images as a whole.
+	 */
+	public static ImageTiling none() {
+		return new ImageTiling(0, 0);
+	}
+
+	/**
+	 * @return True if large images are split into tiles.
+	 */
+	public boolean isEnabled() {
+		return m_tileSize > 0;
+	}
+
+	/**
+	 * @return Width and height of the tiles in pixels, 0 if disabled.
+	 */
+	public int getTileSize() {
+		return m_tileSize;
+	}
+
+	/**
+	 * @return Number of pixels neighboring tiles share.
+	 */
+	public int getOverlap() {
+		return m_overlap;
+	}
+
+	/**
+	 * @param images
+	 *            The images of an image set, all of the same width and height
+	 * @return True if the images are larger than a tile.
+	 */
+	public boolean needsTiling(final Map<String, ScaledImage> images) {
+		if (!isEnabled() || images.isEmpty()) {
+			return false;
+		}
+		final ImgPlus<?> img = images.values().iterator().next().getImg();
+		return img.dimension(0) > m_tileSize || img.dimension(1) > m_tileSize;
+	}
+
+	/**
+	 * @param width
+	 *            Width of the image
+	 * @param height
+	 *            Height of the image
+	 * @return The tiles covering the image, row by row.
+	 */
+	public List<ImageTile> createTiles(final long width, final long height) {
+		final long[] columns = createStarts(width);
+		final long[] rows = createStarts(height);
+		final List<ImageTile> tiles = new ArrayList<ImageTile>(columns.length * rows.length);
+		for (int y = 0; y < rows.length; y++) {
+			for (int x = 0; x < columns.length; x++) {
+				tiles.add(new ImageTile(tiles.size(), columns[x], rows[y], Math.min(width, columns[x] + m_tileSize),
+						Math.min(height, rows[y] + m_tileSize),
+						coreBorder(columns, x, width), coreBorder(rows, y, height),
+						coreBorder(columns, x + 1, width), coreBorder(rows, y + 1, height)));
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * @return Start of each tile along a dimension. The last tile is moved
+	 *         back to end with the image, so that all tiles have the same
+	 *         size.
+	 */
+	private long[] createStarts(final long length) {
+		if (length <= m_tileSize) {
+			return new long[] { 0 };
+		}
+		final long step = m_tileSize - m_overlap;
+		final int count = (int) ((length - m_overlap + step - 1) / step);
+		final long[] starts = new long[count];
+		for (int i = 0; i < count - 1; i++) {
+			starts[i] = i * step;
+		}
+		starts[count - 1] = length - m_tileSize;
+		return starts;
+	}
+
+	/**
+	 * @return Border between the cores of the tile before the given index and
+	 *         the tile at it, the middle of their overlap.
+	 */
+	private long coreBorder(final long[] starts, final int i, final long length) {
+		if (i == 0) {
+			return 0;
+		}
+		if (i == starts.length) {
+			return length;
+		}
+		final long end = Math.min(length, starts[i - 1] + m_tileSize);
+		return (starts[i] + end) / 2;
+	}
+
+	@Override
+	public String toString() {
+		return isEnabled() ? m_tileSize + "px tiles, " + m_overlap + "px overlap" : "no tiles";
+	}
+
+}
@@ -0,0 +1,190 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonString;
+
+import org.cellprofiler.knimebridge.PipelineException;
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+/**
+ * Reply to a {@link PreparePipelineReq}. CellProfiler versions that don't
+ * know the request either answer with an exception or not at all, in both
+ * cases the reply is marked as unsupported.
+ * 
+ * The format is:
+ * <ul>
+ * <li>frame containing the message name</li>
+ * <li>frame containing the ID of the registered pipeline</li>
+ * <li>optional frame containing a JSON array of the names of the supported
+ * {@link ImageEncoding}s</li>
+ * <li>optional frame containing a JSON array of the names of the supported
+ * image transports, e.g. {@value #SHARED_MEMORY}</li>
+ * <li>optional frame containing a JSON array of the names of further
+ * supported requests, e.g. {@value #BATCH_RUN}</li>
+ * <li>optional frame containing the version of CellProfiler</li>
+ * </ul>
+ */
+public class PreparePipelineReply {
+
+	private static final String MSG_NAME = "prepare-pipeline-reply-1";
+
+	/**
+	 * Transport reading the images from a memory-mapped file.
+	 */
+	public static final String SHARED_MEMORY = "shared-memory";
+
+	/**
+	 * Name of the capability to run several image sets in one
+	 * {@link BatchRunReq}.
+	 */
+	public static final String BATCH_RUN = "run-batch";
+
+	private static final String PIPELINE_EXCEPTION_MSG_NAME = "pipeline-exception-1";
+
+	private final String m_pipelineID;
+
+	private final boolean m_timedOut;
+
+	private final Set<ImageEncoding> m_imageEncodings;
+
+	private final Set<String> m_transports;
+
+	private final Set<String> m_capabilities;
+
+	private final String m_version;
+
+	private PreparePipelineReply(final String pipelineID, final boolean timedOut,
+			final Set<ImageEncoding> imageEncodings, final Set<String> transports, final Set<String> capabilities,
+			final String version) {
+		m_pipelineID = pipelineID;
+		m_timedOut = timedOut;
+		m_imageEncodings = imageEncodings;
+		m_transports = transports;
+		m_capabilities = capabilities;
+		m_version = version;
+	}
+
+	/**
+	 * @return True if the server registered the pipeline.
+	 */
+	public boolean isSupported() {
+		return m_pipelineID != null;
+	}
+
+	/**
+	 * @return The ID of the registered pipeline or null if not supported.
+	 */
+	public String getPipelineID() {
+		return m_pipelineID;
+	}
+
+	/**
+	 * @return True if the server did not answer within the receive timeout of
+	 *         the socket. The socket is unusable afterwards.
+	 */
+	public boolean isTimedOut() {
+		return m_timedOut;
+	}
+
+	/**
+	 * @return The image encodings supported by the server, always containing
+	 *         {@link ImageEncoding#FLOAT64}.
+	 */
+	public Set<ImageEncoding> getImageEncodings() {
+		return m_imageEncodings;
+	}
+
+	/**
+	 * @return The names of the image transports supported by the server in
+	 *         addition to message frames.
+	 */
+	public Set<String> getTransports() {
+		return m_transports;
+	}
+
+	/**
+	 * @return The names of the further requests supported by the server, e.g.
+	 *         {@value #BATCH_RUN}.
+	 */
+	public Set<String> getCapabilities() {
+		return m_capabilities;
+	}
+
+	/**
+	 * @return The version of CellProfiler or null if the server didn't tell.
+	 */
+	public String getVersion() {
+		return m_version;
+	}
+
+	/**
+	 * Receives the reply to a {@link PreparePipelineReq}.
+	 * 
+	 * @param socket
+	 *            Get the reply from this socket
+	 * @return The reply
+	 * @throws PipelineException
+	 *             If the pipeline could not be parsed
+	 * @throws ProtocolException
+	 *             If the reply is missing the pipeline ID
+	 */
+	public static PreparePipelineReply recvReply(final Socket socket) throws PipelineException, ProtocolException {
+		final ZMsg msg = ZMsg.recvMsg(socket);
+		if (msg == null) {
+			return new PreparePipelineReply(null, true, Collections.singleton(ImageEncoding.FLOAT64),
+					Collections.<String> emptySet(), Collections.<String> emptySet(), null);
+		}
+		msg.unwrap();
+		final String msgName = msg.popString();
+		if (MSG_NAME.equals(msgName)) {
+			final String pipelineID = msg.popString();
+			if (pipelineID == null) {
+				throw new ProtocolException("Prepare pipeline reply is missing the pipeline ID");
+			}
+			final Set<ImageEncoding> imageEncodings = EnumSet.of(ImageEncoding.FLOAT64);
+			for (final String name : parseNames(msg.popString())) {
+				final ImageEncoding encoding = ImageEncoding.fromName(name);
+				// Encodings of newer versions are ignored
+				if (encoding != null) {
+					imageEncodings.add(encoding);
+				}
+			}
+			final Set<String> transports = parseNames(msg.popString());
+			final Set<String> capabilities = parseNames(msg.popString());
+			return new PreparePipelineReply(pipelineID, false, imageEncodings, transports, capabilities,
+					msg.popString());
+		}
+		if (PIPELINE_EXCEPTION_MSG_NAME.equals(msgName)) {
+			throw new PipelineException(msg.popString());
+		}
+		return new PreparePipelineReply(null, false, Collections.singleton(ImageEncoding.FLOAT64),
+				Collections.<String> emptySet(), Collections.<String> emptySet(), null);
+	}
+
+	private static Set<String> parseNames(final String json) throws ProtocolException {
+		final Set<String> names = new HashSet<String>();
+		if (json == null) {
+			return names;
+		}
+		try {
+			final JsonArray array = Json.createReader(new StringReader(json)).readArray();
+			for (final JsonString name : array.getValuesAs(JsonString.class)) {
+				names.add(name.getString());
+			}
+		} catch (JsonException | ClassCastException e) {
+			throw new ProtocolException("Failed to parse the prepare pipeline reply: " + e.getMessage());
+		}
+		return names;
+	}
+
+}
@@ -0,0 +1,86 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+
+import org.cellprofiler.knimebridge.PipelineException;
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+/**
+ * Request registering a pipeline with the session, so that subsequent run
+ * requests can reference it by its ID instead of carrying the whole pipeline
+ * text.
+ * 
+ * The format is:
+ * <ul>
+ * <li>frame containing the message name</li>
+ * <li>frame containing the pipeline</li>
+ * <li>optional frame containing a JSON object with the names of the features
+ * used of each measurement table by object name, the worker may skip
+ * measuring the others and leave them out of run replies</li>
+ * </ul>
+ */
+public class PreparePipelineReq extends ZMsg {
+
+	private static final String MSG_NAME = "prepare-pipeline-request-1";
+
+	/**
+	 * @param sessionID
+	 *            The session ID from connect
+	 * @param pipeline
+	 *            The pipeline to register
+	 * @param selectedFeatures
+	 *            The used features by object name, null if all are used
+	 */
+	protected PreparePipelineReq(final String sessionID, final String pipeline,
+			final Map<String, List<String>> selectedFeatures) {
+		add(MSG_NAME);
+		add(pipeline);
+		if (selectedFeatures != null) {
+			final JsonObjectBuilder tables = Json.createObjectBuilder();
+			for (final Map.Entry<String, List<String>> entry : selectedFeatures.entrySet()) {
+				final JsonArrayBuilder features = Json.createArrayBuilder();
+				for (final String feature : entry.getValue()) {
+					features.add(feature);
+				}
+				tables.add(entry.getKey(), features);
+			}
+			add(tables.build().toString());
+		}
+		wrap(new ZFrame(sessionID));
+	}
+
+	/**
+	 * Registers the pipeline with the session.
+	 * 
+	 * @param socket
+	 *            Communicate over this socket
+	 * @param sessionID
+	 *            The session ID from connect
+	 * @param pipeline
+	 *            The pipeline to register
+	 * @param selectedFeatures
+	 *            The used features by object name, null if all are used
+	 * @return The reply of the server, which tells if preparing pipelines is
+	 *         supported.
+	 * @throws PipelineException
+	 *             If the pipeline could not be parsed
+	 * @throws ProtocolException
+	 *             If the reply could not be understood
+	 */
+	public static PreparePipelineReply send(final Socket socket, final String sessionID, final String pipeline,
+			final Map<String, List<String>> selectedFeatures) throws PipelineException, ProtocolException {
+		if (!new PreparePipelineReq(sessionID, pipeline, selectedFeatures).send(socket)) {
+			throw new ProtocolException("Failed to send prepare pipeline request");
+		}
+		return PreparePipelineReply.recvReply(socket);
+	}
+
+}
@@ -0,0 +1,105 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import org.cellprofiler.knimebridge.CellProfilerException;
+import org.cellprofiler.knimebridge.PipelineException;
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+/**
+ * Request to run a pipeline that was registered via
+ * {@link PreparePipelineReq} on an image set. In contrast to the run request
+ * of the bundled bridge it only carries the ID of the pipeline.
+ * 
+ * The format is:
+ * <ul>
+ * <li>frame containing the message name</li>
+ * <li>frame containing the pipeline ID</li>
+ * <li>image frames as written by {@link ImageEncoder}</li>
+ * </ul>
+ */
+@SuppressWarnings("deprecation")
+public class PreparedRunReq extends ZMsg {
+
+	/**
+	 * The worker reads the pixels by the strides of each axis and applies the
+	 * offset and scale of every channel, see {@link ImageEncoder}.
+	 */
+	private static final String MSG_NAME = "run-prepared-request-1";
+
+	private static final String GROUP_MSG_NAME = "run-group-prepared-request-1";
+
+	/**
+	 * @param sessionID
+	 *            The session ID from connect
+	 * @param pipelineID
+	 *            The ID of the registered pipeline
+	 * @param images
+	 *            The encoded image set
+	 * @param group
+	 *            True if the images contain a group of image sets
+	 */
+	protected PreparedRunReq(final String sessionID, final String pipelineID, final EncodedImages images,
+			final boolean group) {
+		add(group ? GROUP_MSG_NAME : MSG_NAME);
+		add(pipelineID);
+		images.addTo(this);
+		wrap(new ZFrame(sessionID));
+	}
+
+	/**
+	 * Runs the registered pipeline and receives the measurements.
+	 * 
+	 * @param socket
+	 *            Communicate over this socket
+	 * @param sessionID
+	 *            The session ID from connect
+	 * @param pipelineID
+	 *            The ID of the registered pipeline
+	 * @param images
+	 *            The encoded image set
+	 * @param group
+	 *            True if the images contain a group of image sets
+	 * @return The reply containing the measurements
+	 * @throws CellProfilerException
+	 *             If CellProfiler failed to run the pipeline
+	 * @throws PipelineException
+	 *             If the pipeline is unknown or could not be parsed
+	 * @throws ProtocolException
+	 *             If the reply could not be understood
+	 */
+	public static BulkRunReply run(final Socket socket, final String sessionID, final String pipelineID,
+			final EncodedImages images, final boolean group)
+					throws CellProfilerException, PipelineException, ProtocolException {
+		send(socket, sessionID, pipelineID, images, group);
+		final BulkRunReply reply = new BulkRunReply();
+		reply.recv(socket);
+		return reply;
+	}
+
+	/**
+	 * Sends the request without waiting for the reply, which has to be
+	 * received as {@link BulkRunReply} afterwards.
+	 * 
+	 * @param socket
+	 *            Communicate over this socket
+	 * @param sessionID
+	 *            The session ID from connect
+	 * @param pipelineID
+	 *            The ID of the registered pipeline
+	 * @param images
+	 *            The encoded image set
+	 * @param group
+	 *            True if the images contain a group of image sets
+	 * @throws ProtocolException
+	 *             If the request could not be sent
+	 */
+	public static void send(final Socket socket, final String sessionID, final String pipelineID,
+			final EncodedImages images, final boolean group) throws ProtocolException {
+		if (!new PreparedRunReq(sessionID, pipelineID, images, group).send(socket)) {
+			throw new ProtocolException("Failed to send run request");
+		}
+	}
+
+}
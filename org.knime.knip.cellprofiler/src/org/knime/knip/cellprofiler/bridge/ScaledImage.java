@@ -0,0 +1,255 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.ImgView;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Image together with the linear scaling that maps its pixel values to the
+ * intensities CellProfiler works on: {@code (value - offset) * scale}. The
+ * scaling is applied by CellProfiler, or while the image is serialized for
+ * the run requests of the bundled bridge. Immutable. The scaling of images
+ * normalized to the range of their pixel values is only known once the range
+ * is determined, which the encoder does in the same pass as writing the
+ * pixels, see {@link #withRange()}.
+ */
+public final class ScaledImage {
+
+	private final ImgPlus<? extends RealType<?>> m_img;
+
+	private final double m_offset;
+
+	private final double m_scale;
+
+	// True if the image is scaled by the range of its pixel values
+	private final boolean m_imageRange;
+
+	// True while the range of the pixel values is unknown
+	private final boolean m_rangeDeferred;
+
+	/**
+	 * @param img
+	 *            The image
+	 * @param offset
+	 *            Value subtracted from each pixel
+	 * @param scale
+	 *            Factor applied after subtracting the offset
+	 */
+	public ScaledImage(final ImgPlus<? extends RealType<?>> img, final double offset, final double scale) {
+		this(img, offset, scale, false, false);
+	}
+
+	private ScaledImage(final ImgPlus<? extends RealType<?>> img, final double offset, final double scale,
+			final boolean imageRange, final boolean rangeDeferred) {
+		m_img = img;
+		m_offset = offset;
+		m_scale = scale;
+		m_imageRange = imageRange;
+		m_rangeDeferred = rangeDeferred;
+	}
+
+	/**
+	 * Creates an image scaled the way the bundled bridge does: integer images
+	 * with valid bits set are scaled into [0..1], all others are sent as is.
+	 * 
+	 * @param img
+	 *            The image
+	 * @return The scaled image
+	 */
+	public static ScaledImage of(final ImgPlus<? extends RealType<?>> img) {
+		if (img.firstElement() instanceof IntegerType && img.getValidBits() != 0) {
+			return new ScaledImage(img, 0, Math.pow(2.0, -img.getValidBits()));
+		}
+		return new ScaledImage(img, 0, 1);
+	}
+
+	/**
+	 * Creates an image scaled from the range of its pixel values into [0..1].
+	 * The range is determined while the image is encoded, so the pixels are
+	 * only read once.
+	 * 
+	 * @param img
+	 *            The image
+	 * @return The scaled image
+	 */
+	public static ScaledImage normalized(final ImgPlus<? extends RealType<?>> img) {
+		return new ScaledImage(img, 0, 1, true, true);
+	}
+
+	/**
+	 * Creates an image scaled from [min..max] into [0..1].
+	 * 
+	 * @param img
+	 *            The image
+	 * @param min
+	 *            Minimum pixel value of the image
+	 * @param max
+	 *            Maximum pixel value of the image
+	 * @return The scaled image
+	 */
+	public static ScaledImage normalized(final ImgPlus<? extends RealType<?>> img, final double min,
+			final double max) {
+		return new ScaledImage(img, min, scale(min, max));
+	}
+
+	/**
+	 * @return Factor scaling [min..max] into [0..1], images with a single
+	 *         pixel value are mapped to 0.
+	 */
+	static double scale(final double min, final double max) {
+		return max > min ? 1.0 / (max - min) : 1.0;
+	}
+
+	/**
+	 * @return Offset of the range [min..max], 0 for images without pixels.
+	 */
+	static double offset(final double min, final double max) {
+		return min <= max ? min : 0;
+	}
+
+	/**
+	 * @return True if the range of the pixel values has not been determined
+	 *         yet, so that it has to be determined while the image is
+	 *         encoded.
+	 */
+	boolean isRangeDeferred() {
+		return m_rangeDeferred;
+	}
+
+	/**
+	 * Determines the range of the pixel values if the image is normalized to
+	 * it and the range isn't known yet. Reads all pixels in that case, which
+	 * the encoder avoids by determining the range while writing them.
+	 * 
+	 * @return An image whose scaling is known, this image if it already is
+	 */
+	public ScaledImage withRange() {
+		if (!m_rangeDeferred) {
+			return this;
+		}
+		final double[] minMax = ImageNormalizer.minMax(m_img);
+		return new ScaledImage(m_img, offset(minMax[0], minMax[1]), scale(minMax[0], minMax[1]), true, false);
+	}
+
+	/**
+	 * @return The unscaled image.
+	 */
+	public ImgPlus<? extends RealType<?>> getImg() {
+		return m_img;
+	}
+
+	/**
+	 * @return Value subtracted from each pixel.
+	 * @throws IllegalStateException
+	 *             If the range of the pixel values isn't known yet, see
+	 *             {@link #withRange()}
+	 */
+	public double getOffset() {
+		checkRange();
+		return m_offset;
+	}
+
+	/**
+	 * @return Factor applied after subtracting the offset.
+	 * @throws IllegalStateException
+	 *             If the range of the pixel values isn't known yet, see
+	 *             {@link #withRange()}
+	 */
+	public double getScale() {
+		checkRange();
+		return m_scale;
+	}
+
+	private void checkRange() {
+		if (m_rangeDeferred) {
+			throw new IllegalStateException("The pixel value range of the image has not been determined yet");
+		}
+	}
+
+	/**
+	 * Adds the image, its metadata and its scaling to a digest. Two images
+	 * with the same digest are processed the same by CellProfiler.
+	 * 
+	 * @param digest
+	 *            The digest to update
+	 */
+	public void digest(final MessageDigest digest) {
+		final StringBuilder header = new StringBuilder(m_img.firstElement().getClass().getName());
+		for (int d = 0; d < m_img.numDimensions(); d++) {
+			header.append(';').append(m_img.axis(d).type()).append('=').append(m_img.dimension(d));
+		}
+		// The range of the pixels is covered by the pixels
+		header.append(';').append(m_imageRange ? "range" : m_offset + "," + m_scale);
+		digest.update(header.toString().getBytes(StandardCharsets.UTF_8));
+		ImageNormalizer.digest(m_img, digest);
+	}
+
+	/**
+	 * Crops the first two dimensions of the image, keeping all others. The
+	 * crop is scaled like the whole image, so that the intensities of
+	 * neighboring crops match. Call {@link #withRange()} once before cropping
+	 * an image into several tiles, otherwise each crop reads all pixels.
+	 * 
+	 * @param minX
+	 *            First column of the crop
+	 * @param minY
+	 *            First row of the crop
+	 * @param maxX
+	 *            Last column of the crop
+	 * @param maxY
+	 *            Last row of the crop
+	 * @return A view of the region, starting at the origin
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public ScaledImage crop(final long minX, final long minY, final long maxX, final long maxY) {
+		final long[] min = new long[m_img.numDimensions()];
+		final long[] max = new long[m_img.numDimensions()];
+		for (int d = 0; d < min.length; d++) {
+			min[d] = m_img.min(d);
+			max[d] = m_img.max(d);
+		}
+		min[0] = minX;
+		min[1] = minY;
+		max[0] = maxX;
+		max[1] = maxY;
+		final RandomAccessibleInterval crop = Views.zeroMin(Views.interval((RandomAccessibleInterval) m_img, min, max));
+		final ScaledImage ranged = withRange();
+		return new ScaledImage(new ImgPlus(new ImgView(crop, m_img.factory()), m_img), ranged.m_offset,
+				ranged.m_scale);
+	}
+
+	/**
+	 * @return A lazily scaled float view of the image, as expected by the run
+	 *         requests of the bundled bridge. Reads all pixels once more if
+	 *         the range of the pixel values isn't known yet.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public ImgPlus<FloatType> toFloatImgPlus() {
+		final ScaledImage ranged = withRange();
+		final double offset = ranged.m_offset;
+		final double scale = ranged.m_scale;
+		final RandomAccessibleInterval<FloatType> converted = Converters.convert((RandomAccessibleInterval) m_img,
+				new Converter<RealType<?>, FloatType>() {
+					@Override
+					public void convert(final RealType<?> input, final FloatType output) {
+						output.setReal((input.getRealDouble() - offset) * scale);
+					}
+				}, new FloatType());
+		try {
+			return new ImgPlus(new ImgView<FloatType>(converted, m_img.factory().imgFactory(new FloatType())), m_img);
+		} catch (IncompatibleTypeException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
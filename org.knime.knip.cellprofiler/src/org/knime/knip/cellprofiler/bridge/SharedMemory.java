@@ -0,0 +1,171 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+
+/**
+ * Memory-mapped file the images of a run request are written to, so that a
+ * CellProfiler worker on the same machine can map them instead of receiving
+ * them through the socket. The file is placed in /dev/shm if available and
+ * is only accessible by the current user.
+ *
+ * The file is mapped once and only mapped again when a request needs more
+ * room, so it keeps the size of the largest request. Regions of the mapping
+ * are allocated consecutively and handed out again after
+ * {@link #reset(long)}. The mapping is released on {@link #close()}.
+ */
+final class SharedMemory implements Closeable {
+
+	private static final File SHM_DIR = new File("/dev/shm");
+
+	private final File m_file;
+
+	private final RandomAccessFile m_raf;
+
+	private final FileChannel m_channel;
+
+	private MappedByteBuffer m_mapping;
+
+	private long m_position;
+
+	private long m_size;
+
+	/**
+	 * Creates a new file backing the shared memory.
+	 *
+	 * @throws IOException
+	 *             If the file could not be created
+	 */
+	SharedMemory() throws IOException {
+		final File dir = SHM_DIR.isDirectory() && SHM_DIR.canWrite() ? SHM_DIR
+				: new File(System.getProperty("java.io.tmpdir"));
+		final Path path;
+		if (dir.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			path = Files.createTempFile(dir.toPath(), "knip-cellprofiler-", ".img", PosixFilePermissions
+					.asFileAttribute(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+		} else {
+			path = Files.createTempFile(dir.toPath(), "knip-cellprofiler-", ".img");
+		}
+		m_file = path.toFile();
+		m_file.deleteOnExit();
+		m_raf = new RandomAccessFile(m_file, "rw");
+		m_channel = m_raf.getChannel();
+	}
+
+	/**
+	 * @return The absolute path of the backing file.
+	 */
+	String getPath() {
+		return m_file.getAbsolutePath();
+	}
+
+	/**
+	 * @return The offset of the next allocated region.
+	 */
+	long getPosition() {
+		return m_position;
+	}
+
+	/**
+	 * Frees all regions allocated so far and makes sure that the mapping has
+	 * room for the next request. Must only be called once the worker answered
+	 * the request referencing the regions, as they are invalid once the file
+	 * is mapped again.
+	 *
+	 * @param size
+	 *            Size of all regions of the next request in bytes
+	 * @throws IOException
+	 *             If the file could not be mapped
+	 */
+	void reset(final long size) throws IOException {
+		m_position = 0;
+		m_size = size;
+		if (m_mapping != null && m_mapping.capacity() >= size) {
+			return;
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Images of " + size + " bytes are too large for shared memory");
+		}
+		unmap();
+		m_mapping = m_channel.map(MapMode.READ_WRITE, 0, size);
+	}
+
+	/**
+	 * Allocates the next region of the mapping.
+	 *
+	 * @param size
+	 *            Size of the region in bytes
+	 * @return Little-endian buffer writing through to the file
+	 */
+	ByteBuffer allocate(final int size) {
+		if (m_mapping == null || m_position + size > m_size) {
+			throw new IllegalStateException("Shared memory region exceeds the size given on reset");
+		}
+		final ByteBuffer buffer = m_mapping.duplicate();
+		buffer.position((int) m_position);
+		buffer.limit((int) m_position + size);
+		m_position += size;
+		return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Releases the mapping, closes and deletes the backing file.
+	 */
+	@Override
+	public void close() {
+		unmap();
+		try {
+			m_raf.close();
+		} catch (IOException e) {
+			// Nothing we can do about it
+		}
+		m_file.delete();
+	}
+
+	/**
+	 * Releases the mapping right away instead of when it is garbage
+	 * collected, which may be never for a buffer that is rarely replaced.
+	 */
+	private void unmap() {
+		final MappedByteBuffer mapping = m_mapping;
+		m_mapping = null;
+		if (mapping == null) {
+			return;
+		}
+		try {
+			// Java 9 and later
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), mapping);
+			return;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Not available, try the Java 8 way
+		}
+		try {
+			final Method cleaner = mapping.getClass().getMethod("cleaner");
+			cleaner.setAccessible(true);
+			final Object clean = cleaner.invoke(mapping);
+			if (clean != null) {
+				clean.getClass().getMethod("clean").invoke(clean);
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Released once garbage collected
+		}
+	}
+
+}
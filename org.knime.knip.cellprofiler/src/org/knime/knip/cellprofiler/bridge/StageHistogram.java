@@ -0,0 +1,167 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations. Each power of two is split into four
+ * buckets, so percentiles are exact up to 7ns and within 25% above.
+ */
+public class StageHistogram implements StageHistogramMXBean {
+
+	private static final int SUB_BUCKETS = 4;
+
+	// Enough for any positive long
+	private static final int NUM_BUCKETS = SUB_BUCKETS * 62;
+
+	private final AtomicLongArray m_buckets = new AtomicLongArray(NUM_BUCKETS);
+
+	private final AtomicLong m_count = new AtomicLong();
+
+	private final AtomicLong m_totalNanos = new AtomicLong();
+
+	private final AtomicLong m_maxNanos = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 *            The duration to add in nanoseconds
+	 */
+	public void record(final long nanos) {
+		final long value = Math.max(0, nanos);
+		m_buckets.incrementAndGet(bucket(value));
+		m_count.incrementAndGet();
+		m_totalNanos.addAndGet(value);
+		long max;
+		while (value > (max = m_maxNanos.get()) && !m_maxNanos.compareAndSet(max, value)) {
+			// retry
+		}
+	}
+
+	private static int bucket(final long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int subBucket = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS * (exponent - 1) + subBucket;
+	}
+
+	/**
+	 * @return The smallest value falling into the bucket.
+	 */
+	private static long lowerBound(final int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		final int exponent = bucket / SUB_BUCKETS + 1;
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 2);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getCount() {
+		return m_count.get();
+	}
+
+	/**
+	 * @return Sum of all durations in nanoseconds.
+	 */
+	public long getTotalNanos() {
+		return m_totalNanos.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public double getTotalMillis() {
+		return toMillis(getTotalNanos());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public double getMeanMillis() {
+		final long count = getCount();
+		return count == 0 ? 0 : toMillis(getTotalNanos()) / count;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public double getMaxMillis() {
+		return toMillis(m_maxNanos.get());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public double getMedianMillis() {
+		return getPercentileMillis(50);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public double getP95Millis() {
+		return getPercentileMillis(95);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public double getP99Millis() {
+		return getPercentileMillis(99);
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile in [0..100]
+	 * @return The approximate duration in milliseconds below which the given
+	 *         percentage of the durations lies, 0 if nothing was recorded
+	 */
+	public double getPercentileMillis(final double percentile) {
+		final long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += m_buckets.get(i);
+			if (seen >= rank) {
+				// Middle of the bucket, but never above the maximum
+				final long lower = lowerBound(i);
+				final long upper = i + 1 < NUM_BUCKETS ? lowerBound(i + 1) : lower;
+				return Math.min(toMillis(lower + (upper - lower) / 2), getMaxMillis());
+			}
+		}
+		return getMaxMillis();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void reset() {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			m_buckets.set(i, 0);
+		}
+		m_count.set(0);
+		m_totalNanos.set(0);
+		m_maxNanos.set(0);
+	}
+
+	private static double toMillis(final long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+}
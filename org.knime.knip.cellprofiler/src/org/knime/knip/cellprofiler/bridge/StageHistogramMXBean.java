@@ -0,0 +1,48 @@
+package org.knime.knip.cellprofiler.bridge;
+
+/**
+ * Durations of one stage of the pipeline execution, as exposed via JMX.
+ */
+public interface StageHistogramMXBean {
+
+	/**
+	 * @return Number of recorded durations.
+	 */
+	long getCount();
+
+	/**
+	 * @return Sum of all durations in milliseconds.
+	 */
+	double getTotalMillis();
+
+	/**
+	 * @return Mean duration in milliseconds.
+	 */
+	double getMeanMillis();
+
+	/**
+	 * @return Approximate median duration in milliseconds.
+	 */
+	double getMedianMillis();
+
+	/**
+	 * @return Approximate 95th percentile in milliseconds.
+	 */
+	double getP95Millis();
+
+	/**
+	 * @return Approximate 99th percentile in milliseconds.
+	 */
+	double getP99Millis();
+
+	/**
+	 * @return Longest duration in milliseconds.
+	 */
+	double getMaxMillis();
+
+	/**
+	 * Discards all recorded durations.
+	 */
+	void reset();
+
+}
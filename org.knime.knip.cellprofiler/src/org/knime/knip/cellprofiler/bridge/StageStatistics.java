@@ -0,0 +1,171 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.knime.knip.core.KNIPGateway;
+
+/**
+ * Durations of the stages each image set passes through while a pipeline is
+ * executed, to find out what limits the throughput.
+ *
+ * Statistics created with a parent also add each duration to the parent. The
+ * {@link #getGlobal() global} statistics collect the durations of all
+ * executions and are registered as MXBeans in the domain
+ * <code>org.knime.knip.cellprofiler</code>, one per stage.
+ */
+public class StageStatistics {
+
+	/**
+	 * The stages of the execution of a pipeline on an image set.
+	 */
+	public enum Stage {
+		/**
+		 * Reading the images of a row and digesting their pixels for the keys
+		 * of checkpoints and the result cache.
+		 */
+		READ("Image reading and digests"),
+		/**
+		 * Determining the pixel range and encoding the images, or converting
+		 * them to double images for older CellProfiler versions.
+		 */
+		ENCODE("Image encoding"),
+		/**
+		 * Writing the run request to the socket.
+		 */
+		SEND("Request transfer"),
+		/**
+		 * Waiting for the reply, i.e. running the pipeline in CellProfiler.
+		 */
+		COMPUTE("CellProfiler computation"),
+		/**
+		 * Receiving and parsing the reply.
+		 */
+		DECODE("Reply decoding"),
+		/**
+		 * Creating the measurement tables from the reply.
+		 */
+		TABLES("Measurement table construction"),
+		/**
+		 * Creating the output cells, including writing file stores.
+		 */
+		CELLS("Cell construction");
+
+		private final String m_label;
+
+		private Stage(final String label) {
+			m_label = label;
+		}
+
+		@Override
+		public String toString() {
+			return m_label;
+		}
+	}
+
+	private static StageStatistics GLOBAL;
+
+	private final Map<Stage, StageHistogram> m_histograms = new EnumMap<Stage, StageHistogram>(Stage.class);
+
+	private final StageStatistics m_parent;
+
+	/**
+	 * Creates statistics without parent.
+	 */
+	public StageStatistics() {
+		this(null);
+	}
+
+	/**
+	 * @param parent
+	 *            Statistics each duration is added to as well, may be null
+	 */
+	public StageStatistics(final StageStatistics parent) {
+		m_parent = parent;
+		for (final Stage stage : Stage.values()) {
+			m_histograms.put(stage, new StageHistogram());
+		}
+	}
+
+	/**
+	 * @return The statistics of all executions since KNIME was started.
+	 */
+	public static synchronized StageStatistics getGlobal() {
+		if (GLOBAL == null) {
+			GLOBAL = new StageStatistics();
+			registerMXBeans(GLOBAL);
+		}
+		return GLOBAL;
+	}
+
+	private static void registerMXBeans(final StageStatistics statistics) {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (final Stage stage : Stage.values()) {
+			try {
+				final ObjectName name = new ObjectName("org.knime.knip.cellprofiler:type=StageStatistics,stage="
+						+ stage.name().toLowerCase(Locale.ENGLISH));
+				if (!server.isRegistered(name)) {
+					server.registerMBean(statistics.getHistogram(stage), name);
+				}
+			} catch (JMException e) {
+				KNIPGateway.log().debug("Could not register CellProfiler statistics MXBean: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Adds the duration of a stage that started at the given time and ends
+	 * now.
+	 *
+	 * @param stage
+	 *            The stage
+	 * @param startNanos
+	 *            Start of the stage as returned by {@link System#nanoTime()}
+	 * @return The end of the stage, i.e. the start of the next stage
+	 */
+	public long record(final Stage stage, final long startNanos) {
+		final long now = System.nanoTime();
+		add(stage, now - startNanos);
+		return now;
+	}
+
+	private void add(final Stage stage, final long nanos) {
+		m_histograms.get(stage).record(nanos);
+		if (m_parent != null) {
+			m_parent.add(stage, nanos);
+		}
+	}
+
+	/**
+	 * @param stage
+	 *            The stage
+	 * @return The durations of the stage
+	 */
+	public StageHistogram getHistogram(final Stage stage) {
+		return m_histograms.get(stage);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder summary = new StringBuilder();
+		for (final Stage stage : Stage.values()) {
+			final StageHistogram histogram = getHistogram(stage);
+			if (histogram.getCount() > 0) {
+				summary.append(String.format(Locale.ENGLISH, "%s: %d x, mean %.2f ms, p95 %.2f ms, max %.2f ms%n",
+						stage, histogram.getCount(), histogram.getMeanMillis(), histogram.getP95Millis(),
+						histogram.getMaxMillis()));
+			}
+		}
+		return summary.toString();
+	}
+
+}
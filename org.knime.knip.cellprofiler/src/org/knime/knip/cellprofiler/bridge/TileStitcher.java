@@ -0,0 +1,498 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cellprofiler.knimebridge.KBConstants;
+
+/**
+ * Merges the measurements of the tiles of an image set into the measurements
+ * of the whole image set:
+ * <ul>
+ * <li>Objects whose center lies outside the core of their tile are dropped,
+ * the neighboring tile measures them completely. The center is taken from
+ * the <code>Location_Center</code> features, or the
+ * <code>AreaShape_Center</code> features if there are none. Tables without
+ * either keep all objects.</li>
+ * <li>Location and bounding box features are moved from tile to image
+ * coordinates.</li>
+ * <li>The objects of each table are numbered consecutively over all tiles,
+ * <code>Parent_</code> features refer to the new numbers. If the parent of a
+ * kept object was dropped, it refers to the object kept by the neighboring
+ * tile at the same position.</li>
+ * <li>The image table has a single row, like for the whole image set, and all
+ * objects have image number 1. The <code>Count_</code> features count the
+ * kept objects of all tiles, the other numeric image features are averaged
+ * over the tiles, weighted by the size of their cores.</li>
+ * <li>String features are taken from the first tile.</li>
+ * </ul>
+ */
+public final class TileStitcher {
+
+	private static final String[] CENTER_X = { "Location_Center_X", "AreaShape_Center_X" };
+
+	private static final String[] CENTER_Y = { "Location_Center_Y", "AreaShape_Center_Y" };
+
+	private static final String PARENT_PREFIX = "Parent_";
+
+	private static final String COUNT_PREFIX = "Count_";
+
+	/**
+	 * Distance in pixels the centers of an object measured by two tiles may
+	 * differ, as each tile is segmented on its own.
+	 */
+	private static final double MAX_CENTER_DISTANCE = 3;
+
+	private final Map<String, Map<String, List<double[]>>> m_doubleFeatures = new LinkedHashMap<String, Map<String, List<double[]>>>();
+
+	private final Map<String, Map<String, List<float[]>>> m_floatFeatures = new LinkedHashMap<String, Map<String, List<float[]>>>();
+
+	private final Map<String, Map<String, List<int[]>>> m_intFeatures = new LinkedHashMap<String, Map<String, List<int[]>>>();
+
+	private final Map<String, Map<String, String>> m_stringFeatures = new HashMap<String, Map<String, String>>();
+
+	// Number of objects kept so far by object name
+	private final Map<String, Integer> m_numObjects = new HashMap<String, Integer>();
+
+	// Number of rows kept so far by object name
+	private final Map<String, Integer> m_numRows = new HashMap<String, Integer>();
+
+	// Core area of each tile added so far
+	private final List<Long> m_coreAreas = new ArrayList<Long>();
+
+	private final List<DroppedParent> m_droppedParents = new ArrayList<DroppedParent>();
+
+	/**
+	 * Adds the measurements of a tile. Tiles should be added in the order of
+	 * their index, so that the objects are numbered the same on every
+	 * execution.
+	 *
+	 * @param tile
+	 *            The tile
+	 * @param reply
+	 *            The measurements of the tile
+	 */
+	public void add(final ImageTile tile, final BulkRunReply reply) {
+		final Map<String, boolean[]> kept = new HashMap<String, boolean[]>();
+		final Map<String, int[]> renumbering = new HashMap<String, int[]>();
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		final Map<String, Integer> rowsBefore = new HashMap<String, Integer>();
+		m_coreAreas.add(tile.getCoreArea());
+		for (final Map.Entry<String, Map<String, int[]>> table : reply.getIntFeatures().entrySet()) {
+			final String objectName = table.getKey();
+			final int[] numbers = table.getValue().get(KBConstants.OBJECT_NUMBER);
+			if (KBConstants.IMAGE.equals(objectName) || numbers == null) {
+				continue;
+			}
+			final double[] x = getCenter(reply, objectName, CENTER_X);
+			final double[] y = getCenter(reply, objectName, CENTER_Y);
+			int maxNumber = 0;
+			for (final int number : numbers) {
+				maxNumber = Math.max(maxNumber, number);
+			}
+			final boolean[] keep = new boolean[numbers.length];
+			final int[] newNumbers = new int[maxNumber + 1];
+			final Integer numObjects = m_numObjects.get(objectName);
+			int next = numObjects != null ? numObjects : 0;
+			int count = 0;
+			for (int i = 0; i < numbers.length; i++) {
+				keep[i] = x == null || y == null || tile.isInCore(x[i], y[i]);
+				if (keep[i]) {
+					count++;
+					if (numbers[i] > 0) {
+						newNumbers[numbers[i]] = ++next;
+					}
+				}
+			}
+			m_numObjects.put(objectName, next);
+			final Integer numRows = m_numRows.get(objectName);
+			rowsBefore.put(objectName, numRows != null ? numRows : 0);
+			m_numRows.put(objectName, rowsBefore.get(objectName) + count);
+			kept.put(objectName, keep);
+			renumbering.put(objectName, newNumbers);
+			counts.put(objectName, count);
+		}
+
+		for (final Map.Entry<String, Map<String, double[]>> table : reply.getDoubleFeatures().entrySet()) {
+			final boolean objects = !KBConstants.IMAGE.equals(table.getKey());
+			for (final Map.Entry<String, double[]> feature : table.getValue().entrySet()) {
+				final double[] values = filter(feature.getValue(), kept.get(table.getKey()));
+				final long offset = objects ? getOffset(tile, feature.getKey()) : 0;
+				if (offset != 0) {
+					for (int i = 0; i < values.length; i++) {
+						values[i] += offset;
+					}
+				}
+				append(m_doubleFeatures, table.getKey(), feature.getKey(), values);
+			}
+		}
+
+		for (final Map.Entry<String, Map<String, float[]>> table : reply.getFloatFeatures().entrySet()) {
+			final boolean objects = !KBConstants.IMAGE.equals(table.getKey());
+			for (final Map.Entry<String, float[]> feature : table.getValue().entrySet()) {
+				final float[] values = filter(feature.getValue(), kept.get(table.getKey()));
+				final long offset = objects ? getOffset(tile, feature.getKey()) : 0;
+				if (offset != 0) {
+					for (int i = 0; i < values.length; i++) {
+						values[i] += offset;
+					}
+				}
+				append(m_floatFeatures, table.getKey(), feature.getKey(), values);
+			}
+		}
+
+		for (final Map.Entry<String, Map<String, int[]>> table : reply.getIntFeatures().entrySet()) {
+			final boolean objects = !KBConstants.IMAGE.equals(table.getKey());
+			for (final Map.Entry<String, int[]> feature : table.getValue().entrySet()) {
+				final String name = feature.getKey();
+				final int[] values = filter(feature.getValue(), kept.get(table.getKey()));
+				if (KBConstants.IMAGE_NUMBER.equals(name)) {
+					for (int i = 0; i < values.length; i++) {
+						values[i] = 1;
+					}
+				} else if (objects && KBConstants.OBJECT_NUMBER.equals(name)) {
+					renumber(values, renumbering.get(table.getKey()));
+				} else if (objects && name.startsWith(PARENT_PREFIX)) {
+					final String parentName = name.substring(PARENT_PREFIX.length());
+					final int[] parents = values.clone();
+					renumber(values, renumbering.get(parentName));
+					for (int i = 0; i < values.length; i++) {
+						if (parents[i] > 0 && values[i] == 0 && rowsBefore.containsKey(table.getKey())) {
+							addDroppedParent(tile, reply, table.getKey(), name, parentName, parents[i],
+									rowsBefore.get(table.getKey()) + i);
+						}
+					}
+				} else if (!objects && name.startsWith(COUNT_PREFIX)
+						&& counts.containsKey(name.substring(COUNT_PREFIX.length()))) {
+					for (int i = 0; i < values.length; i++) {
+						values[i] = counts.get(name.substring(COUNT_PREFIX.length()));
+					}
+				} else if (objects) {
+					final long offset = getOffset(tile, name);
+					for (int i = 0; offset != 0 && i < values.length; i++) {
+						values[i] += offset;
+					}
+				}
+				append(m_intFeatures, table.getKey(), name, values);
+			}
+		}
+
+		for (final Map.Entry<String, Map<String, String>> table : reply.getStringFeatures().entrySet()) {
+			Map<String, String> features = m_stringFeatures.get(table.getKey());
+			if (features == null) {
+				features = new HashMap<String, String>();
+				m_stringFeatures.put(table.getKey(), features);
+			}
+			for (final Map.Entry<String, String> feature : table.getValue().entrySet()) {
+				if (!features.containsKey(feature.getKey())) {
+					features.put(feature.getKey(), feature.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remembers the position of a dropped parent of a kept object, so that
+	 * the object can refer to the parent kept by another tile.
+	 */
+	private void addDroppedParent(final ImageTile tile, final BulkRunReply reply, final String objectName,
+			final String feature, final String parentName, final int parentNumber, final int row) {
+		final Map<String, int[]> parentTable = reply.getIntFeatures().get(parentName);
+		final int[] numbers = parentTable != null ? parentTable.get(KBConstants.OBJECT_NUMBER) : null;
+		final double[] x = getCenter(reply, parentName, CENTER_X);
+		final double[] y = getCenter(reply, parentName, CENTER_Y);
+		if (numbers == null || x == null || y == null) {
+			return;
+		}
+		for (int i = 0; i < numbers.length; i++) {
+			if (numbers[i] == parentNumber) {
+				m_droppedParents.add(new DroppedParent(objectName, feature, parentName, row,
+						x[i] + tile.getMinX(), y[i] + tile.getMinY()));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return The measurements of all tiles added so far.
+	 */
+	public BulkRunReply stitch() {
+		final BulkRunReply reply = new BulkRunReply();
+		for (final Map.Entry<String, Map<String, List<double[]>>> table : m_doubleFeatures.entrySet()) {
+			final Map<String, double[]> features = new HashMap<String, double[]>();
+			for (final Map.Entry<String, List<double[]>> feature : table.getValue().entrySet()) {
+				int length = 0;
+				for (final double[] values : feature.getValue()) {
+					length += values.length;
+				}
+				final double[] merged = new double[length];
+				int pos = 0;
+				for (final double[] values : feature.getValue()) {
+					System.arraycopy(values, 0, merged, pos, values.length);
+					pos += values.length;
+				}
+				features.put(feature.getKey(),
+						KBConstants.IMAGE.equals(table.getKey()) ? new double[] { average(merged) } : merged);
+			}
+			reply.getDoubleFeatures().put(table.getKey(), features);
+		}
+		for (final Map.Entry<String, Map<String, List<float[]>>> table : m_floatFeatures.entrySet()) {
+			final Map<String, float[]> features = new HashMap<String, float[]>();
+			for (final Map.Entry<String, List<float[]>> feature : table.getValue().entrySet()) {
+				int length = 0;
+				for (final float[] values : feature.getValue()) {
+					length += values.length;
+				}
+				final float[] merged = new float[length];
+				int pos = 0;
+				for (final float[] values : feature.getValue()) {
+					System.arraycopy(values, 0, merged, pos, values.length);
+					pos += values.length;
+				}
+				if (KBConstants.IMAGE.equals(table.getKey())) {
+					final double[] widened = new double[merged.length];
+					for (int i = 0; i < merged.length; i++) {
+						widened[i] = merged[i];
+					}
+					features.put(feature.getKey(), new float[] { (float) average(widened) });
+				} else {
+					features.put(feature.getKey(), merged);
+				}
+			}
+			reply.getFloatFeatures().put(table.getKey(), features);
+		}
+		for (final Map.Entry<String, Map<String, List<int[]>>> table : m_intFeatures.entrySet()) {
+			final Map<String, int[]> features = new HashMap<String, int[]>();
+			for (final Map.Entry<String, List<int[]>> feature : table.getValue().entrySet()) {
+				int length = 0;
+				for (final int[] values : feature.getValue()) {
+					length += values.length;
+				}
+				final int[] merged = new int[length];
+				int pos = 0;
+				for (final int[] values : feature.getValue()) {
+					System.arraycopy(values, 0, merged, pos, values.length);
+					pos += values.length;
+				}
+				features.put(feature.getKey(), KBConstants.IMAGE.equals(table.getKey())
+						? new int[] { aggregate(feature.getKey(), merged) } : merged);
+			}
+			reply.getIntFeatures().put(table.getKey(), features);
+		}
+		for (final Map.Entry<String, Map<String, String>> table : m_stringFeatures.entrySet()) {
+			reply.getStringFeatures().put(table.getKey(), new HashMap<String, String>(table.getValue()));
+		}
+		for (final DroppedParent dropped : m_droppedParents) {
+			dropped.resolve(reply);
+		}
+		return reply;
+	}
+
+	/**
+	 * @param perTile
+	 *            Value of an image feature of each tile
+	 * @return The average weighted by the core areas of the tiles, or the
+	 *         plain average if not every tile has the feature.
+	 */
+	private double average(final double[] perTile) {
+		if (perTile.length == 0) {
+			return Double.NaN;
+		}
+		final boolean weighted = perTile.length == m_coreAreas.size();
+		double sum = 0;
+		double weights = 0;
+		for (int i = 0; i < perTile.length; i++) {
+			final double weight = weighted ? m_coreAreas.get(i) : 1;
+			sum += perTile[i] * weight;
+			weights += weight;
+		}
+		return weights > 0 ? sum / weights : Double.NaN;
+	}
+
+	/**
+	 * @return The value of an integer image feature of the whole image set.
+	 */
+	private int aggregate(final String name, final int[] perTile) {
+		if (KBConstants.IMAGE_NUMBER.equals(name)) {
+			return 1;
+		}
+		if (name.startsWith(COUNT_PREFIX)) {
+			int sum = 0;
+			for (final int value : perTile) {
+				sum += value;
+			}
+			return sum;
+		}
+		final double[] widened = new double[perTile.length];
+		for (int i = 0; i < perTile.length; i++) {
+			widened[i] = perTile[i];
+		}
+		return perTile.length > 0 ? (int) Math.round(average(widened)) : 0;
+	}
+
+	/**
+	 * @return Center coordinates of the objects or null if the table has none.
+	 */
+	private static double[] getCenter(final BulkRunReply reply, final String objectName, final String[] names) {
+		for (final String name : names) {
+			final double[] values = reply.getDoubleMeasurements(objectName, name);
+			if (values != null) {
+				return values;
+			}
+			final float[] floatValues = reply.getFloatMeasurements(objectName, name);
+			if (floatValues != null) {
+				final double[] converted = new double[floatValues.length];
+				for (int i = 0; i < converted.length; i++) {
+					converted[i] = floatValues[i];
+				}
+				return converted;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return Offset moving the values of a feature from tile to image
+	 *         coordinates, 0 if the feature isn't a coordinate.
+	 */
+	private static long getOffset(final ImageTile tile, final String feature) {
+		if (!feature.startsWith("Location_") && !feature.startsWith("AreaShape_Center")
+				&& !feature.startsWith("AreaShape_BoundingBox")) {
+			return 0;
+		}
+		if (feature.endsWith("_X") || feature.contains("_X_")) {
+			return tile.getMinX();
+		}
+		if (feature.endsWith("_Y") || feature.contains("_Y_")) {
+			return tile.getMinY();
+		}
+		return 0;
+	}
+
+	private static void renumber(final int[] values, final int[] newNumbers) {
+		if (newNumbers == null) {
+			return;
+		}
+		for (int i = 0; i < values.length; i++) {
+			values[i] = values[i] > 0 && values[i] < newNumbers.length ? newNumbers[values[i]] : 0;
+		}
+	}
+
+	private static double[] filter(final double[] values, final boolean[] keep) {
+		if (keep == null || keep.length != values.length) {
+			return values.clone();
+		}
+		final double[] filtered = new double[count(keep)];
+		for (int i = 0, j = 0; i < values.length; i++) {
+			if (keep[i]) {
+				filtered[j++] = values[i];
+			}
+		}
+		return filtered;
+	}
+
+	private static float[] filter(final float[] values, final boolean[] keep) {
+		if (keep == null || keep.length != values.length) {
+			return values.clone();
+		}
+		final float[] filtered = new float[count(keep)];
+		for (int i = 0, j = 0; i < values.length; i++) {
+			if (keep[i]) {
+				filtered[j++] = values[i];
+			}
+		}
+		return filtered;
+	}
+
+	private static int[] filter(final int[] values, final boolean[] keep) {
+		if (keep == null || keep.length != values.length) {
+			return values.clone();
+		}
+		final int[] filtered = new int[count(keep)];
+		for (int i = 0, j = 0; i < values.length; i++) {
+			if (keep[i]) {
+				filtered[j++] = values[i];
+			}
+		}
+		return filtered;
+	}
+
+	private static int count(final boolean[] keep) {
+		int count = 0;
+		for (final boolean k : keep) {
+			if (k) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Parent of a kept object that was dropped from the tile of the object.
+	 */
+	private static final class DroppedParent {
+
+		private final String m_objectName;
+
+		private final String m_feature;
+
+		private final String m_parentName;
+
+		private final int m_row;
+
+		private final double m_x;
+
+		private final double m_y;
+
+		DroppedParent(final String objectName, final String feature, final String parentName, final int row,
+				final double x, final double y) {
+			m_objectName = objectName;
+			m_feature = feature;
+			m_parentName = parentName;
+			m_row = row;
+			m_x = x;
+			m_y = y;
+		}
+
+		/**
+		 * Refers the object to the kept parent closest to the position of the
+		 * dropped one, if there is one close enough.
+		 */
+		void resolve(final BulkRunReply reply) {
+			final int[] parents = reply.getIntMeasurements(m_objectName, m_feature);
+			final int[] numbers = reply.getIntMeasurements(m_parentName, KBConstants.OBJECT_NUMBER);
+			final double[] x = getCenter(reply, m_parentName, CENTER_X);
+			final double[] y = getCenter(reply, m_parentName, CENTER_Y);
+			if (parents == null || m_row >= parents.length || numbers == null || x == null || y == null) {
+				return;
+			}
+			double closest = MAX_CENTER_DISTANCE;
+			for (int i = 0; i < numbers.length; i++) {
+				final double distance = Math.hypot(x[i] - m_x, y[i] - m_y);
+				if (distance <= closest) {
+					closest = distance;
+					parents[m_row] = numbers[i];
+				}
+			}
+		}
+	}
+
+	private static <T> void append(final Map<String, Map<String, List<T>>> features, final String objectName,
+			final String name, final T values) {
+		Map<String, List<T>> table = features.get(objectName);
+		if (table == null) {
+			table = new LinkedHashMap<String, List<T>>();
+			features.put(objectName, table);
+		}
+		List<T> parts = table.get(name);
+		if (parts == null) {
+			parts = new ArrayList<T>();
+			table.put(name, parts);
+		}
+		parts.add(values);
+	}
+
+}
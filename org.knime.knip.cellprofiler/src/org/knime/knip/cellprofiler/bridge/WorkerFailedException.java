@@ -0,0 +1,36 @@
+package org.knime.knip.cellprofiler.bridge;
+
+import org.cellprofiler.knimebridge.ProtocolException;
+
+/**
+ * Thrown if a CellProfiler worker did not answer a request in time or its
+ * process exited while the request was processed. The connection is waiting
+ * for a reply that won't come, so the worker has to be restarted.
+ */
+public class WorkerFailedException extends ProtocolException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final boolean m_timedOut;
+
+	/**
+	 * @param message
+	 *            Description of the failure
+	 * @param timedOut
+	 *            True if the worker did not answer in time, false if its
+	 *            process exited
+	 */
+	public WorkerFailedException(final String message, final boolean timedOut) {
+		super(message);
+		m_timedOut = timedOut;
+	}
+
+	/**
+	 * @return True if the worker did not answer in time, false if its process
+	 *         exited.
+	 */
+	public boolean isTimedOut() {
+		return m_timedOut;
+	}
+
+}
@@ -8,12 +8,19 @@ import org.knime.core.data.DataCellSerializer;
 
 public class CellProfilerCellSerializer implements DataCellSerializer<CellProfilerCell> {
 
+	/**
+	 * Current format version. Version 0 stored one data cell per measurement,
+	 * version 1 stores each measurement column as one block of primitives and
+	 * each string as its length followed by its UTF-8 bytes.
+	 */
+	public static final int VERSION = 1;
+
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public void serialize(final CellProfilerCell cell, final DataCellDataOutput output) throws IOException {
-		output.writeInt(0); // version
+		output.writeInt(VERSION);
 		CellProfilerContent cpc = cell.getCellProfilerContent();
 		cpc.save(output);
 	}
@@ -23,10 +30,13 @@ public class CellProfilerCellSerializer implements DataCellSerializer<CellProfil
 	 */
 	@Override
 	public CellProfilerCell deserialize(final DataCellDataInput input) throws IOException {
-		input.readInt(); // version
+		final int version = input.readInt();
+		if (version > VERSION) {
+			throw new IOException("Unsupported CellProfiler cell version " + version + ", please update the plugin");
+		}
 		CellProfilerContent cpc = null;
 		try {
-			cpc = CellProfilerContent.load(input);
+			cpc = CellProfilerContent.load(input, version);
 		} catch (ClassNotFoundException e) {
 			throw new RuntimeException("Class not found");
 		}
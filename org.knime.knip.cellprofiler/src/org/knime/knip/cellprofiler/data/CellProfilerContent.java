@@ -1,10 +1,11 @@
 package org.knime.knip.cellprofiler.data;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Serializable;
 
 import org.knime.core.data.DataCellDataInput;
-import org.knime.core.data.DataCellDataOutput;
 
 /**
  * Stores results from execution of CellProfiler Pipeline.
@@ -67,7 +68,18 @@ public class CellProfilerContent implements Serializable {
 		return isImageMeasurement;
 	}
 
-	public void save(final DataCellDataOutput output) throws IOException {
+	/**
+	 * @param newParentKey
+	 *            key of the new parent row
+	 * @return content with the same measurements, belonging to the new parent
+	 *         row
+	 */
+	public CellProfilerContent withParentKey(final String newParentKey) {
+		return new CellProfilerContent(newParentKey,
+				measurement.withParentKey(newParentKey), isImageMeasurement);
+	}
+
+	public void save(final DataOutput output) throws IOException {
 		output.writeUTF(parentKey);
 		measurement.save(output);
 		output.writeBoolean(isImageMeasurement);
@@ -75,8 +87,24 @@ public class CellProfilerContent implements Serializable {
 
 	public static CellProfilerContent load(final DataCellDataInput input)
 			throws IOException, ClassNotFoundException {
+		return load(input, CellProfilerCellSerializer.VERSION);
+	}
+
+	/**
+	 * @param input
+	 *            the input to read from, must be a {@link DataCellDataInput}
+	 *            for version 0
+	 * @param version
+	 *            the format version written by the serializer
+	 * @return the content
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static CellProfilerContent load(final DataInput input,
+			final int version) throws IOException, ClassNotFoundException {
 		return new CellProfilerContent(input.readUTF(),
-				CellProfilerMeasurementTable.load(input), input.readBoolean());
+				CellProfilerMeasurementTable.load(input, version),
+				input.readBoolean());
 	}
 
 }
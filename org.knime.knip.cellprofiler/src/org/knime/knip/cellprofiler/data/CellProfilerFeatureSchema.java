@@ -0,0 +1,196 @@
+package org.knime.knip.cellprofiler.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.knime.core.data.DataColumnProperties;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.knip.cellprofiler.data.CellProfilerMeasurementTable.InternalFormat;
+
+/**
+ * Names and types of the features of one measurement table, known before the
+ * pipeline is executed. It is stored in the properties of the measurement
+ * column so that the spec of the expanded table is known at configure time.
+ */
+public class CellProfilerFeatureSchema {
+
+	private static final String PROPERTY_PREFIX = "cellprofiler.feature.";
+
+	private static final String COUNT_PROPERTY = PROPERTY_PREFIX + "count";
+
+	private static final String NAMES_CFG = "names";
+
+	private static final String TYPES_CFG = "types";
+
+	private final List<String> m_names = new ArrayList<String>();
+
+	private final List<InternalFormat> m_formats = new ArrayList<InternalFormat>();
+
+	/**
+	 * Adds a feature, in the order the measurement table will contain it.
+	 * Features of unsupported types are skipped, as they are by the
+	 * measurement table.
+	 * 
+	 * @param name
+	 *            name of the feature
+	 * @param type
+	 *            type of the feature values as reported by CellProfiler
+	 */
+	public void addFeature(final String name, final Class<?> type) {
+		if (type.equals(Double.class) || type.equals(Float.class)) {
+			add(name, InternalFormat.DOUBLE);
+		} else if (type.equals(Integer.class)) {
+			add(name, InternalFormat.INT);
+		} else if (type.equals(String.class)) {
+			add(name, InternalFormat.STRING);
+		}
+	}
+
+	private void add(final String name, final InternalFormat format) {
+		m_names.add(name);
+		m_formats.add(format);
+	}
+
+	/**
+	 * @param selection
+	 *            the selected features
+	 * @param objectName
+	 *            object name of the measurement table
+	 * @return the schema of the selected features
+	 */
+	public CellProfilerFeatureSchema select(final CellProfilerFeatureSelection selection, final String objectName) {
+		final CellProfilerFeatureSchema schema = new CellProfilerFeatureSchema();
+		for (int i = 0; i < m_names.size(); i++) {
+			if (selection.isSelected(objectName, m_names.get(i))) {
+				schema.add(m_names.get(i), m_formats.get(i));
+			}
+		}
+		return schema;
+	}
+
+	/**
+	 * @return the spec of the table created from the measurement table
+	 */
+	public DataTableSpec createSpec() {
+		final DataColumnSpec[] spec = new DataColumnSpec[m_names.size()];
+		for (int i = 0; i < spec.length; i++) {
+			spec[i] = new DataColumnSpecCreator(m_names.get(i), m_formats.get(i).getType()).createSpec();
+		}
+		return new DataTableSpec(spec);
+	}
+
+	/**
+	 * @return the schema as column properties
+	 */
+	public DataColumnProperties toProperties() {
+		final Map<String, String> properties = new HashMap<String, String>();
+		properties.put(COUNT_PROPERTY, Integer.toString(m_names.size()));
+		for (int i = 0; i < m_names.size(); i++) {
+			properties.put(PROPERTY_PREFIX + i + ".name", m_names.get(i));
+			properties.put(PROPERTY_PREFIX + i + ".type", m_formats.get(i).name());
+		}
+		return new DataColumnProperties(properties);
+	}
+
+	/**
+	 * @param properties
+	 *            properties of a measurement column
+	 * @return the schema or null if the column doesn't contain one
+	 */
+	public static CellProfilerFeatureSchema fromProperties(final DataColumnProperties properties) {
+		if (!properties.containsProperty(COUNT_PROPERTY)) {
+			return null;
+		}
+		// Null if written by a newer version or modified
+		final CellProfilerFeatureSchema schema = new CellProfilerFeatureSchema();
+		final int count;
+		try {
+			count = Integer.parseInt(properties.getProperty(COUNT_PROPERTY));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		for (int i = 0; i < count; i++) {
+			final String name = properties.getProperty(PROPERTY_PREFIX + i + ".name");
+			final InternalFormat format = toFormat(properties.getProperty(PROPERTY_PREFIX + i + ".type"));
+			if (name == null || format == null) {
+				return null;
+			}
+			schema.add(name, format);
+		}
+		return schema;
+	}
+
+	/**
+	 * @return the format of the given name or null if there is none
+	 */
+	private static InternalFormat toFormat(final String name) {
+		for (final InternalFormat format : InternalFormat.values()) {
+			if (format.name().equals(name)) {
+				return format;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public int hashCode() {
+		return m_names.hashCode() * 31 + m_formats.hashCode();
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (obj == this) {
+			return true;
+		}
+		if (!(obj instanceof CellProfilerFeatureSchema)) {
+			return false;
+		}
+		final CellProfilerFeatureSchema other = (CellProfilerFeatureSchema) obj;
+		return m_names.equals(other.m_names) && m_formats.equals(other.m_formats);
+	}
+
+	/**
+	 * @param settings
+	 *            the settings to save to
+	 */
+	public void save(final NodeSettingsWO settings) {
+		final String[] types = new String[m_formats.size()];
+		for (int i = 0; i < types.length; i++) {
+			types[i] = m_formats.get(i).name();
+		}
+		settings.addStringArray(NAMES_CFG, m_names.toArray(new String[m_names.size()]));
+		settings.addStringArray(TYPES_CFG, types);
+	}
+
+	/**
+	 * @param settings
+	 *            the settings to load from
+	 * @return the schema
+	 * @throws InvalidSettingsException
+	 *             if the settings are invalid
+	 */
+	public static CellProfilerFeatureSchema load(final NodeSettingsRO settings) throws InvalidSettingsException {
+		final String[] names = settings.getStringArray(NAMES_CFG);
+		final String[] types = settings.getStringArray(TYPES_CFG);
+		if (names.length != types.length) {
+			throw new InvalidSettingsException("Inconsistent feature schema");
+		}
+		final CellProfilerFeatureSchema schema = new CellProfilerFeatureSchema();
+		for (int i = 0; i < names.length; i++) {
+			final InternalFormat format = toFormat(types[i]);
+			if (names[i] == null || format == null) {
+				throw new InvalidSettingsException("Unknown feature type " + types[i]);
+			}
+			schema.add(names[i], format);
+		}
+		return schema;
+	}
+
+}
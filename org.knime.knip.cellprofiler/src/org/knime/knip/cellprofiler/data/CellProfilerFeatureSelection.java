@@ -0,0 +1,156 @@
+package org.knime.knip.cellprofiler.data;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.cellprofiler.knimebridge.IFeatureDescription;
+import org.cellprofiler.knimebridge.KBConstants;
+
+/**
+ * Selects the features of the measurement tables that are requested from
+ * CellProfiler and stored in the measurement cells.
+ *
+ * The selection consists of rules of the form
+ * <code>object name: pattern</code>, one per line. A feature of a measurement
+ * table is selected if its name matches the regular expression of a rule for
+ * the object name of the table, or of a rule for <code>*</code> if there is
+ * none for the object name. Tables without any rule keep all features. The
+ * features identifying and locating objects, e.g. the object numbers, are
+ * always kept, so that objects can still be related to each other and images
+ * can still be tiled.
+ */
+public final class CellProfilerFeatureSelection {
+
+	private static final String ANY_OBJECT = "*";
+
+	private static final Pattern KEPT_FEATURES = Pattern.compile(Pattern.quote(KBConstants.IMAGE_NUMBER) + "|"
+			+ Pattern.quote(KBConstants.OBJECT_NUMBER)
+			+ "|Parent_.*|Count_.*|Location_Center_[XY]|AreaShape_Center_[XY]");
+
+	private final String m_rules;
+
+	private final Map<String, List<Pattern>> m_patterns = new LinkedHashMap<String, List<Pattern>>();
+
+	/**
+	 * @param rules
+	 *            Rules of the form <code>object name: pattern</code>, one per
+	 *            line, empty to select all features
+	 * @throws IllegalArgumentException
+	 *             If a rule has no object name or an invalid pattern
+	 */
+	public CellProfilerFeatureSelection(final String rules) {
+		final StringBuilder normalized = new StringBuilder();
+		for (final String line : rules.split("\\r?\\n")) {
+			final String rule = line.trim();
+			if (rule.isEmpty()) {
+				continue;
+			}
+			final int separator = rule.indexOf(':');
+			final String objectName = separator > 0 ? rule.substring(0, separator).trim() : "";
+			if (objectName.isEmpty()) {
+				throw new IllegalArgumentException("Feature selection rule without object name: " + rule);
+			}
+			final String pattern = rule.substring(separator + 1).trim();
+			List<Pattern> patterns = m_patterns.get(objectName);
+			if (patterns == null) {
+				patterns = new ArrayList<Pattern>();
+				m_patterns.put(objectName, patterns);
+			}
+			try {
+				patterns.add(Pattern.compile(pattern));
+			} catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException("Invalid feature pattern for " + objectName + ": "
+						+ e.getDescription(), e);
+			}
+			normalized.append(objectName).append(": ").append(pattern).append('\n');
+		}
+		m_rules = normalized.toString();
+	}
+
+	/**
+	 * @return Selection of all features.
+	 */
+	public static CellProfilerFeatureSelection all() {
+		return new CellProfilerFeatureSelection("");
+	}
+
+	/**
+	 * @return True if only some of the features are selected.
+	 */
+	public boolean isEnabled() {
+		return !m_patterns.isEmpty();
+	}
+
+	/**
+	 * @param objectName
+	 *            Object name of the measurement table
+	 * @param featureName
+	 *            Name of the feature
+	 * @return True if the feature is selected.
+	 */
+	public boolean isSelected(final String objectName, final String featureName) {
+		List<Pattern> patterns = m_patterns.get(objectName);
+		if (patterns == null) {
+			patterns = m_patterns.get(ANY_OBJECT);
+		}
+		if (patterns == null || KEPT_FEATURES.matcher(featureName).matches()) {
+			return true;
+		}
+		for (final Pattern pattern : patterns) {
+			if (pattern.matcher(featureName).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param features
+	 *            The features of each measurement table by object name
+	 * @return The names of the selected features of each measurement table.
+	 */
+	public Map<String, List<String>> selectNames(final Map<String, List<IFeatureDescription>> features) {
+		final Map<String, List<String>> selected = new LinkedHashMap<String, List<String>>();
+		for (final Map.Entry<String, List<IFeatureDescription>> entry : features.entrySet()) {
+			final List<String> names = new ArrayList<String>();
+			for (final IFeatureDescription feature : entry.getValue()) {
+				if (isSelected(entry.getKey(), feature.getName())) {
+					names.add(feature.getName());
+				}
+			}
+			selected.put(entry.getKey(), names);
+		}
+		return selected;
+	}
+
+	/**
+	 * @param schemas
+	 *            The feature schema of each measurement table by object name,
+	 *            may be null
+	 * @return The schemas of the selected features or null if no schemas
+	 *         were given.
+	 */
+	public Map<String, CellProfilerFeatureSchema> select(final Map<String, CellProfilerFeatureSchema> schemas) {
+		if (schemas == null || !isEnabled()) {
+			return schemas;
+		}
+		final Map<String, CellProfilerFeatureSchema> selected = new LinkedHashMap<String, CellProfilerFeatureSchema>();
+		for (final Map.Entry<String, CellProfilerFeatureSchema> entry : schemas.entrySet()) {
+			selected.put(entry.getKey(), entry.getValue().select(this, entry.getKey()));
+		}
+		return selected;
+	}
+
+	/**
+	 * @return The rules, one per line, empty if all features are selected.
+	 */
+	@Override
+	public String toString() {
+		return m_rules;
+	}
+
+}
@@ -0,0 +1,163 @@
+package org.knime.knip.cellprofiler.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataType;
+import org.knime.core.data.filestore.FileStore;
+import org.knime.core.data.filestore.FileStoreCell;
+
+/**
+ * {@link DataCell} storing {@link CellProfilerContent} in a file store (see
+ * {@link CellProfilerFileStoreWriter}). The cell itself only knows where the
+ * content is located, it is read when {@link #getCellProfilerContent()} is
+ * called. The most recently read contents are kept in a small cache, keyed by
+ * the ID of the file store, as the file of a file store is reused once the
+ * node is executed again.
+ * 
+ */
+public class CellProfilerFileStoreCell extends FileStoreCell implements CellProfilerValue {
+
+	public static final DataType TYPE = DataType.getType(CellProfilerFileStoreCell.class);
+
+	private static final long serialVersionUID = -4311979387536470162L;
+
+	private static final int CACHE_SIZE = 16;
+
+	private static final Map<String, CellProfilerContent> CACHE = Collections
+			.synchronizedMap(new LinkedHashMap<String, CellProfilerContent>(CACHE_SIZE, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<String, CellProfilerContent> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			});
+
+	private final String m_fileStoreId;
+
+	private final long m_offset;
+
+	private final int m_length;
+
+	private final String m_parentKey;
+
+	private final int m_numRows;
+
+	/**
+	 * @param fileStore
+	 *            the file store containing the content
+	 * @param fileStoreId
+	 *            ID of the file store, unique across executions
+	 * @param offset
+	 *            position of the content in the file
+	 * @param length
+	 *            length of the content in bytes
+	 * @param parentKey
+	 *            key of the parent object
+	 * @param numRows
+	 *            number of rows of the measurement table
+	 */
+	CellProfilerFileStoreCell(final FileStore fileStore, final String fileStoreId, final long offset,
+			final int length, final String parentKey, final int numRows) {
+		super(fileStore);
+		m_fileStoreId = fileStoreId;
+		m_offset = offset;
+		m_length = length;
+		m_parentKey = parentKey;
+		m_numRows = numRows;
+	}
+
+	/**
+	 * Used by the serializer, the file store is restored by the framework.
+	 */
+	CellProfilerFileStoreCell(final String fileStoreId, final long offset, final int length,
+			final String parentKey, final int numRows) {
+		m_fileStoreId = fileStoreId;
+		m_offset = offset;
+		m_length = length;
+		m_parentKey = parentKey;
+		m_numRows = numRows;
+	}
+
+	String getFileStoreId() {
+		return m_fileStoreId;
+	}
+
+	long getOffset() {
+		return m_offset;
+	}
+
+	int getLength() {
+		return m_length;
+	}
+
+	String getParentKey() {
+		return m_parentKey;
+	}
+
+	int getNumRows() {
+		return m_numRows;
+	}
+
+	@Override
+	public CellProfilerContent getCellProfilerContent() {
+		final File file = getFileStore().getFile();
+		final String key = m_fileStoreId + "#" + m_offset;
+		CellProfilerContent content = CACHE.get(key);
+		if (content == null) {
+			content = readContent(file);
+			CACHE.put(key, content);
+		}
+		return content;
+	}
+
+	private CellProfilerContent readContent(final File file) {
+		final byte[] bytes = new byte[m_length];
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			in.seek(m_offset);
+			in.readFully(bytes);
+			final DataInputStream content = new DataInputStream(new ByteArrayInputStream(bytes));
+			final int version = content.readInt();
+			if (version < 1 || version > CellProfilerCellSerializer.VERSION) {
+				throw new IOException("Unsupported CellProfiler content version " + version
+						+ ", please update the plugin");
+			}
+			return CellProfilerContent.load(content, version);
+		} catch (IOException | ClassNotFoundException e) {
+			throw new IllegalStateException("Could not read CellProfiler measurements of " + m_parentKey + ": "
+					+ e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Doesn't read the content.
+	 */
+	@Override
+	public String toString() {
+		return m_parentKey + "#CellProfiler Content: \n" + "Number of Rows: [" + m_numRows + "]";
+	}
+
+	@Override
+	protected boolean equalsDataCell(DataCell dc) {
+		if (dc == null || !(dc instanceof CellProfilerFileStoreCell)) {
+			return false;
+		}
+		final CellProfilerFileStoreCell other = (CellProfilerFileStoreCell) dc;
+		return m_offset == other.m_offset && getFileStore().getFile().equals(other.getFileStore().getFile());
+	}
+
+	@Override
+	public int hashCode() {
+		return getFileStore().getFile().hashCode() * 31 + (int) (m_offset ^ (m_offset >>> 32));
+	}
+
+}
@@ -0,0 +1,44 @@
+package org.knime.knip.cellprofiler.data;
+
+import java.io.IOException;
+
+import org.knime.core.data.DataCellDataInput;
+import org.knime.core.data.DataCellDataOutput;
+import org.knime.core.data.DataCellSerializer;
+
+/**
+ * Serializes the location of the content of a
+ * {@link CellProfilerFileStoreCell}, the content itself is part of the file
+ * store.
+ */
+public class CellProfilerFileStoreCellSerializer implements DataCellSerializer<CellProfilerFileStoreCell> {
+
+	private static final int VERSION = 1;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void serialize(final CellProfilerFileStoreCell cell, final DataCellDataOutput output) throws IOException {
+		output.writeInt(VERSION);
+		output.writeUTF(cell.getFileStoreId());
+		output.writeLong(cell.getOffset());
+		output.writeInt(cell.getLength());
+		output.writeUTF(cell.getParentKey());
+		output.writeInt(cell.getNumRows());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CellProfilerFileStoreCell deserialize(final DataCellDataInput input) throws IOException {
+		final int version = input.readInt();
+		if (version > VERSION) {
+			throw new IOException("Unsupported CellProfiler cell version " + version + ", please update the plugin");
+		}
+		return new CellProfilerFileStoreCell(input.readUTF(), input.readLong(), input.readInt(), input.readUTF(),
+				input.readInt());
+	}
+
+}
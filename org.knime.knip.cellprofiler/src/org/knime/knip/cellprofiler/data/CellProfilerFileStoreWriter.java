@@ -0,0 +1,93 @@
+package org.knime.knip.cellprofiler.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import org.knime.core.data.filestore.FileStore;
+import org.knime.core.node.ExecutionContext;
+
+/**
+ * Appends {@link CellProfilerContent}s to the file stores of a node execution
+ * and creates the {@link CellProfilerFileStoreCell}s referencing them. Many
+ * contents share one file, a new file is started once it exceeds
+ * {@link #MAX_FILE_SIZE}. Each content is preceded by the
+ * {@link CellProfilerCellSerializer#VERSION} it is written in, each file gets
+ * an ID of its own. Safe to be used by several threads.
+ */
+public class CellProfilerFileStoreWriter implements AutoCloseable {
+
+	private static final long MAX_FILE_SIZE = 256 * 1024 * 1024;
+
+	private final ExecutionContext m_exec;
+
+	private FileStore m_fileStore;
+
+	private String m_fileStoreId;
+
+	private OutputStream m_out;
+
+	private long m_position;
+
+	private int m_fileCount;
+
+	/**
+	 * @param exec
+	 *            the execution context creating the file stores
+	 */
+	public CellProfilerFileStoreWriter(final ExecutionContext exec) {
+		m_exec = exec;
+	}
+
+	/**
+	 * Writes the content to the file store.
+	 * 
+	 * @param content
+	 *            the content
+	 * @return cell referencing the written content
+	 * @throws IOException
+	 *             if the content could not be written
+	 */
+	public CellProfilerFileStoreCell createCell(final CellProfilerContent content) throws IOException {
+		// Serialized outside of the lock
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(CellProfilerCellSerializer.VERSION);
+		content.save(out);
+		out.flush();
+
+		synchronized (this) {
+			if (m_out == null || m_position >= MAX_FILE_SIZE) {
+				close();
+				m_fileStore = m_exec.createFileStore("cellprofiler-measurements-" + m_fileCount++);
+				// The file name is reused by later executions of the node
+				m_fileStoreId = UUID.randomUUID().toString();
+				m_out = new FileOutputStream(m_fileStore.getFile());
+				m_position = 0;
+			}
+			final long offset = m_position;
+			bytes.writeTo(m_out);
+			m_position += bytes.size();
+			return new CellProfilerFileStoreCell(m_fileStore, m_fileStoreId, offset, bytes.size(),
+					content.getParentKey(), content.getMeasurement().getNumRows());
+		}
+	}
+
+	/**
+	 * Closes the file currently written to.
+	 * 
+	 * @throws IOException
+	 *             if the file could not be closed
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (m_out != null) {
+			m_out.close();
+			m_out = null;
+		}
+	}
+
+}
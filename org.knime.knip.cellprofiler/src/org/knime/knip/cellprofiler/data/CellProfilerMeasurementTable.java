@@ -1,17 +1,27 @@
 package org.knime.knip.cellprofiler.data;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataCellDataInput;
-import org.knime.core.data.DataCellDataOutput;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.DataType;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.data.IntValue;
+import org.knime.core.data.StringValue;
 import org.knime.core.data.def.DefaultRow;
 import org.knime.core.data.def.DoubleCell;
 import org.knime.core.data.def.IntCell;
@@ -25,6 +35,11 @@ import net.imglib2.util.ValuePair;
 /**
  * Table representing calculations from a CellProfiler Pipeline
  * 
+ * The measurements are stored column-wise in primitive arrays (double[],
+ * int[] or String[] depending on the {@link InternalFormat}), cells are only
+ * created when the rows are added to a table. Numeric columns of a loaded
+ * table are kept in their saved form and only decoded once they are accessed.
+ * 
  * @author Patrick Winter (University of Konstanz)
  * @author Christian Dietz (University of Konstanz)
  *
@@ -47,7 +62,16 @@ public class CellProfilerMeasurementTable implements Serializable {
 
 	private static final long serialVersionUID = 1148694872280436208L;
 
-	private final List<DataCell[]> dataAsColumns;
+	private static final byte BLOCK_RAW = 0;
+
+	private static final byte BLOCK_DEFLATED = 1;
+
+	/**
+	 * Smaller columns are not worth deflating
+	 */
+	private static final int MIN_DEFLATE_SIZE = 1024;
+
+	private final List<Object> dataAsColumns;
 
 	private final List<Pair<String, InternalFormat>> outSpec;
 
@@ -62,7 +86,7 @@ public class CellProfilerMeasurementTable implements Serializable {
 	public CellProfilerMeasurementTable(final String parentKey) {
 		this.parentKey = parentKey;
 		this.outSpec = new ArrayList<Pair<String, InternalFormat>>();
-		this.dataAsColumns = new ArrayList<DataCell[]>();
+		this.dataAsColumns = new ArrayList<Object>();
 	}
 
 	/**
@@ -72,7 +96,7 @@ public class CellProfilerMeasurementTable implements Serializable {
 	protected CellProfilerMeasurementTable(final String parentKey,
 			final int numRows, final int numCols,
 			final List<Pair<String, InternalFormat>> outSpec,
-			final List<DataCell[]> dataAsColumns) {
+			final List<Object> dataAsColumns) {
 		this.parentKey = parentKey;
 		this.numRows = numRows;
 		this.outSpec = outSpec;
@@ -94,16 +118,106 @@ public class CellProfilerMeasurementTable implements Serializable {
 	public void addRows(final BufferedDataContainer container) {
 
 		for (int r = 0; r < numRows; r++) {
+			container.addRowToTable(getRow(r));
+		}
+	}
 
-			final DataCell[] cells = new DataCell[outSpec.size()];
+	/**
+	 * Creates a single row of the table.
+	 * 
+	 * @param r
+	 *            index of the row
+	 * @return the row
+	 */
+	public DataRow getRow(final int r) {
+		final DataCell[] cells = new DataCell[outSpec.size()];
 
-			for (int i = 0; i < cells.length; i++) {
-				cells[i] = dataAsColumns.get(i)[r];
-			}
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = getCell(i, r);
+		}
 
-			container.addRowToTable(new DefaultRow(parentKey
-					+ KNIPConstants.IMGID_LABEL_DELIMITER + r, cells));
+		return new DefaultRow(parentKey + KNIPConstants.IMGID_LABEL_DELIMITER
+				+ r, cells);
+	}
 
+	/**
+	 * Creates the cell of a single measurement.
+	 * 
+	 * @param column
+	 *            index of the column
+	 * @param row
+	 *            index of the row
+	 * @return the cell, missing if CellProfiler didn't report a text
+	 */
+	public DataCell getCell(final int column, final int row) {
+		final Object data = getColumn(column);
+		switch (outSpec.get(column).getB()) {
+		case DOUBLE:
+			return new DoubleCell(((double[]) data)[row]);
+		case INT:
+			return new IntCell(((int[]) data)[row]);
+		default:
+			final String value = ((String[]) data)[row];
+			return value != null ? new StringCell(value) : DataType.getMissingCell();
+		}
+	}
+
+	/**
+	 * @return the values of the column, decoded if the column was loaded
+	 */
+	private Object getColumn(final int column) {
+		final Object data = dataAsColumns.get(column);
+		if (data instanceof PackedColumn) {
+			return ((PackedColumn) data).decode();
+		}
+		return data;
+	}
+
+	/**
+	 * Tables serialized before the columns were stored as primitive arrays
+	 * hold one cell per value, which are converted once they are read.
+	 * 
+	 * @return the table with the columns in the current representation
+	 */
+	private Object readResolve() {
+		boolean legacy = false;
+		for (final Object data : dataAsColumns) {
+			legacy |= data instanceof DataCell[];
+		}
+		if (!legacy) {
+			return this;
+		}
+		final List<Object> columns = new ArrayList<Object>(dataAsColumns.size());
+		for (int i = 0; i < dataAsColumns.size(); i++) {
+			final Object data = dataAsColumns.get(i);
+			columns.add(data instanceof DataCell[] ? toValues((DataCell[]) data,
+					outSpec.get(i).getB()) : data);
+		}
+		return new CellProfilerMeasurementTable(parentKey, numRows,
+				outSpec.size(), outSpec, columns);
+	}
+
+	private static Object toValues(final DataCell[] cells,
+			final InternalFormat format) {
+		switch (format) {
+		case DOUBLE:
+			final double[] doubles = new double[cells.length];
+			for (int j = 0; j < doubles.length; j++) {
+				doubles[j] = ((DoubleValue) cells[j]).getDoubleValue();
+			}
+			return doubles;
+		case INT:
+			final int[] ints = new int[cells.length];
+			for (int j = 0; j < ints.length; j++) {
+				ints[j] = ((IntValue) cells[j]).getIntValue();
+			}
+			return ints;
+		default:
+			final String[] strings = new String[cells.length];
+			for (int j = 0; j < strings.length; j++) {
+				strings[j] = ((StringValue) cells[j]).getStringValue();
+			}
+			return strings;
 		}
 	}
 
@@ -121,6 +235,17 @@ public class CellProfilerMeasurementTable implements Serializable {
 		return parentKey;
 	}
 
+	/**
+	 * @param newParentKey
+	 *            key of the new parent object
+	 * @return table with the same measurements, whose rows are keyed by the
+	 *         new parent. The columns are shared, not copied.
+	 */
+	public CellProfilerMeasurementTable withParentKey(final String newParentKey) {
+		return new CellProfilerMeasurementTable(newParentKey, numRows,
+				outSpec.size(), outSpec, dataAsColumns);
+	}
+
 	/**
 	 * Tries to determine the number of rows in this table. fails if the
 	 * provided columns have different sizes
@@ -143,12 +268,7 @@ public class CellProfilerMeasurementTable implements Serializable {
 	public void addDoubleFeature(final String featureName,
 			final double[] featureValues) {
 		trySetNumRows(featureValues.length);
-		final DoubleCell[] cells = new DoubleCell[featureValues.length];
-
-		for (int i = 0; i < featureValues.length; i++) {
-			cells[i] = new DoubleCell(featureValues[i]);
-		}
-		this.dataAsColumns.add(cells);
+		this.dataAsColumns.add(featureValues);
 
 		addToSpec(featureName, InternalFormat.DOUBLE);
 	}
@@ -156,12 +276,12 @@ public class CellProfilerMeasurementTable implements Serializable {
 	public void addFloatFeature(final String featureName,
 			final float[] featureValues) {
 		trySetNumRows(featureValues.length);
-		final DoubleCell[] cells = new DoubleCell[featureValues.length];
+		final double[] values = new double[featureValues.length];
 
 		for (int i = 0; i < featureValues.length; i++) {
-			cells[i] = new DoubleCell(featureValues[i]);
+			values[i] = featureValues[i];
 		}
-		this.dataAsColumns.add(cells);
+		this.dataAsColumns.add(values);
 
 		addToSpec(featureName, InternalFormat.DOUBLE);
 	}
@@ -169,12 +289,7 @@ public class CellProfilerMeasurementTable implements Serializable {
 	public void addIntegerFeature(final String featureName,
 			final int[] featureValues) {
 		trySetNumRows(featureValues.length);
-		final IntCell[] cells = new IntCell[featureValues.length];
-
-		for (int i = 0; i < featureValues.length; i++) {
-			cells[i] = new IntCell(featureValues[i]);
-		}
-		this.dataAsColumns.add(cells);
+		this.dataAsColumns.add(featureValues);
 
 		addToSpec(featureName, InternalFormat.INT);
 	}
@@ -182,8 +297,7 @@ public class CellProfilerMeasurementTable implements Serializable {
 	public void addStringFeature(final String featureName,
 			final String featureValue) {
 		trySetNumRows(1);
-		this.dataAsColumns
-				.add(new StringCell[] { new StringCell(featureValue) });
+		this.dataAsColumns.add(new String[] { featureValue });
 
 		addToSpec(featureName, InternalFormat.STRING);
 	}
@@ -229,7 +343,16 @@ public class CellProfilerMeasurementTable implements Serializable {
 				+ "] \n" + "Number of Columns: [" + dataAsColumns.size() + "]";
 	}
 
-	public void save(final DataCellDataOutput output) throws IOException {
+	/**
+	 * Saves the table in the current format: each numeric column is written
+	 * as one block of primitive values, deflated if that makes it smaller,
+	 * each string as its length followed by its UTF-8 bytes.
+	 * 
+	 * @param output
+	 *            the output to write to
+	 * @throws IOException
+	 */
+	public void save(final DataOutput output) throws IOException {
 		output.writeUTF(parentKey);
 		output.writeInt(dataAsColumns.size());
 		output.writeInt(numRows);
@@ -239,21 +362,134 @@ public class CellProfilerMeasurementTable implements Serializable {
 			output.writeInt(spec.getB().ordinal());
 		}
 
-		for (final DataCell[] cells : dataAsColumns) {
-			for (final DataCell cell : cells) {
-				output.writeDataCell(cell);
+		for (int i = 0; i < dataAsColumns.size(); i++) {
+			final Object data = dataAsColumns.get(i);
+			if (data instanceof PackedColumn) {
+				// Not decoded yet, write it as it was read
+				((PackedColumn) data).write(output);
+				continue;
+			}
+			switch (outSpec.get(i).getB()) {
+			case DOUBLE:
+				final ByteBuffer doubles = ByteBuffer.allocate(getBlockSize(
+						InternalFormat.DOUBLE, numRows));
+				doubles.asDoubleBuffer().put((double[]) data);
+				writeBlock(output, doubles.array());
+				break;
+			case INT:
+				final ByteBuffer ints = ByteBuffer.allocate(getBlockSize(
+						InternalFormat.INT, numRows));
+				ints.asIntBuffer().put((int[]) data);
+				writeBlock(output, ints.array());
+				break;
+			default:
+				for (final String value : (String[]) data) {
+					output.writeBoolean(value != null);
+					if (value != null) {
+						// writeUTF is limited to 64 KB
+						final byte[] bytes = value
+								.getBytes(StandardCharsets.UTF_8);
+						output.writeInt(bytes.length);
+						output.write(bytes);
+					}
+				}
 			}
 		}
 	}
 
+	/**
+	 * @return number of bytes of the values of a numeric column
+	 * @throws IOException
+	 *             if the column has more values than fit into one block
+	 */
+	private static int getBlockSize(final InternalFormat format,
+			final int numRows) throws IOException {
+		final long size = (long) numRows
+				* (format == InternalFormat.DOUBLE ? 8 : 4);
+		if (numRows < 0 || size > Integer.MAX_VALUE) {
+			throw new IOException("Measurement column of " + numRows
+					+ " rows is too large");
+		}
+		return (int) size;
+	}
+
+	private static void writeBlock(final DataOutput output,
+			final byte[] block) throws IOException {
+		if (block.length >= MIN_DEFLATE_SIZE) {
+			final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			deflater.setInput(block);
+			deflater.finish();
+			// Only worth it if at least an eighth smaller
+			final byte[] deflated = new byte[block.length - block.length / 8];
+			final int length = deflater.deflate(deflated);
+			final boolean finished = deflater.finished();
+			deflater.end();
+			if (finished) {
+				output.writeByte(BLOCK_DEFLATED);
+				output.writeInt(length);
+				output.write(deflated, 0, length);
+				return;
+			}
+		}
+		output.writeByte(BLOCK_RAW);
+		output.write(block);
+	}
+
+	/**
+	 * Reads a block written by {@link #writeBlock(DataOutput, byte[])}
+	 * without inflating it.
+	 */
+	private static PackedColumn readBlock(final DataInput input,
+			final InternalFormat format, final int numRows) throws IOException {
+		final int size = getBlockSize(format, numRows);
+		final byte compression = input.readByte();
+		final byte[] block;
+		if (compression == BLOCK_RAW) {
+			block = new byte[size];
+		} else if (compression == BLOCK_DEFLATED) {
+			block = new byte[input.readInt()];
+		} else {
+			throw new IOException("Unknown compression of measurement column: "
+					+ compression);
+		}
+		input.readFully(block);
+		return new PackedColumn(format, numRows, size, compression, block);
+	}
+
+	/**
+	 * Loads a table written by {@link #save(DataOutput)}.
+	 * 
+	 * @param input
+	 *            the input to read from
+	 * @return the table
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
 	public static CellProfilerMeasurementTable load(
 			final DataCellDataInput input) throws IOException,
 			ClassNotFoundException {
+		return load(input, CellProfilerCellSerializer.VERSION);
+	}
+
+	/**
+	 * Loads a table.
+	 * 
+	 * @param input
+	 *            the input to read from, must be a {@link DataCellDataInput}
+	 *            for version 0
+	 * @param version
+	 *            the format version, 0 for tables storing one cell per value
+	 * @return the table
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static CellProfilerMeasurementTable load(final DataInput input,
+			final int version) throws IOException, ClassNotFoundException {
 		final String parentKey = input.readUTF();
 		final int numColumns = input.readInt();
 		final int numRows = input.readInt();
 
-		final List<DataCell[]> dataAsColumns = new ArrayList<>();
+		final List<Object> dataAsColumns = new ArrayList<>();
 		final List<Pair<String, InternalFormat>> spec = new ArrayList<>();
 
 		for (int i = 0; i < numColumns; i++) {
@@ -262,16 +498,151 @@ public class CellProfilerMeasurementTable implements Serializable {
 		}
 
 		for (int i = 0; i < numColumns; i++) {
-			final DataCell[] column = new DataCell[numRows];
-
-			for (int j = 0; j < column.length; j++) {
-				column[j] = (DataCell) input.readDataCell();
+			if (version == 0) {
+				dataAsColumns.add(loadCells((DataCellDataInput) input, spec
+						.get(i).getB(), numRows));
+			} else {
+				dataAsColumns.add(loadBlock(input, spec.get(i).getB(), numRows));
 			}
-			dataAsColumns.add(column);
 		}
 
 		return new CellProfilerMeasurementTable(parentKey, numRows, numColumns,
 				spec, dataAsColumns);
 	}
 
+	private static Object loadBlock(final DataInput input,
+			final InternalFormat format, final int numRows) throws IOException {
+		switch (format) {
+		case DOUBLE:
+		case INT:
+			return readBlock(input, format, numRows);
+		default:
+			final String[] strings = new String[numRows];
+			for (int j = 0; j < strings.length; j++) {
+				if (!input.readBoolean()) {
+					continue;
+				}
+				final byte[] bytes = new byte[input.readInt()];
+				input.readFully(bytes);
+				strings[j] = new String(bytes, StandardCharsets.UTF_8);
+			}
+			return strings;
+		}
+	}
+
+	private static Object loadCells(final DataCellDataInput input,
+			final InternalFormat format, final int numRows) throws IOException {
+		switch (format) {
+		case DOUBLE:
+			final double[] doubles = new double[numRows];
+			for (int j = 0; j < doubles.length; j++) {
+				doubles[j] = ((DoubleValue) input.readDataCell())
+						.getDoubleValue();
+			}
+			return doubles;
+		case INT:
+			final int[] ints = new int[numRows];
+			for (int j = 0; j < ints.length; j++) {
+				ints[j] = ((IntValue) input.readDataCell()).getIntValue();
+			}
+			return ints;
+		default:
+			final String[] strings = new String[numRows];
+			for (int j = 0; j < strings.length; j++) {
+				strings[j] = ((StringValue) input.readDataCell())
+						.getStringValue();
+			}
+			return strings;
+		}
+	}
+
+	/**
+	 * Numeric column as it was saved, decoded on first access. Tables created
+	 * by {@link #withParentKey(String)} share the column and its decoded
+	 * values.
+	 */
+	private static final class PackedColumn implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final InternalFormat m_format;
+
+		private final int m_numRows;
+
+		private final int m_size;
+
+		private final byte m_compression;
+
+		// Both guarded by this, the block is dropped once decoded
+		private byte[] m_block;
+
+		private Object m_values;
+
+		PackedColumn(final InternalFormat format, final int numRows,
+				final int size, final byte compression, final byte[] block) {
+			m_format = format;
+			m_numRows = numRows;
+			m_size = size;
+			m_compression = compression;
+			m_block = block;
+		}
+
+		/**
+		 * @return the double[] or int[] of the column
+		 */
+		synchronized Object decode() {
+			if (m_values != null) {
+				return m_values;
+			}
+			byte[] bytes = m_block;
+			if (m_compression == BLOCK_DEFLATED) {
+				bytes = new byte[m_size];
+				final Inflater inflater = new Inflater();
+				inflater.setInput(m_block);
+				try {
+					if (inflater.inflate(bytes) != m_size) {
+						throw new IllegalStateException("Truncated measurement column");
+					}
+				} catch (DataFormatException e) {
+					throw new IllegalStateException("Corrupt measurement column", e);
+				} finally {
+					inflater.end();
+				}
+			}
+			if (m_format == InternalFormat.DOUBLE) {
+				final double[] doubles = new double[m_numRows];
+				ByteBuffer.wrap(bytes).asDoubleBuffer().get(doubles);
+				m_values = doubles;
+			} else {
+				final int[] ints = new int[m_numRows];
+				ByteBuffer.wrap(bytes).asIntBuffer().get(ints);
+				m_values = ints;
+			}
+			m_block = null;
+			return m_values;
+		}
+
+		/**
+		 * Writes the column in the format of
+		 * {@link CellProfilerMeasurementTable#writeBlock(DataOutput, byte[])}.
+		 */
+		synchronized void write(final DataOutput output) throws IOException {
+			if (m_block == null) {
+				final ByteBuffer bytes = ByteBuffer.allocate(m_size);
+				if (m_format == InternalFormat.DOUBLE) {
+					bytes.asDoubleBuffer().put((double[]) m_values);
+				} else {
+					bytes.asIntBuffer().put((int[]) m_values);
+				}
+				writeBlock(output, bytes.array());
+				return;
+			}
+			output.writeByte(m_compression);
+			if (m_compression == BLOCK_DEFLATED) {
+				output.writeInt(m_block.length);
+			}
+			output.write(m_block);
+		}
+	}
+
 }
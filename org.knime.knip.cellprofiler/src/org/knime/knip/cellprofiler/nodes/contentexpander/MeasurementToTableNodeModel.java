@@ -2,22 +2,43 @@ package org.knime.knip.cellprofiler.nodes.contentexpander;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
-import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
 import org.knime.core.node.ExecutionContext;
 import org.knime.core.node.ExecutionMonitor;
 import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.KNIMEConstants;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.BufferedDataTableRowOutput;
+import org.knime.core.node.streamable.DataTableRowInput;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
+import org.knime.core.util.ThreadPool;
 import org.knime.knip.cellprofiler.data.CellProfilerContent;
+import org.knime.knip.cellprofiler.data.CellProfilerFeatureSchema;
+import org.knime.knip.cellprofiler.data.CellProfilerMeasurementTable;
 import org.knime.knip.cellprofiler.data.CellProfilerValue;
 
 /**
@@ -38,6 +59,11 @@ public class MeasurementToTableNodeModel extends NodeModel {
 		return new SettingsModelString("measurement_column", "");
 	}
 
+	/**
+	 * Number of consecutive input rows expanded by one worker at a time
+	 */
+	private static final int CHUNK_SIZE = 16;
+
 	private final SettingsModelString measurementColumnModel;
 
 	protected MeasurementToTableNodeModel() {
@@ -50,32 +76,185 @@ public class MeasurementToTableNodeModel extends NodeModel {
 	protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
 			final ExecutionContext exec) throws Exception {
 
-		int measurementColumnIndex = inData[0].getDataTableSpec()
-				.findColumnIndex(measurementColumnModel.getStringValue());
-		if (measurementColumnIndex == -1) {
-			measurementColumnIndex = autoGuessColumnIdx(inData[0]
-					.getDataTableSpec());
+		final int measurementColumnIndex = getMeasurementColumnIndex(inData[0]
+				.getDataTableSpec());
+
+		DataTableSpec outSpec = getSchemaSpec(inData[0].getDataTableSpec(),
+				measurementColumnIndex);
+		if (outSpec == null) {
+			// Created by an older version, the spec is taken from the first
+			// measurement
+			outSpec = new DataTableSpec();
+			for (final DataRow row : inData[0]) {
+				outSpec = getContent(row, measurementColumnIndex)
+						.getMeasurement().getSpec();
+				break;
+			}
 		}
 
-		BufferedDataContainer outData = null;
-
-		for (final DataRow row : inData[0]) {
-			final DataCell cell = row.getCell(measurementColumnIndex);
-			if (cell.isMissing())
-				throw new IllegalStateException("Can't handle missing cells in CellProfiler Measurements To Table Node. Aborting!");
-				
-				final CellProfilerContent content = ((CellProfilerValue) row
-					.getCell(measurementColumnIndex)).getCellProfilerContent();
-			if (outData == null) {
-				outData = exec.createDataContainer(content.getMeasurement()
-						.getSpec());
+		final BufferedDataTableRowOutput output = new BufferedDataTableRowOutput(
+				exec.createDataContainer(outSpec));
+		expand(new DataTableRowInput(inData[0]), output, exec,
+				measurementColumnIndex);
+		return new BufferedDataTable[] { output.getDataTable() };
+	}
+
+	@Override
+	public InputPortRole[] getInputPortRoles() {
+		return new InputPortRole[] { InputPortRole.DISTRIBUTED_STREAMABLE };
+	}
+
+	@Override
+	public OutputPortRole[] getOutputPortRoles() {
+		return new OutputPortRole[] { OutputPortRole.DISTRIBUTED };
+	}
+
+	@Override
+	public StreamableOperator createStreamableOperator(
+			final PartitionInfo partitionInfo, final PortObjectSpec[] inSpecs)
+			throws InvalidSettingsException {
+		final DataTableSpec inSpec = (DataTableSpec) inSpecs[0];
+		final int measurementColumnIndex = getMeasurementColumnIndex(inSpec);
+		// Streamed and distributed outputs need the spec before the first row
+		if (getSchemaSpec(inSpec, measurementColumnIndex) == null) {
+			throw new InvalidSettingsException("The column "
+					+ inSpec.getColumnSpec(measurementColumnIndex).getName()
+					+ " doesn't describe its measurements, execute the node without streaming"
+					+ " or execute the CellProfiler node that created it again");
+		}
+		return new StreamableOperator() {
+			@Override
+			public void runFinal(final PortInput[] inputs,
+					final PortOutput[] outputs, final ExecutionContext exec)
+					throws Exception {
+				expand((RowInput) inputs[0], (RowOutput) outputs[0], exec,
+						measurementColumnIndex);
 			}
+		};
+	}
 
-			content.getMeasurement().addRows(outData);
+	/**
+	 * Expands the measurements of the input rows. Chunks of consecutive rows
+	 * are expanded by threads of KNIME's global thread pool, the results are
+	 * pushed in input order.
+	 */
+	private void expand(final RowInput input, final RowOutput output,
+			final ExecutionContext exec, final int measurementColumnIndex)
+			throws Exception {
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+		final ThreadPool pool = KNIMEConstants.GLOBAL_THREAD_POOL
+				.createSubPool(numThreads);
+		final Deque<Future<List<DataRow>>> pending = new ArrayDeque<Future<List<DataRow>>>();
+		try {
+			// Bounds the number of expanded rows held in memory
+			final int maxPending = 2 * numThreads;
+			List<DataRow> chunk = new ArrayList<DataRow>(CHUNK_SIZE);
+			DataRow row;
+			while ((row = input.poll()) != null) {
+				chunk.add(row);
+				if (chunk.size() == CHUNK_SIZE) {
+					pending.add(pool.enqueue(createExpandTask(chunk,
+							measurementColumnIndex)));
+					chunk = new ArrayList<DataRow>(CHUNK_SIZE);
+					if (pending.size() >= maxPending) {
+						pushRows(pool, pending.poll(), output);
+					}
+				}
+				exec.checkCanceled();
+			}
+			if (!chunk.isEmpty()) {
+				pending.add(pool.enqueue(createExpandTask(chunk,
+						measurementColumnIndex)));
+			}
+			while (!pending.isEmpty()) {
+				pushRows(pool, pending.poll(), output);
+				exec.checkCanceled();
+			}
+			input.close();
+			output.close();
+		} finally {
+			// Failed or canceled
+			for (final Future<List<DataRow>> rows : pending) {
+				rows.cancel(true);
+			}
+		}
+	}
+
+	private static Callable<List<DataRow>> createExpandTask(
+			final List<DataRow> chunk, final int measurementColumnIndex) {
+		return new Callable<List<DataRow>>() {
+			@Override
+			public List<DataRow> call() throws Exception {
+				final ArrayList<DataRow> rows = new ArrayList<DataRow>();
+				for (final DataRow row : chunk) {
+					final CellProfilerMeasurementTable measurement = getContent(
+							row, measurementColumnIndex).getMeasurement();
+					rows.ensureCapacity(rows.size() + measurement.getNumRows());
+					for (int r = 0; r < measurement.getNumRows(); r++) {
+						rows.add(measurement.getRow(r));
+					}
+				}
+				return rows;
+			}
+		};
+	}
+
+	private static void pushRows(final ThreadPool pool,
+			final Future<List<DataRow>> rows, final RowOutput output)
+			throws Exception {
+		final List<DataRow> expanded;
+		try {
+			// The waiting thread doesn't count against the pool, so that it
+			// can't starve the tasks it waits for
+			expanded = pool.runInvisible(new Callable<List<DataRow>>() {
+				@Override
+				public List<DataRow> call() throws Exception {
+					return rows.get();
+				}
+			});
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			while (cause instanceof ExecutionException) {
+				cause = cause.getCause();
+			}
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+		for (final DataRow row : expanded) {
+			output.push(row);
 		}
+	}
+
+	private static CellProfilerContent getContent(final DataRow row,
+			final int measurementColumnIndex) {
+		final DataCell cell = row.getCell(measurementColumnIndex);
+		if (cell.isMissing())
+			throw new IllegalStateException("Can't handle missing cells in CellProfiler Measurements To Table Node. Aborting!");
+		return ((CellProfilerValue) cell).getCellProfilerContent();
+	}
 
-		outData.close();
-		return new BufferedDataTable[] { outData.getTable() };
+	/**
+	 * @return the spec described by the feature schema stored in the
+	 *         properties of the measurement column or null if there is none
+	 */
+	private static DataTableSpec getSchemaSpec(final DataTableSpec inSpec,
+			final int measurementColumnIndex) {
+		final CellProfilerFeatureSchema schema = CellProfilerFeatureSchema
+				.fromProperties(inSpec.getColumnSpec(measurementColumnIndex)
+						.getProperties());
+		return schema != null ? schema.createSpec() : null;
+	}
+
+	private int getMeasurementColumnIndex(final DataTableSpec inSpec)
+			throws InvalidSettingsException {
+		int measurementColumnIndex = inSpec
+				.findColumnIndex(measurementColumnModel.getStringValue());
+		if (measurementColumnIndex == -1) {
+			measurementColumnIndex = autoGuessColumnIdx(inSpec);
+		}
+		return measurementColumnIndex;
 	}
 
 	private int autoGuessColumnIdx(final DataTableSpec tableSpec)
@@ -100,7 +279,9 @@ public class MeasurementToTableNodeModel extends NodeModel {
 		// check if there exists any column
 		autoGuessColumnIdx(inSpecs[0]);
 
-		return new DataTableSpec[] { null };
+		// Unknown if the column wasn't created with a feature schema
+		return new DataTableSpec[] { getSchemaSpec(inSpecs[0],
+				getMeasurementColumnIndex(inSpecs[0])) };
 	}
 
 	@Override
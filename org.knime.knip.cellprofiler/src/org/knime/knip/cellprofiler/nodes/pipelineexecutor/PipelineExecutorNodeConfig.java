@@ -1,11 +1,19 @@
 package org.knime.knip.cellprofiler.nodes.pipelineexecutor;
 
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.knime.core.node.InvalidSettingsException;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.knip.cellprofiler.CellProfilerExecutionSettings;
+import org.knime.knip.cellprofiler.CellProfilerSupervision;
+import org.knime.knip.cellprofiler.bridge.ImageScaling;
+import org.knime.knip.cellprofiler.bridge.ImageTiling;
+import org.knime.knip.cellprofiler.data.CellProfilerFeatureSchema;
+import org.knime.knip.cellprofiler.data.CellProfilerFeatureSelection;
 
 /**
  * CellProfiler Pipeline Executor node config.
@@ -32,6 +40,82 @@ public class PipelineExecutorNodeConfig {
 
 	private String[] m_objectNames;
 
+	private static final String NUM_WORKERS_CFG = "numWorkers";
+
+	private int m_numWorkers = 1;
+
+	private static final String PREPARE_AHEAD_CFG = "prepareAhead";
+
+	private int m_prepareAhead = 0;
+
+	private static final String BATCH_SIZE_CFG = "batchSize";
+
+	private int m_batchSize = 1;
+
+	private static final String BATCH_LATENCY_CFG = "batchLatency";
+
+	private int m_batchLatency = 1000;
+
+	private static final String SHARED_MEMORY_CFG = "sharedMemory";
+
+	private boolean m_sharedMemory = true;
+
+	private static final String FILE_STORE_CFG = "fileStore";
+
+	private boolean m_fileStore = false;
+
+	private static final String RESULT_CACHE_CFG = "resultCache";
+
+	private boolean m_resultCache = false;
+
+	private static final String CHECKPOINT_CFG = "checkpoint";
+
+	private boolean m_checkpoint = false;
+
+	private static final String REQUEST_TIMEOUT_CFG = "requestTimeout";
+
+	private int m_requestTimeout = 0;
+
+	private static final String MAX_ATTEMPTS_CFG = "maxAttempts";
+
+	private int m_maxAttempts = 2;
+
+	private static final String SKIP_FAILED_ROWS_CFG = "skipFailedRows";
+
+	private boolean m_skipFailedRows = false;
+
+	private static final String STAGE_STATISTICS_CFG = "stageStatistics";
+
+	private boolean m_stageStatistics = false;
+
+	private static final String SCALING_CFG = "scaling";
+
+	private ImageScaling.Method m_scaling = ImageScaling.Method.MIN_MAX;
+
+	private static final String SCALING_MIN_CFG = "scalingMin";
+
+	private double m_scalingMin = 0;
+
+	private static final String SCALING_MAX_CFG = "scalingMax";
+
+	private double m_scalingMax = 1;
+
+	private static final String TILE_SIZE_CFG = "tileSize";
+
+	private int m_tileSize = 0;
+
+	private static final String TILE_OVERLAP_CFG = "tileOverlap";
+
+	private int m_tileOverlap = 64;
+
+	private static final String FEATURE_SELECTION_CFG = "featureSelection";
+
+	private String m_featureSelection = "";
+
+	private static final String FEATURE_SCHEMAS_CFG = "featureSchemas";
+
+	private Map<String, CellProfilerFeatureSchema> m_featureSchemas;
+
 	/**
 	 * Loads previously saved node settings.
 	 * 
@@ -45,6 +129,76 @@ public class PipelineExecutorNodeConfig {
 		m_imageColumns = settings.getStringArray(IMAGE_COLUMNS_CFG);
 		m_inputParameters = settings.getStringArray(INPUT_PARAMETERS_CFG);
 		m_objectNames = settings.getStringArray(OBJECT_NAMES_CONFIG);
+		// Added later, keep workflows created before loadable
+		m_numWorkers = settings.getInt(NUM_WORKERS_CFG, 1);
+		if (m_numWorkers < 1) {
+			throw new InvalidSettingsException("The number of CellProfiler instances must be at least 1");
+		}
+		m_prepareAhead = settings.getInt(PREPARE_AHEAD_CFG, 0);
+		if (m_prepareAhead < 0) {
+			throw new InvalidSettingsException("The number of rows prepared ahead must not be negative");
+		}
+		m_batchSize = settings.getInt(BATCH_SIZE_CFG, 1);
+		if (m_batchSize < 1) {
+			throw new InvalidSettingsException("The number of image sets per batch must be at least 1");
+		}
+		m_batchLatency = settings.getInt(BATCH_LATENCY_CFG, 1000);
+		if (m_batchLatency < 1) {
+			throw new InvalidSettingsException("The target batch latency must be positive");
+		}
+		m_sharedMemory = settings.getBoolean(SHARED_MEMORY_CFG, true);
+		m_fileStore = settings.getBoolean(FILE_STORE_CFG, false);
+		m_resultCache = settings.getBoolean(RESULT_CACHE_CFG, false);
+		m_checkpoint = settings.getBoolean(CHECKPOINT_CFG, false);
+		m_requestTimeout = settings.getInt(REQUEST_TIMEOUT_CFG, 0);
+		if (m_requestTimeout < 0) {
+			throw new InvalidSettingsException("The timeout must not be negative");
+		}
+		m_maxAttempts = settings.getInt(MAX_ATTEMPTS_CFG, 2);
+		if (m_maxAttempts < 1) {
+			throw new InvalidSettingsException("The number of attempts must be at least 1");
+		}
+		m_skipFailedRows = settings.getBoolean(SKIP_FAILED_ROWS_CFG, false);
+		m_stageStatistics = settings.getBoolean(STAGE_STATISTICS_CFG, false);
+		try {
+			m_scaling = ImageScaling.Method
+					.valueOf(settings.getString(SCALING_CFG, ImageScaling.Method.MIN_MAX.name()));
+		} catch (IllegalArgumentException e) {
+			throw new InvalidSettingsException("Unknown image scaling " + settings.getString(SCALING_CFG, ""));
+		}
+		m_scalingMin = settings.getDouble(SCALING_MIN_CFG, 0);
+		m_scalingMax = settings.getDouble(SCALING_MAX_CFG, 1);
+		if (m_scaling == ImageScaling.Method.FIXED_RANGE && !(m_scalingMax > m_scalingMin)) {
+			throw new InvalidSettingsException("The upper bound of the fixed range must be above the lower bound");
+		}
+		m_tileSize = settings.getInt(TILE_SIZE_CFG, 0);
+		m_tileOverlap = settings.getInt(TILE_OVERLAP_CFG, 64);
+		if (m_tileSize < 0 || m_tileOverlap < 0) {
+			throw new InvalidSettingsException("The tile size and overlap must not be negative");
+		}
+		if (m_tileSize > 0 && m_tileOverlap >= m_tileSize) {
+			throw new InvalidSettingsException("The tile overlap must be smaller than the tiles");
+		}
+		m_featureSelection = settings.getString(FEATURE_SELECTION_CFG, "");
+		try {
+			createFeatureSelection();
+		} catch (IllegalArgumentException e) {
+			throw new InvalidSettingsException(e.getMessage(), e);
+		}
+		m_featureSchemas = loadFeatureSchemas(settings);
+	}
+
+	private static Map<String, CellProfilerFeatureSchema> loadFeatureSchemas(final NodeSettingsRO settings)
+			throws InvalidSettingsException {
+		if (!settings.containsKey(FEATURE_SCHEMAS_CFG)) {
+			return null;
+		}
+		final NodeSettingsRO schemaSettings = settings.getNodeSettings(FEATURE_SCHEMAS_CFG);
+		final Map<String, CellProfilerFeatureSchema> schemas = new LinkedHashMap<String, CellProfilerFeatureSchema>();
+		for (final String objectName : schemaSettings.keySet()) {
+			schemas.put(objectName, CellProfilerFeatureSchema.load(schemaSettings.getNodeSettings(objectName)));
+		}
+		return schemas;
 	}
 
 	/**
@@ -58,6 +212,34 @@ public class PipelineExecutorNodeConfig {
 		m_imageColumns = settings.getStringArray(IMAGE_COLUMNS_CFG, new String[0]);
 		m_inputParameters = settings.getStringArray(INPUT_PARAMETERS_CFG, new String[0]);
 		m_objectNames = settings.getStringArray(OBJECT_NAMES_CONFIG, new String[0]);
+		m_numWorkers = settings.getInt(NUM_WORKERS_CFG, 1);
+		m_prepareAhead = settings.getInt(PREPARE_AHEAD_CFG, 0);
+		m_batchSize = settings.getInt(BATCH_SIZE_CFG, 1);
+		m_batchLatency = settings.getInt(BATCH_LATENCY_CFG, 1000);
+		m_sharedMemory = settings.getBoolean(SHARED_MEMORY_CFG, true);
+		m_fileStore = settings.getBoolean(FILE_STORE_CFG, false);
+		m_resultCache = settings.getBoolean(RESULT_CACHE_CFG, false);
+		m_checkpoint = settings.getBoolean(CHECKPOINT_CFG, false);
+		m_requestTimeout = settings.getInt(REQUEST_TIMEOUT_CFG, 0);
+		m_maxAttempts = settings.getInt(MAX_ATTEMPTS_CFG, 2);
+		m_skipFailedRows = settings.getBoolean(SKIP_FAILED_ROWS_CFG, false);
+		m_stageStatistics = settings.getBoolean(STAGE_STATISTICS_CFG, false);
+		try {
+			m_scaling = ImageScaling.Method
+					.valueOf(settings.getString(SCALING_CFG, ImageScaling.Method.MIN_MAX.name()));
+		} catch (IllegalArgumentException e) {
+			m_scaling = ImageScaling.Method.MIN_MAX;
+		}
+		m_scalingMin = settings.getDouble(SCALING_MIN_CFG, 0);
+		m_scalingMax = settings.getDouble(SCALING_MAX_CFG, 1);
+		m_tileSize = settings.getInt(TILE_SIZE_CFG, 0);
+		m_tileOverlap = settings.getInt(TILE_OVERLAP_CFG, 64);
+		m_featureSelection = settings.getString(FEATURE_SELECTION_CFG, "");
+		try {
+			m_featureSchemas = loadFeatureSchemas(settings);
+		} catch (InvalidSettingsException e) {
+			m_featureSchemas = null;
+		}
 	}
 
 	/**
@@ -71,6 +253,30 @@ public class PipelineExecutorNodeConfig {
 		settings.addStringArray(IMAGE_COLUMNS_CFG, m_imageColumns);
 		settings.addStringArray(INPUT_PARAMETERS_CFG, m_inputParameters);
 		settings.addStringArray(OBJECT_NAMES_CONFIG, m_objectNames);
+		settings.addInt(NUM_WORKERS_CFG, m_numWorkers);
+		settings.addInt(PREPARE_AHEAD_CFG, m_prepareAhead);
+		settings.addInt(BATCH_SIZE_CFG, m_batchSize);
+		settings.addInt(BATCH_LATENCY_CFG, m_batchLatency);
+		settings.addBoolean(SHARED_MEMORY_CFG, m_sharedMemory);
+		settings.addBoolean(FILE_STORE_CFG, m_fileStore);
+		settings.addBoolean(RESULT_CACHE_CFG, m_resultCache);
+		settings.addBoolean(CHECKPOINT_CFG, m_checkpoint);
+		settings.addInt(REQUEST_TIMEOUT_CFG, m_requestTimeout);
+		settings.addInt(MAX_ATTEMPTS_CFG, m_maxAttempts);
+		settings.addBoolean(SKIP_FAILED_ROWS_CFG, m_skipFailedRows);
+		settings.addBoolean(STAGE_STATISTICS_CFG, m_stageStatistics);
+		settings.addString(SCALING_CFG, m_scaling.name());
+		settings.addDouble(SCALING_MIN_CFG, m_scalingMin);
+		settings.addDouble(SCALING_MAX_CFG, m_scalingMax);
+		settings.addInt(TILE_SIZE_CFG, m_tileSize);
+		settings.addInt(TILE_OVERLAP_CFG, m_tileOverlap);
+		settings.addString(FEATURE_SELECTION_CFG, m_featureSelection);
+		if (m_featureSchemas != null) {
+			final NodeSettingsWO schemaSettings = settings.addNodeSettings(FEATURE_SCHEMAS_CFG);
+			for (final Map.Entry<String, CellProfilerFeatureSchema> entry : m_featureSchemas.entrySet()) {
+				entry.getValue().save(schemaSettings.addNodeSettings(entry.getKey()));
+			}
+		}
 	}
 
 	/**
@@ -134,4 +340,364 @@ public class PipelineExecutorNodeConfig {
 	public void setObjectNames(final List<String> objectNames) {
 		this.m_objectNames = objectNames.toArray(new String[objectNames.size()]);
 	}
+
+	/**
+	 * @return The number of CellProfiler instances processing rows in
+	 *         parallel.
+	 */
+	public int getNumWorkers() {
+		return m_numWorkers;
+	}
+
+	/**
+	 * @param numWorkers
+	 *            The number of CellProfiler instances processing rows in
+	 *            parallel.
+	 */
+	public void setNumWorkers(final int numWorkers) {
+		m_numWorkers = numWorkers;
+	}
+
+	/**
+	 * @return The number of rows whose images are prepared while all
+	 *         CellProfiler instances are busy.
+	 */
+	public int getPrepareAhead() {
+		return m_prepareAhead;
+	}
+
+	/**
+	 * @param prepareAhead
+	 *            The number of rows whose images are prepared while all
+	 *            CellProfiler instances are busy.
+	 */
+	public void setPrepareAhead(final int prepareAhead) {
+		m_prepareAhead = prepareAhead;
+	}
+
+	/**
+	 * @return The number of image sets sent to a CellProfiler instance in one
+	 *         request at most, 1 if image sets are sent one by one.
+	 */
+	public int getBatchSize() {
+		return m_batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            The number of image sets sent to a CellProfiler instance in
+	 *            one request at most.
+	 */
+	public void setBatchSize(final int batchSize) {
+		m_batchSize = batchSize;
+	}
+
+	/**
+	 * @return The time in milliseconds a batch of image sets should take.
+	 */
+	public int getBatchLatency() {
+		return m_batchLatency;
+	}
+
+	/**
+	 * @param batchLatency
+	 *            The time in milliseconds a batch of image sets should take.
+	 */
+	public void setBatchLatency(final int batchLatency) {
+		m_batchLatency = batchLatency;
+	}
+
+	/**
+	 * @return True if images are transferred via shared memory to CellProfiler
+	 *         instances supporting it.
+	 */
+	public boolean isSharedMemory() {
+		return m_sharedMemory;
+	}
+
+	/**
+	 * @param sharedMemory
+	 *            True if images are transferred via shared memory to
+	 *            CellProfiler instances supporting it.
+	 */
+	public void setSharedMemory(final boolean sharedMemory) {
+		m_sharedMemory = sharedMemory;
+	}
+
+	/**
+	 * @return True if the measurements are written to file stores and only
+	 *         read when accessed.
+	 */
+	public boolean isFileStore() {
+		return m_fileStore;
+	}
+
+	/**
+	 * @param fileStore
+	 *            True if the measurements are written to file stores and only
+	 *            read when accessed.
+	 */
+	public void setFileStore(final boolean fileStore) {
+		m_fileStore = fileStore;
+	}
+
+	/**
+	 * @return True if results of images processed before with the same
+	 *         pipeline are taken from the result cache.
+	 */
+	public boolean isResultCache() {
+		return m_resultCache;
+	}
+
+	/**
+	 * @param resultCache
+	 *            True if results of images processed before with the same
+	 *            pipeline are taken from the result cache.
+	 */
+	public void setResultCache(final boolean resultCache) {
+		m_resultCache = resultCache;
+	}
+
+	/**
+	 * @return True if the results of completed rows are persisted, so that a
+	 *         failed or canceled execution can be resumed.
+	 */
+	public boolean isCheckpoint() {
+		return m_checkpoint;
+	}
+
+	/**
+	 * @param checkpoint
+	 *            True if the results of completed rows are persisted, so that
+	 *            a failed or canceled execution can be resumed.
+	 */
+	public void setCheckpoint(final boolean checkpoint) {
+		m_checkpoint = checkpoint;
+	}
+
+	/**
+	 * @return Time in seconds CellProfiler may take for the images of one row,
+	 *         0 for no limit.
+	 */
+	public int getRequestTimeout() {
+		return m_requestTimeout;
+	}
+
+	/**
+	 * @param requestTimeout
+	 *            Time in seconds CellProfiler may take for the images of one
+	 *            row, 0 for no limit.
+	 */
+	public void setRequestTimeout(final int requestTimeout) {
+		m_requestTimeout = requestTimeout;
+	}
+
+	/**
+	 * @return Number of times the images of a row are sent to a restarted
+	 *         CellProfiler instance before the row is given up.
+	 */
+	public int getMaxAttempts() {
+		return m_maxAttempts;
+	}
+
+	/**
+	 * @param maxAttempts
+	 *            Number of times the images of a row are sent to a restarted
+	 *            CellProfiler instance before the row is given up.
+	 */
+	public void setMaxAttempts(final int maxAttempts) {
+		m_maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @return True if rows that are given up get missing cells, false if they
+	 *         fail the execution.
+	 */
+	public boolean isSkipFailedRows() {
+		return m_skipFailedRows;
+	}
+
+	/**
+	 * @param skipFailedRows
+	 *            True if rows that are given up get missing cells, false if
+	 *            they fail the execution.
+	 */
+	public void setSkipFailedRows(final boolean skipFailedRows) {
+		m_skipFailedRows = skipFailedRows;
+	}
+
+	/**
+	 * @return True if the durations of the execution stages are pushed as
+	 *         flow variables.
+	 */
+	public boolean isStageStatistics() {
+		return m_stageStatistics;
+	}
+
+	/**
+	 * @param stageStatistics
+	 *            True if the durations of the execution stages are pushed as
+	 *            flow variables.
+	 */
+	public void setStageStatistics(final boolean stageStatistics) {
+		m_stageStatistics = stageStatistics;
+	}
+
+	/**
+	 * @return The configured handling of failing CellProfiler instances.
+	 */
+	public CellProfilerSupervision createSupervision() {
+		return new CellProfilerSupervision(m_requestTimeout * 1000L, m_maxAttempts, m_skipFailedRows);
+	}
+
+	/**
+	 * @return The method scaling the pixel values of the input images.
+	 */
+	public ImageScaling.Method getScaling() {
+		return m_scaling;
+	}
+
+	/**
+	 * @param scaling
+	 *            The method scaling the pixel values of the input images.
+	 */
+	public void setScaling(final ImageScaling.Method scaling) {
+		m_scaling = scaling;
+	}
+
+	/**
+	 * @return Lower bound of the fixed range scaled into [0..1].
+	 */
+	public double getScalingMin() {
+		return m_scalingMin;
+	}
+
+	/**
+	 * @param scalingMin
+	 *            Lower bound of the fixed range scaled into [0..1].
+	 */
+	public void setScalingMin(final double scalingMin) {
+		m_scalingMin = scalingMin;
+	}
+
+	/**
+	 * @return Upper bound of the fixed range scaled into [0..1].
+	 */
+	public double getScalingMax() {
+		return m_scalingMax;
+	}
+
+	/**
+	 * @param scalingMax
+	 *            Upper bound of the fixed range scaled into [0..1].
+	 */
+	public void setScalingMax(final double scalingMax) {
+		m_scalingMax = scalingMax;
+	}
+
+	/**
+	 * @return The configured scaling of the pixel values of the input images.
+	 */
+	public ImageScaling createImageScaling() {
+		return new ImageScaling(m_scaling, m_scalingMin, m_scalingMax);
+	}
+
+	/**
+	 * @return Width and height in pixels of the tiles larger images are split
+	 *         into, 0 to send all images as a whole.
+	 */
+	public int getTileSize() {
+		return m_tileSize;
+	}
+
+	/**
+	 * @param tileSize
+	 *            Width and height in pixels of the tiles larger images are
+	 *            split into, 0 to send all images as a whole.
+	 */
+	public void setTileSize(final int tileSize) {
+		m_tileSize = tileSize;
+	}
+
+	/**
+	 * @return Number of pixels neighboring tiles share.
+	 */
+	public int getTileOverlap() {
+		return m_tileOverlap;
+	}
+
+	/**
+	 * @param tileOverlap
+	 *            Number of pixels neighboring tiles share.
+	 */
+	public void setTileOverlap(final int tileOverlap) {
+		m_tileOverlap = tileOverlap;
+	}
+
+	/**
+	 * @return The configured tiling of images too large to be sent as a
+	 *         whole.
+	 */
+	public ImageTiling createImageTiling() {
+		return new ImageTiling(m_tileSize, m_tileOverlap);
+	}
+
+	/**
+	 * @return Rules of the form <code>object name: pattern</code> selecting
+	 *         the features to keep, one per line, empty to keep all.
+	 */
+	public String getFeatureSelection() {
+		return m_featureSelection;
+	}
+
+	/**
+	 * @param featureSelection
+	 *            Rules of the form <code>object name: pattern</code> selecting
+	 *            the features to keep, one per line, empty to keep all.
+	 */
+	public void setFeatureSelection(final String featureSelection) {
+		m_featureSelection = featureSelection;
+	}
+
+	/**
+	 * @return The configured options of an execution, without checkpoint and
+	 *         statistics.
+	 */
+	public CellProfilerExecutionSettings createExecutionSettings() {
+		final CellProfilerExecutionSettings settings = new CellProfilerExecutionSettings();
+		settings.setPrepareAhead(m_prepareAhead);
+		settings.setBatchSize(m_batchSize);
+		settings.setBatchLatency(m_batchLatency);
+		settings.setFileStore(m_fileStore);
+		settings.setScaling(createImageScaling());
+		settings.setTiling(createImageTiling());
+		settings.setResultCache(m_resultCache);
+		settings.setSupervision(createSupervision());
+		return settings;
+	}
+
+	/**
+	 * @return The configured selection of the features to keep.
+	 * @throws IllegalArgumentException
+	 *             If a rule is invalid
+	 */
+	public CellProfilerFeatureSelection createFeatureSelection() {
+		return new CellProfilerFeatureSelection(m_featureSelection);
+	}
+
+	/**
+	 * @return The feature schema of each measurement table by object name or
+	 *         null if unknown.
+	 */
+	public Map<String, CellProfilerFeatureSchema> getFeatureSchemas() {
+		return m_featureSchemas;
+	}
+
+	/**
+	 * @param featureSchemas
+	 *            The feature schema of each measurement table by object name.
+	 */
+	public void setFeatureSchemas(final Map<String, CellProfilerFeatureSchema> featureSchemas) {
+		m_featureSchemas = featureSchemas;
+	}
 }
@@ -14,10 +14,18 @@ import java.net.URISyntaxException;
 import java.nio.file.InvalidPathException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSpinner;
+import javax.swing.JTextArea;
+import javax.swing.SpinnerNumberModel;
 
 import org.cellprofiler.knimebridge.PipelineException;
 import org.cellprofiler.knimebridge.ProtocolException;
@@ -34,6 +42,12 @@ import org.knime.core.node.util.FilesHistoryPanel;
 import org.knime.core.util.pathresolve.ResolverUtil;
 import org.knime.knip.base.data.img.ImgPlusValue;
 import org.knime.knip.cellprofiler.CellProfilerInstance;
+import org.knime.knip.cellprofiler.CellProfilerInstancePool;
+import org.knime.knip.cellprofiler.CellProfilerWorkerRegistry;
+import org.knime.knip.cellprofiler.CellProfilerPipelineInfo;
+import org.knime.knip.cellprofiler.CellProfilerPipelineInfoCache;
+import org.knime.knip.cellprofiler.bridge.ImageScaling;
+import org.knime.knip.cellprofiler.data.CellProfilerFeatureSchema;
 import org.zeromq.ZMQException;
 
 /**
@@ -66,6 +80,55 @@ public class PipelineExecutorNodeDialog extends NodeDialogPane {
 
 	private List<String> m_objectNames;
 
+	private Map<String, CellProfilerFeatureSchema> m_featureSchemas;
+
+	private JSpinner m_numWorkers = new JSpinner(new SpinnerNumberModel(1, 1,
+			Runtime.getRuntime().availableProcessors() * 4, 1));
+
+	private JSpinner m_prepareAhead = new JSpinner(new SpinnerNumberModel(0, 0,
+			64, 1));
+
+	private JSpinner m_batchSize = new JSpinner(new SpinnerNumberModel(1, 1,
+			256, 1));
+
+	private JSpinner m_batchLatency = new JSpinner(new SpinnerNumberModel(1000, 1,
+			Integer.MAX_VALUE, 100));
+
+	private JCheckBox m_sharedMemory = new JCheckBox("Transfer images via shared memory");
+
+	private JCheckBox m_fileStore = new JCheckBox("Store measurements in file store");
+
+	private JCheckBox m_resultCache = new JCheckBox("Reuse cached results of unchanged images");
+
+	private JCheckBox m_checkpoint = new JCheckBox("Resume failed or canceled executions");
+
+	private JSpinner m_requestTimeout = new JSpinner(new SpinnerNumberModel(0, 0,
+			Integer.MAX_VALUE, 10));
+
+	private JSpinner m_maxAttempts = new JSpinner(new SpinnerNumberModel(2, 1,
+			10, 1));
+
+	private JCheckBox m_skipFailedRows = new JCheckBox("Output missing cells for rows that fail");
+
+	private JCheckBox m_stageStatistics = new JCheckBox("Output stage timings as flow variables");
+
+	private JComboBox<ImageScaling.Method> m_scaling = new JComboBox<ImageScaling.Method>(
+			ImageScaling.Method.values());
+
+	private JSpinner m_scalingMin = new JSpinner(new SpinnerNumberModel(0.0, -Double.MAX_VALUE,
+			Double.MAX_VALUE, 1.0));
+
+	private JSpinner m_scalingMax = new JSpinner(new SpinnerNumberModel(1.0, -Double.MAX_VALUE,
+			Double.MAX_VALUE, 1.0));
+
+	private JSpinner m_tileSize = new JSpinner(new SpinnerNumberModel(0, 0,
+			Integer.MAX_VALUE, 256));
+
+	private JSpinner m_tileOverlap = new JSpinner(new SpinnerNumberModel(64, 0,
+			Integer.MAX_VALUE, 8));
+
+	private JTextArea m_featureSelection = new JTextArea(8, 40);
+
 	/**
 	 * Constructor.
 	 */
@@ -99,6 +162,133 @@ public class PipelineExecutorNodeDialog extends NodeDialogPane {
 		JPanel outerPanel = new JPanel(new BorderLayout());
 		outerPanel.add(m_panel, BorderLayout.NORTH);
 		addTab("Config", outerPanel);
+		addTab("Execution", createExecutionPanel());
+		addTab("Features", createFeaturesPanel());
+	}
+
+	private JPanel createFeaturesPanel() {
+		JPanel panel = new JPanel(new BorderLayout(5, 5));
+		panel.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+		panel.add(new JLabel("Selected features, one 'object name: pattern' per line (empty = all)"),
+				BorderLayout.NORTH);
+		panel.add(new JScrollPane(m_featureSelection), BorderLayout.CENTER);
+		return panel;
+	}
+
+	private JPanel createExecutionPanel() {
+		JPanel panel = new JPanel(new GridBagLayout());
+		GridBagConstraints gbc = new GridBagConstraints();
+		gbc.insets = new Insets(5, 5, 5, 5);
+		gbc.anchor = GridBagConstraints.NORTHWEST;
+		gbc.fill = GridBagConstraints.HORIZONTAL;
+		gbc.gridx = 0;
+		gbc.gridy = 0;
+		panel.add(new JLabel("Parallel CellProfiler instances"), gbc);
+		gbc.gridx++;
+		gbc.weightx = 1;
+		panel.add(m_numWorkers, gbc);
+		gbc.gridx = 0;
+		gbc.gridy++;
+		gbc.weightx = 0;
+		panel.add(new JLabel("Images prepared ahead"), gbc);
+		gbc.gridx++;
+		gbc.weightx = 1;
+		panel.add(m_prepareAhead, gbc);
+		gbc.gridx = 0;
+		gbc.gridy++;
+		gbc.weightx = 0;
+		panel.add(new JLabel("Image sets per batch (1 = no batching)"), gbc);
+		gbc.gridx++;
+		gbc.weightx = 1;
+		panel.add(m_batchSize, gbc);
+		gbc.gridx = 0;
+		gbc.gridy++;
+		gbc.weightx = 0;
+		panel.add(new JLabel("Target batch latency in ms"), gbc);
+		gbc.gridx++;
+		gbc.weightx = 1;
+		panel.add(m_batchLatency, gbc);
+		gbc.gridx = 0;
+		gbc.gridy++;
+		gbc.gridwidth = 2;
+		panel.add(m_sharedMemory, gbc);
+		gbc.gridy++;
+		panel.add(m_fileStore, gbc);
+		gbc.gridy++;
+		panel.add(m_resultCache, gbc);
+		gbc.gridy++;
+		panel.add(m_checkpoint, gbc);
+		gbc.gridy++;
+		gbc.gridwidth = 1;
+		gbc.weightx = 0;
+		panel.add(new JLabel("Timeout per row in seconds (0 = none)"), gbc);
+		gbc.gridx++;
+		gbc.weightx = 1;
+		panel.add(m_requestTimeout, gbc);
+		gbc.gridx = 0;
+		gbc.gridy++;
+		gbc.weightx = 0;
+		panel.add(new JLabel("Attempts per row"), gbc);
+		gbc.gridx++;
+		gbc.weightx = 1;
+		panel.add(m_maxAttempts, gbc);
+		gbc.gridx = 0;
+		gbc.gridy++;
+		gbc.gridwidth = 2;
+		panel.add(m_skipFailedRows, gbc);
+		gbc.gridy++;
+		panel.add(m_stageStatistics, gbc);
+		gbc.gridy++;
+		gbc.gridwidth = 1;
+		gbc.weightx = 0;
+		panel.add(new JLabel("Image scaling"), gbc);
+		gbc.gridx++;
+		gbc.weightx = 1;
+		panel.add(m_scaling, gbc);
+		gbc.gridx = 0;
+		gbc.gridy++;
+		gbc.weightx = 0;
+		panel.add(new JLabel("Fixed range minimum"), gbc);
+		gbc.gridx++;
+		gbc.weightx = 1;
+		panel.add(m_scalingMin, gbc);
+		gbc.gridx = 0;
+		gbc.gridy++;
+		gbc.weightx = 0;
+		panel.add(new JLabel("Fixed range maximum"), gbc);
+		gbc.gridx++;
+		gbc.weightx = 1;
+		panel.add(m_scalingMax, gbc);
+		gbc.gridx = 0;
+		gbc.gridy++;
+		gbc.weightx = 0;
+		panel.add(new JLabel("Tile size in pixels (0 = no tiles)"), gbc);
+		gbc.gridx++;
+		gbc.weightx = 1;
+		panel.add(m_tileSize, gbc);
+		gbc.gridx = 0;
+		gbc.gridy++;
+		gbc.weightx = 0;
+		panel.add(new JLabel("Tile overlap in pixels"), gbc);
+		gbc.gridx++;
+		gbc.weightx = 1;
+		panel.add(m_tileOverlap, gbc);
+		m_scaling.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				updateScalingRange();
+			}
+		});
+		updateScalingRange();
+		JPanel outerPanel = new JPanel(new BorderLayout());
+		outerPanel.add(panel, BorderLayout.NORTH);
+		return outerPanel;
+	}
+
+	private void updateScalingRange() {
+		final boolean fixedRange = m_scaling.getSelectedItem() == ImageScaling.Method.FIXED_RANGE;
+		m_scalingMin.setEnabled(fixedRange);
+		m_scalingMax.setEnabled(fixedRange);
 	}
 
 	private static String initWorkflowPath() {
@@ -129,15 +319,28 @@ public class PipelineExecutorNodeDialog extends NodeDialogPane {
 		if (!path.isEmpty()) {
 			if (new File(path).exists()) {
 				try {
-					if (m_cellProfiler == null) {
-						initCellProfiler();
+					// Pipelines seen before don't need CellProfiler
+					final CellProfilerPipelineInfo info = CellProfilerPipelineInfoCache
+							.getInstance().get(path);
+					if (info != null) {
+						inputParameters = info.getInputParameters();
+						m_objectNames = info.getObjectNames();
+						m_featureSchemas = info.getFeatureSchemas();
+					} else {
+						if (m_cellProfiler == null) {
+							initCellProfiler();
+						}
+						m_cellProfiler.loadPipeline(path);
+						inputParameters = m_cellProfiler.getInputParameters();
+						m_objectNames = m_cellProfiler.getObjectNames();
+						m_featureSchemas = m_cellProfiler.getFeatureSchemas();
 					}
-					m_cellProfiler.loadPipeline(path);
-					inputParameters = m_cellProfiler.getInputParameters();
-					m_objectNames = m_cellProfiler.getObjectNames();
 				} catch (ZMQException | PipelineException | ProtocolException
 						| IOException e) {
 					LOGGER.error(e.getMessage(), e);
+					if (m_cellProfiler != null) {
+						releaseCellProfiler(false);
+					}
 				}
 			}
 		}
@@ -188,7 +391,9 @@ public class PipelineExecutorNodeDialog extends NodeDialogPane {
 
 	private void initCellProfiler() {
 		try {
-			m_cellProfiler = new CellProfilerInstance();
+			final CellProfilerWorkerRegistry workers = CellProfilerWorkerRegistry.getInstance();
+			m_cellProfiler = workers.isEnabled() ? workers.lease(1).get(0)
+					: CellProfilerInstancePool.getInstance().borrow();
 		} catch (ZMQException | IOException | ProtocolException
 				| URISyntaxException | PipelineException e1) {
 			LOGGER.error(e1.getMessage(), e1);
@@ -198,12 +403,22 @@ public class PipelineExecutorNodeDialog extends NodeDialogPane {
 	@Override
 	public void onClose() {
 		if (m_cellProfiler != null) {
-			m_cellProfiler.close();
-			m_cellProfiler = null;
+			releaseCellProfiler(true);
 		}
 		super.onClose();
 	}
 
+	private void releaseCellProfiler(final boolean reusable) {
+		if (m_cellProfiler.getAddress() != null) {
+			CellProfilerWorkerRegistry.getInstance().release(m_cellProfiler);
+		} else if (reusable) {
+			CellProfilerInstancePool.getInstance().release(m_cellProfiler);
+		} else {
+			CellProfilerInstancePool.getInstance().invalidate(m_cellProfiler);
+		}
+		m_cellProfiler = null;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -223,6 +438,26 @@ public class PipelineExecutorNodeDialog extends NodeDialogPane {
 		}
 		m_pipelineFile.setSelectedFile(config.getPipelineFile());
 		m_objectNames = config.getObjectNames();
+		m_featureSchemas = config.getFeatureSchemas();
+		m_numWorkers.setValue(config.getNumWorkers());
+		m_prepareAhead.setValue(config.getPrepareAhead());
+		m_batchSize.setValue(config.getBatchSize());
+		m_batchLatency.setValue(config.getBatchLatency());
+		m_sharedMemory.setSelected(config.isSharedMemory());
+		m_fileStore.setSelected(config.isFileStore());
+		m_resultCache.setSelected(config.isResultCache());
+		m_checkpoint.setSelected(config.isCheckpoint());
+		m_requestTimeout.setValue(config.getRequestTimeout());
+		m_maxAttempts.setValue(config.getMaxAttempts());
+		m_skipFailedRows.setSelected(config.isSkipFailedRows());
+		m_stageStatistics.setSelected(config.isStageStatistics());
+		m_scaling.setSelectedItem(config.getScaling());
+		m_scalingMin.setValue(config.getScalingMin());
+		m_scalingMax.setValue(config.getScalingMax());
+		m_tileSize.setValue(config.getTileSize());
+		m_tileOverlap.setValue(config.getTileOverlap());
+		m_featureSelection.setText(config.getFeatureSelection());
+		updateScalingRange();
 	}
 
 	/**
@@ -235,11 +470,42 @@ public class PipelineExecutorNodeDialog extends NodeDialogPane {
 		config.setPipelineFile(m_pipelineFile.getSelectedFile().replace(initWorkflowPath(), "knime://knime.workflow"));
 		config.setInputParameters(m_inputParameters);
 		config.setObjectNames(m_objectNames);
+		config.setFeatureSchemas(m_featureSchemas);
 		String[] imageColumns = new String[m_imageColumns.size()];
 		for (int i = 0; i < imageColumns.length; i++) {
 			imageColumns[i] = m_imageColumns.get(i).getSelectedColumn();
 		}
 		config.setImageColumns(imageColumns);
+		config.setNumWorkers((Integer) m_numWorkers.getValue());
+		config.setPrepareAhead((Integer) m_prepareAhead.getValue());
+		config.setBatchSize((Integer) m_batchSize.getValue());
+		config.setBatchLatency((Integer) m_batchLatency.getValue());
+		config.setSharedMemory(m_sharedMemory.isSelected());
+		config.setFileStore(m_fileStore.isSelected());
+		config.setResultCache(m_resultCache.isSelected());
+		config.setCheckpoint(m_checkpoint.isSelected());
+		config.setRequestTimeout((Integer) m_requestTimeout.getValue());
+		config.setMaxAttempts((Integer) m_maxAttempts.getValue());
+		config.setSkipFailedRows(m_skipFailedRows.isSelected());
+		config.setStageStatistics(m_stageStatistics.isSelected());
+		config.setScaling((ImageScaling.Method) m_scaling.getSelectedItem());
+		config.setScalingMin((Double) m_scalingMin.getValue());
+		config.setScalingMax((Double) m_scalingMax.getValue());
+		config.setTileSize((Integer) m_tileSize.getValue());
+		config.setTileOverlap((Integer) m_tileOverlap.getValue());
+		config.setFeatureSelection(m_featureSelection.getText().trim());
+		if (config.getScaling() == ImageScaling.Method.FIXED_RANGE
+				&& !(config.getScalingMax() > config.getScalingMin())) {
+			throw new InvalidSettingsException("The upper bound of the fixed range must be above the lower bound");
+		}
+		if (config.getTileSize() > 0 && config.getTileOverlap() >= config.getTileSize()) {
+			throw new InvalidSettingsException("The tile overlap must be smaller than the tiles");
+		}
+		try {
+			config.createFeatureSelection();
+		} catch (IllegalArgumentException e) {
+			throw new InvalidSettingsException(e.getMessage(), e);
+		}
 		config.saveConfig(settings);
 	}
 
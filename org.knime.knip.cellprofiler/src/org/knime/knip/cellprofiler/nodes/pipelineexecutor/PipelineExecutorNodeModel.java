@@ -2,7 +2,12 @@ package org.knime.knip.cellprofiler.nodes.pipelineexecutor;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
 
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataTableSpec;
@@ -11,12 +16,34 @@ import org.knime.core.node.CanceledExecutionException;
 import org.knime.core.node.ExecutionContext;
 import org.knime.core.node.ExecutionMonitor;
 import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeLogger;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
+import org.knime.core.node.workflow.NodeContext;
+import org.knime.core.node.workflow.WorkflowContext;
+import org.knime.core.node.workflow.WorkflowManager;
 import org.knime.core.util.Pair;
 import org.knime.knip.base.data.img.ImgPlusValue;
+import org.knime.knip.cellprofiler.CellProfilerCheckpoint;
+import org.knime.knip.cellprofiler.CellProfilerExecutionSettings;
 import org.knime.knip.cellprofiler.CellProfilerInstance;
+import org.knime.knip.cellprofiler.CellProfilerInstancePool;
+import org.knime.knip.cellprofiler.CellProfilerWorkerRegistry;
+import org.knime.knip.cellprofiler.CellProfilerPipelineInfo;
+import org.knime.knip.cellprofiler.CellProfilerPipelineInfoCache;
+import org.knime.knip.cellprofiler.bridge.StageHistogram;
+import org.knime.knip.cellprofiler.bridge.StageStatistics;
+import org.knime.knip.cellprofiler.data.CellProfilerFeatureSchema;
 
 /**
  * CellProfiler Pipeline Executor node model.
@@ -26,6 +53,9 @@ import org.knime.knip.cellprofiler.CellProfilerInstance;
  */
 public class PipelineExecutorNodeModel extends NodeModel {
 
+	private static final NodeLogger LOGGER = NodeLogger
+			.getLogger(PipelineExecutorNodeModel.class);
+
 	private PipelineExecutorNodeConfig m_config = new PipelineExecutorNodeConfig();
 
 	/**
@@ -39,25 +69,262 @@ public class PipelineExecutorNodeModel extends NodeModel {
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected BufferedDataTable[] execute(BufferedDataTable[] inData,
-			ExecutionContext exec) throws Exception {
-		BufferedDataTable table;
-		CellProfilerInstance cellProfiler = new CellProfilerInstance();
+	protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
+			final ExecutionContext exec) throws Exception {
+		// No need to start more instances than there are rows
+		final int numWorkers = (int) Math.max(1,
+				Math.min(m_config.getNumWorkers(), inData[0].size()));
+		final String checkpointId = m_config.isCheckpoint() ? getCheckpointId()
+				: null;
+		final List<CellProfilerInstance> cellProfilers = borrowInstances(numWorkers);
+		boolean reusable = false;
+		CellProfilerCheckpoint checkpoint = null;
+		final StageStatistics statistics = new StageStatistics(
+				StageStatistics.getGlobal());
 		try {
-			cellProfiler.loadPipeline(PipelineExecutorNodeDialog
-					.resolveToLocalPath(m_config.getPipelineFile()));
-			// Check if pipeline input parameters have changed
-			if (!Arrays.equals(cellProfiler.getInputParameters(),
-					m_config.getInputParameters())) {
-				throw new InvalidSettingsException(
-						"The input parameters of the pipeline have changed");
+			if (checkpointId != null) {
+				checkpoint = openCheckpoint(checkpointId,
+						inData[0].getDataTableSpec(), cellProfilers.get(0));
 			}
-			table = cellProfiler.execute(exec, inData[0],
-					createInputParameters(), m_config.getObjectNames());
+			final CellProfilerExecutionSettings settings = m_config
+					.createExecutionSettings();
+			settings.setCheckpoint(checkpoint);
+			settings.setStatistics(statistics);
+			final BufferedDataTable table = CellProfilerInstance.execute(exec,
+					inData[0], createInputParameters(),
+					m_config.getObjectNames(), cellProfilers, settings);
+			reusable = true;
+			publishStatistics(statistics);
+			return new BufferedDataTable[] { table };
 		} finally {
-			cellProfiler.close();
+			releaseInstances(cellProfilers, reusable);
+			if (checkpoint != null) {
+				checkpoint.close();
+				// Only needed to resume a failed or canceled execution
+				if (reusable) {
+					CellProfilerCheckpoint.delete(checkpointId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public InputPortRole[] getInputPortRoles() {
+		return new InputPortRole[] { InputPortRole.DISTRIBUTED_STREAMABLE };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public OutputPortRole[] getOutputPortRoles() {
+		return new OutputPortRole[] { OutputPortRole.DISTRIBUTED };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public StreamableOperator createStreamableOperator(
+			final PartitionInfo partitionInfo, final PortObjectSpec[] inSpecs)
+			throws InvalidSettingsException {
+		return new StreamableOperator() {
+			@Override
+			public void runFinal(final PortInput[] inputs,
+					final PortOutput[] outputs, final ExecutionContext exec)
+					throws Exception {
+				// The number of rows is unknown, each partition uses the
+				// configured number of instances
+				final List<CellProfilerInstance> cellProfilers = borrowInstances(m_config
+						.getNumWorkers());
+				final StageStatistics statistics = new StageStatistics(
+						StageStatistics.getGlobal());
+				boolean reusable = false;
+				try {
+					// Partitions can't share a checkpoint
+					final CellProfilerExecutionSettings settings = m_config
+							.createExecutionSettings();
+					settings.setStatistics(statistics);
+					CellProfilerInstance.execute(exec, (RowInput) inputs[0],
+							(RowOutput) outputs[0], createInputParameters(),
+							m_config.getObjectNames(), cellProfilers, settings);
+					reusable = true;
+					// Flow variables can't be pushed from a partition
+					LOGGER.debug("Stage timings of the partition:\n"
+							+ statistics);
+				} finally {
+					releaseInstances(cellProfilers, reusable);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Logs the durations of the stages of the execution and pushes them as
+	 * flow variables if enabled.
+	 */
+	private void publishStatistics(final StageStatistics statistics) {
+		LOGGER.debug("Stage timings:\n" + statistics);
+		if (!m_config.isStageStatistics()) {
+			return;
+		}
+		for (final StageStatistics.Stage stage : StageStatistics.Stage.values()) {
+			final StageHistogram histogram = statistics.getHistogram(stage);
+			final String prefix = "cellprofiler."
+					+ stage.name().toLowerCase(Locale.ENGLISH);
+			pushFlowVariableInt(prefix + ".count",
+					(int) histogram.getCount());
+			pushFlowVariableDouble(prefix + ".total_ms",
+					histogram.getTotalMillis());
+			pushFlowVariableDouble(prefix + ".mean_ms",
+					histogram.getMeanMillis());
+			pushFlowVariableDouble(prefix + ".median_ms",
+					histogram.getMedianMillis());
+			pushFlowVariableDouble(prefix + ".p95_ms",
+					histogram.getP95Millis());
+			pushFlowVariableDouble(prefix + ".max_ms",
+					histogram.getMaxMillis());
+		}
+	}
+
+	/**
+	 * Leases the configured workers or borrows instances from the pool and
+	 * loads the pipeline.
+	 */
+	private List<CellProfilerInstance> borrowInstances(final int numWorkers)
+			throws Exception {
+		final String pipelineFile = PipelineExecutorNodeDialog
+				.resolveToLocalPath(m_config.getPipelineFile());
+		// Fails before any instance is started if the pipeline is known
+		final CellProfilerPipelineInfo info = CellProfilerPipelineInfoCache
+				.getInstance().get(pipelineFile);
+		if (info != null) {
+			checkInputParameters(info.getInputParameters());
+		}
+		final CellProfilerWorkerRegistry workers = CellProfilerWorkerRegistry
+				.getInstance();
+		final List<CellProfilerInstance> cellProfilers = workers.isEnabled()
+				? workers.lease(numWorkers)
+				: CellProfilerInstancePool.getInstance().borrow(numWorkers);
+		boolean loaded = false;
+		try {
+			for (final CellProfilerInstance cellProfiler : cellProfilers) {
+				cellProfiler.setSharedMemoryEnabled(m_config.isSharedMemory());
+				cellProfiler.loadPipeline(pipelineFile);
+				cellProfiler.setFeatureSelection(m_config.createFeatureSelection());
+			}
+			checkInputParameters(cellProfilers.get(0).getInputParameters());
+			checkFeatureSchemas(cellProfilers.get(0).getFeatureSchemas());
+			loaded = true;
+			return cellProfilers;
+		} finally {
+			if (!loaded) {
+				releaseInstances(cellProfilers, false);
+			}
+		}
+	}
+
+	/**
+	 * Checks if the pipeline input parameters have changed since the node was
+	 * configured.
+	 */
+	private void checkInputParameters(final String[] inputParameters)
+			throws InvalidSettingsException {
+		if (!Arrays.equals(inputParameters, m_config.getInputParameters())) {
+			throw new InvalidSettingsException(
+					"The input parameters of the pipeline have changed");
+		}
+	}
+
+	/**
+	 * Checks if the features measured by the pipeline have changed since the
+	 * node was configured, as the output spec is based on the saved ones.
+	 */
+	private void checkFeatureSchemas(
+			final Map<String, CellProfilerFeatureSchema> featureSchemas)
+			throws InvalidSettingsException {
+		final Map<String, CellProfilerFeatureSchema> saved = m_config
+				.getFeatureSchemas();
+		// Settings written before the schemas were saved
+		if (saved != null && !saved.equals(featureSchemas)) {
+			throw new InvalidSettingsException(
+					"The features measured by the pipeline have changed, please reconfigure the node");
+		}
+	}
+
+	/**
+	 * Derives the ID of this node's checkpoint from the location of the
+	 * workflow and the ID of the node within it. Copies of the node, in the
+	 * same or another workflow, get their own checkpoint, while the ID stays
+	 * the same when the workflow is opened again.
+	 */
+	private static String getCheckpointId() {
+		final NodeContext context = NodeContext.getContext();
+		final WorkflowManager project = context.getWorkflowManager()
+				.getProjectWFM();
+		// The IDs of projects depend on the order they were opened in
+		final String nodeId = context.getNodeContainer().getID().toString()
+				.substring(project.getID().toString().length());
+		final WorkflowContext workflowContext = project.getContext();
+		final String location = workflowContext != null ? workflowContext
+				.getCurrentLocation().getAbsolutePath() : project.getName();
+		return UUID.nameUUIDFromBytes(
+				(location + nodeId).getBytes(StandardCharsets.UTF_8))
+				.toString();
+	}
+
+	/**
+	 * Opens the checkpoint of this node. It is only resumed if it was written
+	 * with the same pipeline, columns, scaling and feature selection, rows
+	 * whose images changed are processed again.
+	 */
+	private CellProfilerCheckpoint openCheckpoint(final String checkpointId,
+			final DataTableSpec inSpec, final CellProfilerInstance cellProfiler)
+			throws IOException {
+		final StringBuilder columns = new StringBuilder();
+		for (final String column : m_config.getImageColumns()) {
+			columns.append(column).append('=')
+					.append(inSpec.getColumnSpec(column).getType()).append(';');
+		}
+		final CellProfilerCheckpoint checkpoint = CellProfilerCheckpoint.open(
+				checkpointId, cellProfiler.getPipeline(),
+				Arrays.toString(m_config.getInputParameters()),
+				columns.toString(), m_config.getScaling().name(),
+				m_config.getScalingMin() + ".." + m_config.getScalingMax(),
+				m_config.createFeatureSelection().toString());
+		if (checkpoint.getNumCompletedRows() > 0) {
+			LOGGER.info("Resuming execution, "
+					+ checkpoint.getNumCompletedRows()
+					+ " rows completed before are not processed again");
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * Returns the instances to the pool.
+	 * 
+	 * @param reusable
+	 *            False if an execution failed, the connections might be in an
+	 *            undefined state then
+	 */
+	private static void releaseInstances(
+			final List<CellProfilerInstance> cellProfilers,
+			final boolean reusable) {
+		final CellProfilerInstancePool pool = CellProfilerInstancePool
+				.getInstance();
+		for (final CellProfilerInstance cellProfiler : cellProfilers) {
+			if (cellProfiler.getAddress() != null) {
+				// Leased workers are checked by the heartbeat
+				CellProfilerWorkerRegistry.getInstance().release(cellProfiler);
+			} else if (reusable) {
+				pool.release(cellProfiler);
+			} else {
+				pool.invalidate(cellProfiler);
+			}
 		}
-		return new BufferedDataTable[] { table };
 	}
 
 	private Pair<String, String>[] createInputParameters() {
@@ -112,7 +379,9 @@ public class PipelineExecutorNodeModel extends NodeModel {
 			}
 		}
 		return new DataTableSpec[] { CellProfilerInstance.getOutputSpec(
-				inSpecs[0], createInputParameters(), m_config.getObjectNames()) };
+				inSpecs[0], createInputParameters(), m_config.getObjectNames(),
+				m_config.createFeatureSelection().select(
+						m_config.getFeatureSchemas()), m_config.isFileStore()) };
 	}
 
 	/**
@@ -164,6 +433,11 @@ public class PipelineExecutorNodeModel extends NodeModel {
 	 */
 	@Override
 	protected void reset() {
+		// A checkpoint left by an earlier execution is never resumed once
+		// checkpoints are disabled
+		if (!m_config.isCheckpoint() && NodeContext.getContext() != null) {
+			CellProfilerCheckpoint.delete(getCheckpointId());
+		}
 	}
 
 }